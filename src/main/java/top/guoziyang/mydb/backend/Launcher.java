@@ -29,11 +29,12 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("copydir", true, "-copydir CopyDir");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.getOptionValue("copydir"));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -60,12 +61,16 @@ public class Launcher {
      * 启动数据库服务端
      * @param path
      * @param mem
+     * @param copyDir   COPY 读写文件的目录，为 null 时不允许 COPY
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, String copyDir) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        if(copyDir != null) {
+            tbm.setCopyDir(copyDir);
+        }
         new Server(port, tbm).start();
     }
 
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.common;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -124,7 +125,8 @@ public abstract class AbstractCache<T> {
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
+            // 遍历的同时要从 cache 中删除，先复制一份 key
+            Set<Long> keys = new HashSet<>(cache.keySet());
             for (long key : keys) {
                 T obj = cache.get(key);
                 releaseForCache(obj);
@@ -9,6 +9,12 @@ import top.guoziyang.mydb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long insert(long xid, long owner, byte[] data) throws Exception;   // owner 为数据项所属的表
+    long[] insert(long xid, long owner, byte[][] data) throws Exception;  // 批量插入，插入日志只刷盘一次
+    long[] insertPages(long xid, long owner, byte[][] data) throws Exception; // 装满新建的页，每页一条页镜像日志
+    int getPageNumber();    // 数据文件当前的页数
+    int[] getPages(long owner);     // 存放 owner 的数据项的页，按页号递增
+    void scanPage(int pgno, ItemVisitor visitor) throws Exception;  // 按物理顺序访问页中合法的数据项
     void close();
 
     /**
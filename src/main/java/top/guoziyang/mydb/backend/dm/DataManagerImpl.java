@@ -1,5 +1,13 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
@@ -20,7 +28,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     TransactionManager tm;
     PageCache pc;
     Logger logger;
-    PageIndex pIndex;
+    Map<Long, PageIndex> pIndexes;      // 每个所有者的页面空闲空间索引
+    Map<Long, Set<Integer>> ownerPages; // 每个所有者的页
     Page pageOne;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
@@ -28,7 +37,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndexes = new ConcurrentHashMap<>();
+        this.ownerPages = new ConcurrentHashMap<>();
     }
 
     /**
@@ -56,6 +66,19 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    /**
+     * 插入数据项，只放入所有者为 owner 的页，使同一张表的记录在物理上聚集，可以按页顺序扫描
+     * @param xid
+     * @param owner 所属的表，0 表示系统数据
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         // 将原始数据包装为 DataItem的raw数据
         byte[] raw = DataItem.wrapDataItemRaw(data);
 
@@ -64,22 +87,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
-        // 初始化页数据
-        PageInfo pi = null;
-
         // 寻找能容纳 raw 数据的页面
-        for(int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
-        }
+        PageIndex pIndex = pageIndex(owner);
+        PageInfo pi = selectPage(owner, pIndex, raw.length);
 
         // 初始化页面对象
         Page pg = null;
@@ -92,8 +102,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             byte[] log = Recover.insertLog(xid, pg, raw);
             logger.log(log);
 
-            // 将页面数据插入页面，并返回偏移量
-            short offset = PageX.insert(pg, raw);
+            // 将页面数据插入页面，并返回偏移量；持有页面锁，与按页扫描互斥
+            short offset;
+            pg.lock();
+            try {
+                offset = PageX.insert(pg, raw);
+            } finally {
+                pg.unlock();
+            }
 
             // 释放页面，写入磁盘
             pg.release();
@@ -111,6 +127,189 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 批量插入数据项：先依次为每条数据在页中确定位置，所有插入日志一次写入、只刷盘一次，
+     * 再在每页的页锁下把属于它的数据一起写入。
+     * 选出的页在写完之前不在页面索引中，其他插入不会改动它们的空闲空间偏移，推算的位置与实际写入一致
+     * @param xid
+     * @param owner 所属的表，0 表示系统数据
+     * @param data
+     * @return  与 data 一一对应的 uid
+     * @throws Exception
+     */
+    @Override
+    public long[] insert(long xid, long owner, byte[][] data) throws Exception {
+        byte[][] raws = new byte[data.length][];
+        for(int i = 0; i < data.length; i ++) {
+            raws[i] = DataItem.wrapDataItemRaw(data[i]);
+            if(raws[i].length > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
+        }
+
+        PageIndex pIndex = pageIndex(owner);
+        List<Page> pgs = new ArrayList<>();
+        List<Integer> firsts = new ArrayList<>();   // 每页第一条数据的下标
+        long[] uids = new long[raws.length];
+        try {
+            List<byte[]> logs = new ArrayList<>(raws.length);
+            Page pg = null;
+            int fso = 0, free = 0;
+            for(int i = 0; i < raws.length; i ++) {
+                if(pg == null || free < raws[i].length) {
+                    PageInfo pi = selectPage(owner, pIndex, raws[i].length);
+                    try {
+                        pg = pc.getPage(pi.pgno);
+                    } catch(Exception e) {
+                        pIndex.add(pi.pgno, pi.freeSpace);
+                        throw e;
+                    }
+                    pgs.add(pg);
+                    firsts.add(i);
+                    fso = PageX.getFSO(pg);
+                    free = PageX.getFreeSpace(pg);
+                }
+                logs.add(Recover.insertLog(xid, pg.getPageNumber(), (short)fso, raws[i]));
+                uids[i] = Types.addressToUid(pg.getPageNumber(), (short)fso);
+                fso += raws[i].length;
+                free -= raws[i].length;
+            }
+            logger.log(logs);
+
+            for(int p = 0; p < pgs.size(); p ++) {
+                int end = p+1 < pgs.size() ? firsts.get(p+1) : raws.length;
+                Page page = pgs.get(p);
+                page.lock();
+                try {
+                    for(int i = firsts.get(p); i < end; i ++) {
+                        PageX.insert(page, raws[i]);
+                    }
+                } finally {
+                    page.unlock();
+                }
+            }
+        } finally {
+            for(Page page : pgs) {
+                pIndex.add(page.getPageNumber(), PageX.getFreeSpace(page));
+                page.release();
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 把数据依次装满新建的页，每页只记一条页镜像日志，一次调用的日志一起写入、只刷盘一次。
+     * 新页在写完之前不在页面索引中，没有其他插入会写入它们；最后一页剩余的空间写完后交给页面索引
+     * @param xid
+     * @param owner 所属的表
+     * @param data
+     * @return  与 data 一一对应的 uid
+     * @throws Exception
+     */
+    @Override
+    public long[] insertPages(long xid, long owner, byte[][] data) throws Exception {
+        byte[][] raws = new byte[data.length][];
+        for(int i = 0; i < data.length; i ++) {
+            raws[i] = DataItem.wrapDataItemRaw(data[i]);
+            if(raws[i].length > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
+        }
+
+        PageIndex pIndex = pageIndex(owner);
+        List<Page> pgs = new ArrayList<>();
+        List<Integer> firsts = new ArrayList<>();   // 每页第一条数据的下标
+        long[] uids = new long[raws.length];
+        try {
+            List<byte[]> logs = new ArrayList<>();
+            for(int i = 0; i < raws.length; ) {
+                int pgno = pc.newPage(PageX.initRaw(owner));
+                pages(owner).add(pgno);
+                Page pg = pc.getPage(pgno);
+                pgs.add(pg);
+                firsts.add(i);
+                int first = i, fso = PageX.getFSO(pg), free = PageX.getFreeSpace(pg);
+                while(i < raws.length && raws[i].length <= free) {
+                    uids[i] = Types.addressToUid(pgno, (short)fso);
+                    fso += raws[i].length;
+                    free -= raws[i].length;
+                    i ++;
+                }
+                logs.add(Recover.pageLog(xid, pgno, PageX.getFSO(pg), Arrays.copyOfRange(raws, first, i)));
+            }
+            logger.log(logs);
+
+            for(int p = 0; p < pgs.size(); p ++) {
+                int end = p+1 < pgs.size() ? firsts.get(p+1) : raws.length;
+                Page page = pgs.get(p);
+                page.lock();
+                try {
+                    for(int i = firsts.get(p); i < end; i ++) {
+                        PageX.insert(page, raws[i]);
+                    }
+                } finally {
+                    page.unlock();
+                }
+            }
+        } finally {
+            for(Page page : pgs) {
+                pIndex.add(page.getPageNumber(), PageX.getFreeSpace(page));
+                page.release();
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 从页面索引中取出一页能容纳 size 字节的页，找不到时为 owner 新建页，取出的页用完后需放回索引
+     */
+    private PageInfo selectPage(long owner, PageIndex pIndex, int size) throws Exception {
+        for(int i = 0; i < 5; i++) {
+            PageInfo pi = pIndex.select(size);
+            if (pi != null) {
+                return pi;
+            }
+            int newPgno = pc.newPage(PageX.initRaw(owner));
+            pages(owner).add(newPgno);
+            pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        }
+        throw Error.DatabaseBusyException;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pc.getPageNumber();
+    }
+
+    @Override
+    public int[] getPages(long owner) {
+        Set<Integer> set = ownerPages.get(owner);
+        if(set == null) {
+            return new int[0];
+        }
+        return set.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public void scanPage(int pgno, ItemVisitor visitor) throws Exception {
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        try {
+            DataItem.visitItems(pg, visitor);
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+    }
+
+    private PageIndex pageIndex(long owner) {
+        return pIndexes.computeIfAbsent(owner, k -> new PageIndex());
+    }
+
+    private Set<Integer> pages(long owner) {
+        return ownerPages.computeIfAbsent(owner, k -> new ConcurrentSkipListSet<>());
+    }
+
     /**
      * 关闭缓存和日志，并更新管理页状态
      */
@@ -130,6 +329,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         logger.log(log);
     }
 
+    // 为xid生成只覆盖数据项中一段的update日志
+    public void logDataItem(long xid, DataItem di, int offset, int length) {
+        byte[] log = Recover.updateLog(xid, di, offset, length);
+        logger.log(log);
+    }
+
+    // 为xid生成只覆盖数据项中发生变化的几段的日志，没有变化时不写日志
+    public void logDataItemChanges(long xid, DataItem di) {
+        byte[] log = Recover.changesLog(xid, di);
+        if(log != null) {
+            logger.log(log);
+        }
+    }
+
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
@@ -193,7 +406,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            long owner = PageX.getOwner(pg);
+            pages(owner).add(i);
+            pageIndex(owner).add(i, PageX.getFreeSpace(pg));
             pg.release();
         }
     }
@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.dm;
+
+/**
+ * 按页或按 uid 访问数据项时的回调
+ * 调用时持有页面锁或数据项的读锁，只应读取 raw 中 [start, end) 的内容，不能再去获取其他锁
+ */
+public interface ItemVisitor {
+    void visit(long uid, byte[] raw, int start, int end) throws Exception;
+}
@@ -1,7 +1,9 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,11 +20,14 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Types;
 
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_PAGE = 2;     // 页镜像，格式与插入日志相同，Raw 为页中连续的多个数据项
+    private static final byte LOG_TYPE_CHANGES = 3;  // 数据项中发生变化的多段，整条日志一起重做或撤销
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -147,7 +152,7 @@ public class Recover {
     }
 
     private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+        return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_PAGE;
     }
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -173,7 +178,102 @@ public class Recover {
     }
 
     /**
-     * 解析更新日志数组
+     * 创建只覆盖 DataItem 中 Data 部分一段的更新日志，格式与 updateLog 相同，
+     * UID 中的偏移直接指向这一段在页中的位置，恢复时只写回这一段
+     * @param xid   事务ID
+     * @param di    DataItem对象
+     * @param offset    相对于 Data 部分的偏移
+     * @param length
+     * @return
+     */
+    public static byte[] updateLog(long xid, DataItem di, int offset, int length) {
+        byte[] logType = {LOG_TYPE_UPDATE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        SubArray raw = di.getRaw();
+        int pos = di.data().start - raw.start + offset;
+        short pgOffset = (short)((di.getUid() & ((1L << 16) - 1)) + pos);
+        byte[] uidRaw = Parser.long2Byte(Types.addressToUid(Types.uidToPgno(di.getUid()), pgOffset));
+        byte[] oldRaw = Arrays.copyOfRange(di.getOldRaw(), pos, pos+length);
+        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start+pos, raw.start+pos+length);
+        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+    }
+
+    // [LogType] [XID] [UID] [Count] 之后 Count 段，每段为 [Offset] [Length] [OldRaw] [NewRaw]，Offset 为该段在页中的位置
+    private static final int OF_CHANGES_COUNT = OF_UPDATE_RAW;
+    private static final int OF_CHANGES_RANGES = OF_CHANGES_COUNT+2;
+    private static final int MERGE_GAP = 8;     // 两段之间相同的字节少于这么多时合并为一段，省下每段的头部
+
+    /**
+     * 比较 DataItem 的旧数据和新数据，为发生变化的几段创建一条日志，没有变化时返回 null
+     * 节点这类一次修改分散在数据项各处（头部、中间的槽、末尾的变长区）的数据项用它代替整项的更新日志
+     * @param xid   事务ID
+     * @param di    DataItem对象
+     * @return
+     */
+    public static byte[] changesLog(long xid, DataItem di) {
+        byte[] oldRaw = di.getOldRaw();
+        SubArray raw = di.getRaw();
+        int len = oldRaw.length;
+        List<int[]> ranges = new ArrayList<>();
+        int size = OF_CHANGES_RANGES;
+        for(int i = 0; i < len; ) {
+            int m = Arrays.mismatch(oldRaw, i, len, raw.raw, raw.start+i, raw.start+len);
+            if(m < 0) {
+                break;
+            }
+            int from = i+m, to = from+1;
+            // 之后连续 MERGE_GAP 个字节都相同时这一段结束
+            while(to < len) {
+                int end = Math.min(len, to+MERGE_GAP);
+                int d = Arrays.mismatch(oldRaw, to, end, raw.raw, raw.start+to, raw.start+end);
+                if(d < 0) {
+                    break;
+                }
+                to += d+1;
+            }
+            ranges.add(new int[]{from, to});
+            size += 4 + (to-from)*2;
+            i = to;
+        }
+        if(ranges.isEmpty()) {
+            return null;
+        }
+        int base = (int)(di.getUid() & ((1L << 16) - 1));
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(LOG_TYPE_CHANGES).putLong(xid).putLong(di.getUid()).putShort((short)ranges.size());
+        for(int[] r : ranges) {
+            buf.putShort((short)(base+r[0])).putShort((short)(r[1]-r[0]));
+            buf.put(oldRaw, r[0], r[1]-r[0]);
+            buf.put(raw.raw, raw.start+r[0], r[1]-r[0]);
+        }
+        return buf.array();
+    }
+
+    /**
+     * 把多段更新日志拆成每段一个更新日志信息对象
+     * @param log
+     * @return
+     */
+    private static List<UpdateLogInfo> parseChangesLog(byte[] log) {
+        UpdateLogInfo head = parseUpdateLog(log);
+        ByteBuffer buf = ByteBuffer.wrap(log, OF_CHANGES_COUNT, log.length-OF_CHANGES_COUNT);
+        int count = buf.getShort();
+        List<UpdateLogInfo> infos = new ArrayList<>(count);
+        for(int i = 0; i < count; i ++) {
+            UpdateLogInfo li = new UpdateLogInfo();
+            li.xid = head.xid;
+            li.pgno = head.pgno;
+            li.offset = buf.getShort();
+            li.oldRaw = new byte[buf.getShort()];
+            li.newRaw = new byte[li.oldRaw.length];
+            buf.get(li.oldRaw).get(li.newRaw);
+            infos.add(li);
+        }
+        return infos;
+    }
+
+    /**
+     * 解析更新日志数组，多段更新日志只解析事务ID、页码和数据项的偏移量
      * @param log
      * @return 解析得到更新日志信息对象，包含 事务ID、页码、偏移量、旧数据、新数据
      */
@@ -184,6 +284,9 @@ public class Recover {
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
+        if(log[OF_TYPE] == LOG_TYPE_CHANGES) {
+            return li;
+        }
         int length = (log.length - OF_UPDATE_RAW) / 2;
         li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
         li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
@@ -191,28 +294,18 @@ public class Recover {
     }
 
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
+        List<UpdateLogInfo> infos = log[OF_TYPE] == LOG_TYPE_CHANGES ? parseChangesLog(log) : Collections.singletonList(parseUpdateLog(log));
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(infos.get(0).pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            // 各段互不重叠，重做和撤销的顺序无关
+            for(UpdateLogInfo xi : infos) {
+                PageX.recoverUpdate(pg, flag == REDO ? xi.newRaw : xi.oldRaw, xi.offset);
+            }
         } finally {
             pg.release();
         }
@@ -231,13 +324,36 @@ public class Recover {
      * @return      返回 log数组  [[事务]+[页码]+[偏移量]+[页面数据]]
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        return insertLog(xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
+    }
+
+    /**
+     * 数据将写入页 pgno 的 offset 处时的插入日志，批量插入时页中后续数据的位置由前面的数据推算
+     */
+    public static byte[] insertLog(long xid, int pgno, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte(offset);
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
+    /**
+     * 新页的页镜像日志：raws 依次写入页 pgno 的 offset 处，整页只记一条日志，撤销时所有数据项都标记为不合法
+     * @param xid
+     * @param pgno
+     * @param offset
+     * @param raws  页中连续的数据项
+     * @return
+     */
+    public static byte[] pageLog(long xid, int pgno, short offset, byte[][] raws) {
+        byte[] logTypeRaw = {LOG_TYPE_PAGE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte(offset);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, Bytes.concat(raws));
+    }
+
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
@@ -256,7 +372,9 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            if(flag == UNDO) {
+            if(flag == UNDO && log[0] == LOG_TYPE_PAGE) {
+                DataItem.setDataItemsRawInvalid(li.raw);
+            } else if(flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);
             }
             PageX.recoverInsert(pg, li.raw, li.offset);
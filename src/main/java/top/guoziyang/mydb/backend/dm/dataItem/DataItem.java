@@ -6,22 +6,34 @@ import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
+import top.guoziyang.mydb.backend.dm.ItemVisitor;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 
 public interface DataItem {
+    // 单个数据项 Data 部分的最大长度，一页只能放下一个这样的数据项
+    int MAX_DATA_SIZE = PageX.MAX_FREE_SPACE - DataItemImpl.OF_DATA;
+
     SubArray data();
     
     void before();
     void unBefore();
     void after(long xid);
+    // 只为 Data 部分中 [offset, offset+length) 这一段记录更新日志，其余部分必须未被修改
+    void after(long xid, int offset, int length);
+    // 与 before 时的内容比较，只为发生变化的几段记录一条日志，适合修改分散在 Data 各处的情况
+    void afterChanged(long xid);
     void release();
 
     void lock();
     void unlock();
     void rLock();
     void rUnLock();
+    // 乐观读：返回当前版本戳，正在被写时返回 0；读完后用 validate 校验期间没有写入
+    long tryOptimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -47,7 +59,29 @@ public interface DataItem {
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
+    // 依次访问页面中合法的数据项，visitor 收到的范围是 Data 部分
+    public static void visitItems(Page pg, ItemVisitor visitor) throws Exception {
+        byte[] raw = pg.getData();
+        int fso = PageX.getFSO(pg);
+        for(int offset = PageX.OF_DATA; offset < fso; ) {
+            int size = Parser.getShort(raw, offset+DataItemImpl.OF_SIZE);
+            int start = offset+DataItemImpl.OF_DATA;
+            if(raw[offset+DataItemImpl.OF_VALID] == (byte)0) {
+                visitor.visit(Types.addressToUid(pg.getPageNumber(), (short)offset), raw, start, start+size);
+            }
+            offset = start+size;
+        }
+    }
+
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // 依次把拼接在一起的多个数据项标记为不合法
+    public static void setDataItemsRawInvalid(byte[] raw) {
+        for(int offset = 0; offset < raw.length; ) {
+            raw[offset+DataItemImpl.OF_VALID] = (byte)1;
+            offset += DataItemImpl.OF_DATA + Parser.getShort(raw, offset+DataItemImpl.OF_SIZE);
+        }
+    }
 }
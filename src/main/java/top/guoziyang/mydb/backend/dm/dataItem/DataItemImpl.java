@@ -1,8 +1,7 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
@@ -22,6 +21,7 @@ public class DataItemImpl implements DataItem {
 
     private SubArray raw;
     private byte[] oldRaw;
+    private StampedLock lock;   // 除读写锁外，还支持不加锁的乐观读
     private Lock rLock;
     private Lock wLock;
     private DataManagerImpl dm;
@@ -31,9 +31,9 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        lock = new StampedLock();
+        rLock = lock.asReadLock();
+        wLock = lock.asWriteLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -70,6 +70,18 @@ public class DataItemImpl implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void after(long xid, int offset, int length) {
+        dm.logDataItem(xid, this, offset, length);
+        wLock.unlock();
+    }
+
+    @Override
+    public void afterChanged(long xid) {
+        dm.logDataItemChanges(xid, this);
+        wLock.unlock();
+    }
+
     @Override
     public void release() {
         dm.releaseDataItem(this);
@@ -95,6 +107,16 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return pg;
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
@@ -13,6 +14,7 @@ import top.guoziyang.mydb.common.Error;
 
 public interface Logger {
     void log(byte[] data);
+    void log(List<byte[]> data);    // 依次写入多条日志，只刷盘一次
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
@@ -5,6 +5,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -139,9 +140,31 @@ public class LoggerImpl implements Logger {
         updateXChecksum(log);
     }
 
+    // 批量写入日志，合并为一次写入和一次刷盘
+    @Override
+    public void log(List<byte[]> data) {
+        byte[][] logs = new byte[data.size()][];
+        for(int i = 0; i < logs.length; i ++) {
+            logs[i] = wrapLog(data.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Bytes.concat(logs));
+        lock.lock();
+        try {
+            fc.position(fc.size());
+            fc.write(buf);
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+        updateXChecksum(logs);
+    }
+
     // 更新日志全局标识位
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    private void updateXChecksum(byte[]... logs) {
+        for(byte[] log : logs) {
+            this.xChecksum = calChecksum(this.xChecksum, log);
+        }
         try {
             fc.position(0);
             fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
@@ -8,23 +8,31 @@ import top.guoziyang.mydb.backend.utils.Parser;
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [Owner] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * Owner: 8字节 页中数据项所属的表，0 表示索引、表结构等系统数据；一页只存放同一个所有者的数据项
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_OWNER = 2;
+    public static final short OF_DATA = OF_OWNER+8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
-    public static byte[] initRaw() {
+    public static byte[] initRaw(long owner) {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw, OF_DATA);
+        Parser.putLong(raw, OF_OWNER, owner);
         return raw;
     }
 
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        Parser.putShort(raw, OF_FREE, ofData);
+    }
+
+    // 获取pg的所有者
+    public static long getOwner(Page pg) {
+        return Parser.getLong(pg.getData(), OF_OWNER);
     }
 
     // 获取pg的FSO
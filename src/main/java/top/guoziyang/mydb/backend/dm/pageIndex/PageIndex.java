@@ -49,6 +49,16 @@ public class PageIndex {
                     number ++;
                     continue;
                 }
+                // 最后一个区间内页的空闲空间不一定都能容纳，需要逐个判断
+                if(number == INTERVALS_NO) {
+                    List<PageInfo> list = lists[number];
+                    for(int i = 0; i < list.size(); i ++) {
+                        if(list.get(i).freeSpace >= spaceSize) {
+                            return list.remove(i);
+                        }
+                    }
+                    return null;
+                }
                 return lists[number].remove(0);
             }
             return null;
@@ -0,0 +1,153 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 自适应哈希索引：在内存中记录被反复点查的 key 所在的起始叶子，命中时跳过从根节点的下降
+ *
+ * 一个 key 被点查 HOT_PROBES 次后才加入索引，候选计数和索引本身都按 LRU 淘汰，大小有上限。
+ * 叶子分裂或被合并时清除指向它的项；清除会推进版本号，下降前后版本号发生变化的结果不会加入索引，
+ * 避免把并发合并掉的叶子放进来。
+ * 按 key 的哈希分成若干分区，每个分区一把锁。
+ */
+class AdaptiveHashIndex {
+    static final int PARTITIONS = 8;
+    static final int MAX_ENTRIES = 512;     // 每个分区的最大项数
+    static final int MAX_CANDIDATES = 1024; // 每个分区跟踪的候选 key 数
+    static final int HOT_PROBES = 3;
+
+    private Partition[] partitions;
+
+    private static class Partition {
+        long version;
+        Map<ByteBuffer, Long> entries;          // key -> 起始叶子，访问顺序
+        Map<ByteBuffer, Integer> candidates;    // key -> 点查次数，访问顺序
+        Map<Long, Set<ByteBuffer>> byLeaf;      // 叶子 -> 指向它的 key
+
+        Partition() {
+            entries = new LinkedHashMap<ByteBuffer, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+                    if(size() <= MAX_ENTRIES) {
+                        return false;
+                    }
+                    unlink(eldest.getValue(), eldest.getKey());
+                    return true;
+                }
+            };
+            candidates = new LinkedHashMap<ByteBuffer, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Integer> eldest) {
+                    return size() > MAX_CANDIDATES;
+                }
+            };
+            byLeaf = new HashMap<>();
+        }
+
+        void unlink(long leaf, ByteBuffer key) {
+            Set<ByteBuffer> keys = byLeaf.get(leaf);
+            if(keys != null && keys.remove(key) && keys.isEmpty()) {
+                byLeaf.remove(leaf);
+            }
+        }
+    }
+
+    AdaptiveHashIndex() {
+        partitions = new Partition[PARTITIONS];
+        for(int i = 0; i < PARTITIONS; i ++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    private Partition partition(ByteBuffer key) {
+        return partitions[(key.hashCode() & 0x7fffffff) % PARTITIONS];
+    }
+
+    /**
+     * 查找 key 的起始叶子
+     * @param key
+     * @return  不在索引中时返回 0
+     */
+    long get(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        Partition p = partition(k);
+        synchronized(p) {
+            Long leaf = p.entries.get(k);
+            return leaf == null ? 0 : leaf;
+        }
+    }
+
+    /**
+     * 下降之前取得 key 所在分区的版本号，交给 observe
+     */
+    long stamp(byte[] key) {
+        Partition p = partition(ByteBuffer.wrap(key));
+        synchronized(p) {
+            return p.version;
+        }
+    }
+
+    /**
+     * 记录一次经过下降的点查，key 足够热时加入索引
+     * @param key
+     * @param leaf  下降得到的起始叶子
+     * @param stamp 下降之前的版本号，期间有叶子被清除时放弃
+     */
+    void observe(byte[] key, long leaf, long stamp) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        Partition p = partition(k);
+        synchronized(p) {
+            if(p.version != stamp) {
+                return;
+            }
+            int probes = p.candidates.getOrDefault(k, 0) + 1;
+            if(probes < HOT_PROBES) {
+                p.candidates.put(k, probes);
+                return;
+            }
+            p.candidates.remove(k);
+            Long old = p.entries.put(k, leaf);
+            if(old != null) {
+                p.unlink(old, k);
+            }
+            p.byLeaf.computeIfAbsent(leaf, x -> new HashSet<>()).add(k);
+        }
+    }
+
+    /**
+     * 叶子分裂或被合并，清除指向它的项
+     * @param leaf
+     */
+    void invalidate(long leaf) {
+        for(Partition p : partitions) {
+            synchronized(p) {
+                p.version ++;
+                Set<ByteBuffer> keys = p.byLeaf.remove(leaf);
+                if(keys == null) {
+                    continue;
+                }
+                for(ByteBuffer k : keys) {
+                    p.entries.remove(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前索引中的项数
+     */
+    int size() {
+        int size = 0;
+        for(Partition p : partitions) {
+            synchronized(p) {
+                size += p.entries.size();
+            }
+        }
+        return size;
+    }
+}
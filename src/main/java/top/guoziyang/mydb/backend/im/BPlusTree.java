@@ -3,23 +3,76 @@ package top.guoziyang.mydb.backend.im;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.im.Node.DeleteRes;
 import top.guoziyang.mydb.backend.im.Node.InsertAndSplitRes;
-import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
 import top.guoziyang.mydb.backend.im.Node.SearchNextRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
 
+/**
+ * B-link 树：每个节点带有指向右兄弟的指针，节点分裂后先对右兄弟可见，
+ * 父节点稍后才补上分隔键。查找时只对单个节点做乐观读，发现 key 超出当前节点范围就向右移动，
+ * 不需要自顶向下的锁耦合；插入时记录下降路径，分裂自底向上沿路径（必要时向右）传播。
+ *
+ * 删除后 key 过少的节点并入同一父节点下的左兄弟，被并入的节点标记为死节点但内容保持不变，
+ * 持有旧指针的读者仍能读到正确的结果。合并后超过 MERGE_LIMIT 的节点再按插入时的方式分裂一次，
+ * 两个节点的 key 因此重新均分；根节点只剩一个子节点时由子节点接替。每个操作开始时领取一个递增的票号，
+ * 死节点要等到它被摘除之前开始的操作全部结束后，才会被分裂复用。
+ * 死节点同时记在持久化的空闲列表中，重新加载后仍可复用。
+ *
+ * 反复点查的 key 经自适应哈希索引直接定位到起始叶子，跳过从根节点的下降。
+ *
+ * key 是按无符号字节序比较的变长字节串，整数经 Parser.long2Key 编码后保持数值顺序，
+ * 为此保留了以 long 为 key 的重载。
+ */
 public class BPlusTree {
+    static final int PINNED_LEVEL = 2;      // 该层及以上的节点常驻内存，不再经过数据管理器的缓存
+    static final int MAX_PINNED = 32;
+    public static final int MAX_KEY_SIZE = Node.MAX_KEY_SIZE;   // key 的最大字节数
+
+    // 空闲列表 [Count][Uid0][Uid1]...，超出容量的死节点只在内存中等待复用
+    static final int FREE_COUNT_OFFSET = 0;
+    static final int FREE_UIDS_OFFSET = FREE_COUNT_OFFSET+2;
+    static final int FREE_CAPACITY = 512;
+
     DataManager dm;
     long bootUid;
-    DataItem bootDataItem;
-    Lock bootLock;
+    DataItem bootDataItem;  // [RootUid][FreeUid]，旧格式的树只有 RootUid
+    DataItem freeDataItem;  // 持久化的死节点列表，旧格式的树为 null
+    Lock bootLock;      // 只在更换根节点时使用
+    volatile Root root;
+    Map<Long, DataItem> pinned;
+    AdaptiveHashIndex ahi;
+
+    AtomicLong clock;                       // 操作票号
+    ConcurrentSkipListSet<Long> active;     // 进行中操作的票号
+    Queue<long[]> retired;                  // 待回收的死节点 [uid, 摘除时的票号]，按票号递增排列，加载时的票号为 0
+
+    /**
+     * 根节点及其所在的层，叶子为第 0 层
+     */
+    static class Root {
+        final long uid;
+        final int level;
+
+        Root(long uid, int level) {
+            this.uid = uid;
+            this.level = level;
+        }
+    }
 
     /**
      * 创建一个 B+树 的根
@@ -30,7 +83,22 @@ public class BPlusTree {
     public static long create(DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();  // 创建空的节点数组
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);    // 将根节点插入数据管理器中，返回根节点的UID
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid)); //保存根节点的UID，并插入，返回其索引位置
+        return boot(dm, rootUid);
+    }
+
+    /**
+     * 写入空的空闲列表和树的启动信息 [RootUid][FreeUid]
+     * @param dm
+     * @param rootUid
+     * @return  B+树 的 bootUid
+     * @throws Exception
+     */
+    static long boot(DataManager dm, long rootUid) throws Exception {
+        long freeUid = dm.insert(TransactionManagerImpl.SUPER_XID, new byte[FREE_UIDS_OFFSET + FREE_CAPACITY*8]);
+        byte[] raw = new byte[16];
+        Parser.putLong(raw, 0, rootUid);
+        Parser.putLong(raw, 8, freeUid);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, raw);
     }
 
     /**
@@ -50,69 +118,173 @@ public class BPlusTree {
         t.dm = dm;              // 保存数据管理器的引用到 B+树 中，便于数据管理
         t.bootDataItem = bootDataItem;  // 关联 bootUid 的数据项
         t.bootLock = new ReentrantLock();   // 初始化 B+树 的全局锁
+        t.pinned = new ConcurrentHashMap<>();
+        t.ahi = new AdaptiveHashIndex();
+        t.clock = new AtomicLong();
+        t.active = new ConcurrentSkipListSet<>();
+        t.retired = new ConcurrentLinkedQueue<>();
+        SubArray sa = bootDataItem.data();
+        long rootUid = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+        t.root = new Root(rootUid, t.height(rootUid));
+        if(sa.end - sa.start >= 16) {
+            // 加载时没有进行中的操作，列表中的死节点都可以立即复用
+            t.freeDataItem = dm.read(Parser.getLong(sa.raw, sa.start+8));
+            SubArray free = t.freeDataItem.data();
+            int count = Parser.getShort(free.raw, free.start+FREE_COUNT_OFFSET);
+            for(int i = 0; i < count; i ++) {
+                t.retired.add(new long[]{Parser.getLong(free.raw, free.start+FREE_UIDS_OFFSET+i*8), 0});
+            }
+        }
         return t;
     }
 
     /**
-     * 返回 B+树 的根节点UID
-     * @return
+     * 沿最左路径计算以 nodeUid 为根的子树所在的层
      */
-    private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
-        } finally {
-            bootLock.unlock();
+    private int height(long nodeUid) throws Exception {
+        int level = 0;
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            boolean isLeaf = node.isLeaf();
+            long first = isLeaf ? 0 : node.searchNext(null, true).uid;
+            node.release();
+            if(isLeaf) return level;
+            level ++;
+            nodeUid = first;
         }
     }
 
     /**
      * 更新根节点
+     * 第 level 层的最左节点 left（即当前根）分裂出 right 时，由最后一次分裂它的线程生成新根；
+     * 其他在该层分裂的线程等待新根出现后，把分隔键插入新根
      * @param left
      * @param right
      * @param rightKey
+     * @param level
+     * @return  是否生成了新根
      * @throws Exception
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private boolean updateRootUid(long left, long right, byte[] rightKey, int level) throws Exception {
         bootLock.lock();
         try {
+            Root r = root;
+            if(r.level != level || r.uid != left) {
+                return false;
+            }
+            Node node = Node.loadNode(this, left);
+            long sibling = node.getSibling();
+            node.release();
+            // left 之后又被分裂过，由后一次分裂负责生成新根
+            if(sibling != right) {
+                return false;
+            }
             // 构建新的根节点信息
             byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
             // dm插入新的跟节点信息，获取 rootuid
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            // 记录旧的根节点信息
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            // 更新根节点数据项的 根节点uid信息
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            // 提交数据更新（记录更新日志）
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            long newRootUid = allocate(rootRaw);
+            setRoot(newRootUid, level+1);
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
     /**
-     * 查找指定键的叶子节点的 uid
-     * @param nodeUid
-     * @param key
+     * 把根节点的 uid 写入 bootDataItem，调用者持有 bootLock
+     * @param rootUid
+     * @param level
+     * @throws Exception
+     */
+    private void setRoot(long rootUid, int level) throws Exception {
+        // 记录旧的根节点信息
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        // 更新根节点数据项的 根节点uid信息
+        System.arraycopy(Parser.long2Byte(rootUid), 0, diRaw.raw, diRaw.start, 8);
+        // 提交数据更新，只记录根节点uid所在的 8 字节
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID, 0, 8);
+        root = new Root(rootUid, level);
+    }
+
+    /**
+     * 根节点只剩一个子节点时由子节点接替，旧根标记为死节点后回收
+     * 先更新 bootDataItem 再标记旧根：两者之间崩溃只会留下一个不可达的节点。
+     * 之后在旧根所在层插入的线程遇到死节点，转而为新根生成父节点
+     * @return  是否收缩了一层
+     * @throws Exception
+     */
+    private boolean collapseRoot() throws Exception {
+        long old = 0;
+        bootLock.lock();
+        try {
+            Root r = root;
+            if(r.level == 0) {
+                return false;
+            }
+            Node node = Node.loadNode(this, r.uid);
+            try {
+                node.dataItem.before();
+                try {
+                    SubArray raw = node.raw;
+                    if(Node.getRawIfDead(raw) || Node.getRawNoKeys(raw) != 1 || Node.getRawSibling(raw) != 0) {
+                        return false;
+                    }
+                    setRoot(Node.getRawKthSon(raw, 0), r.level-1);
+                    Node.setRawDead(raw);
+                    old = r.uid;
+                } finally {
+                    if(old != 0) {
+                        node.dataItem.after(TransactionManagerImpl.SUPER_XID, Node.IS_LEAF_OFFSET, 1);
+                    } else {
+                        node.dataItem.unBefore();
+                    }
+                }
+            } finally {
+                node.release();
+            }
+        } finally {
+            bootLock.unlock();
+        }
+        retire(old);
+        return true;
+    }
+
+    /**
+     * 从根节点下降到第 level 层，返回每一层经过的节点，path[l] 为第 l 层的节点
+     * @param key   null 表示 -∞
+     * @param level
+     * @param leftmost  为 true 时下降到最左边可能包含 key 的节点，否则下降到插入 key 的节点
      * @return
      * @throws Exception
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid); // 从当前节点中获取 nodeUid 对应的节点
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    private long[] descend(byte[] key, int level, boolean leftmost) throws Exception {
+        Root r = root;
+        long[] path = new long[r.level+1];
+        long nodeUid = r.uid;
+        for(int l = r.level; l > level; l --) {
+            path[l] = nodeUid;
+            if(l >= PINNED_LEVEL) {
+                pin(nodeUid);
+            }
+            nodeUid = searchNext(nodeUid, key, leftmost);
+        }
+        path[level] = nodeUid;
+        return path;
+    }
 
-        //判断是否为叶子节点
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            // 非叶子节点，寻找下一个节点Uid
-            long next = searchNext(nodeUid, key);
-            // 继续查找键值，直到找到叶子节点为止
-            return searchLeaf(next, key);
+    /**
+     * 让上层节点常驻内存，之后的访问不再经过数据管理器的缓存锁
+     * @param nodeUid
+     * @throws Exception
+     */
+    private void pin(long nodeUid) throws Exception {
+        if(pinned.size() >= MAX_PINNED || pinned.containsKey(nodeUid)) {
+            return;
+        }
+        DataItem di = dm.read(nodeUid);
+        if(pinned.putIfAbsent(nodeUid, di) != null) {
+            di.release();
         }
     }
 
@@ -123,12 +295,12 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, byte[] key, boolean leftmost) throws Exception {
         while(true) {
             // 读取当前节点信息
             Node node = Node.loadNode(this, nodeUid);
             // 从当前节点的子节点中查找 键为 key 的子节点
-            SearchNextRes res = node.searchNext(key);
+            SearchNextRes res = node.searchNext(key, leftmost);
             node.release();
             // 找到的话返回对应的子节点 id
             if(res.uid != 0) return res.uid;
@@ -144,10 +316,14 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    public List<Long> search(long key) throws Exception {
+    public List<Long> search(byte[] key) throws Exception {
         return searchRange(key, key);
     }
 
+    public List<Long> search(long key) throws Exception {
+        return search(Parser.long2Key(key));
+    }
+
     /**
      * 获取 leftKey 与 rightKey 间的所有节点 uid 信息
      * @param leftKey
@@ -155,78 +331,272 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();   // 获取根节点信息
-        long leafUid = searchLeaf(rootUid, leftKey);    // 找到根节点中，leftKey 后的叶子节点 ID
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey) throws Exception {
+        RangeCursor cursor = scan(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);   // 读取叶子节点的信息
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey); //获取 leftKey 与 rightKey 间的所有节点信息
-            leaf.release();
-            uids.addAll(res.uids);
-            // 判断是否从当前节点中获取全部的结果
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                // 从下一个节点的子节点中继续查
-                leafUid = res.siblingUid;
+        try {
+            while(cursor.next()) {
+                long[] batch = cursor.batch();
+                for(int i = 0; i < cursor.size(); i ++) {
+                    uids.add(batch[i]);
+                }
             }
+        } finally {
+            cursor.close();
         }
         return uids;
     }
 
+    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        return searchRange(Parser.long2Key(leftKey), Parser.long2Key(rightKey));
+    }
+
+    /**
+     * 打开 [leftKey, rightKey] 范围上的游标，结果按叶子分批读取
+     * @param leftKey
+     * @param rightKey
+     * @return
+     * @throws Exception
+     */
+    public RangeCursor scan(byte[] leftKey, byte[] rightKey) throws Exception {
+        return scan(leftKey, true, rightKey, true);
+    }
+
+    public RangeCursor scan(long leftKey, long rightKey) throws Exception {
+        return scan(Parser.long2Key(leftKey), Parser.long2Key(rightKey));
+    }
+
+    /**
+     * 打开范围游标，结果按叶子分批读取
+     * @param low   左端，null 表示不限
+     * @param lowInclusive
+     * @param high  右端，null 表示不限
+     * @param highInclusive
+     * @return
+     * @throws Exception
+     */
+    public RangeCursor scan(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) throws Exception {
+        if(low != null && high != null) {
+            int c = Arrays.compareUnsigned(low, high);
+            if(c > 0 || (c == 0 && !(lowInclusive && highInclusive))) {
+                return new RangeCursor(this, 0, 0, low, lowInclusive, high, highInclusive);
+            }
+        }
+        // 游标持有票号直到读完或关闭，期间经过的节点不会被复用
+        long ticket = enter();
+        try {
+            // 重复的 key 可能跨越叶子，分隔键等于 low 时其左边的叶子也可能含有 low，
+            // 因此包含左端时下降到最左边可能包含 low 的叶子，之后沿兄弟指针向右扫描
+            long leaf;
+            if(lowInclusive && highInclusive && low != null && Arrays.equals(low, high)) {
+                leaf = seek(low);
+            } else {
+                leaf = descend(low, 0, lowInclusive)[0];
+            }
+            return new RangeCursor(this, ticket, leaf, low, lowInclusive, high, highInclusive);
+        } catch(Exception e) {
+            exit(ticket);
+            throw e;
+        }
+    }
+
+    /**
+     * 打开范围游标，从可能含有范围内最大 key 的叶子开始向右扫描，用于只需要最大值的查询
+     * 游标只包含该叶子及其右边的叶子中的 key，调用者在其中没有找到需要的结果时应改用 scan 从头扫描
+     * @param low
+     * @param lowInclusive
+     * @param high
+     * @param highInclusive
+     * @return
+     * @throws Exception
+     */
+    public RangeCursor scanTail(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) throws Exception {
+        if(low != null && high != null) {
+            int c = Arrays.compareUnsigned(low, high);
+            if(c > 0 || (c == 0 && !(lowInclusive && highInclusive))) {
+                return new RangeCursor(this, 0, 0, low, lowInclusive, high, highInclusive);
+            }
+        }
+        long ticket = enter();
+        try {
+            // 不含右端时下降到上界不小于 high 的叶子，其中可能有小于 high 的 key
+            long leaf = lastLeaf(high, highInclusive);
+            return new RangeCursor(this, ticket, leaf, low, lowInclusive, high, highInclusive);
+        } catch(Exception e) {
+            exit(ticket);
+            throw e;
+        }
+    }
+
+    /**
+     * 打开倒序的范围游标，从范围内最大的 key 开始沿叶子的左指针向左读取，每批按 key 从大到小排列
+     * @param low   左端，null 表示不限
+     * @param lowInclusive
+     * @param high  右端，null 表示不限
+     * @param highInclusive
+     * @return
+     * @throws Exception
+     */
+    public RangeCursor scanReverse(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) throws Exception {
+        if(low != null && high != null) {
+            int c = Arrays.compareUnsigned(low, high);
+            if(c > 0 || (c == 0 && !(lowInclusive && highInclusive))) {
+                return new RangeCursor(this, 0, 0, low, lowInclusive, high, highInclusive);
+            }
+        }
+        long ticket = enter();
+        try {
+            long leaf = lastLeaf(high, highInclusive);
+            return new RangeCursor(this, ticket, leaf, low, lowInclusive, high, highInclusive).reverse();
+        } catch(Exception e) {
+            exit(ticket);
+            throw e;
+        }
+    }
+
+    /**
+     * 沿每层最右边的子节点下降到最右边的叶子
+     */
+    private long descendLast() throws Exception {
+        Root r = root;
+        long nodeUid = r.uid;
+        for(int l = r.level; l > 0; l --) {
+            while(true) {
+                Node node = Node.loadNode(this, nodeUid);
+                SearchNextRes res = node.searchLast();
+                node.release();
+                if(res.uid != 0) {
+                    nodeUid = res.uid;
+                    break;
+                }
+                nodeUid = res.siblingUid;
+            }
+        }
+        return nodeUid;
+    }
+
+    /**
+     * 点查 key 的起始叶子，先查自适应哈希索引，没有时下降并记录这次访问
+     * 调用者需持有票号，且票号在查询索引之前领取：索引中的叶子在被清除之后才会被摘除复用
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    private long seek(byte[] key) throws Exception {
+        long leaf = ahi.get(key);
+        if(leaf != 0) {
+            return leaf;
+        }
+        long stamp = ahi.stamp(key);
+        leaf = descend(key, 0, true)[0];
+        ahi.observe(key, leaf, stamp);
+        return leaf;
+    }
+
     /**
      * 向当前 B+树 插入key、uid
-     * @param key   键
+     * @param key   键，不超过 MAX_KEY_SIZE 字节
      * @param uid   值的索引
      * @throws Exception
      */
+    public void insert(byte[] key, long uid) throws Exception {
+        if(key.length > MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+        long ticket = enter();
+        try {
+            doInsert(key, uid);
+        } finally {
+            exit(ticket);
+        }
+    }
+
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        insert(Parser.long2Key(key), uid);
+    }
+
+    private void doInsert(byte[] key, long uid) throws Exception {
+        long[] path = descend(key, 0, false);
+        while(true) {
+            // 插入叶子，节点已分裂时会向右找到正确的节点
+            InsertRes res = insertAndSplit(path[0], uid, key);
+            if(res.dead) {
+                // 叶子已被合并，重新下降
+                path = descend(key, 0, false);
+                continue;
+            }
+            if(res.newNode != 0) {
+                linkSplit(res.node, res.newNode);
+                insertUp(path, 1, res.node, res.newKey, res.newNode);
+            }
+            return;
         }
     }
 
-    class InsertRes {
-        long newNode, newKey;
+    /**
+     * 叶子 node 分裂出 newNode 后，部分 key 移到了新的右兄弟：
+     * 清除自适应哈希索引中的 node，并把新叶子右兄弟的左指针指向它
+     * @param node
+     * @param newNode
+     * @throws Exception
+     */
+    private void linkSplit(long node, long newNode) throws Exception {
+        ahi.invalidate(node);
+        Node n = Node.loadNode(this, newNode);
+        try {
+            n.linkRight();
+        } finally {
+            n.release();
+        }
     }
 
     /**
-     * 向指定节点插入 key uid
-     * @param nodeUid
-     * @param uid
+     * 第 level-1 层的节点 split 分裂出 uid 后，把分隔键 key 和 uid 插入第 level 层，分裂继续向上传播
+     * @param path  下降路径
+     * @param level
+     * @param split
      * @param key
-     * @return
+     * @param uid
      * @throws Exception
      */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid); // 获取指定 node 对象
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        InsertRes res = null;
-        // 若为叶子节点
-        if(isLeaf) {
-            // 向节点中插入 uid 和 key
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            // 在当前节点的子节点下查找 值为 key 的下一个节点
-            long next = searchNext(nodeUid, key);
-            // 向子节点插入数据
-            InsertRes ir = insert(next, uid, key);
-
-            // 判断是否分裂
-            if(ir.newNode != 0) {
-
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
+    private void insertUp(long[] path, int level, long split, byte[] key, long uid) throws Exception {
+        while(true) {
+            if(level < path.length) {
+                InsertRes res = insertAndSplit(path[level], uid, key);
+                if(!res.dead) {
+                    if(res.newNode == 0) {
+                        return;
+                    }
+                    // 分裂出的新节点需要插入上一层
+                    split = res.node;
+                    uid = res.newNode;
+                    key = res.newKey;
+                    level ++;
+                    continue;
+                }
+                if(level <= root.level) {
+                    // 路径上的节点已被合并，重新下降到该层
+                    path = descend(key, level, false);
+                    continue;
+                }
+                // 遇到的是已被子节点接替的旧根
+            }
+            // 分裂的是下降时的最高层，生成新根或等待新根出现后重新定位父节点
+            if(root.level >= level) {
+                path = descend(key, level, false);
+                continue;
+            }
+            if(updateRootUid(split, uid, key, level-1)) {
+                return;
             }
+            Thread.yield();
         }
-        return res;
+    }
+
+    class InsertRes {
+        long node, newNode;
+        byte[] newKey;
+        boolean dead;
     }
 
     /**
@@ -237,18 +607,24 @@ public class BPlusTree {
      * @return
      * @throws Exception
      */
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, byte[] key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
             InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
             node.release();
 
+            if(iasr.dead) {
+                InsertRes res = new InsertRes();
+                res.dead = true;
+                return res;
+            }
             // 判断是否分裂，若分裂，就向新分裂的节点中插入数据
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 // 若未分裂，记录新的节点信息及其Key值
                 InsertRes res = new InsertRes();
+                res.node = nodeUid;
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
                 return res;
@@ -256,8 +632,377 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除键值对 (key, uid)
+     * 删除后叶子的 key 过少时与相邻节点合并或重新均分，合并导致父节点 key 过少时继续向上合并；
+     * 根节点只剩一个子节点时树高减一
+     * @param key
+     * @param uid
+     * @return  是否找到并删除
+     * @throws Exception
+     */
+    public boolean delete(byte[] key, long uid) throws Exception {
+        long ticket = enter();
+        try {
+            return doDelete(key, uid);
+        } finally {
+            exit(ticket);
+        }
+    }
+
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(Parser.long2Key(key), uid);
+    }
+
+    private boolean doDelete(byte[] key, long uid) throws Exception {
+        // 与范围查找相同，从可能包含 key 的最左叶子开始向右找
+        long[] path = descend(key, 0, true);
+        long nodeUid = path[0];
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            DeleteRes res;
+            try {
+                res = node.delete(key, uid);
+            } finally {
+                node.release();
+            }
+            if(res.dead) {
+                path = descend(key, 0, true);
+                nodeUid = path[0];
+                continue;
+            }
+            if(res.found) {
+                if(res.underflow) {
+                    rebalance(path, nodeUid);
+                }
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            nodeUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 从第 0 层的 nodeUid 开始，沿下降路径逐层合并 key 过少的节点，根节点因此只剩一个子节点时收缩
+     * 路径可能已经过时（节点被分裂到别的父节点下），这时放弃合并，B-link 树允许节点不满
+     * @param path
+     * @param nodeUid
+     * @throws Exception
+     */
+    private void rebalance(long[] path, long nodeUid) throws Exception {
+        for(int level = 0; level+1 < path.length && nodeUid != 0; level ++) {
+            MergeRes res = mergeInto(path[level+1], nodeUid);
+            if(res.overfull != 0) {
+                resplit(path, level, res.overfull);
+            }
+            nodeUid = res.underflow;
+        }
+        if(nodeUid != 0) {
+            while(collapseRoot());
+        }
+    }
+
+    class MergeRes {
+        long underflow;     // 因合并而 key 过少的父节点
+        long overfull;      // 合并后超过 MERGE_LIMIT、需要再分裂一次的节点
+    }
+
+    /**
+     * 合并后过满的第 level 层节点 nodeUid 再分裂一次，与被合并的兄弟重新均分 key
+     * 合并和分裂各自是完整的一步，中间以及每一步的任意前缀落盘后都是合法的 B-link 树；
+     * 分裂与插入时相同，新节点先经兄弟指针可见，再把分隔键插入父节点
+     * @param path
+     * @param level
+     * @param nodeUid
+     * @throws Exception
+     */
+    private void resplit(long[] path, int level, long nodeUid) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        InsertAndSplitRes res;
+        try {
+            res = node.splitAbove(Node.MERGE_LIMIT);
+        } finally {
+            node.release();
+        }
+        if(res.newSon == 0) {
+            return;
+        }
+        if(level == 0) {
+            linkSplit(nodeUid, res.newSon);
+        }
+        insertUp(path, level+1, nodeUid, res.newKey, res.newSon);
+    }
+
+    /**
+     * 把 nodeUid 与它在 parentUid 下的右兄弟（没有则左兄弟）合并，右边的节点并入左边
+     * 合并后放得下但超过 MERGE_LIMIT 时同样合并，由调用者随后把左节点再分裂一次（见 resplit）；
+     * 合并后一个节点放不下时不做调整
+     * 加锁顺序为父节点、左节点、右节点；只有合并在持有父节点的同时持有子节点的锁，
+     * 插入总是先放开子节点再锁父节点，因此不会死锁。
+     * 提交顺序同样是父、左、右：任意前缀落盘后都是合法的 B-link 树——
+     * 只提交父节点时右节点仍可经左节点的兄弟指针到达，再提交左节点后右节点已不可达
+     * @param parentUid
+     * @param nodeUid
+     * @return
+     * @throws Exception
+     */
+    private MergeRes mergeInto(long parentUid, long nodeUid) throws Exception {
+        MergeRes mres = new MergeRes();
+        Node parent = Node.loadNode(this, parentUid);
+        boolean changed = false, underflow = false, overfull = false;
+        long dead = 0;
+        parent.dataItem.before();
+        try {
+            SubArray praw = parent.raw;
+            if(Node.getRawIfDead(praw) || Node.getRawIfLeaf(praw)) {
+                return mres;
+            }
+            int pn = Node.getRawNoKeys(praw);
+            int j = Node.indexOfRawSon(praw, nodeUid);
+            if(j < 0) {
+                return mres;
+            }
+            int li;
+            if(j+1 < pn) {
+                li = j;
+            } else if(j > 0) {
+                li = j-1;
+            } else {
+                return mres;
+            }
+            long leftUid = Node.getRawKthSon(praw, li), rightUid = Node.getRawKthSon(praw, li+1);
+            Node left = Node.loadNode(this, leftUid);
+            Node right = Node.loadNode(this, rightUid);
+            try {
+                left.dataItem.before();
+                right.dataItem.before();
+                try {
+                    SubArray lraw = left.raw, rraw = right.raw;
+                    List<Node.Item> merged = null;
+                    changed = !Node.getRawIfDead(lraw) && !Node.getRawIfDead(rraw)
+                        && Node.getRawSibling(lraw) == rightUid
+                        && Math.min(Node.usedSpace(lraw), Node.usedSpace(rraw)) < Node.UNDERFLOW_SPACE;
+                    if(changed) {
+                        merged = Node.decodeRaw(lraw);
+                        merged.addAll(Node.decodeRaw(rraw));
+                        int size = Node.encodedSize(merged);
+                        changed = size <= Node.NODE_SIZE;
+                        overfull = size > Node.MERGE_LIMIT;
+                    }
+                    if(changed) {
+                        // 左节点接管右节点的范围，父节点中删除右节点
+                        List<Node.Item> items = Node.decodeRaw(praw);
+                        items.get(li).key = items.get(li+1).key;
+                        items.remove(li+1);
+                        Node.encodeRaw(praw, false, Node.getRawSibling(praw), items);
+                        // 需要再分裂时父节点随后会补回一个分隔键
+                        underflow = !overfull && Node.usedSpace(praw) < Node.UNDERFLOW_SPACE;
+                        parent.dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+                        Node.encodeRaw(lraw, Node.getRawIfLeaf(lraw), Node.getRawSibling(rraw), merged);
+                        Node.setRawDead(rraw);
+                        if(Node.getRawIfLeaf(lraw)) {
+                            linkLeft(Node.getRawSibling(rraw), leftUid);
+                        }
+                        dead = rightUid;
+                    }
+                } finally {
+                    if(changed) {
+                        left.dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+                        right.dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+                    } else {
+                        right.dataItem.unBefore();
+                        left.dataItem.unBefore();
+                    }
+                }
+            } finally {
+                left.release();
+                right.release();
+            }
+            mres.underflow = underflow ? parentUid : 0;
+            mres.overfull = changed && overfull ? leftUid : 0;
+            return mres;
+        } finally {
+            if(!changed) {
+                parent.dataItem.unBefore();
+            }
+            parent.release();
+            if(dead != 0) {
+                // 先清除自适应哈希索引中的死节点，之后才能被复用
+                ahi.invalidate(dead);
+                retire(dead);
+            }
+        }
+    }
+
+    /**
+     * 合并时把被合并叶子的右兄弟的左指针改为合并后的叶子，调用者持有左右两个叶子的锁
+     * @param uid   右兄弟，0 表示没有
+     * @param left
+     * @throws Exception
+     */
+    private void linkLeft(long uid, long left) throws Exception {
+        if(uid == 0) {
+            return;
+        }
+        Node node = Node.loadNode(this, uid);
+        try {
+            node.dataItem.before();
+            Node.setRawLeft(node.raw, left);
+            node.dataItem.after(TransactionManagerImpl.SUPER_XID, Node.LEFT_OFFSET, 8);
+        } finally {
+            node.release();
+        }
+    }
+
+    /**
+     * 叶子 leafUid 的左兄弟
+     * left 是从叶子中读到的左指针，可能因为并发分裂而指向真正左兄弟左边的节点，
+     * 因此沿兄弟指针向右走到指向 leafUid 的节点；遇到死节点时沿它的左指针继续
+     * @param leafUid
+     * @param left
+     * @return  leafUid 已被合并、不在兄弟链上时返回 -1
+     * @throws Exception
+     */
+    long leftOf(long leafUid, long left) throws Exception {
+        long uid = left;
+        while(uid != 0) {
+            Node node = Node.loadNode(this, uid);
+            Node.LinkRes links = node.getLinks();
+            node.release();
+            if(links.dead) {
+                uid = links.left;
+            } else if(links.sibling == leafUid) {
+                return uid;
+            } else {
+                uid = links.sibling;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 可能含有 high 以下最大 key 的叶子，high 为 null 时为最右边的叶子
+     * 叶子可能已经并发分裂，范围内更大的 key 在它右边的兄弟中
+     * @param high
+     * @param highInclusive
+     * @return
+     * @throws Exception
+     */
+    long lastLeaf(byte[] high, boolean highInclusive) throws Exception {
+        return high == null ? descendLast() : descend(high, 0, !highInclusive)[0];
+    }
+
+    /**
+     * 开始一次操作，返回票号
+     */
+    long enter() {
+        long ticket = clock.incrementAndGet();
+        active.add(ticket);
+        return ticket;
+    }
+
+    void exit(long ticket) {
+        active.remove(ticket);
+    }
+
+    /**
+     * 死节点已经从父节点和兄弟链上摘除，之后开始的操作不会再到达它
+     * 死标记先于空闲列表落盘，两者之间崩溃只会漏掉一个可复用的节点
+     * @param uid
+     * @throws Exception
+     */
+    private void retire(long uid) throws Exception {
+        if(freeDataItem != null) {
+            freeDataItem.before();
+            boolean changed = false;
+            try {
+                SubArray sa = freeDataItem.data();
+                int count = Parser.getShort(sa.raw, sa.start+FREE_COUNT_OFFSET);
+                if(count < FREE_CAPACITY) {
+                    Parser.putLong(sa.raw, sa.start+FREE_UIDS_OFFSET+count*8, uid);
+                    Parser.putShort(sa.raw, sa.start+FREE_COUNT_OFFSET, (short)(count+1));
+                    changed = true;
+                }
+            } finally {
+                if(changed) {
+                    freeDataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+                } else {
+                    freeDataItem.unBefore();
+                }
+            }
+        }
+        retired.add(new long[]{uid, clock.incrementAndGet()});
+    }
+
+    /**
+     * 把即将复用的死节点从空闲列表中删除，最后一项移到它的位置
+     * 先于覆盖节点落盘，崩溃后列表中不会留下已在使用的节点
+     * @param uid
+     * @throws Exception
+     */
+    private void unretire(long uid) throws Exception {
+        if(freeDataItem == null) {
+            return;
+        }
+        freeDataItem.before();
+        boolean changed = false;
+        try {
+            SubArray sa = freeDataItem.data();
+            int count = Parser.getShort(sa.raw, sa.start+FREE_COUNT_OFFSET);
+            for(int i = 0; i < count; i ++) {
+                int pos = sa.start+FREE_UIDS_OFFSET+i*8;
+                if(Parser.getLong(sa.raw, pos) == uid) {
+                    System.arraycopy(sa.raw, sa.start+FREE_UIDS_OFFSET+(count-1)*8, sa.raw, pos, 8);
+                    Parser.putShort(sa.raw, sa.start+FREE_COUNT_OFFSET, (short)(count-1));
+                    changed = true;
+                    break;
+                }
+            }
+        } finally {
+            if(changed) {
+                freeDataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+            } else {
+                freeDataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 写入一个新节点：摘除之前开始的操作都已结束的死节点直接覆盖复用，否则新插入一个数据项
+     * @param raw
+     * @return  节点 uid
+     * @throws Exception
+     */
+    long allocate(byte[] raw) throws Exception {
+        long[] head = retired.peek();
+        if(head != null) {
+            Long oldest = active.isEmpty() ? null : active.first();
+            if((oldest == null || oldest > head[1]) && retired.remove(head)) {
+                unretire(head[0]);
+                DataItem di = dm.read(head[0]);
+                try {
+                    di.before();
+                    SubArray sa = di.data();
+                    System.arraycopy(raw, 0, sa.raw, sa.start, raw.length);
+                    di.afterChanged(TransactionManagerImpl.SUPER_XID);
+                } finally {
+                    di.release();
+                }
+                return head[0];
+            }
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+    }
 
     public void close() {
+        for(DataItem di : pinned.values()) {
+            di.release();
+        }
+        if(freeDataItem != null) {
+            freeDataItem.release();
+        }
         bootDataItem.release();
     }
 }
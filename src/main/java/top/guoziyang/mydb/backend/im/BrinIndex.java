@@ -0,0 +1,276 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 块范围索引：把数据文件按页号每 PAGES_PER_RANGE 页分为一段，记录每段中该列 key 的最小值和最大值，
+ * 范围查询跳过 key 范围与条件不相交的段，剩下的页仍需逐条过滤。适合大致按顺序到达的列。
+ *
+ * 目录：[Segment0Uid]...[SegmentMUid]
+ * 目录段：[Summary0Uid]...[SummaryNUid]，每段 SEGMENT_SLOTS 个，0 表示该页段中还没有记录
+ * 摘要：[MinLen][Min][MaxTruncated][MaxLen][Max]
+ *
+ * 摘要只扩大不缩小，删除和回滚都不更新，最小值和最大值只是段中 key 的边界。
+ * key 超过 KEY_SIZE 字节时最小值取其前缀，仍不大于原值；最大值取前缀并标记截断，
+ * 表示段中所有 key 的前缀都不大于它。
+ * 插入的 key 已在段的范围内时不写任何数据，按顺序到达的列每次插入至多更新一个很小的摘要。
+ * 目录最多覆盖 MAX_RANGES 段，更靠后的页不做摘要，查询时总是保留。
+ */
+public class BrinIndex {
+    public static final int PAGES_PER_RANGE = 4;
+    static final int SEGMENT_SLOTS = 512;
+    static final int MAX_SEGMENTS = 512;
+    static final int KEY_SIZE = 32;
+    static final int MAX_RANGES = MAX_SEGMENTS*SEGMENT_SLOTS;   // 目录能覆盖的段数
+
+    static final int MIN_LEN_OFFSET = 0;
+    static final int MIN_OFFSET = MIN_LEN_OFFSET+1;
+    static final int MAX_TRUNCATED_OFFSET = MIN_OFFSET+KEY_SIZE;
+    static final int MAX_LEN_OFFSET = MAX_TRUNCATED_OFFSET+1;
+    static final int MAX_OFFSET = MAX_LEN_OFFSET+1;
+    static final int SUMMARY_SIZE = MAX_OFFSET+KEY_SIZE;
+
+    DataManager dm;
+    DataItem bootDataItem;
+    DataItem[] segments;
+
+    /**
+     * 创建一个空的块范围索引
+     * @param dm
+     * @return  索引的 bootUid
+     * @throws Exception
+     */
+    public static long create(DataManager dm) throws Exception {
+        return dm.insert(TransactionManagerImpl.SUPER_XID, new byte[MAX_SEGMENTS*8]);
+    }
+
+    /**
+     * 加载一个块范围索引，目录常驻内存直到 close
+     * @param bootUid
+     * @param dm
+     * @return
+     * @throws Exception
+     */
+    public static BrinIndex load(long bootUid, DataManager dm) throws Exception {
+        BrinIndex b = new BrinIndex();
+        b.dm = dm;
+        b.bootDataItem = dm.read(bootUid);
+        b.segments = new DataItem[MAX_SEGMENTS];
+        SubArray sa = b.bootDataItem.data();
+        for(int i = 0; i < MAX_SEGMENTS; i ++) {
+            long uid = Parser.getLong(sa.raw, sa.start+i*8);
+            if(uid != 0) {
+                b.segments[i] = dm.read(uid);
+            }
+        }
+        return b;
+    }
+
+    private synchronized DataItem segment(int i) {
+        return segments[i];
+    }
+
+    /**
+     * 第 range 段的摘要 uid，没有时为 0
+     */
+    private long summaryUid(int range) {
+        DataItem seg = segment(range / SEGMENT_SLOTS);
+        if(seg == null) {
+            return 0;
+        }
+        seg.rLock();
+        try {
+            SubArray sa = seg.data();
+            return Parser.getLong(sa.raw, sa.start + (range % SEGMENT_SLOTS)*8);
+        } finally {
+            seg.rUnLock();
+        }
+    }
+
+    /**
+     * 页 pgno 中写入了 key，扩大所在段的范围
+     * @param pgno
+     * @param key
+     * @throws Exception
+     */
+    public void add(int pgno, byte[] key) throws Exception {
+        int range = pgno / PAGES_PER_RANGE;
+        if(range >= MAX_RANGES) {
+            return;
+        }
+        long uid = summaryUid(range);
+        if(uid == 0 && (uid = allocate(range, key)) == 0) {
+            return;
+        }
+        DataItem di = dm.read(uid);
+        try {
+            // 先在读锁下检查，已在范围内时不写
+            di.rLock();
+            try {
+                if(covers(di.data(), key)) {
+                    return;
+                }
+            } finally {
+                di.rUnLock();
+            }
+            di.before();
+            SubArray sa = di.data();
+            boolean changed = false;
+            if(compare(key, sa, MIN_LEN_OFFSET) < 0) {
+                putKey(sa, MIN_LEN_OFFSET, key);
+                changed = true;
+            }
+            if(!belowMax(sa, key)) {
+                putKey(sa, MAX_LEN_OFFSET, key);
+                sa.raw[sa.start+MAX_TRUNCATED_OFFSET] = (byte)(key.length > KEY_SIZE ? 1 : 0);
+                changed = true;
+            }
+            if(changed) {
+                di.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                di.unBefore();
+            }
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 为第 range 段创建摘要，范围只含 key
+     * @return  其他线程已经创建时返回它的 uid，否则返回 0
+     */
+    private synchronized long allocate(int range, byte[] key) throws Exception {
+        long uid = summaryUid(range);
+        if(uid != 0) {
+            return uid;
+        }
+        byte[] raw = new byte[SUMMARY_SIZE];
+        SubArray sa = new SubArray(raw, 0, raw.length);
+        putKey(sa, MIN_LEN_OFFSET, key);
+        putKey(sa, MAX_LEN_OFFSET, key);
+        raw[MAX_TRUNCATED_OFFSET] = (byte)(key.length > KEY_SIZE ? 1 : 0);
+        uid = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+
+        int i = range / SEGMENT_SLOTS;
+        if(segments[i] == null) {
+            long segUid = dm.insert(TransactionManagerImpl.SUPER_XID, new byte[SEGMENT_SLOTS*8]);
+            bootDataItem.before();
+            SubArray boot = bootDataItem.data();
+            Parser.putLong(boot.raw, boot.start+i*8, segUid);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            segments[i] = dm.read(segUid);
+        }
+        DataItem seg = segments[i];
+        seg.before();
+        SubArray s = seg.data();
+        Parser.putLong(s.raw, s.start + (range % SEGMENT_SLOTS)*8, uid);
+        seg.after(TransactionManagerImpl.SUPER_XID);
+        return 0;
+    }
+
+    /**
+     * 过滤出可能含有 [low, high] 内 key 的页
+     * @param pages 递增的页号
+     * @param low   左端，null 表示不限
+     * @param lowInclusive
+     * @param high  右端，null 表示不限
+     * @param highInclusive
+     * @return
+     * @throws Exception
+     */
+    public int[] prune(int[] pages, byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) throws Exception {
+        int[] res = new int[pages.length];
+        int size = 0, range = -1;
+        boolean match = false;
+        for(int pgno : pages) {
+            if(pgno / PAGES_PER_RANGE != range) {
+                range = pgno / PAGES_PER_RANGE;
+                match = mayContain(range, low, lowInclusive, high, highInclusive);
+            }
+            if(match) {
+                res[size ++] = pgno;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    private boolean mayContain(int range, byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) throws Exception {
+        if(range >= MAX_RANGES) {
+            return true;
+        }
+        long uid = summaryUid(range);
+        if(uid == 0) {
+            return false;
+        }
+        DataItem di = dm.read(uid);
+        di.rLock();
+        try {
+            SubArray sa = di.data();
+            if(high != null) {
+                int c = compare(high, sa, MIN_LEN_OFFSET);
+                if(c < 0 || (c == 0 && !highInclusive)) {
+                    return false;
+                }
+            }
+            if(low != null) {
+                if(sa.raw[sa.start+MAX_TRUNCATED_OFFSET] != 0) {
+                    return compare(prefix(low), sa, MAX_LEN_OFFSET) <= 0;
+                }
+                int c = compare(low, sa, MAX_LEN_OFFSET);
+                if(c > 0 || (c == 0 && !lowInclusive)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            di.rUnLock();
+            di.release();
+        }
+    }
+
+    private static boolean covers(SubArray sa, byte[] key) {
+        return compare(key, sa, MIN_LEN_OFFSET) >= 0 && belowMax(sa, key);
+    }
+
+    /**
+     * key 是否不超过摘要中的最大值，最大值被截断时比较前缀
+     */
+    private static boolean belowMax(SubArray sa, byte[] key) {
+        byte[] k = sa.raw[sa.start+MAX_TRUNCATED_OFFSET] != 0 ? prefix(key) : key;
+        return compare(k, sa, MAX_LEN_OFFSET) <= 0;
+    }
+
+    private static byte[] prefix(byte[] key) {
+        return key.length > KEY_SIZE ? Arrays.copyOf(key, KEY_SIZE) : key;
+    }
+
+    /**
+     * 把 key 与摘要中 lenOffset 处的 [Len][Key] 按无符号字节序比较
+     */
+    private static int compare(byte[] key, SubArray sa, int lenOffset) {
+        int from = sa.start+lenOffset+1;
+        int len = sa.raw[sa.start+lenOffset];
+        return Arrays.compareUnsigned(key, 0, key.length, sa.raw, from, from+len);
+    }
+
+    private static void putKey(SubArray sa, int lenOffset, byte[] key) {
+        byte[] k = prefix(key);
+        sa.raw[sa.start+lenOffset] = (byte)k.length;
+        System.arraycopy(k, 0, sa.raw, sa.start+lenOffset+1, k.length);
+    }
+
+    public void close() {
+        for(DataItem di : segments) {
+            if(di != null) {
+                di.release();
+            }
+        }
+        bootDataItem.release();
+    }
+}
@@ -0,0 +1,174 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 自底向上批量构建 B+树
+ * 调用方按 key 升序依次 add (key, uid)，叶子按填充因子装满后整页写入，
+ * 上层节点在 finish 时根据每个叶子的 (uid, 首个 key) 一次性生成。
+ * 节点按编码后的字节数装填，变长 key 越长，每个节点装入的 key 越少。
+ * 每个节点只有一条插入日志，叶子额外有一条只覆盖 8 字节兄弟指针的更新日志，
+ * 不再像逐条 insert 那样每个 key 都从根下降并记录整节点的前后镜像。
+ */
+public class BulkLoader {
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private DataManager dm;
+    private int limit;          // 每个节点装入的字节数上限
+
+    private List<Node.Item> leaf = new ArrayList<>();  // 正在填充的叶子
+    private int leafSize;       // 不计公共前缀时叶子编码后的大小
+    private byte[] lastKey;
+    private long prevLeaf;      // 上一个写入的叶子，等待补上兄弟指针
+
+    // 当前层所有节点的 uid 及其子树中最小的 key
+    private List<Node.Item> level = new ArrayList<>();
+
+    public BulkLoader(DataManager dm) {
+        this(dm, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param dm
+     * @param fillFactor    节点的填充比例，(0, 1]，为之后的插入预留空间
+     */
+    public BulkLoader(DataManager dm, double fillFactor) {
+        this.dm = dm;
+        this.limit = Math.max(Node.NODE_HEADER_SIZE + 2*Node.SLOT_SIZE, Math.min(Node.NODE_SIZE, (int)(Node.NODE_SIZE * fillFactor)));
+    }
+
+    /**
+     * 追加一条索引项，key 必须不小于之前追加的 key
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void add(byte[] key, long uid) throws Exception {
+        if(key.length > Node.MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+        if(lastKey != null && Arrays.compareUnsigned(key, lastKey) < 0) {
+            throw Error.UnsortedBulkLoadException;
+        }
+        // 按不压缩前缀的大小估计，实际写入时只会更小
+        int size = itemSize(key);
+        if(!leaf.isEmpty() && leafSize + size > limit) {
+            flushLeaf();
+        }
+        if(leaf.isEmpty()) {
+            leafSize = Node.NODE_HEADER_SIZE;
+        }
+        leaf.add(new Node.Item(key, uid));
+        leafSize += size;
+        lastKey = key;
+    }
+
+    public void add(long key, long uid) throws Exception {
+        add(Parser.long2Key(key), uid);
+    }
+
+    /**
+     * 写入剩余的叶子并构建上层节点
+     * @return  新树的 bootUid，可用 BPlusTree.load 加载
+     * @throws Exception
+     */
+    public long finish() throws Exception {
+        if(!leaf.isEmpty()) {
+            flushLeaf();
+        }
+        long rootUid;
+        if(level.isEmpty()) {
+            rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw());
+        } else {
+            while(level.size() > 1) {
+                buildLevel();
+            }
+            rootUid = level.get(0).son;
+        }
+        return BPlusTree.boot(dm, rootUid);
+    }
+
+    /**
+     * 写入当前叶子，左指针指向上一个叶子，并把上一个叶子的兄弟指针指向它
+     */
+    private void flushLeaf() throws Exception {
+        byte[] raw = encode(true, 0, leaf);
+        Node.setRawLeft(new SubArray(raw, 0, raw.length), prevLeaf);
+        long uid = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+        if(prevLeaf != 0) {
+            DataItem di = dm.read(prevLeaf);
+            di.before();
+            try {
+                Node.setRawSibling(di.data(), uid);
+            } finally {
+                di.after(TransactionManagerImpl.SUPER_XID, Node.SIBLING_OFFSET, 8);
+                di.release();
+            }
+        }
+        prevLeaf = uid;
+        level.add(new Node.Item(leaf.get(0).key, uid));
+        leaf = new ArrayList<>();
+    }
+
+    /**
+     * 由当前层生成上一层。先按大小把子节点分组（每组至少两个），
+     * 再从右向左写入，每个节点的兄弟在它之前已经写入，无需回填。
+     * 每个子节点对应的 key 为其右边节点的最小 key，每层最右边的为 +∞
+     */
+    private void buildLevel() throws Exception {
+        List<Node.Item> sons = level;
+        int n = sons.size();
+        // 最后一组可能并入前一组，留出一个最长 key 的余量
+        int max = Math.min(limit, Node.NODE_SIZE - itemSize(new byte[Node.MAX_KEY_SIZE]));
+        List<Integer> starts = new ArrayList<>();
+        int size = 0;
+        for(int i = 0; i < n; i ++) {
+            int s = itemSize(i+1 < n ? sons.get(i+1).key : null);
+            boolean full = !starts.isEmpty() && i - starts.get(starts.size()-1) >= 2 && size + s > max;
+            if(starts.isEmpty() || full) {
+                starts.add(i);
+                size = Node.NODE_HEADER_SIZE;
+            }
+            size += s;
+        }
+        // 最后一组只有一个子节点时并入前一组
+        if(starts.size() > 1 && n - starts.get(starts.size()-1) < 2) {
+            starts.remove(starts.size()-1);
+        }
+        int groups = starts.size();
+        long[] parents = new long[groups];
+        long sibling = 0;
+        for(int g = groups-1; g >= 0; g --) {
+            int from = starts.get(g), to = g+1 < groups ? starts.get(g+1) : n;
+            List<Node.Item> items = new ArrayList<>(to-from);
+            for(int i = from; i < to; i ++) {
+                items.add(new Node.Item(i+1 < n ? sons.get(i+1).key : null, sons.get(i).son));
+            }
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, encode(false, sibling, items));
+            parents[g] = sibling;
+        }
+        level = new ArrayList<>(groups);
+        for(int g = 0; g < groups; g ++) {
+            level.add(new Node.Item(sons.get(starts.get(g)).key, parents[g]));
+        }
+    }
+
+    private static byte[] encode(boolean isLeaf, long sibling, List<Node.Item> items) {
+        SubArray raw = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+        Node.encodeRaw(raw, isLeaf, sibling, items);
+        return raw.raw;
+    }
+
+    private static int itemSize(byte[] key) {
+        return Node.SLOT_SIZE + (key == null ? 0 : Math.max(0, key.length - Node.INLINE_SIZE));
+    }
+}
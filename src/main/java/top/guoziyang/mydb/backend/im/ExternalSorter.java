@@ -0,0 +1,226 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * (key, uid) 对的外部排序
+ * 内存中攒满一块后排序并写入临时文件，最后对所有顺串多路归并，按序送入 BulkLoader。
+ * 单个实例不是线程安全的，并行扫描时每个线程各用一个实例，归并时合在一起。
+ */
+public class ExternalSorter {
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;    // 每个顺串的 (key, uid) 个数
+    public static final long DEFAULT_RUN_BYTES = 16 << 20; // 每个顺串中 key 的总字节数上限
+
+    private byte[][] keys;
+    private long[] uids;
+    private int size;
+    private long bytes;
+    private List<File> runs = new ArrayList<>();
+
+    public ExternalSorter() {
+        this(DEFAULT_RUN_SIZE);
+    }
+
+    public ExternalSorter(int runSize) {
+        keys = new byte[runSize][];
+        uids = new long[runSize];
+    }
+
+    public void add(byte[] key, long uid) throws IOException {
+        if(size == keys.length || bytes >= DEFAULT_RUN_BYTES) {
+            spill();
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+        bytes += key.length;
+    }
+
+    /**
+     * 将内存中的块排序后写入临时文件
+     */
+    private void spill() throws IOException {
+        sort(keys, uids, 0, size);
+        File f = File.createTempFile("mydb-sort", ".run");
+        f.deleteOnExit();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            for(int i = 0; i < size; i ++) {
+                out.writeShort(keys[i].length);
+                out.write(keys[i]);
+                out.writeLong(uids[i]);
+                keys[i] = null;
+            }
+        }
+        runs.add(f);
+        size = 0;
+        bytes = 0;
+    }
+
+    /**
+     * 多路归并所有排序器中的数据，按 (key, uid) 升序送入 loader
+     * @param sorters
+     * @param loader
+     * @throws Exception
+     */
+    public static void merge(List<ExternalSorter> sorters, BulkLoader loader) throws Exception {
+        PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> compare(a.key, a.uid, b.key, b.uid));
+        List<Run> all = new ArrayList<>();
+        try {
+            for(ExternalSorter s : sorters) {
+                // 最后一块不落盘，直接在内存中参与归并
+                sort(s.keys, s.uids, 0, s.size);
+                all.add(new MemoryRun(s.keys, s.uids, s.size));
+                for(File f : s.runs) {
+                    all.add(new FileRun(f));
+                }
+            }
+            for(Run r : all) {
+                if(r.next()) {
+                    heap.add(r);
+                }
+            }
+            while(!heap.isEmpty()) {
+                Run r = heap.poll();
+                loader.add(r.key, r.uid);
+                if(r.next()) {
+                    heap.add(r);
+                }
+            }
+        } finally {
+            for(Run r : all) {
+                r.close();
+            }
+            for(ExternalSorter s : sorters) {
+                for(File f : s.runs) {
+                    f.delete();
+                }
+                s.runs.clear();
+                Arrays.fill(s.keys, 0, s.size, null);
+                s.size = 0;
+                s.bytes = 0;
+            }
+        }
+    }
+
+    private static int compare(byte[] k1, long u1, byte[] k2, long u2) {
+        int c = Arrays.compareUnsigned(k1, k2);
+        return c != 0 ? c : Long.compare(u1, u2);
+    }
+
+    /**
+     * 对 [lo, hi) 按 (key, uid) 排序，两个数组同步交换
+     */
+    static void sort(byte[][] k, long[] u, int lo, int hi) {
+        while(hi - lo > 16) {
+            int m = (lo + hi) >>> 1;
+            // 三数取中
+            if(compare(k[m], u[m], k[lo], u[lo]) < 0) swap(k, u, m, lo);
+            if(compare(k[hi-1], u[hi-1], k[lo], u[lo]) < 0) swap(k, u, hi-1, lo);
+            if(compare(k[hi-1], u[hi-1], k[m], u[m]) < 0) swap(k, u, hi-1, m);
+            byte[] pk = k[m];
+            long pu = u[m];
+            int i = lo, j = hi-1;
+            while(i <= j) {
+                while(compare(k[i], u[i], pk, pu) < 0) i ++;
+                while(compare(k[j], u[j], pk, pu) > 0) j --;
+                if(i <= j) {
+                    swap(k, u, i, j);
+                    i ++;
+                    j --;
+                }
+            }
+            // 递归较短的一段，较长的一段继续循环
+            if(j - lo < hi - i) {
+                sort(k, u, lo, j+1);
+                lo = i;
+            } else {
+                sort(k, u, i, hi);
+                hi = j+1;
+            }
+        }
+        for(int i = lo+1; i < hi; i ++) {
+            byte[] ck = k[i];
+            long cu = u[i];
+            int j = i-1;
+            while(j >= lo && compare(k[j], u[j], ck, cu) > 0) {
+                k[j+1] = k[j];
+                u[j+1] = u[j];
+                j --;
+            }
+            k[j+1] = ck;
+            u[j+1] = cu;
+        }
+    }
+
+    private static void swap(byte[][] k, long[] u, int i, int j) {
+        byte[] tk = k[i]; k[i] = k[j]; k[j] = tk;
+        long t = u[i]; u[i] = u[j]; u[j] = t;
+    }
+
+    private static abstract class Run {
+        byte[] key;
+        long uid;
+        abstract boolean next() throws IOException;
+        void close() throws IOException {}
+    }
+
+    private static class MemoryRun extends Run {
+        byte[][] keys;
+        long[] uids;
+        int size, pos;
+
+        MemoryRun(byte[][] keys, long[] uids, int size) {
+            this.keys = keys;
+            this.uids = uids;
+            this.size = size;
+        }
+
+        @Override
+        boolean next() {
+            if(pos == size) return false;
+            key = keys[pos];
+            uid = uids[pos];
+            pos ++;
+            return true;
+        }
+    }
+
+    private static class FileRun extends Run {
+        DataInputStream in;
+
+        FileRun(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            int len;
+            try {
+                len = in.readUnsignedShort();
+            } catch(EOFException e) {
+                return false;
+            }
+            key = new byte[len];
+            in.readFully(key);
+            uid = in.readLong();
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,731 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 可扩展哈希索引，只支持等值查找
+ *
+ * 目录：[GlobalDepth][Segment0Uid]...[SegmentMUid]
+ * 目录段：[Bucket0Uid]...[BucketNUid]，每段 SEGMENT_SLOTS 个目录项，按需分配
+ * 桶：[LocalDepth][KeyNumber][OverflowUid][FreeOffset] [Entry0][Entry1]...
+ * 每个 Entry 为 [KeyLength][Key][Uid]
+ *
+ * key 哈希值的低 GlobalDepth 位选择目录项，局部深度为 l 的桶被低 l 位相同的所有目录项共享。
+ * 桶满时分裂为两个局部深度加一的桶，局部深度等于全局深度时先把目录翻倍；
+ * 桶中的 key 哈希值全部相同（重复的 key）或已达到最大深度时，改为在桶后挂溢出桶。
+ *
+ * 桶占满一页，目录常驻内存，一次等值查找通常只读取一个桶页。修改桶和目录时只为变化的几段记日志。
+ * 查找和不需要分裂的插入、删除持有目录的读锁，分裂持有目录的写锁。
+ * 分裂时先写入新桶，再让目录指向新桶，最后从旧桶中移走这些 key 并把局部深度加一：
+ * 任意前缀落盘后，每个 key 都仍能从目录找到。在后两步之间中断时，旧桶链的局部深度偏小，
+ * 还留着已移走的 key，下次分裂它时从目录中发现这种情况，先补完中断的分裂；
+ * 在此之前查找不受影响，全表扫描跳过不属于所在桶链的 key。
+ */
+public class HashIndex {
+    static final int SEGMENT_BITS = 9;
+    static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    static final int MAX_SEGMENTS = 512;
+    static final int MAX_DEPTH = SEGMENT_BITS + 9;  // 2^MAX_DEPTH = SEGMENT_SLOTS * MAX_SEGMENTS
+
+    static final int DEPTH_OFFSET = 0;
+    static final int SEGMENTS_OFFSET = DEPTH_OFFSET+1;
+    static final int DIRECTORY_SIZE = SEGMENTS_OFFSET + MAX_SEGMENTS*8;
+
+    static final int LOCAL_DEPTH_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = LOCAL_DEPTH_OFFSET+1;
+    static final int OVERFLOW_OFFSET = NO_KEYS_OFFSET+2;
+    static final int FREE_OFFSET = OVERFLOW_OFFSET+8;
+    static final int BUCKET_HEADER_SIZE = FREE_OFFSET+2;
+    static final int BUCKET_SIZE = DataItem.MAX_DATA_SIZE;
+
+    public static final int MAX_KEY_SIZE = BPlusTree.MAX_KEY_SIZE;
+
+    DataManager dm;
+    DataItem bootDataItem;
+    DataItem[] segments;
+    int globalDepth;
+    ReadWriteLock dirLock;
+
+    /**
+     * 桶中的一个键值对
+     */
+    static class Item {
+        byte[] key;
+        long uid;
+        long hash;
+
+        Item(byte[] key, long uid) {
+            this.key = key;
+            this.uid = uid;
+            this.hash = hash(key);
+        }
+    }
+
+    /**
+     * 创建一个只有一个空桶的哈希索引
+     * @param dm
+     * @return  索引的 bootUid
+     * @throws Exception
+     */
+    public static long create(DataManager dm) throws Exception {
+        long bucket = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(0, 0, new ArrayList<>()));
+        byte[] segment = new byte[SEGMENT_SLOTS*8];
+        for(int i = 0; i < SEGMENT_SLOTS; i ++) {
+            Parser.putLong(segment, i*8, bucket);
+        }
+        long segmentUid = dm.insert(TransactionManagerImpl.SUPER_XID, segment);
+        byte[] directory = new byte[DIRECTORY_SIZE];
+        Parser.putLong(directory, SEGMENTS_OFFSET, segmentUid);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, directory);
+    }
+
+    /**
+     * 加载一个哈希索引，目录常驻内存直到 close
+     * @param bootUid
+     * @param dm
+     * @return
+     * @throws Exception
+     */
+    public static HashIndex load(long bootUid, DataManager dm) throws Exception {
+        HashIndex h = new HashIndex();
+        h.dm = dm;
+        h.bootDataItem = dm.read(bootUid);
+        h.segments = new DataItem[MAX_SEGMENTS];
+        h.dirLock = new ReentrantReadWriteLock();
+        SubArray sa = h.bootDataItem.data();
+        h.globalDepth = sa.raw[sa.start+DEPTH_OFFSET];
+        for(int i = 0; i < h.segmentCount(); i ++) {
+            h.segments[i] = dm.read(Parser.getLong(sa.raw, sa.start+SEGMENTS_OFFSET+i*8));
+        }
+        return h;
+    }
+
+    private int segmentCount() {
+        return globalDepth <= SEGMENT_BITS ? 1 : 1 << (globalDepth - SEGMENT_BITS);
+    }
+
+    /**
+     * key 的 64 位哈希：FNV-1a 之后再做一次混合，让低位也足够均匀
+     */
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long getSlot(int slot) {
+        SubArray sa = segments[slot >>> SEGMENT_BITS].data();
+        return Parser.getLong(sa.raw, sa.start + (slot & (SEGMENT_SLOTS-1))*8);
+    }
+
+    long bucketOf(long hash) {
+        return getSlot((int)(hash & ((1L << globalDepth) - 1)));
+    }
+
+    /**
+     * 查找 key 对应的所有 uid
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public List<Long> search(byte[] key) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        dirLock.readLock().lock();
+        try {
+            long bucket = bucketOf(hash(key));
+            while(bucket != 0) {
+                DataItem di = dm.read(bucket);
+                di.rLock();
+                try {
+                    SubArray raw = di.data();
+                    int pos = raw.start + BUCKET_HEADER_SIZE;
+                    int noKeys = Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
+                    for(int i = 0; i < noKeys; i ++) {
+                        int len = Parser.getShort(raw.raw, pos);
+                        if(Arrays.equals(raw.raw, pos+2, pos+2+len, key, 0, key.length)) {
+                            uids.add(Parser.getLong(raw.raw, pos+2+len));
+                        }
+                        pos += 2 + len + 8;
+                    }
+                    bucket = Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+                } finally {
+                    di.rUnLock();
+                    di.release();
+                }
+            }
+        } finally {
+            dirLock.readLock().unlock();
+        }
+        return uids;
+    }
+
+    public List<Long> search(long key) throws Exception {
+        return search(Parser.long2Key(key));
+    }
+
+    /**
+     * 在 key 上打开游标，结果在打开时一次读出
+     * @param key
+     * @return
+     * @throws Exception
+     */
+    public IndexCursor scan(byte[] key) throws Exception {
+        List<Long> uids = search(key);
+        long[] batch = new long[uids.size()];
+        for(int i = 0; i < batch.length; i ++) {
+            batch[i] = uids.get(i);
+        }
+        return new ListCursor(batch, batch.length);
+    }
+
+    /**
+     * 打开整个索引上的游标，用于没有其他索引时的全表扫描
+     * 分裂会在桶之间移动 key，因此在目录读锁下一次读出所有 uid，结果不按 key 排序
+     * @return
+     * @throws Exception
+     */
+    public IndexCursor scanAll() throws Exception {
+        long[] batch = new long[64];
+        int size = 0;
+        dirLock.readLock().lock();
+        try {
+            Set<Long> seen = new HashSet<>();
+            for(int slot = 0; slot < 1 << globalDepth; slot ++) {
+                long head = getSlot(slot), bucket = head;
+                if(!seen.add(head)) continue;
+                while(bucket != 0) {
+                    List<Item> items = new ArrayList<>();
+                    bucket = readBucket(bucket, items);
+                    if(size + items.size() > batch.length) {
+                        batch = Arrays.copyOf(batch, Math.max(batch.length*2, size + items.size()));
+                    }
+                    for(Item it : items) {
+                        // 中断的分裂留在旧桶链中的 key 已在新桶链中
+                        if(bucketOf(it.hash) == head) {
+                            batch[size ++] = it.uid;
+                        }
+                    }
+                }
+            }
+        } finally {
+            dirLock.readLock().unlock();
+        }
+        return new ListCursor(batch, size);
+    }
+
+    /**
+     * 读出一个桶中的所有键值对
+     * @return  溢出桶的 uid，没有时为 0
+     */
+    long readBucket(long bucket, List<Item> items) throws Exception {
+        DataItem di = dm.read(bucket);
+        di.rLock();
+        try {
+            SubArray raw = di.data();
+            decode(raw, items);
+            return Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+        } finally {
+            di.rUnLock();
+            di.release();
+        }
+    }
+
+    private static void decode(SubArray raw, List<Item> items) {
+        int pos = raw.start + BUCKET_HEADER_SIZE;
+        int noKeys = Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
+        for(int i = 0; i < noKeys; i ++) {
+            int len = Parser.getShort(raw.raw, pos);
+            byte[] key = Arrays.copyOfRange(raw.raw, pos+2, pos+2+len);
+            items.add(new Item(key, Parser.getLong(raw.raw, pos+2+len)));
+            pos += 2 + len + 8;
+        }
+    }
+
+    /**
+     * 插入 (key, uid)
+     * @param key   不超过 MAX_KEY_SIZE 字节
+     * @param uid
+     * @throws Exception
+     */
+    public void insert(byte[] key, long uid) throws Exception {
+        if(key.length > MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+        long hash = hash(key);
+        dirLock.readLock().lock();
+        try {
+            if(tryInsert(hash, key, uid, false)) {
+                return;
+            }
+        } finally {
+            dirLock.readLock().unlock();
+        }
+        // 桶链已满，持有写锁分裂或挂溢出桶
+        dirLock.writeLock().lock();
+        try {
+            while(!tryInsert(hash, key, uid, true));
+        } finally {
+            dirLock.writeLock().unlock();
+        }
+    }
+
+    public void insert(long key, long uid) throws Exception {
+        insert(Parser.long2Key(key), uid);
+    }
+
+    /**
+     * 批量插入，落在同一桶链中的 key 一起写入，每个桶只记一条日志。
+     * 桶链放不下时，每条桶链先逐条插入一个 key 触发分裂或挂溢出桶，其余的 key 下一轮再批量写入
+     * @param keys  不超过 MAX_KEY_SIZE 字节
+     * @param uids
+     * @throws Exception
+     */
+    public void insert(byte[][] keys, long[] uids) throws Exception {
+        List<Item> pending = new ArrayList<>(keys.length);
+        for(int i = 0; i < keys.length; i ++) {
+            if(keys[i].length > MAX_KEY_SIZE) {
+                throw Error.KeyTooLongException;
+            }
+            pending.add(new Item(keys[i], uids[i]));
+        }
+        while(!pending.isEmpty()) {
+            List<List<Item>> rest = new ArrayList<>();
+            dirLock.readLock().lock();
+            try {
+                Map<Long, List<Item>> chains = new HashMap<>();
+                for(Item it : pending) {
+                    chains.computeIfAbsent(bucketOf(it.hash), k -> new ArrayList<>()).add(it);
+                }
+                for(Map.Entry<Long, List<Item>> e : chains.entrySet()) {
+                    List<Item> left = fill(e.getKey(), e.getValue());
+                    if(!left.isEmpty()) {
+                        rest.add(left);
+                    }
+                }
+            } finally {
+                dirLock.readLock().unlock();
+            }
+            pending = new ArrayList<>();
+            for(List<Item> left : rest) {
+                insert(left.get(0).key, left.get(0).uid);
+                pending.addAll(left.subList(1, left.size()));
+            }
+        }
+    }
+
+    /**
+     * 沿以 head 开头的桶链把 items 写入有空间的桶，调用者持有目录读锁
+     * @return  放不下的键值对
+     */
+    private List<Item> fill(long head, List<Item> items) throws Exception {
+        for(long bucket = head; bucket != 0 && !items.isEmpty(); ) {
+            List<Item> left = new ArrayList<>();
+            DataItem di = dm.read(bucket);
+            int added = 0;
+            di.before();
+            try {
+                SubArray raw = di.data();
+                int free = Parser.getShort(raw.raw, raw.start+FREE_OFFSET);
+                for(Item it : items) {
+                    if(free + 2 + it.key.length + 8 > BUCKET_SIZE) {
+                        left.add(it);
+                        continue;
+                    }
+                    int pos = raw.start + free;
+                    Parser.putShort(raw.raw, pos, (short)it.key.length);
+                    System.arraycopy(it.key, 0, raw.raw, pos+2, it.key.length);
+                    Parser.putLong(raw.raw, pos+2+it.key.length, it.uid);
+                    free += 2 + it.key.length + 8;
+                    added ++;
+                }
+                if(added > 0) {
+                    int noKeys = Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
+                    Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)(noKeys+added));
+                    Parser.putShort(raw.raw, raw.start+FREE_OFFSET, (short)free);
+                }
+                bucket = Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+            } finally {
+                if(added > 0) {
+                    di.afterChanged(TransactionManagerImpl.SUPER_XID);
+                } else {
+                    di.unBefore();
+                }
+                di.release();
+            }
+            items = left;
+        }
+        return items;
+    }
+
+    /**
+     * 插入桶链中第一个放得下的桶
+     * @param canSplit  持有目录写锁，桶链已满时分裂或挂溢出桶
+     * @return  是否已插入，分裂之后返回 false 由调用者重试
+     */
+    private boolean tryInsert(long hash, byte[] key, long uid, boolean canSplit) throws Exception {
+        long head = bucketOf(hash), bucket = head, last;
+        while(true) {
+            DataItem di = dm.read(bucket);
+            boolean changed = false;
+            long overflow;
+            di.before();
+            try {
+                SubArray raw = di.data();
+                int free = Parser.getShort(raw.raw, raw.start+FREE_OFFSET);
+                if(free + 2 + key.length + 8 <= BUCKET_SIZE) {
+                    int pos = raw.start + free;
+                    Parser.putShort(raw.raw, pos, (short)key.length);
+                    System.arraycopy(key, 0, raw.raw, pos+2, key.length);
+                    Parser.putLong(raw.raw, pos+2+key.length, uid);
+                    Parser.putShort(raw.raw, raw.start+FREE_OFFSET, (short)(free + 2 + key.length + 8));
+                    int noKeys = Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
+                    Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)(noKeys+1));
+                    changed = true;
+                    return true;
+                }
+                overflow = Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+            } finally {
+                if(changed) {
+                    di.afterChanged(TransactionManagerImpl.SUPER_XID);
+                } else {
+                    di.unBefore();
+                }
+                di.release();
+            }
+            last = bucket;
+            if(overflow == 0) break;
+            bucket = overflow;
+        }
+        if(!canSplit) {
+            return false;
+        }
+        if(split(head, hash)) {
+            return false;
+        }
+        addOverflow(head, last, key, uid);
+        return true;
+    }
+
+    /**
+     * 在桶链末尾 last 之后挂一个只含 (key, uid) 的溢出桶
+     */
+    private void addOverflow(long head, long last, byte[] key, long uid) throws Exception {
+        List<Item> items = new ArrayList<>();
+        items.add(new Item(key, uid));
+        long overflow = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(localDepth(head), 0, items));
+        DataItem di = dm.read(last);
+        try {
+            di.before();
+            SubArray raw = di.data();
+            Parser.putLong(raw.raw, raw.start+OVERFLOW_OFFSET, overflow);
+            di.after(TransactionManagerImpl.SUPER_XID, OVERFLOW_OFFSET, 8);
+        } finally {
+            di.release();
+        }
+    }
+
+    int localDepth(long bucket) throws Exception {
+        DataItem di = dm.read(bucket);
+        try {
+            SubArray raw = di.data();
+            return raw.raw[raw.start+LOCAL_DEPTH_OFFSET];
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 把以 head 开头的桶链按哈希值的第 l 位（l 为局部深度）分成两个桶链，调用者持有目录写锁
+     * @param head
+     * @param hash  落在该桶链中的一个哈希值，确定桶链对应的目录项
+     * @return  无法分裂时返回 false：已达到最大深度，或所有 key 的哈希值相同
+     * @throws Exception
+     */
+    private boolean split(long head, long hash) throws Exception {
+        List<Long> chain = new ArrayList<>();
+        List<Item> all = new ArrayList<>();
+        for(long bucket = head; bucket != 0; ) {
+            chain.add(bucket);
+            bucket = readBucket(bucket, all);
+        }
+        int l = localDepth(head);
+        int pattern = (int)(hash & ((1L << l) - 1));
+        // 只保留属于这条桶链的 key，其余是中断的分裂留下的、已在新桶链中的 key
+        List<Item> items = new ArrayList<>();
+        for(Item it : all) {
+            if((it.hash & ((1L << l) - 1)) == pattern) {
+                items.add(it);
+            }
+        }
+        // 上次分裂在目录切换之后中断：第 l 位为 1 的目录项（可能只有一部分）已指向新桶链，
+        // 补完目录切换，再重写旧桶链
+        long moved = movedHalf(head, pattern, l);
+        if(moved != 0) {
+            List<Item> stay = new ArrayList<>();
+            for(Item it : items) {
+                if((it.hash >>> l & 1) == 0) {
+                    stay.add(it);
+                }
+            }
+            setSlots(pattern | (1 << l), 1 << (l+1), moved);
+            rewriteChain(chain, stay, l+1);
+            return true;
+        }
+        // 重写旧桶链时中断，后面的桶还留着已移走的 key
+        if(items.size() < all.size()) {
+            rewriteChain(chain, items, l);
+            return true;
+        }
+        if(l >= MAX_DEPTH || items.isEmpty()) {
+            return false;
+        }
+        boolean same = true;
+        for(Item it : items) {
+            same &= it.hash == items.get(0).hash;
+        }
+        if(same) {
+            return false;
+        }
+        if(l == globalDepth) {
+            doubleDirectory();
+        }
+
+        List<Item> stay = new ArrayList<>(), move = new ArrayList<>();
+        for(Item it : items) {
+            ((it.hash >>> l & 1) == 0 ? stay : move).add(it);
+        }
+        // 1. 写入新桶链
+        long newHead = writeChain(move, l+1);
+        // 2. 目录中低 l 位与该桶相同、第 l 位为 1 的目录项指向新桶
+        setSlots(pattern | (1 << l), 1 << (l+1), newHead);
+        // 3. 旧桶链只保留第 l 位为 0 的 key，局部深度加一
+        rewriteChain(chain, stay, l+1);
+        return true;
+    }
+
+    /**
+     * 局部深度为 l 的桶链 head 对应的目录项中，第 l 位为 1 的目录项应当都指向 head，
+     * 有指向别处的说明上次分裂在目录切换之后中断，返回它指向的新桶链，否则返回 0
+     */
+    private long movedHalf(long head, int pattern, int l) {
+        for(int slot = pattern | (1 << l); slot < 1 << globalDepth; slot += 1 << (l+1)) {
+            long bucket = getSlot(slot);
+            if(bucket != head) {
+                return bucket;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 把 items 写入新分配的桶链
+     * @return  桶链头部的 uid
+     */
+    long writeChain(List<Item> items, int depth) throws Exception {
+        List<List<Item>> buckets = pack(items);
+        long next = 0;
+        for(int i = buckets.size()-1; i >= 0; i --) {
+            next = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(depth, next, buckets.get(i)));
+        }
+        return next;
+    }
+
+    /**
+     * 用 items 重写已有的桶链，多出的桶留空
+     */
+    private void rewriteChain(List<Long> chain, List<Item> items, int depth) throws Exception {
+        List<List<Item>> buckets = pack(items);
+        for(int i = 0; i < chain.size(); i ++) {
+            DataItem di = dm.read(chain.get(i));
+            try {
+                di.before();
+                SubArray raw = di.data();
+                long overflow = Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+                List<Item> content = i < buckets.size() ? buckets.get(i) : new ArrayList<>();
+                byte[] b = newBucketRaw(depth, overflow, content);
+                System.arraycopy(b, 0, raw.raw, raw.start, b.length);
+                di.afterChanged(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                di.release();
+            }
+        }
+    }
+
+    /**
+     * 按桶的容量把 items 依次分组
+     */
+    private static List<List<Item>> pack(List<Item> items) {
+        List<List<Item>> buckets = new ArrayList<>();
+        List<Item> cur = new ArrayList<>();
+        int used = BUCKET_HEADER_SIZE;
+        for(Item it : items) {
+            int size = 2 + it.key.length + 8;
+            if(used + size > BUCKET_SIZE) {
+                buckets.add(cur);
+                cur = new ArrayList<>();
+                used = BUCKET_HEADER_SIZE;
+            }
+            cur.add(it);
+            used += size;
+        }
+        buckets.add(cur);
+        return buckets;
+    }
+
+    static byte[] newBucketRaw(int depth, long overflow, List<Item> items) {
+        byte[] raw = new byte[BUCKET_SIZE];
+        raw[LOCAL_DEPTH_OFFSET] = (byte)depth;
+        Parser.putShort(raw, NO_KEYS_OFFSET, (short)items.size());
+        Parser.putLong(raw, OVERFLOW_OFFSET, overflow);
+        int pos = BUCKET_HEADER_SIZE;
+        for(Item it : items) {
+            Parser.putShort(raw, pos, (short)it.key.length);
+            System.arraycopy(it.key, 0, raw, pos+2, it.key.length);
+            Parser.putLong(raw, pos+2+it.key.length, it.uid);
+            pos += 2 + it.key.length + 8;
+        }
+        Parser.putShort(raw, FREE_OFFSET, (short)pos);
+        return raw;
+    }
+
+    /**
+     * 把目录项 from, from+step, from+2*step, ... 指向 bucket
+     */
+    void setSlots(int from, int step, long bucket) throws Exception {
+        DataItem di = null;
+        for(int slot = from; slot < 1 << globalDepth; slot += step) {
+            DataItem seg = segments[slot >>> SEGMENT_BITS];
+            if(seg != di) {
+                if(di != null) {
+                    di.afterChanged(TransactionManagerImpl.SUPER_XID);
+                }
+                di = seg;
+                di.before();
+            }
+            SubArray sa = di.data();
+            Parser.putLong(sa.raw, sa.start + (slot & (SEGMENT_SLOTS-1))*8, bucket);
+        }
+        if(di != null) {
+            di.afterChanged(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 目录翻倍，新的后一半是前一半的拷贝；调用者持有目录写锁
+     * 深度不超过 SEGMENT_BITS 时在第一个目录段内复制，否则复制出新的目录段，
+     * 最后修改目录中的深度（和目录段列表），此前落盘的修改都不会被使用
+     * @throws Exception
+     */
+    void doubleDirectory() throws Exception {
+        int slots = 1 << globalDepth;
+        int count = segmentCount();
+        if(globalDepth < SEGMENT_BITS) {
+            DataItem di = segments[0];
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(sa.raw, sa.start, sa.raw, sa.start + slots*8, slots*8);
+            di.after(TransactionManagerImpl.SUPER_XID, slots*8, slots*8);
+        } else {
+            for(int i = 0; i < count; i ++) {
+                SubArray sa = segments[i].data();
+                long uid = dm.insert(TransactionManagerImpl.SUPER_XID, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+                segments[count+i] = dm.read(uid);
+            }
+        }
+        bootDataItem.before();
+        SubArray sa = bootDataItem.data();
+        sa.raw[sa.start+DEPTH_OFFSET] = (byte)(globalDepth+1);
+        if(globalDepth >= SEGMENT_BITS) {
+            for(int i = 0; i < count; i ++) {
+                Parser.putLong(sa.raw, sa.start+SEGMENTS_OFFSET+(count+i)*8, segments[count+i].getUid());
+            }
+        }
+        bootDataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+        globalDepth ++;
+    }
+
+    /**
+     * 删除 (key, uid)
+     * @param key
+     * @param uid
+     * @return  是否找到并删除
+     * @throws Exception
+     */
+    public boolean delete(byte[] key, long uid) throws Exception {
+        dirLock.readLock().lock();
+        try {
+            long bucket = bucketOf(hash(key));
+            while(bucket != 0) {
+                DataItem di = dm.read(bucket);
+                boolean found = false;
+                di.before();
+                try {
+                    SubArray raw = di.data();
+                    int pos = raw.start + BUCKET_HEADER_SIZE;
+                    int noKeys = Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
+                    int free = Parser.getShort(raw.raw, raw.start+FREE_OFFSET);
+                    for(int i = 0; i < noKeys; i ++) {
+                        int len = Parser.getShort(raw.raw, pos);
+                        int size = 2 + len + 8;
+                        if(Parser.getLong(raw.raw, pos+2+len) == uid
+                            && Arrays.equals(raw.raw, pos+2, pos+2+len, key, 0, key.length)) {
+                            System.arraycopy(raw.raw, pos+size, raw.raw, pos, raw.start+free-pos-size);
+                            Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)(noKeys-1));
+                            Parser.putShort(raw.raw, raw.start+FREE_OFFSET, (short)(free-size));
+                            found = true;
+                            return true;
+                        }
+                        pos += size;
+                    }
+                    bucket = Parser.getLong(raw.raw, raw.start+OVERFLOW_OFFSET);
+                } finally {
+                    if(found) {
+                        di.afterChanged(TransactionManagerImpl.SUPER_XID);
+                    } else {
+                        di.unBefore();
+                    }
+                    di.release();
+                }
+            }
+            return false;
+        } finally {
+            dirLock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(Parser.long2Key(key), uid);
+    }
+
+    public void close() {
+        for(DataItem di : segments) {
+            if(di != null) {
+                di.release();
+            }
+        }
+        bootDataItem.release();
+    }
+}
@@ -0,0 +1,30 @@
+package top.guoziyang.mydb.backend.im;
+
+/**
+ * 索引上的游标，按批返回 uid
+ *
+ * 用法：
+ * while(cursor.next()) {
+ *     for(int i = 0; i < cursor.size(); i ++) { cursor.batch()[i] ... }
+ * }
+ */
+public interface IndexCursor {
+    /**
+     * 读取下一批 uid
+     * @return  没有更多结果时返回 false
+     * @throws Exception
+     */
+    boolean next() throws Exception;
+
+    /**
+     * 当前批次的 uid，有效部分为 [0, size())
+     */
+    long[] batch();
+
+    int size();
+
+    /**
+     * 结束遍历，提前放弃的游标需要调用
+     */
+    void close();
+}
@@ -0,0 +1,40 @@
+package top.guoziyang.mydb.backend.im;
+
+/**
+ * 已经读出的一组 uid 上的游标，只有一批
+ */
+public class ListCursor implements IndexCursor {
+    private long[] batch;
+    private int size;
+    private boolean done;
+
+    public ListCursor(long[] batch, int size) {
+        this.batch = batch;
+        this.size = size;
+    }
+
+    @Override
+    public boolean next() {
+        if(done || size == 0) {
+            size = 0;
+            return false;
+        }
+        done = true;
+        return true;
+    }
+
+    @Override
+    public long[] batch() {
+        return batch;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        done = true;
+    }
+}
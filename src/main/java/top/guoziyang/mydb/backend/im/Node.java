@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.im;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
@@ -11,27 +12,70 @@ import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * Node结构如下：
- * [LeafFlag][KeyNumber][SiblingUid]
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * [LeafFlag][KeyNumber][SiblingUid][LeftUid][PrefixLength][HeapStart]
+ * [Slot0][Slot1]...[SlotN] ...空闲... [SuffixN]...[Suffix0][Prefix]
+ * 每个 Slot 为 [Inline][Son][SuffixOffset][KeyLength]
  *
- * LeafFlag：标记是否为叶子节点
+ * LeafFlag：最低位标记是否为叶子节点，次低位标记节点是否已被合并进左兄弟（死节点）
  * KeyNumber：标记节点中 key 的数量
  * SiblingUid：存储兄弟节点在DM中的UID，实现节点间的连接
- * SonN KeyN：后续穿插的子节点，最后一个Key值为MAX_VALUE，方便查找
+ * LeftUid：左兄弟的 UID，只在叶子层维护，用于倒序扫描。分裂后先提交节点本身再回填右边叶子的左指针，
+ * 因此左指针可能短暂地指向已分裂节点的左半部分，读者需沿兄弟指针向右确认
+ * key 是按无符号字节序比较的变长字节串。节点内所有 key 的公共前缀 Prefix 只在节点末尾存一份，
+ * 槽中只存去掉前缀后的部分：前 8 个字节按大端放入 Inline，比较时先做一次 long 比较，
+ * 相等时才到变长区比较剩余的 Suffix。KeyLength 为去掉前缀后的长度，-1 表示 +∞，
+ * 内部节点用它作为最右子节点的上界，方便查找
+ * 槽按 key 有序连续存放，便于二分查找；变长区从节点末尾向前增长，删除留下的空洞在重新编码节点时回收
+ * 节点大小由页大小决定，一个节点正好占满一页。修改节点时只为变化的几段（头部、移动过的槽、新写入的变长区）记日志，
+ * 见 DataItem.afterChanged
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;    // 表示该节点是否为叶子节点
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET+1; // 标记节点中 key 的数量
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2; // 标记节点的兄弟节点的uid
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;   // 表示节点头部的大小的常量
-
-    static final int BALANCE_NUMBER = 32;   // 节点平衡因子，一个节点最多包含32个 key
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2); // 节点大小
+    static final int LEFT_OFFSET = SIBLING_OFFSET+8;    // 左兄弟的uid，只在叶子层维护
+    static final int PREFIX_LEN_OFFSET = LEFT_OFFSET+8;  // 公共前缀的长度，前缀存放在节点末尾
+    static final int HEAP_OFFSET = PREFIX_LEN_OFFSET+2;     // 变长区的起始位置
+    static final int NODE_HEADER_SIZE = HEAP_OFFSET+2;   // 表示节点头部的大小的常量
+
+    static final int SLOT_INLINE = 0;
+    static final int SLOT_SON = SLOT_INLINE+8;
+    static final int SLOT_SUFFIX = SLOT_SON+8;
+    static final int SLOT_LEN = SLOT_SUFFIX+2;
+    static final int SLOT_SIZE = SLOT_LEN+2;
+    static final int INLINE_SIZE = 8;
+    static final int INFINITY = -1;
+
+    static final int NODE_SIZE = DataItem.MAX_DATA_SIZE; // 节点大小
+    static final int SPACE = NODE_SIZE - NODE_HEADER_SIZE;
+    static final int CAPACITY = SPACE / SLOT_SIZE;  // key 都不超过 8 字节时，一个节点最多的 key 数
+    static final int MAX_KEY_SIZE = 1024;   // 保证分裂后每个节点至少还有几个 key
+
+    // 已用空间低于 UNDERFLOW_SPACE 时尝试与相邻节点合并；合并后不超过 MERGE_LIMIT，避免合并后很快又分裂
+    static final int UNDERFLOW_SPACE = SPACE/4;
+    static final int MERGE_LIMIT = SPACE*3/4;
+
+    static final byte LEAF_FLAG = 1;
+    static final byte DEAD_FLAG = 2;
 
     BPlusTree tree;
     DataItem dataItem;
     SubArray raw;
     long uid;
+    boolean pinned;     // 数据项由树常驻持有，不随节点释放
+
+    /**
+     * 解码后的一个键值对，key 为 null 表示 +∞
+     */
+    static class Item {
+        byte[] key;
+        long son;
+
+        Item(byte[] key, long son) {
+            this.key = key;
+            this.son = son;
+        }
+    }
 
     /**
      * 设置节点是否为叶子节点
@@ -40,7 +84,7 @@ public class Node {
      */
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.raw[raw.start + IS_LEAF_OFFSET] = LEAF_FLAG;
         } else {
             raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
         }
@@ -52,7 +96,20 @@ public class Node {
      * @return
      */
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & LEAF_FLAG) != 0;
+    }
+
+    /**
+     * 标记节点已被合并进左兄弟。死节点的内容保持合并时的样子，
+     * 仍持有旧指针的读者可以继续读它并沿兄弟指针向右，写者遇到死节点则重新从根下降
+     * @param raw
+     */
+    static void setRawDead(SubArray raw) {
+        raw.raw[raw.start + IS_LEAF_OFFSET] |= DEAD_FLAG;
+    }
+
+    static boolean getRawIfDead(SubArray raw) {
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & DEAD_FLAG) != 0;
     }
 
     /**
@@ -61,7 +118,7 @@ public class Node {
      * @param noKeys
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     /**
@@ -70,7 +127,7 @@ public class Node {
      * @return
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     /**
@@ -79,7 +136,7 @@ public class Node {
      * @param sibling
      */
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     /**
@@ -88,7 +145,34 @@ public class Node {
      * @return
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.getLong(raw.raw, raw.start+SIBLING_OFFSET);
+    }
+
+    static void setRawLeft(SubArray raw, long left) {
+        Parser.putLong(raw.raw, raw.start+LEFT_OFFSET, left);
+    }
+
+    static long getRawLeft(SubArray raw) {
+        return Parser.getLong(raw.raw, raw.start+LEFT_OFFSET);
+    }
+
+    static int getRawPrefixLen(SubArray raw) {
+        return Parser.getShort(raw.raw, raw.start+PREFIX_LEN_OFFSET);
+    }
+
+    static int getRawHeapStart(SubArray raw) {
+        return Parser.getShort(raw.raw, raw.start+HEAP_OFFSET);
+    }
+
+    static void setRawHeapStart(SubArray raw, int heap) {
+        Parser.putShort(raw.raw, raw.start+HEAP_OFFSET, (short)heap);
+    }
+
+    /**
+     * 第 k 个槽在数组中的位置
+     */
+    private static int slot(SubArray raw, int kth) {
+        return raw.start + NODE_HEADER_SIZE + kth*SLOT_SIZE;
     }
 
     /**
@@ -98,8 +182,7 @@ public class Node {
      * @param kth   子节点的索引
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, slot(raw, kth)+SLOT_SON, uid);
     }
 
     /**
@@ -109,54 +192,310 @@ public class Node {
      * @return
      */
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.getLong(raw.raw, slot(raw, kth)+SLOT_SON);
+    }
+
+    static long getRawKthInline(SubArray raw, int kth) {
+        return Parser.getLong(raw.raw, slot(raw, kth)+SLOT_INLINE);
+    }
+
+    static int getRawKthSuffix(SubArray raw, int kth) {
+        return Parser.getShort(raw.raw, slot(raw, kth)+SLOT_SUFFIX);
     }
 
     /**
-     * 设置第k个键的值
+     * 第 k 个 key 去掉公共前缀后的长度，+∞ 为 INFINITY
+     */
+    static int getRawKthLen(SubArray raw, int kth) {
+        return Parser.getShort(raw.raw, slot(raw, kth)+SLOT_LEN);
+    }
+
+    /**
+     * 还原第 k 个 key 的完整内容，+∞ 返回 null
      * @param raw
-     * @param key
      * @param kth
+     * @return
+     */
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int len = getRawKthLen(raw, kth);
+        if(len == INFINITY) {
+            return null;
+        }
+        int plen = getRawPrefixLen(raw);
+        byte[] key = new byte[plen+len];
+        System.arraycopy(raw.raw, raw.start+NODE_SIZE-plen, key, 0, plen);
+        long inline = getRawKthInline(raw, kth);
+        for(int i = 0; i < Math.min(len, INLINE_SIZE); i ++) {
+            key[plen+i] = (byte)(inline >>> (56 - 8*i));
+        }
+        if(len > INLINE_SIZE) {
+            System.arraycopy(raw.raw, raw.start+getRawKthSuffix(raw, kth), key, plen+INLINE_SIZE, len-INLINE_SIZE);
+        }
+        return key;
+    }
+
+    /**
+     * 取 key 从 from 开始的 8 个字节（不足补 0）作为大端的 long，按无符号比较与字节序一致
+     * @param key
+     * @param from
+     * @return
+     */
+    static long inlineOf(byte[] key, int from) {
+        long v = 0;
+        for(int i = 0; i < INLINE_SIZE; i ++) {
+            int p = from + i;
+            v = (v << 8) | (p < key.length ? key[p] & 0xff : 0);
+        }
+        return v;
+    }
+
+    /**
+     * 比较 key 与节点的公共前缀：key 以前缀开头返回 0；
+     * 否则 key 小于节点中所有的 key 时返回 -1，大于所有有限的 key 时返回 1
+     * @param raw
+     * @param key
+     * @return
      */
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    static int comparePrefix(SubArray raw, byte[] key) {
+        int plen = getRawPrefixLen(raw);
+        int p = raw.start + NODE_SIZE - plen;
+        int n = Math.min(plen, key.length);
+        int m = Arrays.mismatch(key, 0, n, raw.raw, p, p+n);
+        if(m >= 0) {
+            return Integer.compare(key[m] & 0xff, raw.raw[p+m] & 0xff);
+        }
+        return key.length < plen ? -1 : 0;
     }
 
     /**
-     * 获取第k个子节点的值
+     * 比较以公共前缀开头的 key 与第 k 个 key，先比较 Inline，相等时再比较变长区中剩余的字节
      * @param raw
      * @param kth
+     * @param key
+     * @param from  公共前缀的长度
+     * @param inline    inlineOf(key, from)
      * @return
      */
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static int compareRawKth(SubArray raw, int kth, byte[] key, int from, long inline) {
+        int len = getRawKthLen(raw, kth);
+        if(len == INFINITY) {
+            return -1;
+        }
+        int c = Long.compareUnsigned(inline, getRawKthInline(raw, kth));
+        if(c != 0) {
+            return c;
+        }
+        int klen = key.length - from;
+        if(klen <= INLINE_SIZE || len <= INLINE_SIZE) {
+            return Integer.compare(klen, len);
+        }
+        int off = raw.start + getRawKthSuffix(raw, kth);
+        return Arrays.compareUnsigned(key, from+INLINE_SIZE, key.length, raw.raw, off, off+len-INLINE_SIZE);
     }
 
     /**
-     * 从from节点的原始数组中复制一部分到 to 节点的原始数组中
-     * @param from
-     * @param to
+     * 不含 +∞ 的 key 的个数
+     */
+    private static int finiteKeys(SubArray raw, int noKeys) {
+        return noKeys > 0 && getRawKthLen(raw, noKeys-1) == INFINITY ? noKeys-1 : noKeys;
+    }
+
+    /**
+     * 二分查找第一个不小于 key 的位置
+     * @param raw
+     * @param noKeys
+     * @param key
+     * @return
+     */
+    static int lowerBound(SubArray raw, int noKeys, byte[] key) {
+        return bound(raw, noKeys, key, false);
+    }
+
+    /**
+     * 二分查找第一个大于 key 的位置
+     * @param raw
+     * @param noKeys
+     * @param key
+     * @return
+     */
+    static int upperBound(SubArray raw, int noKeys, byte[] key) {
+        return bound(raw, noKeys, key, true);
+    }
+
+    private static int bound(SubArray raw, int noKeys, byte[] key, boolean upper) {
+        int p = comparePrefix(raw, key);
+        if(p < 0) {
+            return 0;
+        }
+        if(p > 0) {
+            return finiteKeys(raw, noKeys);
+        }
+        int from = getRawPrefixLen(raw);
+        long inline = inlineOf(key, from);
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareRawKth(raw, mid, key, from, inline);
+            if(c > 0 || (upper && c == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 把第 kth 个 key 去掉前缀后写入槽中，超出 Inline 的部分写到变长区 heap 之前
+     * @return  新的变长区起始位置
+     */
+    private static int writeRawKth(SubArray raw, int kth, byte[] key, long son, int plen, int heap) {
+        int s = slot(raw, kth);
+        Parser.putLong(raw.raw, s+SLOT_SON, son);
+        if(key == null) {
+            Parser.putLong(raw.raw, s+SLOT_INLINE, -1L);
+            Parser.putShort(raw.raw, s+SLOT_SUFFIX, (short)0);
+            Parser.putShort(raw.raw, s+SLOT_LEN, (short)INFINITY);
+            return heap;
+        }
+        int len = key.length - plen;
+        Parser.putLong(raw.raw, s+SLOT_INLINE, inlineOf(key, plen));
+        Parser.putShort(raw.raw, s+SLOT_LEN, (short)len);
+        if(len > INLINE_SIZE) {
+            heap -= len - INLINE_SIZE;
+            System.arraycopy(key, plen+INLINE_SIZE, raw.raw, raw.start+heap, len-INLINE_SIZE);
+            Parser.putShort(raw.raw, s+SLOT_SUFFIX, (short)heap);
+        } else {
+            Parser.putShort(raw.raw, s+SLOT_SUFFIX, (short)0);
+        }
+        return heap;
+    }
+
+    /**
+     * 有序集合的公共前缀即首尾两个有限 key 的公共前缀
+     */
+    private static int commonPrefix(List<Item> items) {
+        int last = items.size()-1;
+        if(last >= 0 && items.get(last).key == null) {
+            last --;
+        }
+        if(last < 0) {
+            return 0;
+        }
+        byte[] a = items.get(0).key, b = items.get(last).key;
+        int m = Arrays.mismatch(a, b);
+        return m < 0 ? a.length : m;
+    }
+
+    /**
+     * 把有序的 items 编码为节点，重新计算公共前缀
+     * @param raw
+     * @param isLeaf
+     * @param sibling
+     * @param items
+     */
+    static void encodeRaw(SubArray raw, boolean isLeaf, long sibling, List<Item> items) {
+        int plen = commonPrefix(items);
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, items.size());
+        setRawSibling(raw, sibling);
+        Parser.putShort(raw.raw, raw.start+PREFIX_LEN_OFFSET, (short)plen);
+        int heap = NODE_SIZE - plen;
+        if(plen > 0) {
+            System.arraycopy(items.get(0).key, 0, raw.raw, raw.start+heap, plen);
+        }
+        for(int i = 0; i < items.size(); i ++) {
+            heap = writeRawKth(raw, i, items.get(i).key, items.get(i).son, plen, heap);
+        }
+        setRawHeapStart(raw, heap);
+    }
+
+    /**
+     * 编码 items 需要的空间
+     * @param items
+     * @return
+     */
+    static int encodedSize(List<Item> items) {
+        int plen = commonPrefix(items);
+        int size = NODE_HEADER_SIZE + plen + items.size()*SLOT_SIZE;
+        for(Item it : items) {
+            if(it.key != null) {
+                size += Math.max(0, it.key.length - plen - INLINE_SIZE);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 解码节点中的全部键值对
+     * @param raw
+     * @return
+     */
+    static List<Item> decodeRaw(SubArray raw) {
+        int noKeys = getRawNoKeys(raw);
+        List<Item> items = new ArrayList<>(noKeys+1);
+        for(int i = 0; i < noKeys; i ++) {
+            items.add(new Item(getRawKthKey(raw, i), getRawKthSon(raw, i)));
+        }
+        return items;
+    }
+
+    /**
+     * 节点实际使用的空间，不含删除留下的空洞
+     * @param raw
+     * @return
+     */
+    static int usedSpace(SubArray raw) {
+        int noKeys = getRawNoKeys(raw);
+        int size = NODE_HEADER_SIZE + getRawPrefixLen(raw) + noKeys*SLOT_SIZE;
+        for(int i = 0; i < noKeys; i ++) {
+            size += Math.max(0, getRawKthLen(raw, i) - INLINE_SIZE);
+        }
+        return size;
+    }
+
+    /**
+     * 将 [kth, noKeys) 的槽后移一位
+     * @param raw
      * @param kth
+     * @param noKeys
      */
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
+    static void shiftRawKth(SubArray raw, int kth, int noKeys) {
+        int count = (noKeys-kth)*SLOT_SIZE;
+        if(count <= 0) return;
+        int from = slot(raw, kth);
+        System.arraycopy(raw.raw, from, raw.raw, from+SLOT_SIZE, count);
     }
 
     /**
-     * 将指定位置后的所有键和子节点后移一位
+     * 删除第 kth 个槽，之后的前移一位；变长区中的内容留作空洞
      * @param raw
      * @param kth
+     * @param noKeys
+     */
+    static void removeRawKth(SubArray raw, int kth, int noKeys) {
+        int count = (noKeys-kth-1)*SLOT_SIZE;
+        if(count > 0) {
+            int to = slot(raw, kth);
+            System.arraycopy(raw.raw, to+SLOT_SIZE, raw.raw, to, count);
+        }
+        setRawNoKeys(raw, noKeys-1);
+    }
+
+    /**
+     * 查找子节点 son 在节点中的位置，找不到返回 -1
+     * @param raw
+     * @param son
+     * @return
      */
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    static int indexOfRawSon(SubArray raw, long son) {
+        int noKeys = getRawNoKeys(raw);
+        for(int i = 0; i < noKeys; i ++) {
+            if(getRawKthSon(raw, i) == son) {
+                return i;
+            }
         }
+        return -1;
     }
 
     /**
@@ -166,17 +505,12 @@ public class Node {
      * @param key   初始键值
      * @return
      */
-    static byte[] newRootRaw(long left, long right, long key)  {
+    static byte[] newRootRaw(long left, long right, byte[] key)  {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-
-        setRawIsLeaf(raw, false);
-        setRawNoKeys(raw, 2);
-        setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
-
+        List<Item> items = new ArrayList<>();
+        items.add(new Item(key, left));
+        items.add(new Item(null, right));
+        encodeRaw(raw, false, 0, items);
         return raw.raw;
     }
 
@@ -186,11 +520,7 @@ public class Node {
      */
     static byte[] newNilRootRaw()  {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-
-        setRawIsLeaf(raw, true);
-        setRawNoKeys(raw, 0);
-        setRawSibling(raw, 0);
-
+        encodeRaw(raw, true, 0, new ArrayList<>());
         return raw.raw;
     }
 
@@ -202,33 +532,127 @@ public class Node {
      * @throws Exception
      */
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
-        DataItem di = bTree.dm.read(uid);
+        // 常驻的上层节点直接复用，不经过数据管理器的缓存
+        DataItem di = bTree.pinned.get(uid);
+        boolean pinned = di != null;
+        if(!pinned) {
+            di = bTree.dm.read(uid);
+        }
         assert di != null;
         Node n = new Node();
         n.tree = bTree;
         n.dataItem = di;
         n.raw = di.data();
         n.uid = uid;
+        n.pinned = pinned;
         return n;
     }
 
     public void release() {
-        dataItem.release();
+        if(!pinned) {
+            dataItem.release();
+        }
     }
 
     /**
-     * 判断是否是叶子节点
+     * 读取节点内容：先不加锁地乐观读，读取期间节点被修改（版本变化）时再加读锁重读
+     * @param reader
      * @return
      */
-    public boolean isLeaf() {
+    private <T> T read(Supplier<T> reader) {
+        long stamp = dataItem.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                T res = reader.get();
+                if(dataItem.validate(stamp)) {
+                    return res;
+                }
+            } catch(RuntimeException e) {
+                // 读到了修改到一半的内容，下面加锁重读
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    /**
+     * 判断是否是叶子节点
+     * @return
+     */
+    public boolean isLeaf() {
+        return read(() -> getRawIfLeaf(raw));
+    }
+
+    /**
+     * 获取兄弟节点的 uid
+     * @return
+     */
+    public long getSibling() {
+        return read(() -> getRawSibling(raw));
+    }
+
+    class LinkRes {
+        long left, sibling;
+        boolean dead;
+    }
+
+    /**
+     * 左右兄弟的 uid 和是否已被合并，用于倒序扫描时确认左兄弟
+     * @return
+     */
+    public LinkRes getLinks() {
+        return read(() -> {
+            LinkRes res = new LinkRes();
+            res.left = getRawLeft(raw);
+            res.sibling = getRawSibling(raw);
+            res.dead = getRawIfDead(raw);
+            return res;
+        });
+    }
+
+    /**
+     * 分裂出的新叶子提交之后，把右兄弟的左指针指向它
+     * 持有本节点的锁：本节点不会同时被合并，兄弟指针也不会改变，右兄弟不会是死节点
+     * @throws Exception
+     */
+    public void linkRight() throws Exception {
+        dataItem.before();
+        try {
+            long sibling = getRawSibling(raw);
+            if(getRawIfDead(raw) || sibling == 0) {
+                return;
+            }
+            Node right = loadNode(tree, sibling);
+            try {
+                right.dataItem.before();
+                setRawLeft(right.raw, uid);
+                right.dataItem.after(TransactionManagerImpl.SUPER_XID, LEFT_OFFSET, 8);
+            } finally {
+                right.release();
+            }
+        } finally {
+            dataItem.unBefore();
+        }
+    }
+
+    /**
+     * 读取节点中所有的 key，+∞ 为 null
+     * @return
+     */
+    public byte[][] getKeys() {
+        return read(() -> {
+            byte[][] keys = new byte[getRawNoKeys(raw)][];
+            for(int i = 0; i < keys.length; i ++) {
+                keys[i] = getRawKthKey(raw, i);
+            }
+            return keys;
+        });
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -236,92 +660,88 @@ public class Node {
 
     /**
      * 在B+树的节点中搜索下一个节点的方法
-     * @param key
+     * @param key   null 表示 -∞，即最左边的子节点
+     * @param leftmost  为 true 时返回最左边可能包含 key 的子节点（上界不小于 key），
+     *                  否则返回上界大于 key 的子节点
      * @return
      */
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
+    public SearchNextRes searchNext(byte[] key, boolean leftmost) {
+        return read(() -> {
             SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
-            // 遍历当前节点的所有子节点 [left, right]
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i); // 获取第 i 个 key 的值
-                // 当前 ik 大于 指定 k，表示找到了下一个节点
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i); // 设置下一个节点的 uid
-                    res.siblingUid = 0;
-                    return res;
-                }
+            int kth = key == null ? 0 : leftmost ? lowerBound(raw, noKeys, key) : upperBound(raw, noKeys, key);
+            if(kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth); // 设置下一个节点的 uid
+                res.siblingUid = 0;
+                return res;
             }
 
             res.uid = 0;    // 没有找到下一个节点，设置 uid 为 0
 
             res.siblingUid = getRawSibling(raw);    // 设置兄弟节点的 uid 为当前节点的兄弟节点
             return res;
+        });
+    }
 
-        } finally {
-            dataItem.rUnLock();
-        }
+    /**
+     * 最右边的子节点；节点右边还有兄弟时（并发分裂）返回兄弟节点，由调用者继续向右
+     * @return
+     */
+    public SearchNextRes searchLast() {
+        return read(() -> {
+            SearchNextRes res = new SearchNextRes();
+            res.siblingUid = getRawSibling(raw);
+            if(res.siblingUid == 0) {
+                res.uid = getRawKthSon(raw, getRawNoKeys(raw)-1);
+            }
+            return res;
+        });
     }
 
-    class LeafSearchRangeRes {
-        List<Long> uids;
+    class LeafScanRes {
+        int count;
         long siblingUid;
+        long leftUid;   // 范围的左端不在本叶子中时为左兄弟，否则为 0
     }
 
     /**
-     * 在B+树的叶子节点中搜索一个键值范围的方法
-     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]，
-     * 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点
-     * @param leftKey
-     * @param rightKey
+     * 在叶子节点中查找落在范围内的 key，结果写入 uids，返回写入的个数，
+     * 这里约定如果范围的右端超出了该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点
+     * @param low   左端，null 表示不限
+     * @param lowInclusive
+     * @param high  右端，null 表示不限
+     * @param highInclusive
+     * @param uids  容量不小于节点容量的数组
+     * @param keys  不为 null 时同时写入对应的 key，容量同 uids
      * @return
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
+    public LeafScanRes leafSearchRange(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive, long[] uids, byte[][] keys) {
+        return read(() -> {
             int noKeys = getRawNoKeys(raw); // 获取节点中的键的数量
-            int kth = 0;
-            // 找到第一个大于或等于左键的键
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
-                kth ++;
-            }
+            int from = low == null ? 0 : lowInclusive ? lowerBound(raw, noKeys, low) : upperBound(raw, noKeys, low);
+            int to = high == null ? noKeys : highInclusive ? upperBound(raw, noKeys, high) : lowerBound(raw, noKeys, high);
 
-            List<Long> uids = new ArrayList<>();    // 创建一个列表，用于存储所有在键值范围内的子节点的UID
-            // 遍历所有的键，将所有小于或等于右键的键对应的子节点的UID添加到列表中
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
+            int count = 0;
+            for(int k = from; k < to; k ++) {
+                if(keys != null) {
+                    keys[count] = getRawKthKey(raw, k);
                 }
+                uids[count ++] = getRawKthSon(raw, k);
             }
 
+            LeafScanRes res = new LeafScanRes();
+            res.count = count;
             // 如果所有的键都被遍历过，获取兄弟节点的UID
-            long siblingUid = 0;
-            if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-
-            // 创建一个LeafSearchRangeRes对象，用于存储搜索结果
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
+            res.siblingUid = to == noKeys ? getRawSibling(raw) : 0;
+            res.leftUid = from == 0 ? getRawLeft(raw) : 0;
             return res;
-        } finally {
-            dataItem.rUnLock();
-        }
+        });
     }
 
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        byte[] newKey;
+        boolean dead;
     }
 
     /**
@@ -331,7 +751,7 @@ public class Node {
      * @return
      * @throws Exception
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, byte[] key) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
@@ -339,34 +759,50 @@ public class Node {
         // 设置保存点，便于回滚
         dataItem.before();
         try {
-            success = insert(uid, key);
-
-            // 如果插入失败，设置兄弟节点的UID，并返回结果
-            if(!success) {
+            // 节点已被合并，由调用者重新下降
+            if(getRawIfDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            // 寻找第一个不小于 key 的位置
+            int kth = lowerBound(raw, noKeys, key);
+            // 如果所有的键都被遍历过，并且存在兄弟节点，插入失败，设置兄弟节点的UID，并返回结果
+            if(kth == noKeys && getRawSibling(raw) != 0) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
             }
+            success = true;
+            if(insert(uid, key, kth, noKeys)) {
+                return res;
+            }
 
-            // 判断是否需要分裂节点
-            if(needSplit()) {
-                try {
-                    // 分裂节点，并获取分裂后的结果
-                    SplitRes r = split();
-                    // 设置新节点的 UID和键
-                    res.newSon = r.newSon;
-                    res.newKey = r.newKey;
-                    return res;
-                } catch(Exception e) {
-                    err = e;
-                    throw e;
-                }
+            // 空间不足，或 key 不以节点的公共前缀开头：解码后插入，重新编码，放不下时分裂
+            List<Item> items = decodeRaw(raw);
+            if(getRawIfLeaf(raw)) {
+                items.add(kth, new Item(key, uid));
             } else {
+                Item old = items.get(kth);
+                items.add(kth+1, new Item(old.key, uid));
+                old.key = key;
+            }
+            if(encodedSize(items) <= NODE_SIZE) {
+                encodeRaw(raw, getRawIfLeaf(raw), getRawSibling(raw), items);
                 return res;
             }
+            // 分裂节点，并获取分裂后的结果
+            SplitRes r = split(items);
+            // 设置新节点的 UID和键
+            res.newSon = r.newSon;
+            res.newKey = r.newKey;
+            return res;
+        } catch(Exception e) {
+            err = e;
+            throw e;
         } finally {
             // 若没有 err 并且插入成功，提交数据项的修改
             if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
             } else {
                 // 出现问题就回滚
                 dataItem.unBefore();
@@ -375,96 +811,177 @@ public class Node {
     }
 
     /**
-     * 在B+树的节点中插入一个键值对的方法
+     * 原地插入到第 kth 个位置，空间不足或 key 不以公共前缀开头时返回 false
      * @param uid
      * @param key
+     * @param kth
+     * @param noKeys
      * @return
      */
-    private boolean insert(long uid, long key) {
-        int noKeys = getRawNoKeys(raw); // 获取当前节点的子节点数量
-        int kth = 0;
-        // 从第0个子节点开始，寻找合适位置
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
+    private boolean insert(long uid, byte[] key, int kth, int noKeys) {
+        if(noKeys == 0 || comparePrefix(raw, key) != 0) {
+            return false;
         }
-        // 如果所有的键都被遍历过，并且存在兄弟节点，插入失败
-        if(kth == noKeys && getRawSibling(raw) != 0) return false;
-
+        int plen = getRawPrefixLen(raw);
+        int heap = getRawHeapStart(raw);
+        int need = SLOT_SIZE + Math.max(0, key.length - plen - INLINE_SIZE);
+        if(heap - NODE_HEADER_SIZE - noKeys*SLOT_SIZE < need) {
+            return false;
+        }
+        shiftRawKth(raw, kth, noKeys);  // kth开始的所有槽后移一位
         //  如果节点是叶子节点
         if(getRawIfLeaf(raw)) {
-            shiftRawKth(raw, kth);  // kth开始的所有键值后移一位
-            setRawKthKey(raw, key, kth);    // 设置键
-            setRawKthSon(raw, uid, kth);    // 设置值
-            setRawNoKeys(raw, noKeys+1);    // 节点数量+1
-        } else {// 非叶子节点
-            long kk = getRawKthKey(raw, kth);   // 获取插入位置的键
-            setRawKthKey(raw, key, kth);    // 在插入位置插入新的键
-            shiftRawKth(raw, kth+1);    // 所有键和其子节点后移
-            setRawKthKey(raw, kk, kth+1);   // 在新插入节点后的位置插入原来的节点和新的子节点 uid
+            heap = writeRawKth(raw, kth, key, uid, plen, heap);
+        } else {
+            // 非叶子节点：原子节点的范围缩小到新的键，后移后的槽（原来的上界）交给新的子节点
+            heap = writeRawKth(raw, kth, key, getRawKthSon(raw, kth+1), plen, heap);
             setRawKthSon(raw, uid, kth+1);
-            setRawNoKeys(raw, noKeys+1);    //更新节点中的键的数量
         }
+        setRawHeapStart(raw, heap);
+        setRawNoKeys(raw, noKeys+1);    // 节点数量+1
         return true;
     }
 
-    /**
-     * 当节点数大于平衡因子的两倍时，需要分裂几点
-     * @return
-     */
-    private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
-    }
-
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        byte[] newKey;
     }
 
     /**
      * 分裂 B+树 节点
-     * 当一个节点的键的数量达到 `BALANCE_NUMBER * 2` 时，就意味着这个节点已经满了，需要进行分裂操作。
-     * 分裂操作的目的是将一个满的节点分裂成两个节点，每个节点包含一半的键。
+     * 节点放不下插入后的全部键值对时，按占用的空间把它们分成大致相等的两半，
+     * 后一半写入新的节点，当前节点保留前一半
+     * @param items 插入后的全部键值对
      * @return
      * @throws Exception
      */
-    private SplitRes split() throws Exception {
-        // 创建新的节点，存储新的节点的原始数据
+    private SplitRes split(List<Item> items) throws Exception {
+        int total = 0;
+        for(Item it : items) {
+            total += itemSize(it);
+        }
+        int mid = 0, acc = 0;
+        while(mid < items.size()-1 && acc < total/2) {
+            acc += itemSize(items.get(mid ++));
+        }
+        mid = Math.max(mid, 1);
+        // 新节点的第一个 key 作为分隔键交给父节点，不能是 +∞
+        if(items.get(mid).key == null) {
+            mid --;
+        }
+        List<Item> left = new ArrayList<>(items.subList(0, mid));
+        List<Item> right = new ArrayList<>(items.subList(mid, items.size()));
+
+        // 新节点与原节点类型相同，兄弟节点与原节点一致
         SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        // 设置新节点的叶子标记，与原节点相同
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        // 设置新节点的节点数量为 Balance_Number，即满容量的一半
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        // 设置新节点的兄弟节点，与原节点一致
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        // 从原节点的原始字节数组中复制一半数据到新节点的原始字节数组中
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        // 在数据管理器中插入新节点的原始数据，并获取新节点的UID
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-
-        // 更新当前节点的键的数量
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        // 将当前节点的兄弟节点的兄弟节点更新为 分裂的新节点的UID
-        setRawSibling(raw, son);
+        encodeRaw(nodeRaw, getRawIfLeaf(raw), getRawSibling(raw), right);
+        if(getRawIfLeaf(raw)) {
+            setRawLeft(nodeRaw, uid);
+        }
+        // 写入新节点（优先复用已回收的死节点），并获取新节点的UID
+        long son = tree.allocate(nodeRaw.raw);
+        // 当前节点保留前一半，兄弟指向新节点
+        encodeRaw(raw, getRawIfLeaf(raw), son, left);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);  // 设置新节点的第一个键的值
+        res.newKey = right.get(0).key;  // 设置新节点的第一个键的值
         return res;
     }
 
+    /**
+     * 合并后超过 limit 的节点按插入时的方式分裂，后一半写入新节点，分隔键由调用者插入父节点
+     * @param limit
+     * @return  没有分裂时 newSon 为 0
+     * @throws Exception
+     */
+    public InsertAndSplitRes splitAbove(int limit) throws Exception {
+        InsertAndSplitRes res = new InsertAndSplitRes();
+        dataItem.before();
+        try {
+            if(getRawIfDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            if(usedSpace(raw) <= limit || getRawNoKeys(raw) < 2) {
+                return res;
+            }
+            SplitRes r = split(decodeRaw(raw));
+            res.newSon = r.newSon;
+            res.newKey = r.newKey;
+            return res;
+        } finally {
+            if(res.newSon != 0) {
+                dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    private static int itemSize(Item it) {
+        return SLOT_SIZE + (it.key == null ? 0 : Math.max(0, it.key.length - INLINE_SIZE));
+    }
+
+    class DeleteRes {
+        boolean found, dead, underflow;
+        long siblingUid;
+    }
+
+    /**
+     * 从叶子节点中删除键值对 (key, uid)
+     * 相同的 key 可能跨越多个叶子，本节点中的 key 都不大于 key 时返回兄弟节点，由调用者继续向右查找
+     * @param key
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    public DeleteRes delete(byte[] key, long uid) throws Exception {
+        DeleteRes res = new DeleteRes();
+        dataItem.before();
+        try {
+            if(getRawIfDead(raw)) {
+                res.dead = true;
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            if(comparePrefix(raw, key) == 0) {
+                int from = getRawPrefixLen(raw);
+                long inline = inlineOf(key, from);
+                for(; kth < noKeys && compareRawKth(raw, kth, key, from, inline) == 0; kth ++) {
+                    if(getRawKthSon(raw, kth) == uid) {
+                        removeRawKth(raw, kth, noKeys);
+                        res.found = true;
+                        res.underflow = usedSpace(raw) < UNDERFLOW_SPACE;
+                        return res;
+                    }
+                }
+            }
+            res.siblingUid = kth == noKeys ? getRawSibling(raw) : 0;
+            return res;
+        } finally {
+            if(res.found) {
+                dataItem.afterChanged(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
+        sb.append("Is dead: ").append(getRawIfDead(raw)).append("\n");
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        sb.append("prefix: ").append(getRawPrefixLen(raw)).append(" bytes\n");
         for(int i = 0; i < KeyNumber; i ++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            byte[] key = getRawKthKey(raw, i);
+            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ")
+                .append(key == null ? "+inf" : Arrays.toString(key)).append("\n");
         }
         return sb.toString();
     }
@@ -0,0 +1,188 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import top.guoziyang.mydb.backend.im.Node.LeafScanRes;
+
+/**
+ * B+树 上一个 key 范围的游标，两端可以是开区间或不限
+ * 沿叶子节点的兄弟指针逐个读取叶子，每次返回一个叶子中符合条件的 uid，
+ * 内存占用只与节点大小有关，与结果集大小无关
+ * 游标读完之前会阻止树复用死节点，提前放弃的游标需要调用 close()
+ *
+ * 倒序游标先沿兄弟指针走到范围内最右边的叶子，再沿左指针向左，每批按 key 从大到小排列。
+ * 已读取的叶子被并发合并时从树根按已返回的最小 key 重新定位，
+ * 用这个 key 和已返回的等于它的 uid 过滤掉重复的结果
+ *
+ * 用法：
+ * while(cursor.next()) {
+ *     for(int i = 0; i < cursor.size(); i ++) { cursor.batch()[i] ... }
+ * }
+ */
+public class RangeCursor implements IndexCursor {
+    private BPlusTree tree;
+    private long ticket;        // 树的操作票号，0 表示已经释放
+    private byte[] low, high;   // null 表示不限
+    private boolean lowInclusive, highInclusive;
+    private long nextLeaf;      // 下一个要读取的叶子，0 表示已经结束
+    private long[] batch;
+    private byte[][] keys;      // 为 null 时不读取 key
+    private int size;
+
+    private boolean reverse, seeking;   // seeking：倒序游标还在向右寻找范围内最右边的叶子
+    private byte[] bound;               // 倒序游标已返回的最小 key，null 表示还没有返回
+    private Set<Long> boundUids;        // 已返回的 key 等于 bound 的 uid
+
+    RangeCursor(BPlusTree tree, long ticket, long leafUid, byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) {
+        this.tree = tree;
+        this.ticket = ticket;
+        this.nextLeaf = leafUid;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+        this.batch = new long[Node.CAPACITY];
+    }
+
+    /**
+     * 改为倒序读取，只由 BPlusTree 在游标开始之前调用
+     */
+    RangeCursor reverse() {
+        reverse = seeking = true;
+        boundUids = new HashSet<>();
+        if(keys == null) {
+            keys = new byte[Node.CAPACITY][];
+        }
+        return this;
+    }
+
+    /**
+     * 读取下一批 uid
+     * @return  没有更多结果时返回 false
+     * @throws Exception
+     */
+    @Override
+    public boolean next() throws Exception {
+        if(reverse) {
+            return nextReverse();
+        }
+        while(nextLeaf != 0) {
+            Node leaf = Node.loadNode(tree, nextLeaf);
+            LeafScanRes res = leaf.leafSearchRange(low, lowInclusive, high, highInclusive, batch, keys);
+            leaf.release();
+            size = res.count;
+            nextLeaf = res.siblingUid;
+            if(size > 0) {
+                return true;
+            }
+        }
+        size = 0;
+        close();
+        return false;
+    }
+
+    private boolean nextReverse() throws Exception {
+        while(nextLeaf != 0) {
+            long leafUid = nextLeaf;
+            Node leaf = Node.loadNode(tree, leafUid);
+            LeafScanRes res = leaf.leafSearchRange(low, lowInclusive, high, highInclusive, batch, keys);
+            leaf.release();
+            if(seeking && res.siblingUid != 0) {
+                // 范围在右边的兄弟中继续，这个叶子之后向左时再读取
+                nextLeaf = res.siblingUid;
+                continue;
+            }
+            seeking = false;
+            if(res.leftUid == 0) {
+                nextLeaf = 0;
+            } else if((nextLeaf = tree.leftOf(leafUid, res.leftUid)) == -1) {
+                nextLeaf = bound == null ? tree.lastLeaf(high, highInclusive) : tree.lastLeaf(bound, true);
+            }
+            size = filterReverse(res.count);
+            if(size > 0) {
+                return true;
+            }
+        }
+        size = 0;
+        close();
+        return false;
+    }
+
+    /**
+     * 去掉已经返回过的项，把剩下的按 key 从大到小排列，并更新 bound
+     */
+    private int filterReverse(int count) {
+        int n = 0;
+        for(int i = 0; i < count; i ++) {
+            if(bound != null) {
+                int c = Arrays.compareUnsigned(keys[i], bound);
+                if(c > 0 || (c == 0 && boundUids.contains(batch[i]))) {
+                    continue;
+                }
+            }
+            batch[n] = batch[i];
+            keys[n ++] = keys[i];
+        }
+        for(int i = 0, j = n-1; i < j; i ++, j --) {
+            long u = batch[i];
+            batch[i] = batch[j];
+            batch[j] = u;
+            byte[] k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+        for(int i = 0; i < n; i ++) {
+            if(bound == null || Arrays.compareUnsigned(keys[i], bound) < 0) {
+                bound = keys[i];
+                boundUids.clear();
+            }
+            boundUids.add(batch[i]);
+        }
+        return n;
+    }
+
+    /**
+     * 结束遍历，释放游标持有的票号
+     */
+    @Override
+    public void close() {
+        nextLeaf = 0;
+        if(ticket != 0) {
+            tree.exit(ticket);
+            ticket = 0;
+        }
+    }
+
+    /**
+     * 当前批次的 uid，有效部分为 [0, size())
+     */
+    @Override
+    public long[] batch() {
+        return batch;
+    }
+
+    /**
+     * 之后的每一批同时读取 uid 对应的 key，用于直接从索引中取值
+     * @return
+     */
+    public RangeCursor withKeys() {
+        if(keys == null) {
+            keys = new byte[Node.CAPACITY][];
+        }
+        return this;
+    }
+
+    /**
+     * 当前批次的 key，只有调用过 withKeys() 时有效
+     */
+    public byte[][] keys() {
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
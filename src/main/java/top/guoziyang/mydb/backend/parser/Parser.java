@@ -6,10 +6,16 @@ import java.util.List;
 import top.guoziyang.mydb.backend.parser.statement.Abort;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Commit;
+import top.guoziyang.mydb.backend.parser.statement.Copy;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
+import top.guoziyang.mydb.backend.parser.statement.Deallocate;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Drop;
+import top.guoziyang.mydb.backend.parser.statement.Execute;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Join;
+import top.guoziyang.mydb.backend.parser.statement.Prepare;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
@@ -56,6 +62,9 @@ public class Parser {
                 case "insert":
                     stat = parseInsert(tokenizer);
                     break;
+                case "copy":
+                    stat = parseCopy(tokenizer);
+                    break;
                 case "delete":
                     stat = parseDelete(tokenizer);
                     break;
@@ -65,6 +74,15 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "prepare":
+                    stat = parsePrepare(tokenizer);
+                    break;
+                case "execute":
+                    stat = parseExecute(tokenizer);
+                    break;
+                case "deallocate":
+                    stat = parseDeallocate(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -154,6 +172,123 @@ public class Parser {
         return delete;
     }
 
+    // copy t from|to 'path' [csv]
+    private static Copy parseCopy(Tokenizer tokenizer) throws Exception {
+        Copy copy = new Copy();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        copy.tableName = tableName;
+        tokenizer.pop();
+
+        String direction = tokenizer.peek();
+        if(!"from".equals(direction) && !"to".equals(direction)) {
+            throw Error.InvalidCommandException;
+        }
+        copy.from = "from".equals(direction);
+        tokenizer.pop();
+
+        copy.path = tokenizer.peek();
+        if("".equals(copy.path)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if("csv".equals(tokenizer.peek())) {
+            copy.csv = true;
+            tokenizer.pop();
+        }
+        return copy;
+    }
+
+    /**
+     * prepare name as select|insert|update|delete ...
+     * 参数只能出现在值的位置：where 条件的值、insert 的值和 update 的新值
+     */
+    private static Prepare parsePrepare(Tokenizer tokenizer) throws Exception {
+        Prepare prepare = new Prepare();
+
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        prepare.name = name;
+        tokenizer.pop();
+
+        if(!"as".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String token = tokenizer.peek();
+        tokenizer.pop();
+        switch(token) {
+            case "select":
+                prepare.statement = parseSelect(tokenizer);
+                break;
+            case "insert":
+                prepare.statement = parseInsert(tokenizer);
+                break;
+            case "update":
+                prepare.statement = parseUpdate(tokenizer);
+                break;
+            case "delete":
+                prepare.statement = parseDelete(tokenizer);
+                break;
+            default:
+                throw Error.InvalidCommandException;
+        }
+        prepare.params = tokenizer.maxParam();
+
+        // 代入一遍占位的参数，检查每个参数都在值的位置上，且 $1 到最大编号都出现过
+        Binder binder = new Binder(new String[prepare.params]);
+        binder.bind(prepare.statement);
+        if(binder.used != tokenizer.params()) {
+            throw Error.InvalidCommandException;
+        }
+        for(boolean seen : binder.seen) {
+            if(!seen) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        return prepare;
+    }
+
+    /**
+     * execute name 或 execute name(arg1, arg2, ...)
+     */
+    private static Execute parseExecute(Tokenizer tokenizer) throws Exception {
+        Execute execute = new Execute();
+
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        execute.name = name;
+        tokenizer.pop();
+
+        if("".equals(tokenizer.peek())) {
+            execute.args = new String[0];
+            return execute;
+        }
+        execute.args = parseRow(tokenizer);
+        return execute;
+    }
+
+    private static Deallocate parseDeallocate(Tokenizer tokenizer) throws Exception {
+        Deallocate deallocate = new Deallocate();
+
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        deallocate.name = name;
+        tokenizer.pop();
+        return deallocate;
+    }
+
     private static Insert parseInsert(Tokenizer tokenizer) throws Exception {
         Insert insert = new Insert();
 
@@ -173,28 +308,68 @@ public class Parser {
             throw Error.InvalidCommandException;
         }
 
-        List<String> values = new ArrayList<>();
+        tokenizer.pop();
+        if(!"(".equals(tokenizer.peek())) {
+            List<String> values = new ArrayList<>();
+            while(true) {
+                String value = tokenizer.peek();
+                if("".equals(value)) {
+                    break;
+                }
+                values.add(value);
+                tokenizer.pop();
+            }
+            insert.values = new String[][]{values.toArray(new String[values.size()])};
+            return insert;
+        }
+
+        // values (a, b), (c, d), ...
+        List<String[]> rows = new ArrayList<>();
         while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
+            rows.add(parseRow(tokenizer));
+            if(!",".equals(tokenizer.peek())) {
                 break;
-            } else {
-                values.add(value);
             }
+            tokenizer.pop();
         }
-        insert.values = values.toArray(new String[values.size()]);
+        insert.values = rows.toArray(new String[rows.size()][]);
 
         return insert;
     }
 
+    private static String[] parseRow(Tokenizer tokenizer) throws Exception {
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        List<String> values = new ArrayList<>();
+        while(true) {
+            String value = tokenizer.peek();
+            if("".equals(value)) {
+                throw Error.InvalidCommandException;
+            }
+            values.add(value);
+            tokenizer.pop();
+            String next = tokenizer.peek();
+            tokenizer.pop();
+            if(")".equals(next)) {
+                return values.toArray(new String[values.size()]);
+            }
+            if(!",".equals(next)) {
+                throw Error.InvalidCommandException;
+            }
+        }
+    }
+
     private static Select parseSelect(Tokenizer tokenizer) throws Exception {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> funcs = new ArrayList<>();
         String asterisk = tokenizer.peek();
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            funcs.add(null);
             tokenizer.pop();
         } else {
             while(true) {
@@ -202,8 +377,27 @@ public class Parser {
                 if(!isName(field)) {
                     throw Error.InvalidCommandException;
                 }
-                fields.add(field);
                 tokenizer.pop();
+                // func(field) 或 count(*)
+                String func = null;
+                if("(".equals(tokenizer.peek())) {
+                    func = field;
+                    if(!isAggregate(func)) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    field = tokenizer.peek();
+                    if(!isName(field) && !("*".equals(field) && "count".equals(func))) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    if(!")".equals(tokenizer.peek())) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                }
+                fields.add(field);
+                funcs.add(func);
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -212,6 +406,7 @@ public class Parser {
             }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        read.funcs = funcs.toArray(new String[funcs.size()]);
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -224,17 +419,188 @@ public class Parser {
         }
         read.tableName = tableName;
         tokenizer.pop();
+        read.join = parseJoin(tokenizer);
 
         String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
+        if("where".equals(tmp)) {
+            read.where = parseWhere(tokenizer);
+        } else {
             read.where = null;
-            return read;
         }
 
-        read.where = parseWhere(tokenizer);
+        read.groupBy = parseGroupBy(tokenizer);
+        parseOrderBy(tokenizer, read);
+        parseLimit(tokenizer, read);
+        parseLockClause(tokenizer, read);
         return read;
     }
 
+    /**
+     * 解析 [inner | left [outer]] join table on a = b
+     * @param tokenizer
+     * @return  没有 join 时返回 null
+     * @throws Exception
+     */
+    private static Join parseJoin(Tokenizer tokenizer) throws Exception {
+        Join join = new Join();
+        String tmp = tokenizer.peek();
+        if("left".equals(tmp)) {
+            join.left = true;
+            tokenizer.pop();
+            if("outer".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            }
+        } else if("inner".equals(tmp)) {
+            tokenizer.pop();
+        } else if(!"join".equals(tmp)) {
+            return null;
+        }
+        if(!"join".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        join.tableName = tokenizer.peek();
+        if(!isName(join.tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        join.leftField = tokenizer.peek();
+        if(!isName(join.leftField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.rightField = tokenizer.peek();
+        if(!isName(join.rightField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return join;
+    }
+
+    private static boolean isAggregate(String func) {
+        return "count".equals(func) || "sum".equals(func) || "min".equals(func)
+            || "max".equals(func) || "avg".equals(func);
+    }
+
+    /**
+     * 解析可选的 group by field1, field2 ...
+     * @param tokenizer
+     * @return  没有 group by 时返回 null
+     * @throws Exception
+     */
+    private static String[] parseGroupBy(Tokenizer tokenizer) throws Exception {
+        if(!"group".equals(tokenizer.peek())) {
+            return null;
+        }
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        List<String> fields = new ArrayList<>();
+        do {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+        } while(",".equals(tokenizer.peek()));
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * 解析 order by field [asc|desc]，只支持按一个字段排序
+     * @param tokenizer
+     * @param read
+     * @throws Exception
+     */
+    private static void parseOrderBy(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"order".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        read.orderBy = field;
+        tokenizer.pop();
+
+        String direction = tokenizer.peek();
+        if("asc".equals(direction) || "desc".equals(direction)) {
+            read.desc = "desc".equals(direction);
+            tokenizer.pop();
+        }
+    }
+
+    /**
+     * 解析 limit n [offset m]
+     * @param tokenizer
+     * @param read
+     * @throws Exception
+     */
+    private static void parseLimit(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"limit".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+        read.limit = parseCount(tokenizer);
+        if("offset".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.offset = parseCount(tokenizer);
+        }
+    }
+
+    private static int parseCount(Tokenizer tokenizer) throws Exception {
+        String tmp = tokenizer.peek();
+        int n;
+        try {
+            n = Integer.parseInt(tmp);
+        } catch(NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return n;
+    }
+
+    /**
+     * 解析 select 语句末尾的 for update / for share
+     * @param tokenizer
+     * @param read
+     * @throws Exception
+     */
+    private static void parseLockClause(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"for".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+
+        String mode = tokenizer.peek();
+        if("update".equals(mode)) {
+            read.forUpdate = true;
+        } else if("share".equals(mode)) {
+            read.forShare = true;
+        } else {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+    }
+
     /**
      * 最多支持两个条件查询，且条件查询仅支持 比较符，
      * 两条件间关系支持 and 和 or
@@ -254,8 +620,8 @@ public class Parser {
         where.singleExp1 = exp1;
 
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if(isWhereEnd(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -267,12 +633,22 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
+        if(!isWhereEnd(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         return where;
     }
 
+    /**
+     * 判断 where 条件是否结束：语句结束，或遇到后续子句
+     * @param token
+     * @return
+     */
+    private static boolean isWhereEnd(String token) {
+        return "".equals(token) || "for".equals(token) || "group".equals(token)
+            || "order".equals(token) || "limit".equals(token);
+    }
+
 
     private static SingleExpression parseSingleExp(Tokenizer tokenizer) throws Exception {
         SingleExpression exp = new SingleExpression();
@@ -336,7 +712,11 @@ public class Parser {
         return drop;
     }
 
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -387,25 +767,55 @@ public class Parser {
 
         tokenizer.pop();
 
-        // 必须建立索引，仅支持索引查询
+        // 必须建立索引
         if(!"index".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
 
         List<String> indexes = new ArrayList<>();
+        List<String> indexTypes = new ArrayList<>();
+        List<String[]> composites = new ArrayList<>();
+        List<String[]> includes = new ArrayList<>();
+        tokenizer.pop();
         while(true) {
-            tokenizer.pop();
             String field = tokenizer.peek();
             if(")".equals(field)) {
                 break;
             }
-            if(!isName(field)) {
+            if("(".equals(field)) {
+                // 组合索引 (a, b, ...) [include (c, ...)]，只有一列且没有附带列时与单列索引相同
+                String[] columns = parseColumnList(tokenizer);
+                tokenizer.pop();
+                String[] include = new String[0];
+                if("include".equals(tokenizer.peek())) {
+                    tokenizer.pop();
+                    if(!"(".equals(tokenizer.peek())) {
+                        throw Error.InvalidCommandException;
+                    }
+                    include = parseColumnList(tokenizer);
+                    tokenizer.pop();
+                }
+                if(columns.length == 1 && include.length == 0) {
+                    indexes.add(columns[0]);
+                    indexTypes.add("btree");
+                } else {
+                    composites.add(columns);
+                    includes.add(include);
+                }
+                continue;
+            } else if(!isName(field)) {
                 throw Error.InvalidCommandException;
             } else {
                 indexes.add(field);
             }
+            tokenizer.pop();
+            // field using hash|btree|brin
+            indexTypes.add(parseIndexType(tokenizer));
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.indexType = indexTypes.toArray(new String[indexTypes.size()]);
+        create.compositeIndex = composites.toArray(new String[composites.size()][]);
+        create.compositeInclude = includes.toArray(new String[includes.size()][]);
         tokenizer.pop();
 
         if(!"".equals(tokenizer.peek())) {
@@ -414,6 +824,92 @@ public class Parser {
         return create;
     }
 
+    /**
+     * 解析可选的 using hash|btree|brin，没有时为 btree
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static String parseIndexType(Tokenizer tokenizer) throws Exception {
+        if(!"using".equals(tokenizer.peek())) {
+            return "btree";
+        }
+        tokenizer.pop();
+        String type = tokenizer.peek();
+        if(!"hash".equals(type) && !"btree".equals(type) && !"brin".equals(type)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return type;
+    }
+
+    /**
+     * 解析括号中以逗号分隔的列名，调用时当前 token 为 "("，返回时为 ")"
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static String[] parseColumnList(Tokenizer tokenizer) throws Exception {
+        List<String> columns = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String column = tokenizer.peek();
+            if(!isName(column)) {
+                throw Error.InvalidCommandException;
+            }
+            columns.add(column);
+            tokenizer.pop();
+            String next = tokenizer.peek();
+            if(")".equals(next)) {
+                break;
+            }
+            if(!",".equals(next)) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * create index on tableName(fieldName) [using hash|btree|brin]
+     * @param tokenizer
+     * @return
+     * @throws Exception
+     */
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        CreateIndex createIndex = new CreateIndex();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.tableName = name;
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.fieldName = field;
+        tokenizer.pop();
+
+        if(!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        createIndex.indexType = parseIndexType(tokenizer);
+        return createIndex;
+    }
+
     /**
      * 仅支持 int32、int64、string三种类型
      * @param tp
@@ -441,6 +937,13 @@ public class Parser {
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
         String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        // begin optimistic [isolation level ...]，乐观事务默认使用可重复读
+        if("optimistic".equals(isolation)) {
+            begin.isOptimistic = true;
+            begin.isRepeatableRead = true;
+            tokenizer.pop();
+            isolation = tokenizer.peek();
+        }
         if("".equals(isolation)) {
             return begin;
         }
@@ -460,6 +963,7 @@ public class Parser {
             tokenizer.pop();
             String tmp2 = tokenizer.peek();
             if("committed".equals(tmp2)) {
+                begin.isRepeatableRead = false;
                 tokenizer.pop();
                 if(!"".equals(tokenizer.peek())) {
                     throw Error.InvalidCommandException;
@@ -486,6 +990,122 @@ public class Parser {
         }
     }
 
+    /**
+     * 把参数代入预编译的语句，得到可以直接执行的语句，不再经过词法和语法分析
+     * 原语句不变，可以反复代入
+     * @param stat  Prepare.statement
+     * @param args  依次对应 $1、$2 ...
+     * @return
+     * @throws Exception    参数个数不对时抛出
+     */
+    public static Object Bind(Object stat, String[] args) throws Exception {
+        return new Binder(args).bind(stat);
+    }
+
+    private static class Binder {
+        String[] args;
+        int used;   // 代入的参数个数
+        boolean[] seen;     // 各编号的参数是否出现过
+
+        Binder(String[] args) {
+            this.args = args;
+            this.seen = new boolean[args.length];
+        }
+
+        Object bind(Object stat) throws Exception {
+            if(stat instanceof Select) {
+                Select s = (Select)stat, res = new Select();
+                res.tableName = s.tableName;
+                res.join = s.join;
+                res.fields = s.fields;
+                res.funcs = s.funcs;
+                res.where = where(s.where);
+                res.groupBy = s.groupBy;
+                res.orderBy = s.orderBy;
+                res.desc = s.desc;
+                res.limit = s.limit;
+                res.offset = s.offset;
+                res.forUpdate = s.forUpdate;
+                res.forShare = s.forShare;
+                return res;
+            } else if(stat instanceof Insert) {
+                Insert s = (Insert)stat, res = new Insert();
+                res.tableName = s.tableName;
+                res.values = new String[s.values.length][];
+                for(int i = 0; i < s.values.length; i ++) {
+                    res.values[i] = new String[s.values[i].length];
+                    for(int j = 0; j < s.values[i].length; j ++) {
+                        res.values[i][j] = value(s.values[i][j]);
+                    }
+                }
+                return res;
+            } else if(stat instanceof Update) {
+                Update s = (Update)stat, res = new Update();
+                res.tableName = s.tableName;
+                res.fieldName = s.fieldName;
+                res.value = value(s.value);
+                res.where = where(s.where);
+                return res;
+            } else if(stat instanceof Delete) {
+                Delete s = (Delete)stat, res = new Delete();
+                res.tableName = s.tableName;
+                res.where = where(s.where);
+                return res;
+            }
+            throw Error.InvalidCommandException;
+        }
+
+        private Where where(Where where) throws Exception {
+            if(where == null) {
+                return null;
+            }
+            Where res = new Where();
+            res.singleExp1 = exp(where.singleExp1);
+            res.logicOp = where.logicOp;
+            res.singleExp2 = exp(where.singleExp2);
+            return res;
+        }
+
+        private SingleExpression exp(SingleExpression exp) throws Exception {
+            if(exp == null) {
+                return null;
+            }
+            SingleExpression res = new SingleExpression();
+            res.field = exp.field;
+            res.compareOp = exp.compareOp;
+            res.value = value(exp.value);
+            return res;
+        }
+
+        private String value(String value) throws Exception {
+            if(!isParam(value)) {
+                return value;
+            }
+            int i = Integer.parseInt(value.substring(1));
+            if(i > args.length) {
+                throw Error.InvalidValuesException;
+            }
+            used ++;
+            seen[i-1] = true;
+            return args[i-1];
+        }
+    }
+
+    /**
+     * 判断是否为参数 $n，引号括起的 '$1' 与参数无法区分，预编译时视为语法错误
+     */
+    private static boolean isParam(String value) {
+        if(value == null || value.length() < 2 || value.charAt(0) != '$') {
+            return false;
+        }
+        for(int i = 1; i < value.length(); i ++) {
+            if(!Tokenizer.isDigit((byte)value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 判断是否为字段名或表名
      * @param name  长度大于1且以字母为首字符
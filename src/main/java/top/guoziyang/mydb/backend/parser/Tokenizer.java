@@ -8,6 +8,8 @@ public class Tokenizer {
     private String currentToken;
     private boolean flushToken;
     private Exception err;
+    private int params;     // 读到的 $n 参数个数
+    private int maxParam;   // 参数的最大编号
 
     public Tokenizer(byte[] stat) {
         this.stat = stat;
@@ -43,6 +45,17 @@ public class Tokenizer {
         flushToken = true;
     }
 
+    /**
+     * 读到的 $n 参数个数，同一参数出现多次时计多次
+     */
+    public int params() {
+        return params;
+    }
+
+    public int maxParam() {
+        return maxParam;
+    }
+
     public byte[] errStat() {
         byte[] res = new byte[stat.length+3];
         System.arraycopy(stat, 0, res, 0, pos);
@@ -103,6 +116,8 @@ public class Tokenizer {
         if(isSymbol(b)) {
             popByte();
             return new String(new byte[]{b});
+        } else if(b == '$') {
+            return nextParamState();// 预编译语句的参数 $1、$2 ...
         } else if(b == '"' || b == '\'') {
             return nextQuoteState();// 如果是引号，处理引号状态，返回引号内的内容
         } else if(isAlphaBeta(b) || isDigit(b)) {
@@ -115,7 +130,7 @@ public class Tokenizer {
 
     /**
      *
-     * @return 提取并返回一个由字母、数字或下划线组成的标记
+     * @return 提取并返回一个由字母、数字、下划线或点组成的标记，点用于 table.field
      * @throws Exception
      */
     private String nextTokenState() throws Exception {
@@ -124,7 +139,7 @@ public class Tokenizer {
             Byte b = peekByte();
 
             // 判断字符是否是有效标记字符
-            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_' || b == '.')) {
                 // 若为空白则移动指针，跳过该字符
                 if(b != null && isBlank(b)) {
                     popByte();
@@ -137,6 +152,35 @@ public class Tokenizer {
         }
     }
 
+    /**
+     * 读取 $ 后跟数字组成的参数，编号从 1 开始
+     * @return
+     * @throws Exception
+     */
+    private String nextParamState() throws Exception {
+        popByte();
+        Byte b = peekByte();
+        if(b == null || !isDigit(b)) {
+            err = Error.InvalidCommandException;
+            throw err;
+        }
+        String digits = nextTokenState();
+        int n;
+        try {
+            n = Integer.parseInt(digits);
+        } catch(NumberFormatException e) {
+            err = Error.InvalidCommandException;
+            throw err;
+        }
+        if(n < 1) {
+            err = Error.InvalidCommandException;
+            throw err;
+        }
+        params ++;
+        maxParam = Math.max(maxParam, n);
+        return "$" + digits;
+    }
+
     static boolean isDigit(byte b) {
         return (b >= '0' && b <= '9');
     }
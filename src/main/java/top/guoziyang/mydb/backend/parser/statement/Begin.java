@@ -2,4 +2,5 @@ package top.guoziyang.mydb.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isOptimistic;    // begin optimistic，乐观并发控制，提交时校验写冲突
 }
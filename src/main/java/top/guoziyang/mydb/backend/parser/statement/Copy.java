@@ -0,0 +1,8 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Copy {
+    public String tableName;
+    public String path;
+    public boolean from;    // copy t from 为导入，copy t to 为导出
+    public boolean csv;     // 逗号分隔、双引号转义；否则为制表符分隔、反斜杠转义
+}
@@ -5,4 +5,7 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    public String[] indexType;  // 各单列索引的类型，btree、hash 或 brin
+    public String[][] compositeIndex;   // index (a, b, ...) 声明的组合索引
+    public String[][] compositeInclude; // 各组合索引 include (c, ...) 声明的附带列，没有时为空数组
 }
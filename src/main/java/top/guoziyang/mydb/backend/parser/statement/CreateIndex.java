@@ -0,0 +1,7 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String fieldName;
+    public String indexType;    // btree、hash 或 brin
+}
@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+/**
+ * execute name(arg1, arg2, ...)，按顺序代入 $1、$2 ...
+ */
+public class Execute {
+    public String name;
+    public String[] args;
+}
@@ -2,5 +2,5 @@ package top.guoziyang.mydb.backend.parser.statement;
 
 public class Insert {
     public String tableName;
-    public String[] values;
+    public String[][] values;   // 每行一组值
 }
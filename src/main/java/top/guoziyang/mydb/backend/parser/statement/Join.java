@@ -0,0 +1,8 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Join {
+    public String tableName;
+    public boolean left;        // left join，没有匹配的记录也输出，右表的列为 null
+    public String leftField;    // on leftField = rightField，字段名可以带表名前缀
+    public String rightField;
+}
@@ -0,0 +1,10 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+/**
+ * prepare name as <语句>，语句中的值可以写作参数 $1、$2 ...
+ */
+public class Prepare {
+    public String name;
+    public Object statement;    // 解析好的语句，参数位置保留 $n
+    public int params;          // 参数个数，即参数的最大编号
+}
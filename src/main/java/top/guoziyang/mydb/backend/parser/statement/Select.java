@@ -2,6 +2,15 @@ package top.guoziyang.mydb.backend.parser.statement;
 
 public class Select {
     public String tableName;
+    public Join join;           // 没有 join 时为 null
     public String[] fields;
+    public String[] funcs;      // 与 fields 一一对应的聚合函数，普通字段为 null；count(*) 的字段为 *
     public Where where;
+    public String[] groupBy;    // 没有 group by 时为 null
+    public String orderBy;      // 排序的字段，没有 order by 时为 null
+    public boolean desc;
+    public int limit = -1;      // 没有 limit 时为 -1
+    public int offset;
+    public boolean forUpdate;   // select ... for update，对读到的记录加排他锁
+    public boolean forShare;    // select ... for share，对读到的记录加共享锁
 }
@@ -1,26 +1,59 @@
 package top.guoziyang.mydb.backend.server;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import top.guoziyang.mydb.backend.parser.Parser;
 import top.guoziyang.mydb.backend.parser.statement.Abort;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Commit;
+import top.guoziyang.mydb.backend.parser.statement.Copy;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
+import top.guoziyang.mydb.backend.parser.statement.Deallocate;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Execute;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Prepare;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.tbm.BeginRes;
+import top.guoziyang.mydb.backend.tbm.ResultSink;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.common.Error;
 
 public class Executor {
     private long xid;
     TableManager tbm;
+    private Map<String, Prepared> prepared;     // 本连接预编译的语句
+    private ResultSink sink;    // 不为 null 时查询结果分段交给 sink，execute 只返回最后一段
+
+    /**
+     * 预编译的语句，执行时只代入参数，不再解析和判断语句类型
+     */
+    private static class Prepared {
+        Object stat;
+        int params;
+        Handler handler;
+    }
+
+    private interface Handler {
+        byte[] handle(long xid, Object stat) throws Exception;
+    }
 
     public Executor(TableManager tbm) {
         this.tbm = tbm;
         this.xid = 0;
+        this.prepared = new HashMap<>();
+    }
+
+    /**
+     * 设置查询结果的接收者，较大的结果分段发送，不必在内存中拼出整个结果
+     * @param sink
+     */
+    public void setSink(ResultSink sink) {
+        this.sink = sink;
     }
 
     public void close() {
@@ -62,18 +95,86 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(Prepare.class.isInstance(stat)) {
+            return prepare((Prepare)stat);
+        } else if(Execute.class.isInstance(stat)) {
+            Execute execute = (Execute)stat;
+            return executePrepared(execute.name, execute.args);
+        } else if(Deallocate.class.isInstance(stat)) {
+            String name = ((Deallocate)stat).name;
+            if(prepared.remove(name) == null) {
+                throw Error.PreparedNotFoundException;
+            }
+            return ("deallocate " + name).getBytes();
         } else {
-            return execute2(stat);
+            return execute2(stat, handler(stat));
+        }
+    }
+
+    /**
+     * 执行预编译的语句，客户端也可以直接发送语句名和参数，跳过 execute 语句的解析
+     * @param name
+     * @param args  依次对应 $1、$2 ...
+     * @return
+     * @throws Exception
+     */
+    public byte[] executePrepared(String name, String[] args) throws Exception {
+        Prepared p = prepared.get(name);
+        if(p == null) {
+            throw Error.PreparedNotFoundException;
+        }
+        if(args.length != p.params) {
+            throw Error.InvalidValuesException;
+        }
+        return execute2(Parser.Bind(p.stat, args), p.handler);
+    }
+
+    private byte[] prepare(Prepare prepare) throws Exception {
+        if(prepared.containsKey(prepare.name)) {
+            throw Error.DuplicatedPreparedException;
+        }
+        Prepared p = new Prepared();
+        p.stat = prepare.statement;
+        p.params = prepare.params;
+        p.handler = handler(prepare.statement);
+        prepared.put(prepare.name, p);
+        return ("prepare " + prepare.name).getBytes();
+    }
+
+    /**
+     * 根据语句类型选择执行的操作
+     * @param stat
+     * @return
+     */
+    private Handler handler(Object stat) {
+        if(Show.class.isInstance(stat)) {
+            return (xid, s) -> tbm.show(xid);
+        } else if(Create.class.isInstance(stat)) {
+            return (xid, s) -> tbm.create(xid, (Create)s);
+        } else if(CreateIndex.class.isInstance(stat)) {
+            return (xid, s) -> tbm.createIndex(xid, (CreateIndex)s);
+        } else if(Select.class.isInstance(stat)) {
+            return (xid, s) -> tbm.read(xid, (Select)s, sink);
+        } else if(Insert.class.isInstance(stat)) {
+            return (xid, s) -> tbm.insert(xid, (Insert)s);
+        } else if(Copy.class.isInstance(stat)) {
+            return (xid, s) -> tbm.copy(xid, (Copy)s);
+        } else if(Delete.class.isInstance(stat)) {
+            return (xid, s) -> tbm.delete(xid, (Delete)s);
+        } else if(Update.class.isInstance(stat)) {
+            return (xid, s) -> tbm.update(xid, (Update)s);
         }
+        return (xid, s) -> null;
     }
 
     /**
      * 执行 数据库 增删改查 sql
      * @param stat
+     * @param handler
      * @return
      * @throws Exception
      */
-    private byte[] execute2(Object stat) throws Exception {
+    private byte[] execute2(Object stat, Handler handler) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -82,21 +183,7 @@ public class Executor {
             xid = r.xid;
         }
         try {
-            byte[] res = null;
-            if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
-            } else if(Create.class.isInstance(stat)) {
-                res = tbm.create(xid, (Create)stat);
-            } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
-            } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
-            } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
-            } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
-            }
-            return res;
+            return handler.handle(xid, stat);
         } catch(Exception e1) {
             e = e1;
             throw e;
@@ -102,8 +102,10 @@ class HandleSocket implements Runnable {
             }
             return;
         }
-        // 创建执行器来执行 sql
+        // 创建执行器来执行 sql，查询结果先分段发送，最后一段随结果包发送
         Executor exe = new Executor(tbm);
+        Packager out = packager;
+        exe.setSink(part -> out.send(new Package(part, null, true)));
         while(true) {
             Package pkg = null;
             try {
@@ -113,13 +115,16 @@ class HandleSocket implements Runnable {
                 break;
             }
 
-            // 解码 sql 字符数组
-            byte[] sql = pkg.getData();
             byte[] result = null;
             Exception e = null;
             try {
-                // 执行 sql，得到结果
-                result = exe.execute(sql);
+                if(pkg.getName() != null) {
+                    // 执行预编译的语句，只需代入参数
+                    result = exe.executePrepared(pkg.getName(), pkg.getArgs());
+                } else {
+                    // 执行 sql，得到结果
+                    result = exe.execute(pkg.getData());
+                }
             } catch (Exception e1) {
                 e = e1;
                 e.printStackTrace();
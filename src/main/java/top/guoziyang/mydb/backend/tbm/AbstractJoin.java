@@ -0,0 +1,75 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 等值连接的公共部分：逐条取外表的记录，与内表中连接列相等的每条记录拼成一行输出，
+ * 输出的列为外表的各列后接内表的各列
+ * left join 时外表的记录没有匹配也输出一行，内表的列为 null
+ */
+abstract class AbstractJoin implements Operator {
+    protected int outerColumn;      // 连接列在外表记录中的下标
+    private boolean left;
+    private List<Field> columns;
+    private int outerWidth;
+
+    private Object[] outerRow;
+    private List<Object[]> matches;
+    private int matchPos;
+    private RowBatch batch;
+
+    AbstractJoin(int outerColumn, boolean left, List<Field> columns, int outerWidth) {
+        this.outerColumn = outerColumn;
+        this.left = left;
+        this.columns = columns;
+        this.outerWidth = outerWidth;
+    }
+
+    /**
+     * 下一条外表记录，没有时返回 null
+     */
+    protected abstract Object[] nextOuter() throws Exception;
+
+    /**
+     * 内表中连接列等于 key 的记录
+     */
+    protected abstract List<Object[]> matches(Object key) throws Exception;
+
+    @Override
+    public List<Field> columns() {
+        return columns;
+    }
+
+    @Override
+    public void open() throws Exception {
+        batch = new RowBatch(columns.size());
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        while (batch.size < 64) {
+            if (outerRow != null && matchPos < matches.size()) {
+                Object[] inner = matches.get(matchPos++);
+                Object[] row = batch.add();
+                System.arraycopy(outerRow, 0, row, 0, outerWidth);
+                System.arraycopy(inner, 0, row, outerWidth, inner.length);
+                continue;
+            }
+            outerRow = nextOuter();
+            if (outerRow == null) {
+                break;
+            }
+            matches = matches(outerRow[outerColumn]);
+            matchPos = 0;
+            if (matches.isEmpty() && left) {
+                Object[] row = batch.add();
+                System.arraycopy(outerRow, 0, row, 0, outerWidth);
+                for (int i = outerWidth; i < row.length; i++) {
+                    row[i] = null;
+                }
+            }
+        }
+        return batch.size > 0 ? batch : null;
+    }
+}
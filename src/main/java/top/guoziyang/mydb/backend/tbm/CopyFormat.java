@@ -0,0 +1,122 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * COPY 文件中一行记录的格式
+ * csv：逗号分隔，含逗号、双引号或回车的值用双引号括起，值中的双引号写作两个双引号
+ * 文本：制表符分隔，值中的反斜杠、制表符、换行和回车写作 \\、\t、\n、\r
+ * 导入时一条记录必须在一行内，csv 引号中的换行不支持，导出时值中有换行的记录报错
+ */
+class CopyFormat {
+    private boolean csv;
+
+    CopyFormat(boolean csv) {
+        this.csv = csv;
+    }
+
+    /**
+     * 把一行拆分为各列的值
+     * @param line  不含行尾的换行
+     * @return
+     * @throws Exception    引号不配对时抛出
+     */
+    String[] parse(String line) throws Exception {
+        List<String> values = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        if(!csv) {
+            for(int i = 0; i < line.length(); i ++) {
+                char c = line.charAt(i);
+                if(c == '\t') {
+                    values.add(sb.toString());
+                    sb.setLength(0);
+                } else if(c == '\\' && i+1 < line.length()) {
+                    char n = line.charAt(++ i);
+                    sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+                } else {
+                    sb.append(c);
+                }
+            }
+            values.add(sb.toString());
+            return values.toArray(new String[values.size()]);
+        }
+
+        int i = 0;
+        while(true) {
+            if(i < line.length() && line.charAt(i) == '"') {
+                i ++;
+                while(true) {
+                    if(i >= line.length()) {
+                        throw Error.InvalidValuesException;
+                    }
+                    char c = line.charAt(i ++);
+                    if(c != '"') {
+                        sb.append(c);
+                    } else if(i < line.length() && line.charAt(i) == '"') {
+                        sb.append('"');
+                        i ++;
+                    } else {
+                        break;
+                    }
+                }
+                if(i < line.length() && line.charAt(i) != ',') {
+                    throw Error.InvalidValuesException;
+                }
+            } else {
+                int end = line.indexOf(',', i);
+                if(end < 0) {
+                    end = line.length();
+                }
+                sb.append(line, i, end);
+                i = end;
+            }
+            values.add(sb.toString());
+            sb.setLength(0);
+            if(i >= line.length()) {
+                break;
+            }
+            i ++;   // 跳过逗号
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * 把一条记录写成一行，包括行尾的换行
+     * @param row
+     * @param sb
+     * @throws Exception    csv 的值中有换行时抛出
+     */
+    void format(Object[] row, StringBuilder sb) throws Exception {
+        for(int i = 0; i < row.length; i ++) {
+            if(i > 0) {
+                sb.append(csv ? ',' : '\t');
+            }
+            String v = String.valueOf(row[i]);
+            if(csv) {
+                if(v.indexOf('\n') >= 0) {
+                    throw Error.CsvNewlineException;
+                }
+                if(v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\r') < 0) {
+                    sb.append(v);
+                } else {
+                    sb.append('"').append(v.replace("\"", "\"\"")).append('"');
+                }
+                continue;
+            }
+            for(int j = 0; j < v.length(); j ++) {
+                char c = v.charAt(j);
+                switch(c) {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    default: sb.append(c);
+                }
+            }
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,272 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import top.guoziyang.mydb.backend.im.BulkLoader;
+import top.guoziyang.mydb.backend.im.ExternalSorter;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 从文件导入记录，见 Table.copyFrom
+ * 文件按 CHUNK_SIZE 字节切块，多个线程并行读取、解析并编码各块，按块在文件中的顺序写入表。
+ * 表还没有数据页（新建或从未写入过）时，记录直接装满新建的页，每页只记一条页镜像日志；
+ * B+树索引和组合索引的 key 交给外部排序，导入结束后批量构建新的 B+树替换原来的空树，
+ * 期间持有索引写锁，其他事务的插入在写入索引之前等待，替换后写入新树。
+ * 表已有数据时按多行插入的方式每 Table.INSERT_BATCH 行一批写入。
+ */
+class CopyLoader {
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int PARALLELISM = IndexBuilder.PARALLELISM;
+    private static final int EXTEND_SIZE = 1 << 12;
+
+    private Table tb;
+    private long xid;
+    private CopyFormat format;
+    private FileChannel fc;
+    private boolean bulk;
+
+    private List<Field> bulkFields = new ArrayList<>();     // 批量构建的字段索引
+    private List<Index> bulkIndexes = new ArrayList<>();    // 批量构建的组合索引
+    private List<ExternalSorter> sorters = new ArrayList<>();   // 依次对应 bulkFields 和 bulkIndexes
+
+    /**
+     * 解析好的一块记录
+     */
+    private static class Chunk {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        List<byte[]> raws = new ArrayList<>();
+        List<byte[][]> keys = new ArrayList<>();    // 每条记录在各批量构建的索引上的 key
+    }
+
+    CopyLoader(Table tb, long xid, boolean csv) {
+        this.tb = tb;
+        this.xid = xid;
+        this.format = new CopyFormat(csv);
+    }
+
+    /**
+     * @param path
+     * @return  导入的记录数
+     * @throws Exception
+     */
+    long load(String path) throws Exception {
+        File f = new File(path);
+        if(!f.isFile()) {
+            throw Error.FileNotExistsException;
+        }
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            fc = raf.getChannel();
+            tb.indexLock.writeLock().lock();
+            boolean locked = true;
+            try {
+                bulk = vm.getPages(tb.uid).length == 0;
+                if(!bulk) {
+                    tb.indexLock.writeLock().unlock();
+                    locked = false;
+                    return readAll();
+                }
+                for(Field field : tb.fields) {
+                    if(field.isIndexed() && !field.isHash() && !field.isBrin()) {
+                        bulkFields.add(field);
+                    }
+                }
+                bulkIndexes.addAll(tb.indexes);
+                int n = bulkFields.size() + bulkIndexes.size();
+                for(int i = 0; i < n; i ++) {
+                    sorters.add(new ExternalSorter(ExternalSorter.DEFAULT_RUN_SIZE / n + 1));
+                }
+                // 出错时也为已写入的记录建好索引，页中的记录总能通过索引找到
+                try {
+                    return readAll();
+                } finally {
+                    buildIndexes();
+                }
+            } finally {
+                if(locked) {
+                    tb.indexLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 并行解析各块，按顺序写入
+     */
+    private long readAll() throws Exception {
+        long size = fc.size(), pos = 0, count = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(PARALLELISM);
+        Deque<Future<Chunk>> window = new ArrayDeque<>();
+        try {
+            while(pos < size || !window.isEmpty()) {
+                while(pos < size && window.size() < PARALLELISM*2) {
+                    long start = pos, end = Math.min(size, pos+CHUNK_SIZE);
+                    window.add(pool.submit(() -> parse(start, end)));
+                    pos = end;
+                }
+                Chunk c;
+                try {
+                    c = window.poll().get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof Exception) {
+                        throw (Exception)e.getCause();
+                    }
+                    throw e;
+                }
+                write(c);
+                count += c.raws.size();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return count;
+    }
+
+    /**
+     * 解析 [start, end) 中开始的行，最后一行读到行尾为止
+     */
+    private Chunk parse(long start, long end) throws Exception {
+        // 多读入前一个字节，判断 start 处是否为行首
+        long from = Math.max(0, start-1);
+        byte[] buf = read(from, (int)(end-from));
+        int limit = buf.length;
+        long next = end;
+        while(buf.length > 0 && buf[buf.length-1] != '\n' && next < fc.size()) {
+            byte[] more = read(next, (int)Math.min(EXTEND_SIZE, fc.size()-next));
+            next += more.length;
+            int eol = indexOf(more, 0);
+            int n = eol < 0 ? more.length : eol+1;
+            int old = buf.length;
+            buf = Arrays.copyOf(buf, old+n);
+            System.arraycopy(more, 0, buf, old, n);
+        }
+
+        Chunk c = new Chunk();
+        int pos = 0;
+        if(start > 0) {
+            int eol = indexOf(buf, 0);
+            if(eol < 0 || eol >= limit) {
+                return c;
+            }
+            pos = eol+1;
+        }
+        while(pos < limit) {
+            int eol = indexOf(buf, pos);
+            if(eol < 0) {
+                eol = buf.length;
+            }
+            int len = eol-pos;
+            if(len > 0 && buf[eol-1] == '\r') {
+                len --;
+            }
+            if(len > 0) {
+                add(c, new String(buf, pos, len, StandardCharsets.UTF_8));
+            }
+            pos = eol+1;
+        }
+        return c;
+    }
+
+    private void add(Chunk c, String line) throws Exception {
+        Map<String, Object> entry = tb.string2Entry(format.parse(line));
+        for(Field field : tb.fields) {
+            field.checkKey(entry.get(field.fieldName));
+        }
+        for(Index index : tb.indexes) {
+            index.checkKey(entry);
+        }
+        c.entries.add(entry);
+        c.raws.add(tb.entry2Raw(entry));
+        if(bulk) {
+            byte[][] keys = new byte[sorters.size()][];
+            for(int i = 0; i < bulkFields.size(); i ++) {
+                Field field = bulkFields.get(i);
+                keys[i] = field.value2Key(entry.get(field.fieldName));
+            }
+            for(int i = 0; i < bulkIndexes.size(); i ++) {
+                keys[bulkFields.size()+i] = bulkIndexes.get(i).entry2Key(entry);
+            }
+            c.keys.add(keys);
+        }
+    }
+
+    private void write(Chunk c) throws Exception {
+        if(c.raws.isEmpty()) {
+            return;
+        }
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        if(!bulk) {
+            for(int from = 0; from < c.raws.size(); from += Table.INSERT_BATCH) {
+                int to = Math.min(from+Table.INSERT_BATCH, c.raws.size());
+                long[] uids = vm.insert(xid, tb.uid, c.raws.subList(from, to).toArray(new byte[0][]));
+                tb.insertIndex(c.entries.subList(from, to), uids);
+            }
+            return;
+        }
+
+        long[] uids = vm.insertPages(xid, tb.uid, c.raws.toArray(new byte[0][]));
+        for(int i = 0; i < uids.length; i ++) {
+            byte[][] keys = c.keys.get(i);
+            for(int j = 0; j < keys.length; j ++) {
+                sorters.get(j).add(keys[j], uids[i]);
+            }
+        }
+        // 哈希索引按桶成批写入，块范围索引和正在构建的索引逐条写入
+        for(Field field : tb.fields) {
+            if((field.isIndexed() || field.isBuilding()) && !bulkFields.contains(field)) {
+                field.insert(Table.values(c.entries, field), uids);
+            }
+        }
+    }
+
+    /**
+     * 为导入的 key 批量构建 B+树，替换原来的空树
+     */
+    private void buildIndexes() throws Exception {
+        for(int i = 0; i < sorters.size(); i ++) {
+            BulkLoader loader = new BulkLoader(((TableManagerImpl)tb.tbm).dm);
+            ExternalSorter.merge(Collections.singletonList(sorters.get(i)), loader);
+            long boot = loader.finish();
+            if(i < bulkFields.size()) {
+                bulkFields.get(i).replaceIndex(boot);
+            } else {
+                bulkIndexes.get(i-bulkFields.size()).replaceIndex(boot);
+            }
+        }
+    }
+
+    private byte[] read(long position, int len) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while(buf.hasRemaining()) {
+            if(fc.read(buf, position+buf.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static int indexOf(byte[] buf, int from) {
+        for(int i = from; i < buf.length; i ++) {
+            if(buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
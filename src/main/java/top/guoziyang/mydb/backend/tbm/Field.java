@@ -1,16 +1,25 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.BrinIndex;
+import top.guoziyang.mydb.backend.im.HashIndex;
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.im.ListCursor;
+import top.guoziyang.mydb.backend.im.RangeCursor;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Types;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 /**
@@ -18,14 +27,25 @@ import top.guoziyang.mydb.common.Error;
  * 二进制格式为：
  * [FieldName][TypeName][IndexUid]
  * 如果field无索引，IndexUid为0
+ * 哈希索引的 IndexUid 最高位为 1，其余位为索引的 bootUid（uid 的最高位总是 0）
+ * 块范围索引的 IndexUid 次高位为 1
  */
 public class Field {
+    static final String BTREE = "btree";
+    static final String HASH = "hash";
+    static final long HASH_FLAG = 1L << 63;
+    static final String BRIN = "brin";
+    static final long BRIN_FLAG = 1L << 62;
+
     long uid;
     private Table tb;
     String fieldName;
     String fieldType;
-    private long index;
-    private BPlusTree bt;
+    private volatile long index;
+    private volatile BPlusTree bt;
+    private volatile HashIndex hi;     // 哈希索引，与 bt 至多有一个
+    private volatile BrinIndex bi;     // 块范围索引，只记录每段页中 key 的范围，不能按 key 找到记录
+    private volatile IndexBuild build;  // 正在为该字段构建的索引，构建期间新的索引项先记入旁路日志
 
     /**
      * 从磁盘中加载一个字段对象
@@ -74,8 +94,8 @@ public class Field {
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
         if(index != 0) {
             try {
-                // 加载 B+树 索引
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                // 按索引类型加载 B+树 或哈希索引
+                loadIndex(index);
             } catch(Exception e) {
                 Panic.panic(e);
             }
@@ -83,26 +103,35 @@ public class Field {
         return this;
     }
 
+    private void loadIndex(long index) throws Exception {
+        if((index & HASH_FLAG) != 0) {
+            hi = HashIndex.load(index & ~HASH_FLAG, ((TableManagerImpl)tb.tbm).dm);
+        } else if((index & BRIN_FLAG) != 0) {
+            bi = BrinIndex.load(index & ~BRIN_FLAG, ((TableManagerImpl)tb.tbm).dm);
+        } else {
+            bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+        }
+    }
+
     /**
      * 创建一个字段对象
      * @param tb
      * @param xid
      * @param fieldName
      * @param fieldType
-     * @param indexed
+     * @param indexType 索引类型 btree、hash 或 brin，为 null 时不建索引
      * @return
      * @throws Exception
      */
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, String indexType) throws Exception {
         typeCheck(fieldType);   // 检查字段类型是否合法
         Field f = new Field(tb, fieldName, fieldType, 0);
         // 判断字段是否加了索引
-        if(indexed) {
-            //创建一个 B+数 索引并加载该索引
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+        if(indexType != null) {
+            // 创建一个 B+树 或哈希索引并加载该索引
+            long index = createIndex(((TableManagerImpl)tb.tbm).dm, indexType);
+            f.loadIndex(index);
             f.index = index;
-            f.bt = bt;
         }
         // 持久化字段对象
         f.persistSelf(xid);
@@ -117,6 +146,20 @@ public class Field {
         this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
     }
 
+    /**
+     * 创建一个空索引
+     * @return  字段中记录的 IndexUid
+     */
+    private static long createIndex(DataManager dm, String indexType) throws Exception {
+        if(HASH.equals(indexType)) {
+            return HashIndex.create(dm) | HASH_FLAG;
+        }
+        if(BRIN.equals(indexType)) {
+            return BrinIndex.create(dm) | BRIN_FLAG;
+        }
+        return BPlusTree.create(dm);
+    }
+
     private static void typeCheck(String fieldType) throws Exception {
         if(!"int32".equals(fieldType) && !"int64".equals(fieldType) && !"string".equals(fieldType)) {
             throw Error.InvalidFieldException;
@@ -127,9 +170,197 @@ public class Field {
         return index != 0;
     }
 
+    public boolean isBuilding() {
+        return build != null;
+    }
+
+    /**
+     * 是否为哈希索引（包括正在构建的），哈希索引只支持等值查找
+     */
+    public boolean isHash() {
+        IndexBuild b = build;
+        return hi != null || (b != null && HASH.equals(b.indexType));
+    }
+
+    /**
+     * 是否为块范围索引（包括正在构建的），只能用来跳过页，不能按 key 找到记录
+     */
+    public boolean isBrin() {
+        IndexBuild b = build;
+        return bi != null || (b != null && BRIN.equals(b.indexType));
+    }
+
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        byte[] uKey = value2Key(key);
+        IndexBuild b = build;
+        if(b != null && b.log(uKey, uid)) {
+            return;
+        }
+        if(hi != null) {
+            hi.insert(uKey, uid);
+        } else if(bi != null) {
+            bi.add(Types.uidToPgno(uid), uKey);
+        } else {
+            bt.insert(uKey, uid);
+        }
+    }
+
+    /**
+     * 把一批 (key, uid) 写入索引，哈希索引中落在同一个桶的 key 一起写入，其他索引逐条写入
+     * @param keys
+     * @param uids
+     * @throws Exception
+     */
+    public void insert(Object[] keys, long[] uids) throws Exception {
+        HashIndex h = hi;
+        if(h == null) {
+            for(int i = 0; i < keys.length; i ++) {
+                insert(keys[i], uids[i]);
+            }
+            return;
+        }
+        byte[][] uKeys = new byte[keys.length][];
+        for(int i = 0; i < keys.length; i ++) {
+            uKeys[i] = value2Key(keys[i]);
+        }
+        h.insert(uKeys, uids);
+    }
+
+    /**
+     * 从索引中删除 (key, uid)，索引尚未建好时忽略，块范围索引不随删除收缩
+     * @param key
+     * @param uid
+     * @return  是否找到并删除
+     * @throws Exception
+     */
+    public boolean delete(Object key, long uid) throws Exception {
+        if(!isIndexed() || bi != null) {
+            return false;
+        }
+        if(hi != null) {
+            return hi.delete(value2Key(key), uid);
+        }
+        return bt.delete(value2Key(key), uid);
+    }
+
+    /**
+     * 写入记录之前检查该字段的值能否作为索引 key，避免记录写入后索引插入失败
+     * @param key
+     * @throws Exception
+     */
+    public void checkKey(Object key) throws Exception {
+        if((isIndexed() || isBuilding()) && !isBrin() && value2Key(key).length > BPlusTree.MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+    }
+
+    /**
+     * 旁路日志，记录索引构建期间插入的 (key, uid)
+     */
+    static class IndexBuild {
+        private String indexType;
+        private byte[][] keys = new byte[64][];
+        private long[] uids = new long[64];
+        private int size;
+        private boolean logging = true;
+
+        IndexBuild(String indexType) {
+            this.indexType = indexType;
+        }
+
+        synchronized boolean log(byte[] key, long uid) {
+            if(!logging) {
+                return false;
+            }
+            if(size == keys.length) {
+                keys = Arrays.copyOf(keys, size*2);
+                uids = Arrays.copyOf(uids, size*2);
+            }
+            keys[size] = key;
+            uids[size] = uid;
+            size ++;
+            return true;
+        }
+
+        /**
+         * 停止记录，之后的插入直接写入新索引
+         */
+        synchronized void stop() {
+            logging = false;
+        }
+    }
+
+    /**
+     * 开始构建索引，之后该字段上的插入都会记入旁路日志
+     * @param indexType 索引类型 btree、hash 或 brin
+     * @throws Exception
+     */
+    synchronized void startBuild(String indexType) throws Exception {
+        if(isIndexed() || isBuilding()) {
+            throw Error.FieldAlreadyIndexedException;
+        }
+        build = new IndexBuild(indexType);
+    }
+
+    String buildingIndexType() {
+        return build.indexType;
+    }
+
+    /**
+     * 构建失败，丢弃旁路日志
+     */
+    synchronized void abortBuild() {
+        build = null;
+    }
+
+    /**
+     * 切换到批量构建好的索引：先让新的插入直接写入新索引，再补上旁路日志中的索引项，
+     * 最后把索引 uid 持久化到字段信息中
+     * @param index  新索引的 IndexUid
+     * @throws Exception
+     */
+    synchronized void finishBuild(long index) throws Exception {
+        IndexBuild b = build;
+        loadIndex(index);
+        b.stop();
+        // 扫描和旁路日志可能记录了同一条记录，补入前先去重；块范围索引重复扩大范围没有影响
+        for(int i = 0; i < b.size; i ++) {
+            if(bi != null) {
+                bi.add(Types.uidToPgno(b.uids[i]), b.keys[i]);
+                continue;
+            }
+            List<Long> uids = hi != null ? hi.search(b.keys[i]) : bt.search(b.keys[i]);
+            if(!uids.contains(b.uids[i])) {
+                if(hi != null) {
+                    hi.insert(b.keys[i], b.uids[i]);
+                } else {
+                    bt.insert(b.keys[i], b.uids[i]);
+                }
+            }
+        }
+        int offset = Parser.string2Byte(fieldName).length + Parser.string2Byte(fieldType).length;
+        ((TableManagerImpl)tb.tbm).vm.updateInPlace(uid, offset, Parser.long2Byte(index));
+        this.index = index;
+        build = null;
+    }
+
+    /**
+     * 换成批量构建好的 B+树，原来的树不再使用，见 CopyLoader
+     * @param index 新 B+树的 bootUid
+     * @throws Exception
+     */
+    synchronized void replaceIndex(long index) throws Exception {
+        loadIndex(index);
+        int offset = Parser.string2Byte(fieldName).length + Parser.string2Byte(fieldType).length;
+        ((TableManagerImpl)tb.tbm).vm.updateInPlace(uid, offset, Parser.long2Byte(index));
+        this.index = index;
+    }
+
+    /**
+     * 为正在构建的索引创建一个空索引，见 createIndex
+     */
+    long createBuildIndex(DataManager dm) throws Exception {
+        return createIndex(dm, build.indexType);
     }
 
     /**
@@ -139,10 +370,99 @@ public class Field {
      * @return
      * @throws Exception
      */
-    public List<Long> search(long left, long right) throws Exception {
+    public List<Long> search(byte[] left, byte[] right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    /**
+     * 在字段索引上打开 range 范围的游标，按批读取 uid
+     * 哈希索引只能打开整个索引或单个 key 上的游标
+     * 块范围索引返回可能含有区间内 key 的页上的所有记录，调用者需要自行过滤
+     * @param range
+     * @return
+     * @throws Exception
+     */
+    public IndexCursor scan(FieldCalRes range) throws Exception {
+        if(bi != null) {
+            VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+            return new HeapCursor(vm, prune(range, vm.getPages(tb.uid)), null);
+        }
+        if(hi == null) {
+            return bt.scan(range.left, range.leftInclusive, range.right, range.rightInclusive);
+        }
+        if(range.left == null && range.right == null) {
+            return hi.scanAll();
+        }
+        if(range.left == null || range.right == null) {
+            throw Error.HashRangeScanException;
+        }
+        int c = Arrays.compareUnsigned(range.left, range.right);
+        if(c > 0 || (c == 0 && !(range.leftInclusive && range.rightInclusive))) {
+            return new ListCursor(new long[0], 0);
+        }
+        if(c < 0) {
+            throw Error.HashRangeScanException;
+        }
+        return hi.scan(range.left);
+    }
+
+    /**
+     * 在 B+树 索引上打开同时读取 key 的游标
+     * @param range
+     * @param tail  为 true 时从可能含有范围内最大 key 的叶子开始，见 BPlusTree.scanTail
+     * @return
+     * @throws Exception
+     */
+    RangeCursor scanKeys(FieldCalRes range, boolean tail) throws Exception {
+        RangeCursor cursor = tail
+            ? bt.scanTail(range.left, range.leftInclusive, range.right, range.rightInclusive)
+            : bt.scan(range.left, range.leftInclusive, range.right, range.rightInclusive);
+        return cursor.withKeys();
+    }
+
+    /**
+     * 按 key 的顺序扫描 B+树 索引上的范围
+     * @param range
+     * @param desc  为 true 时从大到小
+     * @return
+     * @throws Exception
+     */
+    IndexCursor scanOrdered(FieldCalRes range, boolean desc) throws Exception {
+        return desc
+            ? bt.scanReverse(range.left, range.leftInclusive, range.right, range.rightInclusive)
+            : bt.scan(range.left, range.leftInclusive, range.right, range.rightInclusive);
+    }
+
+    /**
+     * 把单列索引的 key 还原为字段的值，value2Key 的逆过程
+     * @param key
+     * @return
+     */
+    public Object key2Value(byte[] key) {
+        switch(fieldType) {
+            case "int32":
+                return (int)Parser.key2Long(key);
+            case "int64":
+                return Parser.key2Long(key);
+            default:
+                return new String(key, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 用块范围索引过滤出可能含有 range 内 key 的页，没有块范围索引时原样返回
+     * @param range
+     * @param pages 递增的页号
+     * @return
+     * @throws Exception
+     */
+    public int[] prune(FieldCalRes range, int[] pages) throws Exception {
+        if(bi == null) {
+            return pages;
+        }
+        return bi.prune(pages, range.left, range.leftInclusive, range.right, range.rightInclusive);
+    }
+
     public Object string2Value(String str) {
         switch(fieldType) {
             case "int32":
@@ -155,61 +475,58 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
-        long uid = 0;
+    /**
+     * 把字段的值编码为索引 key，key 按无符号字节序比较的结果与值的顺序一致
+     * @param key
+     * @return
+     */
+    public byte[] value2Key(Object key) {
+        byte[] raw = null;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
-                break;
-            case "int32":
-                int uint = (int)key;
-                return (long)uint;
-            case "int64":
-                uid = (long)key;
+                raw = Parser.str2Key((String)key);
                 break;
-        }
-        return uid;
-    }
-
-    public byte[] value2Raw(Object v) {
-        byte[] raw = null;
-        switch(fieldType) {
             case "int32":
-                raw = Parser.int2Byte((int)v);
+                raw = Parser.long2Key((int)key);
                 break;
             case "int64":
-                raw = Parser.long2Byte((long)v);
-                break;
-            case "string":
-                raw = Parser.string2Byte((String)v);
+                raw = Parser.long2Key((long)key);
                 break;
         }
         return raw;
     }
 
-    class ParseValueRes {
-        Object v;
-        int shift;
+    /**
+     * 把字段的值编码为组合 key 中的一段，字符串带结束符，保证各列的编码拼接后仍然有序
+     * @param key
+     * @return
+     */
+    public byte[] value2KeyPart(Object key) {
+        if("string".equals(fieldType)) {
+            return Parser.str2KeyPart((String)key);
+        }
+        return value2Key(key);
     }
 
     /**
-     * 根据字段类型解析 字符数组
-     * @param raw
+     * 从组合 key 的 pos 处解析该字段的一段编码，value2KeyPart 的逆过程
+     * @param key
+     * @param pos
      * @return
      */
-    public ParseValueRes parserValue(byte[] raw) {
+    public ParseValueRes keyPart2Value(byte[] key, int pos) {
         ParseValueRes res = new ParseValueRes();
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
+                res.v = (int)Parser.key2Long(key, pos);
+                res.shift = 8;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Parser.key2Long(key, pos);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
+                ParseStringRes r = Parser.parseKeyPart(key, pos);
                 res.v = r.str;
                 res.shift = r.next;
                 break;
@@ -217,7 +534,15 @@ public class Field {
         return res;
     }
 
+    class ParseValueRes {
+        Object v;
+        int shift;
+    }
+
     public String printValue(Object v) {
+        if(v == null) {
+            return "null";
+        }
         String str = null;
         switch(fieldType) {
             case "int32":
@@ -229,6 +554,9 @@ public class Field {
             case "string":
                 str = (String)v;
                 break;
+            case "double":  // 只用于 avg 的结果
+                str = String.valueOf((double)v);
+                break;
         }
         return str;
     }
@@ -239,7 +567,7 @@ public class Field {
             .append(fieldName)
             .append(", ")
             .append(fieldType)
-            .append(index!=0?", Index":", NoIndex")
+            .append(index==0?", NoIndex":hi!=null?", HashIndex":bi!=null?", BrinIndex":", Index")
             .append(")")
             .toString();
     }
@@ -251,27 +579,23 @@ public class Field {
      * @throws Exception
      */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        Object v = string2Value(exp.value);     // 将字符串值转换为对象值
+        byte[] key = value2Key(v);              // 将对象值转换为索引 key
         FieldCalRes res = new FieldCalRes();
         switch(exp.compareOp) {
-            // 小于
+            // 小于，左端不限
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);    // 将字符串值转换为对象值
-                res.right = value2Uid(v);       // 将对象值转换为 UID
-                if(res.right > 0) {
-                    res.right --;   // 如果右边界大于0，则右边界减1
-                }
+                res.right = key;
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = key;
+                res.leftInclusive = true;
+                res.right = key;
+                res.rightInclusive = true;
                 break;
+            // 大于，右端不限
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = key;
                 break;
         }
         return res;
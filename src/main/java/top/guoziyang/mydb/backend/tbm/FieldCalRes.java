@@ -1,9 +1,74 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.util.Arrays;
+
 /**
- * 索引范围
+ * 索引范围，端点为 null 表示该端不限
  */
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public boolean leftInclusive;
+    public byte[] right;
+    public boolean rightInclusive;
+
+    /**
+     * 不限范围，即整个索引
+     */
+    public static FieldCalRes all() {
+        return new FieldCalRes();
+    }
+
+    /**
+     * 空范围
+     */
+    public static FieldCalRes none() {
+        FieldCalRes res = new FieldCalRes();
+        res.left = new byte[0];
+        res.right = new byte[0];
+        return res;
+    }
+
+    /**
+     * 与另一个范围的交集
+     * @param o
+     * @return
+     */
+    public FieldCalRes intersect(FieldCalRes o) {
+        FieldCalRes res = new FieldCalRes();
+        int c = compare(left, o.left, true);
+        res.left = c >= 0 ? left : o.left;
+        res.leftInclusive = c > 0 ? leftInclusive : c < 0 ? o.leftInclusive : leftInclusive && o.leftInclusive;
+        c = compare(right, o.right, false);
+        res.right = c <= 0 ? right : o.right;
+        res.rightInclusive = c < 0 ? rightInclusive : c > 0 ? o.rightInclusive : rightInclusive && o.rightInclusive;
+        return res;
+    }
+
+    /**
+     * key 是否在范围内
+     * @param key
+     * @return
+     */
+    public boolean contains(byte[] key) {
+        if(left != null) {
+            int c = Arrays.compareUnsigned(key, left);
+            if(c < 0 || (c == 0 && !leftInclusive)) return false;
+        }
+        if(right != null) {
+            int c = Arrays.compareUnsigned(key, right);
+            if(c > 0 || (c == 0 && !rightInclusive)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 比较两个端点，null 作为左端时为 -∞，作为右端时为 +∞
+     */
+    private static int compare(byte[] a, byte[] b, boolean isLeft) {
+        if(a == null || b == null) {
+            if(a == b) return 0;
+            return (a == null) == isLeft ? -1 : 1;
+        }
+        return Arrays.compareUnsigned(a, b);
+    }
 }
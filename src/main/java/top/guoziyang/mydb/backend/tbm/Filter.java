@@ -0,0 +1,86 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 过滤算子：按 where 条件过滤下层输出的记录，用于无法下推到单表扫描的条件，如连接后涉及内表的条件
+ * 值为 null 的列不满足任何比较
+ */
+class Filter implements Operator {
+    private Operator child;
+    private String logicOp;
+    private int[] columns;      // 每个比较的列在下层记录中的下标
+    private String[] ops;
+    private Object[] values;
+    private RowBatch batch;
+
+    /**
+     * @param child
+     * @param logicOp   ""、and 或 or
+     * @param columns   一个或两个比较的列
+     * @param ops       比较符 <、= 或 >
+     * @param values    与列类型相同的常量
+     */
+    Filter(Operator child, String logicOp, int[] columns, String[] ops, Object[] values) {
+        this.child = child;
+        this.logicOp = logicOp;
+        this.columns = columns;
+        this.ops = ops;
+        this.values = values;
+    }
+
+    @Override
+    public List<Field> columns() {
+        return child.columns();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        batch = new RowBatch(child.columns().size());
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        RowBatch in;
+        while ((in = child.next()) != null) {
+            batch.clear();
+            for (int i = 0; i < in.size; i++) {
+                Object[] row = in.rows[i];
+                boolean match = test(row, 0);
+                if (columns.length > 1) {
+                    match = "and".equals(logicOp) ? match && test(row, 1) : match || test(row, 1);
+                }
+                if (match) {
+                    System.arraycopy(row, 0, batch.add(), 0, row.length);
+                }
+            }
+            if (batch.size > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private boolean test(Object[] row, int i) {
+        Object v = row[columns[i]];
+        if (v == null) {
+            return false;
+        }
+        int c = ((Comparable) v).compareTo(values[i]);
+        switch (ops[i]) {
+            case "<":
+                return c < 0;
+            case ">":
+                return c > 0;
+            default:
+                return c == 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,59 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 在索引游标的结果上再用完整的 where 条件过滤，用于只有部分条件能走索引的情况
+ * 记录的数据写入后不再改变，过滤时读取任意版本即可，可见性仍由调用者判断
+ */
+class FilterCursor implements IndexCursor {
+    private VersionManager vm;
+    private IndexCursor cursor;
+    private RowFilter filter;
+    private long[] batch;
+    private int size;
+
+    FilterCursor(VersionManager vm, IndexCursor cursor, RowFilter filter) {
+        this.vm = vm;
+        this.cursor = cursor;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        while(cursor.next()) {
+            long[] uids = cursor.batch();
+            if(batch == null || batch.length < uids.length) {
+                batch = new long[uids.length];
+            }
+            size = 0;
+            for(int i = 0; i < cursor.size(); i ++) {
+                byte[] raw = vm.readAnyVersion(uids[i]);
+                if(raw != null && filter.test(raw, 0)) {
+                    batch[size ++] = uids[i];
+                }
+            }
+            if(size > 0) {
+                return true;
+            }
+        }
+        size = 0;
+        return false;
+    }
+
+    @Override
+    public long[] batch() {
+        return batch;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
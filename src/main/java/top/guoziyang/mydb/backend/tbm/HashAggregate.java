@@ -0,0 +1,311 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 哈希聚合算子：按分组列把下层的记录归入各组，边读边累加各聚合函数的中间结果，不保存记录本身
+ * 内存中的组数超过 maxGroups 时，把所有组的中间结果按分组的哈希值写入 PARTITIONS 个临时文件并清空内存；
+ * 下层读完后逐个分区读回合并输出，同一组的中间结果总是落在同一个分区中
+ * 没有分组列时只有一组，下层没有记录也输出一行
+ */
+class HashAggregate implements Operator {
+    static final int MAX_GROUPS = 1 << 16;
+    static final int PARTITIONS = 16;
+
+    /**
+     * 一个聚合函数
+     */
+    static class Call {
+        String func;    // count、sum、min、max 或 avg
+        int column;     // 参数在下层记录中的下标，count(*) 为 -1
+
+        Call(String func, int column) {
+            this.func = func;
+            this.column = column;
+        }
+    }
+
+    private Operator child;
+    private int[] groupColumns;     // 分组列在下层记录中的下标
+    private Call[] calls;
+    private int[] outputs;          // 输出的第 i 列：不小于 0 时为第几个分组列，否则为第 -outputs[i]-1 个聚合函数
+    private List<Field> columns;
+    private int maxGroups;
+
+    private Map<List<Object>, Object[]> groups = new HashMap<>();  // 分组的值 -> 各聚合函数的中间结果
+    private File[] spills;          // 溢出的分区，null 表示没有溢出
+    private int nextPartition;
+    private Iterator<Map.Entry<List<Object>, Object[]>> it;
+    private RowBatch batch;
+
+    HashAggregate(Operator child, int[] groupColumns, Call[] calls, int[] outputs, List<Field> columns, int maxGroups) {
+        this.child = child;
+        this.groupColumns = groupColumns;
+        this.calls = calls;
+        this.outputs = outputs;
+        this.columns = columns;
+        this.maxGroups = maxGroups;
+    }
+
+    @Override
+    public List<Field> columns() {
+        return columns;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        batch = new RowBatch(outputs.length);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        if(it == null) {
+            consume();
+        }
+        batch.clear();
+        while(batch.size < 64) {
+            if(!it.hasNext()) {
+                if(spills == null || nextPartition == PARTITIONS) {
+                    break;
+                }
+                loadPartition(nextPartition ++);
+                continue;
+            }
+            Map.Entry<List<Object>, Object[]> e = it.next();
+            Object[] row = batch.add();
+            for(int i = 0; i < outputs.length; i ++) {
+                row[i] = outputs[i] >= 0 ? e.getKey().get(outputs[i]) : finish(calls[-outputs[i]-1], e.getValue()[-outputs[i]-1]);
+            }
+        }
+        return batch.size > 0 ? batch : null;
+    }
+
+    /**
+     * 读完下层的所有记录
+     */
+    private void consume() throws Exception {
+        RowBatch in;
+        while((in = child.next()) != null) {
+            for(int i = 0; i < in.size; i ++) {
+                Object[] row = in.rows[i];
+                Object[] key = new Object[groupColumns.length];
+                for(int j = 0; j < key.length; j ++) {
+                    key[j] = row[groupColumns[j]];
+                }
+                List<Object> group = Arrays.asList(key);
+                Object[] acc = groups.get(group);
+                if(acc == null) {
+                    if(groups.size() >= maxGroups) {
+                        spill();
+                    }
+                    acc = init();
+                    groups.put(group, acc);
+                }
+                for(int j = 0; j < calls.length; j ++) {
+                    acc[j] = accumulate(calls[j], acc[j], calls[j].column < 0 ? null : row[calls[j].column]);
+                }
+            }
+        }
+        if(spills != null) {
+            spill();
+            loadPartition(nextPartition ++);
+            return;
+        }
+        if(groups.isEmpty() && groupColumns.length == 0) {
+            groups.put(Arrays.asList(), init());
+        }
+        it = groups.entrySet().iterator();
+    }
+
+    private Object[] init() {
+        Object[] acc = new Object[calls.length];
+        for(int i = 0; i < calls.length; i ++) {
+            if("count".equals(calls[i].func)) {
+                acc[i] = 0L;
+            }
+        }
+        return acc;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object accumulate(Call call, Object acc, Object v) {
+        switch(call.func) {
+            case "count":
+                return (long)acc + 1;
+            case "sum":
+                return (acc == null ? 0L : (long)acc) + ((Number)v).longValue();
+            case "avg":
+                long[] a = acc == null ? new long[2] : (long[])acc;
+                a[0] += ((Number)v).longValue();
+                a[1] ++;
+                return a;
+            case "min":
+                return acc == null || ((Comparable)v).compareTo(acc) < 0 ? v : acc;
+            default:
+                return acc == null || ((Comparable)v).compareTo(acc) > 0 ? v : acc;
+        }
+    }
+
+    /**
+     * 合并同一组的两个中间结果
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object merge(Call call, Object acc, Object other) {
+        if(acc == null || other == null) {
+            return acc == null ? other : acc;
+        }
+        switch(call.func) {
+            case "count":
+            case "sum":
+                return (long)acc + (long)other;
+            case "avg":
+                long[] a = (long[])acc, b = (long[])other;
+                a[0] += b[0];
+                a[1] += b[1];
+                return a;
+            case "min":
+                return ((Comparable)other).compareTo(acc) < 0 ? other : acc;
+            default:
+                return ((Comparable)other).compareTo(acc) > 0 ? other : acc;
+        }
+    }
+
+    private static Object finish(Call call, Object acc) {
+        if("avg".equals(call.func) && acc != null) {
+            long[] a = (long[])acc;
+            return (double)a[0] / a[1];
+        }
+        return acc;
+    }
+
+    /**
+     * 把内存中所有组的中间结果按分组的哈希值追加到各分区的临时文件中
+     */
+    private void spill() throws IOException {
+        if(spills == null) {
+            spills = new File[PARTITIONS];
+            for(int i = 0; i < PARTITIONS; i ++) {
+                spills[i] = File.createTempFile("mydb-agg", ".part");
+                spills[i].deleteOnExit();
+            }
+        }
+        DataOutputStream[] outs = new DataOutputStream[PARTITIONS];
+        try {
+            for(int i = 0; i < PARTITIONS; i ++) {
+                outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spills[i], true), 1 << 16));
+            }
+            for(Map.Entry<List<Object>, Object[]> e : groups.entrySet()) {
+                DataOutputStream out = outs[(e.getKey().hashCode() & 0x7fffffff) % PARTITIONS];
+                for(Object v : e.getKey()) {
+                    writeValue(out, v);
+                }
+                for(Object v : e.getValue()) {
+                    writeValue(out, v);
+                }
+            }
+        } finally {
+            for(DataOutputStream out : outs) {
+                if(out != null) {
+                    out.close();
+                }
+            }
+        }
+        groups.clear();
+    }
+
+    /**
+     * 读回一个分区，合并其中同一组的中间结果
+     */
+    private void loadPartition(int p) throws IOException {
+        groups.clear();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spills[p]), 1 << 16))) {
+            while(in.available() > 0) {
+                Object[] key = new Object[groupColumns.length];
+                for(int i = 0; i < key.length; i ++) {
+                    key[i] = readValue(in);
+                }
+                Object[] acc = new Object[calls.length];
+                for(int i = 0; i < acc.length; i ++) {
+                    acc[i] = readValue(in);
+                }
+                List<Object> group = Arrays.asList(key);
+                Object[] old = groups.get(group);
+                if(old == null) {
+                    groups.put(group, acc);
+                    continue;
+                }
+                for(int i = 0; i < acc.length; i ++) {
+                    old[i] = merge(calls[i], old[i], acc[i]);
+                }
+            }
+        }
+        spills[p].delete();
+        it = groups.entrySet().iterator();
+    }
+
+    /**
+     * 写入一个带类型标记的值，Sort 溢出时也用它写记录
+     */
+    static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if(v == null) {
+            out.writeByte(0);
+        } else if(v instanceof Integer) {
+            out.writeByte(1);
+            out.writeInt((int)v);
+        } else if(v instanceof Long) {
+            out.writeByte(2);
+            out.writeLong((long)v);
+        } else if(v instanceof String) {
+            out.writeByte(3);
+            out.writeUTF((String)v);
+        } else if(v instanceof Double) {
+            out.writeByte(5);
+            out.writeDouble((double)v);
+        } else {
+            long[] a = (long[])v;
+            out.writeByte(4);
+            out.writeLong(a[0]);
+            out.writeLong(a[1]);
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        switch(in.readByte()) {
+            case 0:
+                return null;
+            case 1:
+                return in.readInt();
+            case 2:
+                return in.readLong();
+            case 3:
+                return in.readUTF();
+            case 5:
+                return in.readDouble();
+            default:
+                return new long[]{in.readLong(), in.readLong()};
+        }
+    }
+
+    @Override
+    public void close() {
+        child.close();
+        if(spills != null) {
+            for(File f : spills) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 哈希连接：先读完内表，按连接列建哈希表，再逐条用外表记录探查
+ * 内表超过 maxRows 条时改为 grace 哈希连接：内外表都按连接列的哈希值写入 PARTITIONS 对临时文件，
+ * 同一个 key 总是落在同一对分区中，之后逐对分区在内存中建表探查
+ */
+class HashJoin extends AbstractJoin {
+    static final int MAX_ROWS = 1 << 16;
+    static final int PARTITIONS = 16;
+
+    private Operator outer, inner;
+    private int innerColumn;
+    private int maxRows;
+    private int outerWidth, innerWidth;
+
+    private Map<Object, List<Object[]>> table;
+    private int rows;
+    private File[] buildParts, probeParts;     // null 表示没有溢出
+    private int partition;
+    private DataInputStream probe;              // 当前分区的外表记录
+    private RowBatch outerBatch;
+    private int outerPos;
+
+    HashJoin(Operator outer, int outerColumn, Operator inner, int innerColumn, boolean left, List<Field> columns, int maxRows) {
+        super(outerColumn, left, columns, outer.columns().size());
+        this.outer = outer;
+        this.inner = inner;
+        this.innerColumn = innerColumn;
+        this.maxRows = maxRows;
+        this.outerWidth = outer.columns().size();
+        this.innerWidth = inner.columns().size();
+    }
+
+    @Override
+    public void open() throws Exception {
+        super.open();
+        outer.open();
+        inner.open();
+    }
+
+    /**
+     * 读完内表建立哈希表，放不下时把内外表都分区写入临时文件
+     */
+    private void build() throws Exception {
+        table = new HashMap<>();
+        RowBatch in;
+        DataOutputStream[] outs = null;
+        try {
+            while ((in = inner.next()) != null) {
+                for (int i = 0; i < in.size; i++) {
+                    Object[] row = in.rows[i];
+                    if (outs != null) {
+                        write(outs, row[innerColumn], row);
+                        continue;
+                    }
+                    table.computeIfAbsent(row[innerColumn], k -> new ArrayList<>()).add(row.clone());
+                    if (++rows > maxRows) {
+                        buildParts = tempFiles("build");
+                        outs = open(buildParts);
+                        for (List<Object[]> list : table.values()) {
+                            for (Object[] r : list) {
+                                write(outs, r[innerColumn], r);
+                            }
+                        }
+                        table.clear();
+                    }
+                }
+            }
+        } finally {
+            closeAll(outs);
+        }
+        if (buildParts == null) {
+            return;
+        }
+        probeParts = tempFiles("probe");
+        outs = open(probeParts);
+        try {
+            while ((in = outer.next()) != null) {
+                for (int i = 0; i < in.size; i++) {
+                    write(outs, in.rows[i][outerColumn], in.rows[i]);
+                }
+            }
+        } finally {
+            closeAll(outs);
+        }
+        loadPartition(0);
+    }
+
+    /**
+     * 读入第 p 对分区：内表部分建哈希表，外表部分作为之后的探查输入
+     */
+    private void loadPartition(int p) throws IOException {
+        if (probe != null) {
+            probe.close();
+            buildParts[partition].delete();
+            probeParts[partition].delete();
+        }
+        partition = p;
+        table.clear();
+        try (DataInputStream in = input(buildParts[p])) {
+            Object[] row;
+            while ((row = readRow(in, innerWidth)) != null) {
+                table.computeIfAbsent(row[innerColumn], k -> new ArrayList<>()).add(row);
+            }
+        }
+        probe = input(probeParts[p]);
+    }
+
+    @Override
+    protected Object[] nextOuter() throws Exception {
+        if (table == null) {
+            build();
+        }
+        if (probeParts != null) {
+            while (true) {
+                Object[] row = readRow(probe, outerWidth);
+                if (row != null) {
+                    return row;
+                }
+                if (partition + 1 == PARTITIONS) {
+                    return null;
+                }
+                loadPartition(partition + 1);
+            }
+        }
+        while (outerBatch == null || outerPos == outerBatch.size) {
+            if ((outerBatch = outer.next()) == null) {
+                return null;
+            }
+            outerPos = 0;
+        }
+        return outerBatch.rows[outerPos++];
+    }
+
+    @Override
+    protected List<Object[]> matches(Object key) {
+        List<Object[]> list = table.get(key);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    private static File[] tempFiles(String kind) throws IOException {
+        File[] files = new File[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            files[i] = File.createTempFile("mydb-join-" + kind, ".part");
+            files[i].deleteOnExit();
+        }
+        return files;
+    }
+
+    private static DataOutputStream[] open(File[] files) throws IOException {
+        DataOutputStream[] outs = new DataOutputStream[files.length];
+        for (int i = 0; i < files.length; i++) {
+            outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), 1 << 16));
+        }
+        return outs;
+    }
+
+    private static DataInputStream input(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    private static void closeAll(DataOutputStream[] outs) throws IOException {
+        if (outs == null) {
+            return;
+        }
+        for (DataOutputStream out : outs) {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static void write(DataOutputStream[] outs, Object key, Object[] row) throws IOException {
+        DataOutputStream out = outs[(key.hashCode() & 0x7fffffff) % PARTITIONS];
+        for (Object v : row) {
+            HashAggregate.writeValue(out, v);
+        }
+    }
+
+    private static Object[] readRow(DataInputStream in, int width) throws IOException {
+        if (in.available() == 0) {
+            return null;
+        }
+        Object[] row = new Object[width];
+        for (int i = 0; i < width; i++) {
+            row[i] = HashAggregate.readValue(in);
+        }
+        return row;
+    }
+
+    @Override
+    public void close() {
+        outer.close();
+        inner.close();
+        try {
+            if (probe != null) {
+                probe.close();
+            }
+        } catch (IOException e) {
+            // 临时文件随后删除，关闭失败不影响结果
+        }
+        for (File[] files : new File[][]{buildParts, probeParts}) {
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+        }
+    }
+}
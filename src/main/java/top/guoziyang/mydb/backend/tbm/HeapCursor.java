@@ -0,0 +1,72 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 按页号顺序扫描一张表的所有页，每次返回一页中满足条件的记录 uid
+ * 条件在页面上的原始字节中求值，返回的 uid 包括对当前事务不可见的版本，由调用者读取时判断
+ * 只扫描打开游标时已有的页
+ */
+class HeapCursor implements IndexCursor {
+    private VersionManager vm;
+    private int[] pages;
+    private int nextPage;
+    private RowFilter filter;   // null 表示不过滤
+    private long[] batch = new long[64];
+    private int size;
+
+    HeapCursor(VersionManager vm, long tableUid, RowFilter filter) {
+        this(vm, vm.getPages(tableUid), filter);
+    }
+
+    /**
+     * 只扫描 pages 中的页
+     * @param vm
+     * @param pages 递增的页号
+     * @param filter
+     */
+    HeapCursor(VersionManager vm, int[] pages, RowFilter filter) {
+        this.vm = vm;
+        this.pages = pages;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        while(nextPage < pages.length) {
+            size = 0;
+            vm.scanPage(pages[nextPage ++], (uid, raw, start, end) -> {
+                if(filter != null && !filter.test(raw, start)) {
+                    return;
+                }
+                if(size == batch.length) {
+                    batch = Arrays.copyOf(batch, size * 2);
+                }
+                batch[size ++] = uid;
+            });
+            if(size > 0) {
+                return true;
+            }
+        }
+        size = 0;
+        return false;
+    }
+
+    @Override
+    public long[] batch() {
+        return batch;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        nextPage = pages.length;
+    }
+}
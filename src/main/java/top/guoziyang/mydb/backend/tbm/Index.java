@@ -0,0 +1,300 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.RangeCursor;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.tbm.Field.ParseValueRes;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.ParseStringRes;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * index 表示多列组合索引
+ * 二进制格式为：
+ * [Columns][TypeName][IndexUid]([Include])
+ * Columns 为以逗号连接的列名，TypeName 固定为 index。格式与字段相同，
+ * 因此和字段一起登记在表的字段列表中，加载时按类型区分
+ * Include 为以逗号连接的附带列，没有附带列时省略
+ *
+ * 索引的 key 为各列编码的拼接，每列的编码互不为前缀，
+ * 拼接后的字节序与逐列比较的顺序一致，前几列取定值的记录在索引中是连续的一段
+ * 附带列的编码接在所有索引列之后，只影响索引列相同的记录之间的顺序，不参与查找，
+ * 查询只涉及索引列和附带列时可以直接从 key 中取值，不读取记录
+ */
+public class Index {
+    static final String TYPE = "index";
+
+    long uid;
+    private Table tb;
+    List<Field> columns;
+    List<Field> include;    // 附带列
+    private long index;
+    private volatile BPlusTree bt;
+
+    /**
+     * 判断表的字段列表中的一条记录是否为组合索引
+     * @param raw
+     * @return
+     */
+    static boolean isIndex(byte[] raw) {
+        ParseStringRes res = Parser.parseString(raw);
+        res = Parser.parseString(Arrays.copyOfRange(raw, res.next, raw.length));
+        return TYPE.equals(res.str);
+    }
+
+    /**
+     * 从字段列表中的记录加载一个组合索引，引用的字段需要已经加载
+     * @param tb
+     * @param uid
+     * @param raw
+     * @return
+     */
+    static Index loadIndex(Table tb, long uid, byte[] raw) {
+        Index idx = new Index();
+        idx.uid = uid;
+        idx.tb = tb;
+        ParseStringRes res = Parser.parseString(raw);
+        int position = res.next;
+        idx.columns = new ArrayList<>();
+        for(String name : res.str.split(",")) {
+            idx.columns.add(tb.getField(name));
+        }
+        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        position += res.next;
+        idx.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        idx.include = new ArrayList<>();
+        if(position < raw.length) {
+            res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+            for(String name : res.str.split(",")) {
+                idx.include.add(tb.getField(name));
+            }
+        }
+        try {
+            idx.bt = BPlusTree.load(idx.index, ((TableManagerImpl)tb.tbm).dm);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        return idx;
+    }
+
+    /**
+     * 在 columns 上创建组合索引，include 为附带列
+     * @param tb
+     * @param xid
+     * @param columns
+     * @param include
+     * @return
+     * @throws Exception
+     */
+    static Index createIndex(Table tb, long xid, List<Field> columns, List<Field> include) throws Exception {
+        Index idx = new Index();
+        idx.tb = tb;
+        idx.columns = columns;
+        idx.include = include;
+        idx.index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
+        idx.bt = BPlusTree.load(idx.index, ((TableManagerImpl)tb.tbm).dm);
+        idx.persistSelf(xid);
+        return idx;
+    }
+
+    private void persistSelf(long xid) throws Exception {
+        byte[] nameRaw = Parser.string2Byte(names(columns));
+        byte[] typeRaw = Parser.string2Byte(TYPE);
+        byte[] indexRaw = Parser.long2Byte(index);
+        byte[] includeRaw = include.isEmpty() ? new byte[0] : Parser.string2Byte(names(include));
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, includeRaw));
+    }
+
+    private static String names(List<Field> fields) {
+        StringBuilder sb = new StringBuilder();
+        for(Field f : fields) {
+            if(sb.length() > 0) sb.append(",");
+            sb.append(f.fieldName);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 记录在该索引上的 key
+     * @param entry
+     * @return
+     */
+    byte[] entry2Key(Map<String, Object> entry) {
+        byte[] key = new byte[0];
+        for(Field f : columns) {
+            key = Bytes.concat(key, f.value2KeyPart(entry.get(f.fieldName)));
+        }
+        for(Field f : include) {
+            key = Bytes.concat(key, f.value2KeyPart(entry.get(f.fieldName)));
+        }
+        return key;
+    }
+
+    /**
+     * 从 key 中还原索引列和附带列的值，entry2Key 的逆过程
+     * @param key
+     * @param row   按表的字段顺序排列的值，只填写索引列和附带列
+     */
+    void key2Row(byte[] key, Object[] row) {
+        int pos = 0;
+        for(Field f : columns) {
+            pos += putKeyPart(row, f, key, pos);
+        }
+        for(Field f : include) {
+            pos += putKeyPart(row, f, key, pos);
+        }
+    }
+
+    private int putKeyPart(Object[] row, Field f, byte[] key, int pos) {
+        ParseValueRes r = f.keyPart2Value(key, pos);
+        row[tb.fields.indexOf(f)] = r.v;
+        return r.shift;
+    }
+
+    /**
+     * 判断 fields 中的字段是否都能从该索引的 key 中取得
+     * @param fields
+     * @return
+     */
+    boolean covers(List<Field> fields) {
+        for(Field f : fields) {
+            if(!columns.contains(f) && !include.contains(f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void checkKey(Map<String, Object> entry) throws Exception {
+        if(entry2Key(entry).length > BPlusTree.MAX_KEY_SIZE) {
+            throw Error.KeyTooLongException;
+        }
+    }
+
+    void insert(Map<String, Object> entry, long uid) throws Exception {
+        bt.insert(entry2Key(entry), uid);
+    }
+
+    /**
+     * 换成批量构建好的 B+树，原来的树不再使用，见 CopyLoader
+     * @param index 新 B+树的 bootUid
+     * @throws Exception
+     */
+    synchronized void replaceIndex(long index) throws Exception {
+        bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+        int offset = Parser.string2Byte(names(columns)).length + Parser.string2Byte(TYPE).length;
+        ((TableManagerImpl)tb.tbm).vm.updateInPlace(uid, offset, Parser.long2Byte(index));
+        this.index = index;
+    }
+
+    boolean delete(Map<String, Object> entry, long uid) throws Exception {
+        return bt.delete(entry2Key(entry), uid);
+    }
+
+    RangeCursor scan(FieldCalRes range) throws Exception {
+        return bt.scan(range.left, range.leftInclusive, range.right, range.rightInclusive);
+    }
+
+    /**
+     * 计算 where 条件在该索引上对应的一段连续范围，条件无法完整地由索引表达时返回 null
+     * 支持的形式：
+     * 1. 首列上的单个条件，或首列上两个条件的交集
+     * 2. 首列等值，且（可选）第二列上一个任意比较
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    FieldCalRes calWhere(Where where) throws Exception {
+        Field first = columns.get(0);
+        SingleExpression e1 = where.singleExp1, e2 = where.singleExp2;
+        switch(where.logicOp) {
+            case "":
+                return first.fieldName.equals(e1.field) ? calExp(new byte[0], first, e1) : null;
+            case "and":
+                if(first.fieldName.equals(e1.field) && first.fieldName.equals(e2.field)) {
+                    byte[] none = new byte[0];
+                    return calExp(none, first, e1).intersect(calExp(none, first, e2));
+                }
+                if(columns.size() < 2) {
+                    return null;
+                }
+                Field second = columns.get(1);
+                if(!"=".equals(e1.compareOp) || !first.fieldName.equals(e1.field)) {
+                    SingleExpression t = e1; e1 = e2; e2 = t;
+                }
+                if("=".equals(e1.compareOp) && first.fieldName.equals(e1.field) && second.fieldName.equals(e2.field)) {
+                    byte[] prefix = first.value2KeyPart(first.string2Value(e1.value));
+                    return calExp(prefix, second, e2);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 在以 prefix 开头的 key 中，计算 fd 所在列满足 exp 的范围
+     * 每列的编码互不为前缀，该列取值为 v 的 key 都以 prefix+enc(v) 开头，
+     * 且排在取值小于 v 的 key 之后、取值大于 v 的 key 之前
+     */
+    private FieldCalRes calExp(byte[] prefix, Field fd, SingleExpression exp) {
+        byte[] part = Bytes.concat(prefix, fd.value2KeyPart(fd.string2Value(exp.value)));
+        FieldCalRes res = new FieldCalRes();
+        switch(exp.compareOp) {
+            case "=":
+                res.left = part;
+                res.leftInclusive = true;
+                res.right = prefixEnd(part);
+                break;
+            case "<":
+                res.left = prefix.length == 0 ? null : prefix;
+                res.leftInclusive = true;
+                res.right = part;
+                break;
+            case ">":
+                byte[] end = prefixEnd(part);
+                if(end == null) {
+                    // part 全为 0xFF，没有更大的 key
+                    return FieldCalRes.none();
+                }
+                res.left = end;
+                res.leftInclusive = true;
+                res.right = prefix.length == 0 ? null : prefixEnd(prefix);
+                break;
+        }
+        return res;
+    }
+
+    /**
+     * 大于所有以 prefix 开头的 key 的最小 key，不存在时返回 null
+     */
+    private static byte[] prefixEnd(byte[] prefix) {
+        for(int i = prefix.length-1; i >= 0; i --) {
+            if(prefix[i] != (byte)0xFF) {
+                byte[] end = Arrays.copyOf(prefix, i+1);
+                end[i] ++;
+                return end;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        if(include.isEmpty()) {
+            return "(" + names(columns) + ", Index)";
+        }
+        return "(" + names(columns) + " include " + names(include) + ", Index)";
+    }
+}
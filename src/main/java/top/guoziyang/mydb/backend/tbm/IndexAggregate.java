@@ -0,0 +1,131 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+import top.guoziyang.mydb.backend.im.RangeCursor;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 只读取 B+树 叶子的聚合算子，用于没有分组、只含 count、min、max 且都作用于同一个索引字段的查询
+ * 索引项的 key 就是记录的值，只需判断 uid 对当前事务是否可见：所在页全部可见时不读取记录
+ * min 从范围左端开始，遇到第一个可见的索引项即停止；max 从可能含有范围内最大 key 的叶子开始向右扫描，
+ * 其中没有可见的索引项时才从头扫描；count 需要扫描整个范围，同时求出 min 和 max
+ */
+class IndexAggregate implements Operator {
+    private Table tb;
+    private long xid;
+    private Field field;
+    private FieldCalRes range;
+    private HashAggregate.Call[] calls;
+    private List<Field> columns;
+    private boolean done;
+    private RowBatch batch;
+
+    IndexAggregate(Table tb, long xid, Field field, FieldCalRes range, HashAggregate.Call[] calls, List<Field> columns) {
+        this.tb = tb;
+        this.xid = xid;
+        this.field = field;
+        this.range = range;
+        this.calls = calls;
+        this.columns = columns;
+    }
+
+    @Override
+    public List<Field> columns() {
+        return columns;
+    }
+
+    @Override
+    public void open() throws Exception {
+        batch = new RowBatch(calls.length);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        if(done) {
+            return null;
+        }
+        done = true;
+        boolean needCount = false, needMin = false, needMax = false;
+        for(HashAggregate.Call call : calls) {
+            needCount |= "count".equals(call.func);
+            needMin |= "min".equals(call.func);
+            needMax |= "max".equals(call.func);
+        }
+        long count = 0;
+        byte[] min = null, max = null;
+        if(needCount) {
+            Bounds b = scan(false, false);
+            count = b.count;
+            min = b.first;
+            max = b.last;
+        } else {
+            if(needMin) {
+                min = scan(false, true).first;
+            }
+            if(needMax) {
+                max = scan(true, false).last;
+                if(max == null) {
+                    max = scan(false, false).last;
+                }
+            }
+        }
+
+        batch.clear();
+        Object[] row = batch.add();
+        for(int i = 0; i < calls.length; i ++) {
+            switch(calls[i].func) {
+                case "count":
+                    row[i] = count;
+                    break;
+                case "min":
+                    row[i] = min == null ? null : field.key2Value(min);
+                    break;
+                default:
+                    row[i] = max == null ? null : field.key2Value(max);
+            }
+        }
+        return batch;
+    }
+
+    private static class Bounds {
+        long count;
+        byte[] first, last;     // 第一个和最后一个可见的 key
+    }
+
+    /**
+     * 扫描范围内可见的索引项
+     * @param tail  从可能含有最大 key 的叶子开始
+     * @param firstOnly 找到第一个可见的索引项即停止
+     */
+    private Bounds scan(boolean tail, boolean firstOnly) throws Exception {
+        VersionManager vm = ((TableManagerImpl) tb.tbm).vm;
+        Bounds b = new Bounds();
+        RangeCursor cursor = field.scanKeys(range, tail);
+        try {
+            while(cursor.next()) {
+                long[] uids = cursor.batch();
+                for(int i = 0; i < cursor.size(); i ++) {
+                    if(!vm.isAllVisible(xid, uids[i]) && vm.read(xid, uids[i]) == null) {
+                        continue;
+                    }
+                    b.count ++;
+                    b.last = cursor.keys()[i];
+                    if(b.first == null) {
+                        b.first = b.last;
+                        if(firstOnly) {
+                            return b;
+                        }
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return b;
+    }
+
+    @Override
+    public void close() {
+    }
+}
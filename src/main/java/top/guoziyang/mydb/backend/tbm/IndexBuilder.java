@@ -0,0 +1,125 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.im.BrinIndex;
+import top.guoziyang.mydb.backend.im.BulkLoader;
+import top.guoziyang.mydb.backend.im.ExternalSorter;
+import top.guoziyang.mydb.backend.im.HashIndex;
+import top.guoziyang.mydb.backend.utils.Types;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 为已有数据的字段构建索引
+ * 把表的数据页按页号顺序切成若干段，各线程按页顺序扫描一段，
+ * 读出每条记录（不论对谁可见）中目标字段的 key，各线程分别外部排序，最后归并并批量构建新的 B+树；
+ * 哈希索引不需要有序的输入，各线程直接插入新的哈希索引；块范围索引只需要每条记录所在的页
+ */
+class IndexBuilder {
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private Table tb;
+    private Field target;
+
+    IndexBuilder(Table tb, Field target) {
+        this.tb = tb;
+        this.target = target;
+    }
+
+    /**
+     * 把扫描到的 (key, uid) 交给新索引
+     */
+    interface Sink {
+        void add(byte[] key, long uid) throws Exception;
+    }
+
+    /**
+     * @return  新索引的 IndexUid
+     * @throws Exception
+     */
+    long build() throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        if(Field.HASH.equals(target.buildingIndexType())) {
+            long index = target.createBuildIndex(dm);
+            HashIndex hi = HashIndex.load(index & ~Field.HASH_FLAG, dm);
+            try {
+                scanAll(part -> hi::insert);
+            } finally {
+                hi.close();
+            }
+            return index;
+        }
+        if(Field.BRIN.equals(target.buildingIndexType())) {
+            long index = target.createBuildIndex(dm);
+            BrinIndex bi = BrinIndex.load(index & ~Field.BRIN_FLAG, dm);
+            try {
+                scanAll(part -> (key, uid) -> bi.add(Types.uidToPgno(uid), key));
+            } finally {
+                bi.close();
+            }
+            return index;
+        }
+        List<ExternalSorter> sorters = new ArrayList<>();
+        scanAll(part -> {
+            ExternalSorter sorter = new ExternalSorter(ExternalSorter.DEFAULT_RUN_SIZE / part + 1);
+            sorters.add(sorter);
+            return sorter::add;
+        });
+        BulkLoader loader = new BulkLoader(dm);
+        ExternalSorter.merge(sorters, loader);
+        return loader.finish();
+    }
+
+    /**
+     * 把表的数据页切成至多 PARALLELISM 段并行扫描，factory 按总段数为每一段创建一个 Sink
+     */
+    private void scanAll(IntFunction<Sink> factory) throws Exception {
+        int[] pages = ((TableManagerImpl)tb.tbm).vm.getPages(tb.uid);
+        int parts = Math.max(1, Math.min(PARALLELISM, pages.length));
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            for(int i = 0; i < parts; i ++) {
+                // 第 i 段为页号数组中的 [from, to)
+                int[] part = Arrays.copyOfRange(pages, (int)((long)i * pages.length / parts),
+                    (int)((long)(i+1) * pages.length / parts));
+                Sink sink = factory.apply(parts);
+                futures.add(pool.submit(() -> {
+                    scan(part, sink);
+                    return null;
+                }));
+            }
+            for(Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof Exception) {
+                        throw (Exception)e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 按页号顺序扫描 pages 中的页，开始构建之后写入的记录也可能被扫描到，由 Field.finishBuild 去重
+     */
+    private void scan(int[] pages, Sink sink) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        int col = tb.fields.indexOf(target);
+        for(int pgno : pages) {
+            vm.scanPage(pgno, (uid, raw, start, end) -> sink.add(tb.codec.key(raw, start, col), uid));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 索引嵌套循环连接：内表的连接列有索引，每条外表记录在索引上点查一次，只读取匹配的内表记录
+ */
+class IndexJoin extends AbstractJoin {
+    private Operator outer;
+    private Table inner;
+    private long xid;
+    private Field innerField;
+    private int[] innerNeeded;
+
+    private RowBatch outerBatch;
+    private int outerPos;
+    private Object lastKey;
+    private List<Object[]> lastMatches;
+
+    /**
+     * @param outer
+     * @param outerColumn   连接列在外表记录中的下标
+     * @param inner
+     * @param xid
+     * @param innerField    内表上有 B+树 或哈希索引的连接列
+     * @param innerNeeded   需要解码的内表字段下标
+     * @param left
+     * @param columns
+     */
+    IndexJoin(Operator outer, int outerColumn, Table inner, long xid, Field innerField, int[] innerNeeded, boolean left, List<Field> columns) {
+        super(outerColumn, left, columns, outer.columns().size());
+        this.outer = outer;
+        this.inner = inner;
+        this.xid = xid;
+        this.innerField = innerField;
+        this.innerNeeded = innerNeeded;
+    }
+
+    @Override
+    public void open() throws Exception {
+        super.open();
+        outer.open();
+    }
+
+    @Override
+    protected Object[] nextOuter() throws Exception {
+        while (outerBatch == null || outerPos == outerBatch.size) {
+            if ((outerBatch = outer.next()) == null) {
+                return null;
+            }
+            outerPos = 0;
+        }
+        return outerBatch.rows[outerPos++];
+    }
+
+    @Override
+    protected List<Object[]> matches(Object key) throws Exception {
+        // 外表按连接列有序时，相邻的记录常有相同的 key
+        if (lastMatches != null && key.equals(lastKey)) {
+            return lastMatches;
+        }
+        VersionManager vm = ((TableManagerImpl) inner.tbm).vm;
+        FieldCalRes eq = new FieldCalRes();
+        eq.left = eq.right = innerField.value2Key(key);
+        eq.leftInclusive = eq.rightInclusive = true;
+        List<Object[]> res = new ArrayList<>();
+        IndexCursor cursor = innerField.scan(eq);
+        try {
+            while (cursor.next()) {
+                long[] uids = cursor.batch();
+                for (int i = 0; i < cursor.size(); i++) {
+                    Object[] row = new Object[inner.fields.size()];
+                    if (vm.read(xid, uids[i], (uid, raw, start, end) -> inner.codec.decode(raw, start, innerNeeded, row))) {
+                        res.add(row);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        lastKey = key;
+        lastMatches = res;
+        return res;
+    }
+
+    @Override
+    public void close() {
+        outer.close();
+    }
+}
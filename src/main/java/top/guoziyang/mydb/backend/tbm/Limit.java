@@ -0,0 +1,53 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 跳过下层的前 offset 条记录，之后最多输出 limit 条，够数后不再向下层读取
+ */
+class Limit implements Operator {
+    private Operator child;
+    private long offset, limit;
+    private long skipped, emitted;
+    private RowBatch batch;
+
+    Limit(Operator child, long offset, long limit) {
+        this.child = child;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    @Override
+    public List<Field> columns() {
+        return child.columns();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        batch = new RowBatch(child.columns().size());
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        RowBatch in;
+        while (batch.size == 0 && emitted < limit && (in = child.next()) != null) {
+            for (int i = 0; i < in.size && emitted < limit; i++) {
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                Object[] row = in.rows[i];
+                System.arraycopy(row, 0, batch.add(), 0, row.length);
+                emitted++;
+            }
+        }
+        return batch.size > 0 ? batch : null;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
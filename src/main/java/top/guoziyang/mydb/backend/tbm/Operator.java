@@ -0,0 +1,38 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 执行计划中的算子，按批产出记录，上层算子在 next 中向下层拉取
+ *
+ * 用法：
+ * op.open();
+ * try {
+ *     RowBatch b;
+ *     while((b = op.next()) != null) {
+ *         for(int i = 0; i < b.size; i ++) { b.rows[i] ... }
+ *     }
+ * } finally {
+ *     op.close();
+ * }
+ */
+interface Operator {
+    /**
+     * 产出的每一列对应的字段，记录中第 i 个值属于第 i 个字段
+     */
+    List<Field> columns();
+
+    void open() throws Exception;
+
+    /**
+     * 读取下一批记录，批次中的数组会被复用，只在下一次调用 next 之前有效
+     * @return  没有更多结果时返回 null
+     * @throws Exception
+     */
+    RowBatch next() throws Exception;
+
+    /**
+     * 结束执行，提前放弃的算子也需要调用
+     */
+    void close();
+}
@@ -0,0 +1,54 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 投影算子：从下层的记录中取出查询的各列
+ */
+class Project implements Operator {
+    private Operator child;
+    private List<Field> projection;
+    private int[] columns;      // 每个查询列在下层记录中的下标
+    private RowBatch batch;
+
+    Project(Operator child, List<Field> projection) {
+        this.child = child;
+        this.projection = projection;
+        this.columns = new int[projection.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = child.columns().indexOf(projection.get(i));
+        }
+    }
+
+    @Override
+    public List<Field> columns() {
+        return projection;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        batch = new RowBatch(columns.length);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        RowBatch in = child.next();
+        if (in == null) {
+            return null;
+        }
+        batch.clear();
+        for (int i = 0; i < in.size; i++) {
+            Object[] row = in.rows[i], out = batch.add();
+            for (int j = 0; j < columns.length; j++) {
+                out[j] = row[columns[j]];
+            }
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,8 @@
+package top.guoziyang.mydb.backend.tbm;
+
+/**
+ * 接收查询结果中的一段，用于把较大的结果分段发给客户端，见 TableManager.read
+ */
+public interface ResultSink {
+    void write(byte[] part) throws Exception;
+}
@@ -0,0 +1,35 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.Arrays;
+
+/**
+ * 算子之间传递的一批记录，每条记录是按列排列的值，类型与字段类型对应
+ * 记录数组在批次之间复用，一次查询占用的内存只与批次大小有关
+ */
+class RowBatch {
+    Object[][] rows;
+    int size;
+    private int width;
+
+    RowBatch(int width) {
+        this.width = width;
+        this.rows = new Object[64][];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * 追加一条记录，返回其值数组由调用者填写
+     */
+    Object[] add() {
+        if(size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        if(rows[size] == null) {
+            rows[size] = new Object[width];
+        }
+        return rows[size ++];
+    }
+}
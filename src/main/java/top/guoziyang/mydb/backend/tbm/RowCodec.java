@@ -0,0 +1,159 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 记录的编解码
+ * 二进制格式为：
+ * [End1]...[EndK][Value1]...[ValueN]
+ * K 为 string 字段的个数，Endi 为第 i 个 string 字段的值在记录中的结束位置（相对记录起点，2 字节）
+ * int32、int64 定长存储，string 只存 UTF-8 字节，长度由前后位置得出
+ *
+ * 任一字段的起点为它之前最近的 string 字段的结束位置（没有时为头部末尾）加上其间定长字段的宽度，
+ * 读取一个字段不需要解析它之前的字段。string 的值本身就是它的索引 key
+ */
+class RowCodec {
+    private List<Field> fields;
+    private int[] width;    // 定长字段的宽度，string 为 0
+    private int[] slot;     // string 字段在头部的序号，其他为 -1
+    private int[] prev;     // 之前最近的 string 字段在头部的序号，没有时为 -1
+    private int[] base;     // 相对 prev 的结束位置（或头部末尾）的偏移
+    private int header;     // 头部长度
+
+    RowCodec(List<Field> fields) {
+        this.fields = fields;
+        int n = fields.size();
+        width = new int[n];
+        slot = new int[n];
+        prev = new int[n];
+        base = new int[n];
+        int strings = 0, offset = 0;
+        for(int i = 0; i < n; i ++) {
+            prev[i] = strings - 1;
+            base[i] = offset;
+            switch(fields.get(i).fieldType) {
+                case "int32":
+                    width[i] = 4;
+                    break;
+                case "int64":
+                    width[i] = 8;
+                    break;
+                default:
+                    slot[i] = strings ++;
+                    offset = 0;
+                    continue;
+            }
+            slot[i] = -1;
+            offset += width[i];
+        }
+        header = strings * 2;
+    }
+
+    private static int getEnd(byte[] raw, int pos, int s) {
+        return Parser.getShort(raw, pos + s*2) & 0xFFFF;
+    }
+
+    /**
+     * 第 col 个字段在 raw 中的起点
+     */
+    private int start(byte[] raw, int pos, int col) {
+        return pos + (prev[col] < 0 ? header : getEnd(raw, pos, prev[col])) + base[col];
+    }
+
+    /**
+     * 编码一条记录
+     * @param entry 字段名到值的映射
+     * @return
+     */
+    byte[] encode(Map<String, Object> entry) {
+        byte[][] strs = new byte[fields.size()][];
+        int size = header;
+        for(int i = 0; i < fields.size(); i ++) {
+            if(slot[i] < 0) {
+                size += width[i];
+            } else {
+                strs[i] = ((String)entry.get(fields.get(i).fieldName)).getBytes(StandardCharsets.UTF_8);
+                size += strs[i].length;
+            }
+        }
+        byte[] raw = new byte[size];
+        int pos = header;
+        for(int i = 0; i < fields.size(); i ++) {
+            Object v = entry.get(fields.get(i).fieldName);
+            if(slot[i] >= 0) {
+                System.arraycopy(strs[i], 0, raw, pos, strs[i].length);
+                pos += strs[i].length;
+                Parser.putShort(raw, slot[i]*2, (short)pos);
+            } else if(width[i] == 4) {
+                Parser.putInt(raw, pos, (int)v);
+                pos += 4;
+            } else {
+                Parser.putLong(raw, pos, (long)v);
+                pos += 8;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * 解码 raw 中从 pos 开始的记录的第 col 个字段
+     */
+    Object decode(byte[] raw, int pos, int col) {
+        int start = start(raw, pos, col);
+        if(slot[col] >= 0) {
+            return new String(raw, start, pos + getEnd(raw, pos, slot[col]) - start, StandardCharsets.UTF_8);
+        }
+        if(width[col] == 4) {
+            return Parser.getInt(raw, start);
+        }
+        return Parser.getLong(raw, start);
+    }
+
+    /**
+     * 只解码 raw 中从 pos 开始的记录在 cols 中的字段，放到 row 中对应的位置
+     * @param raw
+     * @param pos
+     * @param cols  字段下标
+     * @param row   按表的字段顺序排列的值
+     */
+    void decode(byte[] raw, int pos, int[] cols, Object[] row) {
+        for(int col : cols) {
+            row[col] = decode(raw, pos, col);
+        }
+    }
+
+    /**
+     * 解码所有字段
+     * @param raw
+     * @return  字段名到值的映射
+     */
+    Map<String, Object> decodeAll(byte[] raw) {
+        Map<String, Object> entry = new HashMap<>();
+        for(int i = 0; i < fields.size(); i ++) {
+            entry.put(fields.get(i).fieldName, decode(raw, 0, i));
+        }
+        return entry;
+    }
+
+    /**
+     * 把 raw 中从 pos 开始的记录的第 col 个字段直接编码为索引 key，与 Field.value2Key 的结果相同
+     */
+    byte[] key(byte[] raw, int pos, int col) {
+        int start = start(raw, pos, col);
+        if(slot[col] >= 0) {
+            int end = pos + getEnd(raw, pos, slot[col]);
+            byte[] key = new byte[end - start];
+            System.arraycopy(raw, start, key, 0, key.length);
+            return key;
+        }
+        if(width[col] == 4) {
+            return Parser.long2Key(Parser.getInt(raw, start));
+        }
+        return Parser.long2Key(Parser.getLong(raw, start));
+    }
+}
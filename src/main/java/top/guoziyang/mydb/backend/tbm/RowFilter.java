@@ -0,0 +1,72 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 直接在记录的原始字节上求值的 where 条件
+ * 只把条件涉及的字段直接从记录中编码为 key 与范围比较，不构造记录对象
+ */
+class RowFilter {
+    private RowCodec codec;
+    private int[] columns;          // 每个条件所在字段的下标
+    private FieldCalRes[] ranges;   // 每个条件对应的 key 范围
+    private String logicOp;
+
+    /**
+     * 编译 where 条件
+     * @param tb
+     * @param where
+     * @return
+     * @throws Exception    字段不存在或逻辑运算符不合法时抛出
+     */
+    static RowFilter compile(Table tb, Where where) throws Exception {
+        RowFilter f = new RowFilter();
+        f.codec = tb.codec;
+        f.logicOp = where.logicOp;
+        SingleExpression[] exps;
+        switch(where.logicOp) {
+            case "":
+                exps = new SingleExpression[]{where.singleExp1};
+                break;
+            case "and":
+            case "or":
+                exps = new SingleExpression[]{where.singleExp1, where.singleExp2};
+                break;
+            default:
+                throw Error.InvalidLogOpException;
+        }
+        f.columns = new int[exps.length];
+        f.ranges = new FieldCalRes[exps.length];
+        for(int i = 0; i < exps.length; i ++) {
+            Field fd = tb.getField(exps[i].field);
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            f.columns[i] = tb.fields.indexOf(fd);
+            f.ranges[i] = fd.calExp(exps[i]);
+        }
+        return f;
+    }
+
+    /**
+     * 对 raw 中从 pos 开始的一条记录求值
+     * @param raw
+     * @param pos
+     * @return
+     */
+    boolean test(byte[] raw, int pos) {
+        boolean m0 = ranges[0].contains(codec.key(raw, pos, columns[0]));
+        switch(logicOp) {
+            case "and":
+                return m0 && ranges[1].contains(codec.key(raw, pos, columns[1]));
+            case "or":
+                return m0 || ranges[1].contains(codec.key(raw, pos, columns[1]));
+            default:
+                return m0;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.im.RangeCursor;
+import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 扫描算子：沿 where 条件选出的索引游标或顺序扫描游标，每次读取一批 uid 对应的可见记录
+ * 只解码上层需要的字段，其余字段为 null
+ * 有覆盖查询的组合索引时只扫描该索引，所在页全部可见的记录直接从 key 中取值
+ * 读到的不可见版本若已对所有事务不可见，扫描结束时清除其索引项
+ * 按索引顺序扫描时沿 order 字段的 B+树 正序或倒序读取 range，输出的记录按该字段有序；
+ * limit 不小于 0 时读到这么多条可见记录后结束，不再读取游标中剩下的 uid
+ */
+class Scan implements Operator {
+    private Table tb;
+    private long xid;
+    private Select read;
+    private Index covering;
+    private int[] needed;   // 需要解码的字段下标
+    private Field order;    // 按索引顺序扫描的字段，null 表示按 where 条件选择游标
+    private FieldCalRes range;
+    private boolean desc;
+    private long limit;
+    private long produced;
+    private List<IndexCursor> cursors;
+    private RangeCursor keyed;
+    private List<Long> garbage;
+    private int current;
+    private RowBatch batch;
+
+    /**
+     * @param tb
+     * @param xid
+     * @param read
+     * @param covering  覆盖查询的组合索引，没有时为 null
+     * @param needed    需要解码的字段下标，其余字段为 null
+     */
+    Scan(Table tb, long xid, Select read, Index covering, int[] needed) {
+        this.tb = tb;
+        this.xid = xid;
+        this.read = read;
+        this.covering = covering;
+        this.needed = needed;
+        this.limit = -1;
+    }
+
+    /**
+     * 按 order 字段的索引顺序扫描
+     * @param tb
+     * @param xid
+     * @param read
+     * @param order     有 B+树 索引的字段
+     * @param range     where 条件在该字段上的范围
+     * @param desc
+     * @param needed
+     * @param limit     最多读取的可见记录数，-1 表示不限
+     */
+    Scan(Table tb, long xid, Select read, Field order, FieldCalRes range, boolean desc, int[] needed, long limit) {
+        this.tb = tb;
+        this.xid = xid;
+        this.read = read;
+        this.order = order;
+        this.range = range;
+        this.desc = desc;
+        this.needed = needed;
+        this.limit = limit;
+    }
+
+    @Override
+    public List<Field> columns() {
+        return tb.fields;
+    }
+
+    @Override
+    public void open() throws Exception {
+        if (order != null) {
+            cursors = new ArrayList<>();
+            cursors.add(order.scanOrdered(range, desc));
+        } else if (covering != null) {
+            keyed = covering.scan(tb.indexRange(covering, read.where)).withKeys();
+            cursors = new ArrayList<>();
+            cursors.add(keyed);
+        } else {
+            // 按叶子或页分批读取结果，不把全部 uid 一次取出
+            cursors = tb.scanWhere(read.where);
+        }
+        garbage = tb.garbageList(cursors);
+        batch = new RowBatch(tb.fields.size());
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        VersionManager vm = ((TableManagerImpl) tb.tbm).vm;
+        while (current < cursors.size() && produced != limit) {
+            IndexCursor cursor = cursors.get(current);
+            if (!cursor.next()) {
+                current++;
+                continue;
+            }
+            batch.clear();
+            long[] uids = cursor.batch();
+            for (int i = 0; i < cursor.size() && produced != limit; i++) {
+                long uid = uids[i];
+                if (covering != null && vm.isAllVisible(xid, uid)) {
+                    covering.key2Row(keyed.keys()[i], batch.add());
+                    produced++;
+                    continue;
+                }
+                // select ... for update / for share，先对记录加锁
+                if (read.forUpdate || read.forShare) {
+                    if (!vm.lock(xid, tb.uid, uid, read.forUpdate)) {
+                        tb.collectGarbage(uid, garbage);
+                        continue;
+                    }
+                }
+                // 直接从页中解码需要的字段，不复制整条记录
+                if (!vm.read(xid, uid, (u, raw, start, end) -> tb.codec.decode(raw, start, needed, batch.add()))) {
+                    tb.collectGarbage(uid, garbage);
+                    continue;
+                }
+                produced++;
+            }
+            if (batch.size > 0) {
+                return batch;
+            }
+        }
+        tb.purge(garbage);
+        garbage = null;
+        return null;
+    }
+
+    @Override
+    public void close() {
+        tb.closeAll(cursors);
+    }
+}
@@ -0,0 +1,205 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 排序算子：按一列对下层的全部记录排序
+ * 只需要前 bound 条时维护一个大小为 bound 的堆，内存只与 bound 有关；
+ * 否则在内存中攒满 maxRows 条后排序写入临时文件作为一个顺串，下层读完后对所有顺串多路归并
+ */
+class Sort implements Operator {
+    static final int MAX_ROWS = 1 << 16;
+
+    private Operator child;
+    private int column;
+    private long bound;         // 只需要的前几条，-1 表示全部
+    private int maxRows;
+    private Comparator<Object[]> order;
+    private int width;
+
+    private List<Object[]> rows;
+    private List<File> runs = new ArrayList<>();
+    private int pos;
+    private List<DataInputStream> ins;
+    private PriorityQueue<Head> heads;     // 各顺串当前的第一条记录
+    private RowBatch batch;
+
+    private static class Head {
+        Object[] row;
+        int run;
+
+        Head(Object[] row, int run) {
+            this.row = row;
+            this.run = run;
+        }
+    }
+
+    /**
+     * @param child
+     * @param column    排序列在下层记录中的下标
+     * @param desc
+     * @param bound     只需要排在最前的 bound 条时使用堆，-1 表示全部
+     * @param maxRows   外部排序时每个顺串的记录数
+     */
+    Sort(Operator child, int column, boolean desc, long bound, int maxRows) {
+        this.child = child;
+        this.column = column;
+        this.bound = bound;
+        this.maxRows = maxRows;
+        Comparator<Object[]> asc = (a, b) -> compare(a[column], b[column]);
+        this.order = desc ? asc.reversed() : asc;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((Comparable)a).compareTo(b);
+    }
+
+    @Override
+    public List<Field> columns() {
+        return child.columns();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        width = child.columns().size();
+        batch = new RowBatch(width);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        if (rows == null) {
+            consume();
+        }
+        batch.clear();
+        while (batch.size < 64) {
+            Object[] row = heads == null ? (pos < rows.size() ? rows.get(pos++) : null) : pollMerged();
+            if (row == null) {
+                break;
+            }
+            System.arraycopy(row, 0, batch.add(), 0, row.length);
+        }
+        return batch.size > 0 ? batch : null;
+    }
+
+    /**
+     * 读完下层的所有记录，得到有序的 rows 或待归并的顺串
+     */
+    private void consume() throws Exception {
+        if (bound >= 0) {
+            // 堆顶是当前前 bound 条中排在最后的一条
+            PriorityQueue<Object[]> heap = new PriorityQueue<>(order.reversed());
+            RowBatch in;
+            while (bound > 0 && (in = child.next()) != null) {
+                for (int i = 0; i < in.size; i++) {
+                    if (heap.size() < bound) {
+                        heap.add(in.rows[i].clone());
+                    } else if (order.compare(in.rows[i], heap.peek()) < 0) {
+                        heap.poll();
+                        heap.add(in.rows[i].clone());
+                    }
+                }
+            }
+            rows = new ArrayList<>(heap);
+            rows.sort(order);
+            return;
+        }
+        rows = new ArrayList<>();
+        RowBatch in;
+        while ((in = child.next()) != null) {
+            for (int i = 0; i < in.size; i++) {
+                if (rows.size() == maxRows) {
+                    spill();
+                }
+                rows.add(in.rows[i].clone());
+            }
+        }
+        rows.sort(order);
+        if (runs.isEmpty()) {
+            return;
+        }
+        spill();
+        ins = new ArrayList<>();
+        heads = new PriorityQueue<>((a, b) -> order.compare(a.row, b.row));
+        for (int i = 0; i < runs.size(); i++) {
+            ins.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), 1 << 16)));
+            Object[] row = readRow(ins.get(i));
+            if (row != null) {
+                heads.add(new Head(row, i));
+            }
+        }
+    }
+
+    /**
+     * 把内存中的记录排序后写成一个顺串
+     */
+    private void spill() throws IOException {
+        rows.sort(order);
+        File run = File.createTempFile("mydb-sort", ".run");
+        run.deleteOnExit();
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (Object[] row : rows) {
+                for (Object v : row) {
+                    HashAggregate.writeValue(out, v);
+                }
+            }
+        }
+        rows.clear();
+    }
+
+    private Object[] readRow(DataInputStream in) throws IOException {
+        if (in.available() == 0) {
+            return null;
+        }
+        Object[] row = new Object[width];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = HashAggregate.readValue(in);
+        }
+        return row;
+    }
+
+    private Object[] pollMerged() throws IOException {
+        Head head = heads.poll();
+        if (head == null) {
+            return null;
+        }
+        Object[] row = readRow(ins.get(head.run));
+        if (row != null) {
+            heads.add(new Head(row, head.run));
+        }
+        return head.row;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+        if (ins != null) {
+            for (DataInputStream in : ins) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // 临时文件随后删除，关闭失败不影响结果
+                }
+            }
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+    }
+}
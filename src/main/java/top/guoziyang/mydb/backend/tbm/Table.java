@@ -1,39 +1,54 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.im.IndexCursor;
 import top.guoziyang.mydb.backend.parser.statement.Create;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.parser.statement.Where;
-import top.guoziyang.mydb.backend.tbm.Field.ParseValueRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * Table 维护了表结构
  * 二进制结构如下：
  * [TableName][NextTable]
- * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [Field1Uid][Field2Uid]...[FieldNUid][Index1Uid]...[IndexMUid]
+ * 组合索引的记录格式与字段相同，排在所有字段之后
  */
 public class Table {
+    static final int INSERT_BATCH = 256;    // 多行插入每批的行数，每批的插入日志只刷盘一次
+
     TableManager tbm;   // 表管理器
     long uid;   // 当前表的唯一标识符
     String name;    // 表名字
     byte status;    // 表状态
     long nextUid;   // 下一个表的uid
     List<Field> fields = new ArrayList<>(); // 表的字段列表
+    List<Index> indexes = new ArrayList<>(); // 表的组合索引
+    RowCodec codec;     // 记录的编解码，字段确定后创建
+    // 维护索引时持有读锁；开始构建新索引时短暂持有写锁，保证之前进行中的插入都已写入索引
+    ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /**
      * 从磁盘中加载一个表
@@ -77,18 +92,28 @@ public class Table {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
 
-            // 判断当前字段是否需要建立索引
-            boolean indexed = false;
+            // 判断当前字段是否需要建立索引，以及索引的类型
+            String indexType = null;
             for (int j = 0; j < create.index.length; j++) {
                 if (fieldName.equals(create.index[j])) {
-                    indexed = true;
+                    indexType = create.indexType == null ? Field.BTREE : create.indexType[j];
                     break;
                 }
             }
             // 创建字段对象，加入字段列表中
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexType));
+        }
+
+        // 创建组合索引
+        if (create.compositeIndex != null) {
+            for (int i = 0; i < create.compositeIndex.length; i++) {
+                List<Field> columns = tb.getFields(create.compositeIndex[i]);
+                List<Field> include = tb.getFields(create.compositeInclude[i]);
+                tb.indexes.add(Index.createIndex(tb, xid, columns, include));
+            }
         }
 
+        tb.codec = new RowCodec(tb.fields);
         // 持久化表对象元数据，并返回表对象
         return tb.persistSelf(xid);
     }
@@ -119,15 +144,62 @@ public class Table {
         nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
         position += 8;
 
-        // 解析并添加字段信息
+        // 解析并添加字段信息，组合索引排在字段之后
         while (position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
             position += 8;
-            fields.add(Field.loadField(this, uid));
+            byte[] member = null;
+            try {
+                member = ((TableManagerImpl) tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            if (Index.isIndex(member)) {
+                indexes.add(Index.loadIndex(this, uid, member));
+            } else {
+                fields.add(Field.loadField(this, uid));
+            }
         }
+        codec = new RowCodec(fields);
         return this;
     }
 
+    /**
+     * 按名字查找字段，不存在时返回 null
+     * @param fieldName
+     * @return
+     */
+    Field getField(String fieldName) {
+        for (Field field : fields) {
+            if (field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按名字查找一组字段，* 表示所有字段
+     * @param fieldNames
+     * @return
+     * @throws Exception 有字段不存在时抛出
+     */
+    List<Field> getFields(String[] fieldNames) throws Exception {
+        List<Field> res = new ArrayList<>();
+        for (String fieldName : fieldNames) {
+            if ("*".equals(fieldName)) {
+                res.addAll(fields);
+                continue;
+            }
+            Field f = getField(fieldName);
+            if (f == null) {
+                throw Error.FieldNotFoundException;
+            }
+            res.add(f);
+        }
+        return res;
+    }
+
     /**
      * 将当前 表对象元数据 持久化到磁盘中
      * @param xid
@@ -141,6 +213,9 @@ public class Table {
         for (Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
+        for (Index index : indexes) {
+            fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(index.uid));
+        }
         // 更新当前表对象的uid
         uid = ((TableManagerImpl) tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
@@ -155,14 +230,19 @@ public class Table {
      */
     public int delete(long xid, Delete delete) throws Exception {
         // 解析出符合删除条件的 节点 uid
-        List<Long> uids = parseWhere(delete.where);
+        List<IndexCursor> cursors = scanWhere(delete.where);
+        List<Long> garbage = garbageList(cursors);
+        List<Long> uids = drain(cursors);
         int count = 0;
         for (Long uid : uids) {
             // 删除符合条件的记录
-            if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
+            if (((TableManagerImpl) tbm).vm.delete(xid, this.uid, uid)) {
                 count++;
+            } else {
+                collectGarbage(uid, garbage);
             }
         }
+        purge(garbage);
         return count;
     }
 
@@ -175,7 +255,9 @@ public class Table {
      */
     public int update(long xid, Update update) throws Exception {
         // 解析出符合条件的记录 uid
-        List<Long> uids = parseWhere(update.where);
+        List<IndexCursor> cursors = scanWhere(update.where);
+        List<Long> garbage = garbageList(cursors);
+        List<Long> uids = drain(cursors);
         Field fd = null;
 
         // 获取需要更新的字段对象
@@ -189,84 +271,597 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        fd.checkKey(value);
 
         // 对所有符合条件的记录执行更新操作
         int count = 0;
         for (Long uid : uids) {
+            // 先对记录加排他锁，并发更新同一记录的事务在此排队
+            if (!((TableManagerImpl) tbm).vm.lock(xid, this.uid, uid, true)) {
+                collectGarbage(uid, garbage);
+                continue;
+            }
+
             // 读取记录的原始数据
             byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
-
-            // 删除旧数据
-            ((TableManagerImpl) tbm).vm.delete(xid, uid);
+            if (raw == null) {
+                collectGarbage(uid, garbage);
+                continue;
+            }
 
             // 将旧记录的字节数组内容解析为 记录对象
             Map<String, Object> entry = parseEntry(raw);
 
             // 更新 update 中对应字段的值
             entry.put(fd.fieldName, value);
+            for (Index index : indexes) {
+                index.checkKey(entry);
+            }
+
+            // 删除旧数据
+            if (!((TableManagerImpl) tbm).vm.delete(xid, this.uid, uid)) continue;
 
             // 将记录转化为 字节数组
             raw = entry2Raw(entry);
 
             // 插入记录
-            long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+            long uuid = ((TableManagerImpl) tbm).vm.insert(xid, this.uid, raw);
 
             count++;
 
             // 更新 B+树 索引信息
-            for (Field field : fields) {
-                if (field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
-                }
-            }
+            insertIndex(entry, uuid);
         }
+        purge(garbage);
         return count;
     }
 
     /**
-     * 读取符合条件的信息
+     * 为查询生成执行计划，由调用者逐批拉取结果
+     * 查询的字段和条件都能由某个带附带列的索引满足时，只扫描该索引
      * @param xid   事务id
      * @param read  查询要求
-     * @return  返回查询结果的字符串
+     * @return  执行计划的根算子
      * @throws Exception
      */
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            // 读取该索引的 字节数据
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
-            // 解析为一条记录
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+    public Operator read(long xid, Select read) throws Exception {
+        if (read.groupBy != null || hasAggregate(read)) {
+            Operator op = aggregate(xid, read);
+            if (read.orderBy != null) {
+                int column = indexOfColumn(op.columns(), read.orderBy);
+                op = new Sort(op, column, read.desc, bound(read), Sort.MAX_ROWS);
+            }
+            return limit(op, read);
         }
-        return sb.toString();
+        List<Field> projection = getFields(read.fields);
+        if (read.orderBy == null) {
+            int[] needed = projection.stream().mapToInt(fields::indexOf).distinct().toArray();
+            Scan scan = new Scan(this, xid, read, coveringIndex(read, projection), needed);
+            return new Project(limit(scan, read), projection);
+        }
+
+        Field order = getField(read.orderBy);
+        if (order == null) {
+            throw Error.FieldNotFoundException;
+        }
+        List<Field> used = new ArrayList<>(projection);
+        used.add(order);
+        int[] needed = used.stream().mapToInt(fields::indexOf).distinct().toArray();
+        FieldCalRes range = orderedRange(order, read.where);
+        Operator op;
+        if (range != null) {
+            // 沿索引顺序读取，够数即停
+            op = new Scan(this, xid, read, order, range, read.desc, needed, bound(read));
+        } else {
+            Scan scan = new Scan(this, xid, read, coveringIndex(read, used), needed);
+            op = new Sort(scan, fields.indexOf(order), read.desc, bound(read), Sort.MAX_ROWS);
+        }
+        return new Project(limit(op, read), projection);
     }
 
     /**
-     *
+     * 以本表为外表、inner 为内表的等值连接的执行计划
+     * 内表的连接列有索引时做索引嵌套循环连接，否则做哈希连接
+     * where 只涉及外表时下推到外表的扫描，否则在连接之后过滤
+     * @param xid
+     * @param read
+     * @param inner
+     * @return
+     * @throws Exception
+     */
+    public Operator join(long xid, Select read, Table inner) throws Exception {
+        if (inner == this || read.groupBy != null || hasAggregate(read) || read.forUpdate || read.forShare) {
+            throw Error.InvalidJoinException;
+        }
+        List<Field> columns = new ArrayList<>(fields);
+        columns.addAll(inner.fields);
+        Field outerField = resolve(read.join.leftField, inner);
+        Field innerField = resolve(read.join.rightField, inner);
+        if (fields.contains(innerField)) {
+            Field f = outerField;
+            outerField = innerField;
+            innerField = f;
+        }
+        if (!fields.contains(outerField) || !inner.fields.contains(innerField)
+            || !outerField.fieldType.equals(innerField.fieldType)) {
+            throw Error.InvalidJoinException;
+        }
+
+        List<Field> projection = new ArrayList<>();
+        for (String fieldName : read.fields) {
+            if ("*".equals(fieldName)) {
+                projection.addAll(columns);
+            } else {
+                projection.add(resolve(fieldName, inner));
+            }
+        }
+        List<Field> used = new ArrayList<>(projection);
+        used.add(outerField);
+        used.add(innerField);
+        Field order = read.orderBy == null ? null : resolve(read.orderBy, inner);
+        if (order != null) {
+            used.add(order);
+        }
+
+        // where 的字段全在外表时下推，字段名去掉表名前缀
+        Select outerRead = new Select();
+        outerRead.tableName = name;
+        Field[] whereFields = null;
+        if (read.where != null) {
+            SingleExpression[] exps = whereExps(read.where);
+            whereFields = new Field[exps.length];
+            boolean pushdown = true;
+            for (int i = 0; i < exps.length; i++) {
+                whereFields[i] = resolve(exps[i].field, inner);
+                used.add(whereFields[i]);
+                pushdown &= fields.contains(whereFields[i]);
+            }
+            if (pushdown) {
+                outerRead.where = new Where();
+                outerRead.where.logicOp = read.where.logicOp;
+                outerRead.where.singleExp1 = unqualified(read.where.singleExp1, whereFields[0]);
+                if (exps.length > 1) {
+                    outerRead.where.singleExp2 = unqualified(read.where.singleExp2, whereFields[1]);
+                }
+                whereFields = null;
+            }
+        }
+
+        int[] outerNeeded = used.stream().filter(fields::contains).mapToInt(fields::indexOf).distinct().toArray();
+        int[] innerNeeded = used.stream().filter(inner.fields::contains).mapToInt(inner.fields::indexOf).distinct().toArray();
+        Operator outer = new Scan(this, xid, outerRead, null, outerNeeded);
+        Operator op;
+        if (innerField.isIndexed() && !innerField.isBrin()) {
+            op = new IndexJoin(outer, fields.indexOf(outerField), inner, xid, innerField, innerNeeded, read.join.left, columns);
+        } else {
+            Select innerRead = new Select();
+            innerRead.tableName = inner.name;
+            Scan innerScan = new Scan(inner, xid, innerRead, null, innerNeeded);
+            op = new HashJoin(outer, fields.indexOf(outerField), innerScan, inner.fields.indexOf(innerField),
+                read.join.left, columns, HashJoin.MAX_ROWS);
+        }
+        if (whereFields != null) {
+            SingleExpression[] exps = whereExps(read.where);
+            int[] cols = new int[exps.length];
+            String[] ops = new String[exps.length];
+            Object[] values = new Object[exps.length];
+            for (int i = 0; i < exps.length; i++) {
+                cols[i] = columns.indexOf(whereFields[i]);
+                ops[i] = exps[i].compareOp;
+                values[i] = whereFields[i].string2Value(exps[i].value);
+            }
+            op = new Filter(op, read.where.logicOp, cols, ops, values);
+        }
+        if (order != null) {
+            op = new Sort(op, columns.indexOf(order), read.desc, bound(read), Sort.MAX_ROWS);
+        }
+        return new Project(limit(op, read), projection);
+    }
+
+    /**
+     * 在本表和 inner 中查找字段，可以带表名前缀；不带前缀时两张表都有该字段视为有歧义
+     */
+    private Field resolve(String fieldName, Table inner) throws Exception {
+        int dot = fieldName.indexOf('.');
+        if (dot >= 0) {
+            String tableName = fieldName.substring(0, dot);
+            Table tb = tableName.equals(name) ? this : tableName.equals(inner.name) ? inner : null;
+            Field f = tb == null ? null : tb.getField(fieldName.substring(dot + 1));
+            if (f == null) {
+                throw Error.FieldNotFoundException;
+            }
+            return f;
+        }
+        Field a = getField(fieldName), b = inner.getField(fieldName);
+        if (a != null && b != null) {
+            throw Error.AmbiguousFieldException;
+        }
+        if (a == null && b == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return a != null ? a : b;
+    }
+
+    private static SingleExpression[] whereExps(Where where) {
+        return "".equals(where.logicOp)
+            ? new SingleExpression[]{where.singleExp1}
+            : new SingleExpression[]{where.singleExp1, where.singleExp2};
+    }
+
+    private static SingleExpression unqualified(SingleExpression exp, Field field) {
+        SingleExpression res = new SingleExpression();
+        res.field = field.fieldName;
+        res.compareOp = exp.compareOp;
+        res.value = exp.value;
+        return res;
+    }
+
+    /**
+     * 只需要排在最前的多少条记录，没有 limit 时为 -1
+     */
+    private static long bound(Select read) {
+        return read.limit < 0 ? -1 : (long) read.offset + read.limit;
+    }
+
+    private static Operator limit(Operator op, Select read) {
+        return read.limit < 0 ? op : new Limit(op, read.offset, read.limit);
+    }
+
+    private static int indexOfColumn(List<Field> columns, String name) throws Exception {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).fieldName.equals(name)) {
+                return i;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    /**
+     * order 字段有 B+树 索引，且 where 条件为空或是该字段上的一个范围时，返回这个范围，
+     * 沿索引的顺序读取即得到有序的结果；否则返回 null，需要排序
+     * @param order
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private FieldCalRes orderedRange(Field order, Where where) throws Exception {
+        if (!order.isIndexed() || order.isHash() || order.isBrin()) {
+            return null;
+        }
+        if (where == null) {
+            return FieldCalRes.all();
+        }
+        if (!order.fieldName.equals(where.singleExp1.field) || !singleIndexUsable(order, where)) {
+            return null;
+        }
+        CalWhereRes res = calWhere(order, where);
+        return res.single ? res.r0 : null;
+    }
+
+    private static boolean hasAggregate(Select read) {
+        if (read.funcs == null) {
+            return false;
+        }
+        for (String func : read.funcs) {
+            if (func != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 聚合查询的执行计划：扫描只解码分组列和聚合函数的参数，交给哈希聚合
+     * 查询的每一列都必须是分组列或聚合函数
+     * @param xid
+     * @param read
+     * @return
+     * @throws Exception
+     */
+    private Operator aggregate(long xid, Select read) throws Exception {
+        List<Field> groupFields = getFields(read.groupBy == null ? new String[0] : read.groupBy);
+        List<Field> columns = new ArrayList<>();
+        List<Field> used = new ArrayList<>(groupFields);
+        List<HashAggregate.Call> calls = new ArrayList<>();
+        int[] outputs = new int[read.fields.length];
+        for (int i = 0; i < read.fields.length; i++) {
+            String func = read.funcs == null ? null : read.funcs[i];
+            if (func == null) {
+                Field f = getField(read.fields[i]);
+                if (f == null || !groupFields.contains(f)) {
+                    throw f == null && !"*".equals(read.fields[i]) ? Error.FieldNotFoundException : Error.InvalidAggregateException;
+                }
+                outputs[i] = groupFields.indexOf(f);
+                columns.add(f);
+                continue;
+            }
+            Field f = "*".equals(read.fields[i]) ? null : getField(read.fields[i]);
+            if (f == null && !"*".equals(read.fields[i])) {
+                throw Error.FieldNotFoundException;
+            }
+            if (("sum".equals(func) || "avg".equals(func)) && "string".equals(f.fieldType)) {
+                throw Error.InvalidAggregateException;
+            }
+            String type = "count".equals(func) || "sum".equals(func) ? "int64" : "avg".equals(func) ? "double" : f.fieldType;
+            columns.add(new Field(this, func + "(" + read.fields[i] + ")", type, 0));
+            calls.add(new HashAggregate.Call(func, f == null ? -1 : fields.indexOf(f)));
+            if (f != null) {
+                used.add(f);
+            }
+            outputs[i] = -calls.size();
+        }
+        HashAggregate.Call[] callArray = calls.toArray(new HashAggregate.Call[0]);
+
+        if (groupFields.isEmpty()) {
+            Operator op = indexAggregate(xid, read, callArray, columns);
+            if (op != null) {
+                return op;
+            }
+        }
+        int[] needed = used.stream().mapToInt(fields::indexOf).distinct().toArray();
+        int[] groupColumns = groupFields.stream().mapToInt(fields::indexOf).toArray();
+        Scan scan = new Scan(this, xid, read, coveringIndex(read, used), needed);
+        return new HashAggregate(scan, groupColumns, callArray, outputs, columns, HashAggregate.MAX_GROUPS);
+    }
+
+    /**
+     * 只有 count、min、max 且都作用于同一个 B+树 索引字段（count(*) 可以是任意字段），
+     * 条件也能表达为该字段上的一个范围时，只读取索引的叶子
+     * @return  不满足条件时返回 null
+     */
+    private Operator indexAggregate(long xid, Select read, HashAggregate.Call[] calls, List<Field> columns) throws Exception {
+        if (read.forUpdate || read.forShare) {
+            return null;
+        }
+        Field fd = null;
+        for (HashAggregate.Call call : calls) {
+            if (!"count".equals(call.func) && !"min".equals(call.func) && !"max".equals(call.func)) {
+                return null;
+            }
+            if (call.column < 0) {
+                continue;
+            }
+            Field f = fields.get(call.column);
+            if (fd != null && fd != f) {
+                return null;
+            }
+            fd = f;
+        }
+        if (fd == null) {
+            fd = read.where != null ? getField(read.where.singleExp1.field) : btreeField();
+        }
+        if (fd == null || !fd.isIndexed() || fd.isHash() || fd.isBrin()) {
+            return null;
+        }
+        FieldCalRes range = FieldCalRes.all();
+        if (read.where != null) {
+            if (!fd.fieldName.equals(read.where.singleExp1.field) || !singleIndexUsable(fd, read.where)) {
+                return null;
+            }
+            CalWhereRes res = calWhere(fd, read.where);
+            if (!res.single) {
+                return null;
+            }
+            range = res.r0;
+        }
+        return new IndexAggregate(this, xid, fd, range, calls, columns);
+    }
+
+    /**
+     * 第一个有 B+树 索引的字段
+     */
+    private Field btreeField() {
+        for (Field f : fields) {
+            if (f.isIndexed() && !f.isHash() && !f.isBrin()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 插入一行或多行记录
+     * 所有行先全部解析和检查，再按 INSERT_BATCH 行一批写入：每批记录一起追加到页中，插入日志只刷盘一次，
+     * 索引 key 在批内排序后再插入，相邻的 key 落在同一叶子上
      * @param xid
      * @param insert
      * @throws Exception
      */
     public void insert(long xid, Insert insert) throws Exception {
-        // 将新插入记录字符串转化为 entru 记录
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        // 写入磁盘
-        long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+        // 将新插入记录字符串转化为 entry 记录
+        List<Map<String, Object>> entries = new ArrayList<>(insert.values.length);
+        for (String[] values : insert.values) {
+            Map<String, Object> entry = string2Entry(values);
+            for (Field field : fields) {
+                field.checkKey(entry.get(field.fieldName));
+            }
+            for (Index index : indexes) {
+                index.checkKey(entry);
+            }
+            entries.add(entry);
+        }
+
+        for (int from = 0; from < entries.size(); from += INSERT_BATCH) {
+            List<Map<String, Object>> batch = entries.subList(from, Math.min(from + INSERT_BATCH, entries.size()));
+            byte[][] raws = new byte[batch.size()][];
+            for (int i = 0; i < raws.length; i++) {
+                raws[i] = entry2Raw(batch.get(i));
+            }
+            // 写入磁盘
+            long[] uids = ((TableManagerImpl) tbm).vm.insert(xid, this.uid, raws);
+
+            // 更新字段索引
+            insertIndex(batch, uids);
+        }
+    }
+
+    /**
+     * 将一批记录写入所有索引，每个索引按 key 排序后依次插入
+     * @param entries
+     * @param uids
+     * @throws Exception
+     */
+    void insertIndex(List<Map<String, Object>> entries, long[] uids) throws Exception {
+        byte[][] keys = new byte[uids.length][];
+        indexLock.readLock().lock();
+        try {
+            for (Field field : fields) {
+                if (!field.isIndexed() && !field.isBuilding()) {
+                    continue;
+                }
+                // 哈希索引没有顺序，按桶成批写入
+                if (field.isHash()) {
+                    field.insert(values(entries, field), uids);
+                    continue;
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = field.value2Key(entries.get(i).get(field.fieldName));
+                }
+                for (int i : sortedOrder(keys)) {
+                    field.insert(entries.get(i).get(field.fieldName), uids[i]);
+                }
+            }
+            for (Index index : indexes) {
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = index.entry2Key(entries.get(i));
+                }
+                for (int i : sortedOrder(keys)) {
+                    index.insert(entries.get(i), uids[i]);
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从文件导入记录，见 CopyLoader
+     * @param xid
+     * @param path
+     * @param csv
+     * @return  导入的记录数
+     * @throws Exception
+     */
+    public long copyFrom(long xid, String path, boolean csv) throws Exception {
+        return new CopyLoader(this, xid, csv).load(path);
+    }
+
+    /**
+     * 把对 xid 可见的所有记录按页顺序写入文件，每条记录一行，文件已存在时覆盖
+     * @param xid
+     * @param path
+     * @param csv
+     * @return  导出的记录数
+     * @throws Exception
+     */
+    public long copyTo(long xid, String path, boolean csv) throws Exception {
+        Select read = new Select();
+        read.tableName = name;
+        read.fields = new String[]{"*"};
+        Operator plan = read(xid, read);
+        CopyFormat format = new CopyFormat(csv);
+        StringBuilder sb = new StringBuilder();
+        long count = 0;
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
+            plan.open();
+            try {
+                RowBatch batch;
+                while ((batch = plan.next()) != null) {
+                    for (int i = 0; i < batch.size; i++) {
+                        format.format(batch.rows[i], sb);
+                    }
+                    out.write(sb.toString());
+                    sb.setLength(0);
+                    count += batch.size;
+                }
+            } finally {
+                plan.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 各记录中字段 field 的值
+     */
+    static Object[] values(List<Map<String, Object>> entries, Field field) {
+        Object[] values = new Object[entries.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = entries.get(i).get(field.fieldName);
+        }
+        return values;
+    }
+
+    /**
+     * keys 按无符号字节序排序后的下标
+     */
+    private static Integer[] sortedOrder(byte[][] keys) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+        return order;
+    }
+
+    /**
+     * 将记录写入所有索引，包括正在构建的索引
+     * @param entry
+     * @param uid
+     * @throws Exception
+     */
+    private void insertIndex(Map<String, Object> entry, long uid) throws Exception {
+        indexLock.readLock().lock();
+        try {
+            for (Field field : fields) {
+                if (field.isIndexed() || field.isBuilding()) {
+                    field.insert(entry.get(field.fieldName), uid);
+                }
+            }
+            for (Index index : indexes) {
+                index.insert(entry, uid);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
 
-        // 更新字段索引
+    /**
+     * 在已有数据的表上为字段创建索引
+     * 构建期间的插入记入该字段的旁路日志，构建完成后补入新索引，整个过程不阻塞插入
+     * @param fieldName
+     * @param indexType 索引类型 btree、hash 或 brin
+     * @throws Exception
+     */
+    public void createIndex(String fieldName, String indexType) throws Exception {
+        Field fd = null;
         for (Field field : fields) {
-            if (field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+            if (field.fieldName.equals(fieldName)) {
+                fd = field;
             }
         }
+        if (fd == null) {
+            throw Error.FieldNotFoundException;
+        }
+
+        // 等待进行中的插入完成，此后的插入都会记入旁路日志
+        indexLock.writeLock().lock();
+        try {
+            fd.startBuild(indexType);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        try {
+            long boot = new IndexBuilder(this, fd).build();
+            fd.finishBuild(boot);
+        } catch (Exception e) {
+            fd.abortBuild();
+            throw e;
+        }
     }
 
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
+    Map<String, Object> string2Entry(String[] values) throws Exception {
         if (values.length != fields.size()) {
             throw Error.InvalidValuesException;
         }
@@ -280,67 +875,241 @@ public class Table {
     }
 
     /**
-     * 从表中获取符合where条件的索引 叶子节点 uid 列表
-     * @param where
+     * 取出游标中的全部 uid
+     * 更新和删除会在遍历过程中修改索引和表，因此先取出全部 uid
+     * @param cursors
      * @return
      * @throws Exception
      */
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
-        boolean single = false;
-        Field fd = null;
-
-        // 如果where条件为空，就寻找一个有索引的字段，从该索引所在的 B+树 获取数据
-        if (where == null) {
-            for (Field field : fields) {
-                if (field.isIndexed()) {
-                    fd = field;
-                    break;
+    private List<Long> drain(List<IndexCursor> cursors) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        try {
+            for (IndexCursor cursor : cursors) {
+                while (cursor.next()) {
+                    long[] batch = cursor.batch();
+                    for (int i = 0; i < cursor.size(); i++) {
+                        uids.add(batch[i]);
+                    }
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            // 获取第一个条件的对应索引的字段
+        } finally {
+            closeAll(cursors);
+        }
+        return uids;
+    }
+
+    /**
+     * 经由索引读到的不可见版本需要清理索引项；顺序扫描会读到所有历史版本，不经由它清理，返回 null
+     * @param cursors
+     * @return
+     */
+    List<Long> garbageList(List<IndexCursor> cursors) {
+        if (cursors.size() == 1 && cursors.get(0) instanceof HeapCursor) {
+            return null;
+        }
+        return new ArrayList<>();
+    }
+
+    void closeAll(List<IndexCursor> cursors) {
+        for (IndexCursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 对当前事务不可见的版本，若已对所有事务不可见则记下，语句结束后清除其索引项
+     * @param uid
+     * @param garbage
+     * @throws Exception
+     */
+    void collectGarbage(long uid, List<Long> garbage) throws Exception {
+        if (garbage != null && ((TableManagerImpl) tbm).vm.isGarbage(uid)) {
+            garbage.add(uid);
+        }
+    }
+
+    /**
+     * 从所有索引中删除垃圾版本的索引项，使索引大小跟随存活的数据而不是历史版本
+     * 版本本身仍留在数据文件中，只是不再能通过索引访问到
+     * @param garbage
+     * @throws Exception
+     */
+    void purge(List<Long> garbage) throws Exception {
+        if (garbage == null) {
+            return;
+        }
+        for (long uid : garbage) {
+            byte[] raw = ((TableManagerImpl) tbm).vm.readAnyVersion(uid);
+            if (raw == null) continue;
+            Map<String, Object> entry = parseEntry(raw);
             for (Field field : fields) {
-                if (field.fieldName.equals(where.singleExp1.field)) {
-                    if (!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
-                }
+                field.delete(entry.get(field.fieldName), uid);
             }
-            if (fd == null) {
-                throw Error.FieldNotFoundException;
+            for (Index index : indexes) {
+                index.delete(entry, uid);
             }
-            // 计算该字段的索引结果
+        }
+    }
+
+    /**
+     * 计算 where 条件在索引上对应的范围，返回每个范围上的游标
+     * 没有条件，或条件不能走索引时，按页顺序扫描整张表，条件直接在页面上的记录字节中求值，
+     * 条件列有块范围索引时跳过不可能满足条件的页
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    List<IndexCursor> scanWhere(Where where) throws Exception {
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        List<IndexCursor> cursors = new ArrayList<>();
+        if (where == null) {
+            cursors.add(new HeapCursor(vm, uid, null));
+            return cursors;
+        }
+
+        // 条件涉及多列，或条件列没有单列索引时，先尝试组合索引
+        Index index = chooseIndex(where);
+        if (index != null) {
+            cursors.add(index.scan(indexRange(index, where)));
+            return cursors;
+        }
+
+        // 条件只涉及一个有索引的字段
+        Field fd = getField(where.singleExp1.field);
+        if (fd == null) {
+            throw Error.FieldNotFoundException;
+        }
+        if (singleIndexUsable(fd, where)) {
             CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0;
-            r0 = res.r0;
-            l1 = res.l1;
-            r1 = res.r1;
-            single = res.single;
+            // 查找该字段索引上符合条件的 uid 信息
+            cursors.add(fd.scan(res.r0));
+            // 若有两个条件，则获取该字段符合第二个条件的 uid 信息
+            if (!res.single) {
+                cursors.add(fd.scan(res.r1));
+            }
+            return cursors;
         }
 
-        // 查找该字段索引上符合条件的 uid 信息
-        List<Long> uids = fd.search(l0, r0);
-        // 若有两个条件，则获取该字段符合第二个条件的 uid 信息
-        if (!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        // and 的一侧能走索引时扫描该侧，再用整个条件过滤
+        RowFilter filter = RowFilter.compile(this, where);
+        if ("and".equals(where.logicOp)) {
+            for (SingleExpression exp : new SingleExpression[]{where.singleExp1, where.singleExp2}) {
+                Field f = getField(exp.field);
+                if (f.isIndexed() && !f.isBrin() && (!f.isHash() || "=".equals(exp.compareOp))) {
+                    cursors.add(new FilterCursor(vm, f.scan(f.calExp(exp)), filter));
+                    return cursors;
+                }
+            }
         }
-        return uids;
+        cursors.add(new HeapCursor(vm, prunePages(where), filter));
+        return cursors;
+    }
+
+    /**
+     * 用条件列上的块范围索引过滤出可能含有满足条件的记录的页
+     * and 取两侧结果的交集；or 只有两侧都有块范围索引时才能过滤，取并集
+     * @param where
+     * @return
+     * @throws Exception
+     */
+    private int[] prunePages(Where where) throws Exception {
+        int[] all = ((TableManagerImpl) tbm).vm.getPages(uid);
+        Field f1 = getField(where.singleExp1.field);
+        int[] pages = f1.prune(f1.calExp(where.singleExp1), all);
+        if ("".equals(where.logicOp)) {
+            return pages;
+        }
+        Field f2 = getField(where.singleExp2.field);
+        if ("and".equals(where.logicOp)) {
+            return f2.prune(f2.calExp(where.singleExp2), pages);
+        }
+        if (!f1.isBrin() || !f2.isBrin()) {
+            return all;
+        }
+        return union(pages, f2.prune(f2.calExp(where.singleExp2), all));
+    }
+
+    /**
+     * 合并两个递增的页号数组
+     */
+    private static int[] union(int[] a, int[] b) {
+        int[] res = new int[a.length + b.length];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            res[size++] = next;
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * 条件只涉及字段 fd 且能用它的单列索引表达，哈希索引只能用于等值条件，块范围索引只用于跳过页
+     */
+    private boolean singleIndexUsable(Field fd, Where where) {
+        boolean sameField = "".equals(where.logicOp) || where.singleExp1.field.equals(where.singleExp2.field);
+        boolean equality = "=".equals(where.singleExp1.compareOp)
+            && ("".equals(where.logicOp) || "=".equals(where.singleExp2.compareOp));
+        return fd.isIndexed() && !fd.isBrin() && sameField && (!fd.isHash() || equality);
+    }
+
+    /**
+     * 选择能完整表达 where 条件的组合索引
+     * 条件只涉及一个有单列索引的字段时仍使用单列索引，key 更短
+     * @param where
+     * @return  不需要或没有合适的组合索引时返回 null
+     * @throws Exception
+     */
+    private Index chooseIndex(Where where) throws Exception {
+        Field fd = getField(where.singleExp1.field);
+        if (fd != null && singleIndexUsable(fd, where)) {
+            return null;
+        }
+        for (Index index : indexes) {
+            if (index.calWhere(where) != null) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 选择能同时满足查询字段和 where 条件的组合索引，加锁读取时不使用
+     * @param read
+     * @param projection    查询的字段
+     * @return  没有合适的索引时返回 null
+     * @throws Exception
+     */
+    Index coveringIndex(Select read, List<Field> projection) throws Exception {
+        if (read.forUpdate || read.forShare) {
+            return null;
+        }
+        for (Index index : indexes) {
+            if (index.covers(projection) && (read.where == null || index.calWhere(read.where) != null)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    FieldCalRes indexRange(Index index, Where where) throws Exception {
+        return where == null ? FieldCalRes.all() : index.calWhere(where);
     }
 
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        FieldCalRes r0, r1;
         boolean single;
     }
 
     /**
-     * 计算在该字段索引的 B+树 上，符合条件的 索引的 uid 范围
+     * 计算在该字段索引的 B+树 上，符合条件的 索引的 key 范围
      * @param fd    字段对象
      * @param where     条件
      * @return
@@ -353,31 +1122,18 @@ public class Table {
             // 单条件
             case "":
                 res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
+                res.r0 = fd.calExp(where.singleExp1);
                 break;
             // 或
             case "or":
                 res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
+                res.r0 = fd.calExp(where.singleExp1);
+                res.r1 = fd.calExp(where.singleExp2);
                 break;
             // 与，计算两个条件范围的交集
             case "and":
                 res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
-                if (res.l1 > res.l0) res.l0 = res.l1;
-                if (res.r1 < res.r0) res.r0 = res.r1;
+                res.r0 = fd.calExp(where.singleExp1).intersect(fd.calExp(where.singleExp2));
                 break;
             default:
                 throw Error.InvalidLogOpException;
@@ -385,48 +1141,22 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if (i == fields.size() - 1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
-            }
-        }
-        return sb.toString();
-    }
-
     /**
      * 将字节数组解析为 记录
      * @param raw
-     * @return  字段及其值的记录 map
+     * @return
      */
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        // 依次解析各个字段的内容
-        for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
-        }
-        return entry;
+    Map<String, Object> parseEntry(byte[] raw) {
+        return codec.decodeAll(raw);
     }
 
     /**
-     * 将记录中的各个字段及其值转换为一个统一的字节数组格式，通常用于存储
+     * 将记录编码为字节数组，见 RowCodec
      * @param entry 记录对象
      * @return
      */
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
-        }
-        return raw;
+    byte[] entry2Raw(Map<String, Object> entry) {
+        return codec.encode(entry);
     }
 
     @Override
@@ -435,7 +1165,15 @@ public class Table {
         sb.append(name).append(": ");
         for (Field field : fields) {
             sb.append(field.toString());
-            if (field == fields.get(fields.size() - 1)) {
+            if (field == fields.get(fields.size() - 1) && indexes.isEmpty()) {
+                sb.append("}");
+            } else {
+                sb.append(", ");
+            }
+        }
+        for (Index index : indexes) {
+            sb.append(index.toString());
+            if (index == indexes.get(indexes.size() - 1)) {
                 sb.append("}");
             } else {
                 sb.append(", ");
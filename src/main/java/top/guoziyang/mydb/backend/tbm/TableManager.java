@@ -2,7 +2,9 @@ package top.guoziyang.mydb.backend.tbm;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
+import top.guoziyang.mydb.backend.parser.statement.Copy;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
@@ -17,12 +19,21 @@ public interface TableManager {
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
+    byte[] copy(long xid, Copy copy) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
+    byte[] read(long xid, Select select, ResultSink sink) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * 设置 COPY 读写文件的目录，未设置时不允许 COPY
+     * @param dir
+     */
+    void setCopyDir(String dir);
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,7 +12,9 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
+import top.guoziyang.mydb.backend.parser.statement.Copy;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
@@ -19,12 +24,16 @@ import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 public class TableManagerImpl implements TableManager {
+    private static final byte[] SEPARATOR = ", ".getBytes();
+    static final int PART_SIZE = 1 << 16;    // 查询结果攒够这么多字节后交给 ResultSink
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private volatile File copyDir;
 
     /**
      * 初始化一个表管理器
@@ -80,7 +89,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
-        res.xid = vm.begin(level);
+        res.xid = vm.begin(level, begin.isOptimistic);
         res.result = "begin".getBytes();
         return res;
     }
@@ -172,6 +181,25 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /**
+     * 在已有的表上创建索引，构建期间不阻塞其他事务的插入
+     * @param xid
+     * @param createIndex
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(createIndex.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        table.createIndex(createIndex.fieldName, createIndex.indexType);
+        return ("create index " + createIndex.fieldName).getBytes();
+    }
+
     /**
      * 插入一条记录
      * @param xid
@@ -191,6 +219,57 @@ public class TableManagerImpl implements TableManager {
         return "insert".getBytes();
     }
 
+    /**
+     * 从文件导入记录或把表导出到文件
+     * @param xid
+     * @param copy
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public byte[] copy(long xid, Copy copy) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(copy.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        String path = copyPath(copy.path);
+        long count = copy.from ? table.copyFrom(xid, path, copy.csv) : table.copyTo(xid, path, copy.csv);
+        return ("copy " + count).getBytes();
+    }
+
+    @Override
+    public void setCopyDir(String dir) {
+        try {
+            copyDir = new File(dir).getCanonicalFile();
+        } catch(IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 相对路径按 COPY 目录解析，解析符号链接和 .. 之后必须仍在 COPY 目录中
+     * @param path
+     * @return  解析后的绝对路径
+     * @throws Exception
+     */
+    private String copyPath(String path) throws Exception {
+        File dir = copyDir;
+        if(dir == null) {
+            throw Error.CopyPathException;
+        }
+        File f = new File(path);
+        if(!f.isAbsolute()) {
+            f = new File(dir, path);
+        }
+        f = f.getCanonicalFile();
+        if(!f.toPath().startsWith(dir.toPath()) || f.equals(dir)) {
+            throw Error.CopyPathException;
+        }
+        return f.getPath();
+    }
+
 
     /**
      * 查询符合条件的记录
@@ -201,13 +280,73 @@ public class TableManagerImpl implements TableManager {
      */
     @Override
     public byte[] read(long xid, Select read) throws Exception {
+        return read(xid, read, null);
+    }
+
+    /**
+     * 查询符合条件的记录，结果每攒够 PART_SIZE 字节交给 sink，不在内存中保存整个结果
+     * @param xid
+     * @param read
+     * @param sink  为 null 时返回整个结果
+     * @return  最后一段不足 PART_SIZE 的结果
+     * @throws Exception
+     */
+    @Override
+    public byte[] read(long xid, Select read, ResultSink sink) throws Exception {
         lock.lock();
         Table table = tableCache.get(read.tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(xid, read).getBytes();
+        if(read.join != null) {
+            lock.lock();
+            Table inner = tableCache.get(read.join.tableName);
+            lock.unlock();
+            if(inner == null) {
+                throw Error.TableNotFoundException;
+            }
+            return print(table.join(xid, read, inner), sink);
+        }
+        return print(table.read(xid, read), sink);
+    }
+
+    /**
+     * 逐批拉取执行计划的结果，每条记录输出为一行 [v1, v2, ...]
+     * 直接把值写入输出，不为每条记录构造中间字符串
+     * @param plan
+     * @param sink  不为 null 时输出攒够 PART_SIZE 字节就交给 sink
+     * @return  还没交给 sink 的部分
+     * @throws Exception
+     */
+    private static byte[] print(Operator plan, ResultSink sink) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Field> columns = plan.columns();
+        plan.open();
+        try {
+            RowBatch batch;
+            while((batch = plan.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    Object[] row = batch.rows[i];
+                    out.write('[');
+                    for(int j = 0; j < row.length; j ++) {
+                        if(j > 0) {
+                            out.write(SEPARATOR);
+                        }
+                        out.write(columns.get(j).printValue(row[j]).getBytes());
+                    }
+                    out.write(']');
+                    out.write('\n');
+                }
+                if(sink != null && out.size() >= PART_SIZE) {
+                    sink.write(out.toByteArray());
+                    out.reset();
+                }
+            }
+        } finally {
+            plan.close();
+        }
+        return out.toByteArray();
     }
 
     /**
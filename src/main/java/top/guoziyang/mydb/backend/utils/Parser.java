@@ -1,12 +1,45 @@
 package top.guoziyang.mydb.backend.utils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
 
 public class Parser {
 
+    // 直接在字节数组上按大端序读写，不产生中间数组
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] raw, int offset) {
+        return (short)SHORT.get(raw, offset);
+    }
+
+    public static void putShort(byte[] raw, int offset, short value) {
+        SHORT.set(raw, offset, value);
+    }
+
+    public static int getInt(byte[] raw, int offset) {
+        return (int)INT.get(raw, offset);
+    }
+
+    public static void putInt(byte[] raw, int offset, int value) {
+        INT.set(raw, offset, value);
+    }
+
+    public static long getLong(byte[] raw, int offset) {
+        return (long)LONG.get(raw, offset);
+    }
+
+    public static void putLong(byte[] raw, int offset, long value) {
+        LONG.set(raw, offset, value);
+    }
+
     public static byte[] short2Byte(short value) {
         return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
     }
@@ -50,13 +83,75 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
-        long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
+    /**
+     * 把整数编码为索引 key：大端序并翻转符号位，按无符号字节序比较的结果与数值大小一致
+     * @param value
+     * @return
+     */
+    public static byte[] long2Key(long value) {
+        return long2Byte(value ^ Long.MIN_VALUE);
+    }
+
+    public static long key2Long(byte[] key) {
+        return parseLong(key) ^ Long.MIN_VALUE;
+    }
+
+    public static long key2Long(byte[] key, int from) {
+        return getLong(key, from) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 把字符串编码为索引 key：UTF-8 的字节序与码点顺序一致
+     * @param str
+     * @return
+     */
+    public static byte[] str2Key(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把字符串编码为组合 key 中的一段：0x00 转义为 0x00 0xFF，末尾追加 0x00 0x01 作为结束符，
+     * 编码结果互不为前缀，拼接后的字节序仍与逐列比较的顺序一致
+     * @param str
+     * @return
+     */
+    public static byte[] str2KeyPart(String str) {
+        byte[] raw = str2Key(str);
+        int zeros = 0;
+        for(byte b : raw) {
+            if(b == 0) zeros ++;
+        }
+        byte[] res = new byte[raw.length + zeros + 2];
+        int pos = 0;
+        for(byte b : raw) {
+            res[pos ++] = b;
+            if(b == 0) {
+                res[pos ++] = (byte)0xFF;
+            }
         }
+        res[pos ++] = 0;
+        res[pos] = 1;
         return res;
     }
 
+    /**
+     * 从组合 key 的 from 处解析一段 str2KeyPart 编码的字符串，next 为这一段编码的长度
+     * @param key
+     * @param from
+     * @return
+     */
+    public static ParseStringRes parseKeyPart(byte[] key, int from) {
+        byte[] raw = new byte[key.length - from];
+        int len = 0, pos = from;
+        while(true) {
+            byte b = key[pos ++];
+            if(b == 0) {
+                // 0x00 0x01 为结束符，0x00 0xFF 为转义的 0x00
+                if(key[pos ++] == 1) break;
+            }
+            raw[len ++] = b;
+        }
+        return new ParseStringRes(new String(raw, 0, len, StandardCharsets.UTF_8), pos - from);
+    }
+
 }
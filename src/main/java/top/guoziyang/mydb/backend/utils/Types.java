@@ -12,4 +12,13 @@ public class Types {
         long u1 = (long)offset;
         return u0 << 32 | u1;
     }
+
+    /**
+     * 从 uid 中取出页码
+     * @param uid
+     * @return
+     */
+    public static int uidToPgno(long uid) {
+        return (int)(uid >>> 32);
+    }
 }
@@ -5,7 +5,9 @@ import java.util.Arrays;
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.ItemVisitor;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
@@ -17,7 +19,7 @@ public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    static final int OF_DATA = OF_XMAX+8;
 
     private long uid;
     private DataItem dataItem;
@@ -73,6 +75,21 @@ public class Entry {
         }
     }
 
+    /**
+     * 在读锁下访问数据部分，不复制
+     * @param visitor   raw 中 [start, end) 为数据部分
+     * @throws Exception
+     */
+    public void visit(ItemVisitor visitor) throws Exception {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            visitor.visit(uid, sa.raw, sa.start+OF_DATA, sa.end);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     // 获取创建 entry 的事务ID
     public long getXmin() {
         dataItem.rLock();
@@ -95,6 +112,21 @@ public class Entry {
         }
     }
 
+    /**
+     * 原地修改数据部分，不产生新版本
+     * @param offset    相对于数据部分的偏移
+     * @param raw
+     */
+    public void updateData(int offset, byte[] raw) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(raw, 0, sa.raw, sa.start+OF_DATA+offset, raw.length);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
     // 设置删除 entry 的事务ID
     public void setXmax(long xid) {
         // 拷贝旧值
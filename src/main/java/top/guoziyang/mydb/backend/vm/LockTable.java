@@ -1,250 +1,415 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 维护了一个依赖等待图，以进行死锁检测
+ *
+ * 资源按 uid 哈希到若干分段(stripe)上，每个分段拥有独立的锁，不同资源上的加锁互不阻塞；
+ * 只有需要等待或移交资源时，才会进入全局的等待图锁。
+ * 锁分为共享锁(S)和排他锁(X)，已持有共享锁的事务可以申请升级为排他锁。
+ * 表上还可以加意向锁(IS、IX、SIX)，行锁需要先在所属表上获得对应的意向锁；
+ * 一个事务在同一张表上持有的行锁超过阈值时，尝试将其升级为表锁并释放这些行锁。
+ * 只有正在等待的事务才有出边，新增的等待边只可能与从该事务出发的路径构成环，
+ * 所以死锁检测只需从等待的事务出发搜索，而不必遍历整个等待图。
  */
 public class LockTable {
-    
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
+
+    public static final int SHARED = 0;                     // 共享锁
+    public static final int EXCLUSIVE = 1;                  // 排他锁
+    public static final int INTENTION_SHARED = 2;           // 意向共享锁
+    public static final int INTENTION_EXCLUSIVE = 3;        // 意向排他锁
+    public static final int SHARED_INTENTION_EXCLUSIVE = 4; // 共享意向排他锁
+
+    public static final int ESCALATION_THRESHOLD = 5000;    // 默认的锁升级阈值
+
+    // 锁模式兼容矩阵
+    private static final boolean[][] COMPATIBLE = {
+        // S      X      IS     IX     SIX
+        {true,  false, true,  false, false},    // S
+        {false, false, false, false, false},    // X
+        {true,  false, true,  true,  true },    // IS
+        {false, false, true,  true,  false},    // IX
+        {false, false, true,  false, false},    // SIX
+    };
+
+    // 同时满足两种模式的最弱模式
+    private static final int[][] JOIN = {
+        // S      X          IS     IX     SIX
+        {SHARED, EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},                                // S
+        {EXCLUSIVE, EXCLUSIVE, EXCLUSIVE, EXCLUSIVE, EXCLUSIVE},                                                            // X
+        {SHARED, EXCLUSIVE, INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},                             // IS
+        {SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE, INTENTION_EXCLUSIVE, INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE},      // IX
+        {SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE, SHARED_INTENTION_EXCLUSIVE}, // SIX
+    };
+
+    private static final int STRIPES = 64;  // 分段数，必须为 2 的幂
+
+    private Lock[] stripes;
+    private Map<Long, Resource> resources;  // UID被哪些XID以何种模式持有，以及等待该UID的队列
+    private Map<Long, Set<Long>> x2u;       // 某个XID已经获得的资源的UID集合
+    private Map<Long, Map<Long, TableRows>> x2t;    // 某个XID在各个表上持有的行锁
+    private Map<Long, Request> waitU;       // XID正在等待的资源请求
+    private Lock graphLock;                 // 保护等待队列的修改以及死锁检测
+    private int escalationThreshold;
+
+    private static class Resource {
+        Map<Long, Integer> holders = new ConcurrentHashMap<>();    // 持有该资源的XID及其锁模式
+        ArrayDeque<Request> queue = new ArrayDeque<>();             // 等待该资源的请求，按到达顺序排列，锁升级排在队首
+    }
+
+    private static class Request {
+        long xid;
+        long uid;
+        long tableUid;  // 行锁所属的表，非行锁为0
+        int mode;   // 获得资源后持有的模式
+        Lock lock;  // 等待线程阻塞在该锁上，由移交资源的线程解锁
+    }
+
+    /**
+     * 事务在一张表上持有的行锁
+     */
+    private static class TableRows {
+        Set<Long> rows = ConcurrentHashMap.newKeySet();
+        volatile boolean exclusive;     // 是否持有过排他行锁，决定升级后的表锁模式
+        int threshold;                  // 下一次尝试升级的行锁数量
+    }
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        this(ESCALATION_THRESHOLD);
     }
 
+    public LockTable(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+        stripes = new Lock[STRIPES];
+        for(int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new ReentrantLock();
+        }
+        resources = new ConcurrentHashMap<>();
+        x2u = new ConcurrentHashMap<>();
+        x2t = new ConcurrentHashMap<>();
+        waitU = new ConcurrentHashMap<>();
+        graphLock = new ReentrantLock();
+    }
 
+    /**
+     * 为事务 (xid) 获取资源 (uid) 的排他锁
+     */
+    public Lock add(long xid, long uid) throws Exception {
+        return add(xid, uid, EXCLUSIVE);
+    }
 
     /**
-     *  尝试为一个给定的事务 (xid) 获取一个资源 (uid) 的锁
+     *  尝试为一个给定的事务 (xid) 以指定模式获取一个资源 (uid) 的锁
      * @param xid 事务ID
      * @param uid entry uid
+     * @param mode SHARED 或 EXCLUSIVE
      * @return  不需要等待则返回null，否则返回锁对象
      * @throws Exception 会造成死锁则抛出异常
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public Lock add(long xid, long uid, int mode) throws Exception {
+        return add(xid, uid, mode, 0);
+    }
+
+    /**
+     * 为事务获取表 tableUid 中一行 (uid) 的锁，调用前需已持有该表上对应的意向锁
+     * @param tableUid 行所属的表，为0时不计入该表的行锁
+     */
+    public Lock add(long xid, long uid, int mode, long tableUid) throws Exception {
+        Lock s = stripe(uid);
+        s.lock();
         try {
-            // 判断事务是否拥有该资源，已拥有不需要获取其对应的锁
-            if(isInList(x2u, xid, uid)) {
+            Resource r = resources.computeIfAbsent(uid, k -> new Resource());
+            Integer held = r.holders.get(xid);
+            // 已持有的锁模式足够，不需要再获取
+            if(held != null && covers(held, mode)) {
                 return null;
             }
+            int target = held == null ? mode : join(held, mode);
 
-            // 资源没有被其他事务持有
-            if(!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);                // 记录 事务 对 资源的持有关系
-                putIntoList(x2u, xid, uid);      // 新增事务对资源的持有关系
+            // 与其他持有者兼容，且没有排在前面的请求(锁升级不排队)，直接获得资源
+            if(compatibleWithHolders(r, xid, target) && (held != null || r.queue.isEmpty())) {
+                r.holders.put(xid, target);
+                hold(xid, uid, tableUid, target);
                 return null;
             }
 
-            // 如果资源已经被其他事务持有，将当前事务添加到等待列表中
-            waitU.put(xid, uid);
-            putIntoList(wait, uid, xid);    // 将事务的ID添加到资源的等待列表
-
-            // 检查是否存在死锁
-            if(hasDeadLock()) {
-                waitU.remove(xid);  // 将事务从等待队列中移除
-                removeFromList(wait, uid, xid); // 将 事务xid 从 资源 uid 的等待队列中移除
-                throw Error.DeadlockException;  //抛出死锁异常
-            }
+            // 否则将当前事务加入等待队列
+            graphLock.lock();
+            try {
+                Request req = new Request();
+                req.xid = xid;
+                req.uid = uid;
+                req.tableUid = tableUid;
+                req.mode = target;
+                if(held != null) {
+                    r.queue.addFirst(req);
+                } else {
+                    r.queue.addLast(req);
+                }
+                waitU.put(xid, req);
 
-            // 为当前事务加锁
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);   // 将锁加入等待锁列表
-            return l;
+                // 检查新增的等待边是否构成环
+                if(hasDeadLock(xid)) {
+                    waitU.remove(xid);
+                    r.queue.remove(req);
+                    throw Error.DeadlockException;
+                }
 
+                StampedLock sl = new StampedLock();
+                sl.writeLock();
+                req.lock = sl.asWriteLock();
+                return req.lock;
+            } finally {
+                graphLock.unlock();
+            }
         } finally {
-            lock.unlock();
+            s.unlock();
         }
     }
 
     /**
-     * 从等待图中移除 事务xid的锁
-     * @param xid
+     * 不等待地获取锁，无法立即获得时返回 false
      */
-    public void remove(long xid) {
-        lock.lock();
+    public boolean tryAdd(long xid, long uid, int mode) {
+        Lock s = stripe(uid);
+        s.lock();
         try {
-            // 获取该事务已持有的资源ID列表
-            List<Long> l = x2u.get(xid);
-            if(l != null) {
-                // 逐个释放该事务持有的资源
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);  // 获取并移出列表中的第一个资源ID
-
-                    selectNewXID(uid);  // 从当前资源的请求事务表中选择一个事务持有该资源
-                }
+            Resource r = resources.computeIfAbsent(uid, k -> new Resource());
+            Integer held = r.holders.get(xid);
+            if(held != null && covers(held, mode)) {
+                return true;
             }
-
-            waitU.remove(xid);      //从等待列表中移除事务 xid，表示该事务不再等待任何资源
-
-            x2u.remove(xid);        // 从持有资源的映射关系中移除该事务，表示该事务不再持有任何资源
-
-            waitLock.remove(xid);   // 从等待锁表中移除该事务的锁记录，表示该事务的所有锁已释放
-
+            int target = held == null ? mode : join(held, mode);
+            if(compatibleWithHolders(r, xid, target) && (held != null || r.queue.isEmpty())) {
+                r.holders.put(xid, target);
+                hold(xid, uid, 0, target);
+                return true;
+            }
+            cleanIfUnused(uid, r);
+            return false;
         } finally {
-            lock.unlock();
+            s.unlock();
         }
     }
 
     /**
-     * 从 uid 的请求等待表中选择一个事务持有该资源
-     * @param uid
+     * 判断事务是否已持有资源上至少为 mode 的锁
      */
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);    // 作用是将资源 uid 从 u2x 映射中移除，表示不再有事务持有该资源
-
-        List<Long> l = wait.get(uid);   // 获取等待该资源的事务ID列表
-
-        if(l == null) return;   // 如果没有任何事务请求该资源，方法直接返回
-
-        assert l.size() > 0;    // 确保资源的请求列表中至少有一个事务在等待该资源
+    public boolean holds(long xid, long uid, int mode) {
+        Resource r = resources.get(uid);
+        if(r == null) return false;
+        Integer held = r.holders.get(xid);
+        return held != null && covers(held, mode);
+    }
 
-        while(l.size() > 0) {
-            long xid = l.remove(0); // 移除并获取等待队列第一的事务
+    /**
+     * 行锁需要在所属表上持有的意向锁
+     */
+    public static int intentionOf(int mode) {
+        return mode == EXCLUSIVE ? INTENTION_EXCLUSIVE : INTENTION_SHARED;
+    }
 
-            // 检查事务是否仍在等待锁，即判断该事务是否在空闲中
-            if(!waitLock.containsKey(xid)) {
-                continue;
-            } else {// 若该事务空闲
-                u2x.put(uid, xid);  // 将该事务ID与资源ID建立新的持有关系
-                Lock lo = waitLock.remove(xid); // 从等待锁中移除该事务，并获取该事务的锁
-                waitU.remove(xid);  // 将事务从等待队列移除，表示该事务不再等待任何资源
-                lo.unlock();    // 释放该事务的锁，表示该事务现在可以使用这个资源
-                break;
-            }
+    /**
+     * 锁升级：事务在表上持有的行锁超过阈值时，尝试不等待地获取表锁，成功后释放该表上的所有行锁
+     * 获取失败时不阻塞，继续使用行锁，并在行锁数量翻倍后再次尝试
+     * @param xid
+     * @param tableUid
+     * @return  是否升级为表锁
+     */
+    public boolean escalate(long xid, long tableUid) {
+        Map<Long, TableRows> tables = x2t.get(xid);
+        if(tables == null) return false;
+        TableRows tr = tables.get(tableUid);
+        if(tr == null || tr.rows.size() <= tr.threshold) return false;
+
+        if(!tryAdd(xid, tableUid, tr.exclusive ? EXCLUSIVE : SHARED)) {
+            tr.threshold *= 2;
+            return false;
         }
-
-        // 若等待队列为空，清理空等待列表
-        if(l.size() == 0) wait.remove(uid);
+        tables.remove(tableUid);
+        Set<Long> held = holding(xid);
+        for(long uid : tr.rows) {
+            held.remove(uid);
+            release(xid, uid);
+        }
+        return true;
     }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
-
     /**
-     * 判断当前是否存在死锁
-     * @return
+     * 从等待图中移除 事务xid的锁
+     * @param xid
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();     // 保存事务的访问记录
-        stamp = 1;      // 初始化记录编号
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            // 判断当前事务是否已经被访问
-            if(s != null && s > 0) {
-                continue;
+    public void remove(long xid) {
+        // 事务若仍在等待某个资源，将其从对应的等待队列中移除
+        Request waiting = waitU.get(xid);
+        if(waiting != null) {
+            Lock s = stripe(waiting.uid);
+            s.lock();
+            graphLock.lock();
+            try {
+                waitU.remove(xid);
+                Resource r = resources.get(waiting.uid);
+                if(r != null) {
+                    r.queue.remove(waiting);
+                    grant(r);
+                    cleanIfUnused(waiting.uid, r);
+                }
+            } finally {
+                graphLock.unlock();
+                s.unlock();
             }
+        }
 
-            stamp ++;       // 更新访问记录
-
-            if(dfs(xid)) {
-                return true;
+        // 逐个释放该事务持有的资源
+        x2t.remove(xid);
+        Set<Long> l = x2u.remove(xid);
+        if(l != null) {
+            for(long uid : l) {
+                release(xid, uid);
             }
         }
-        return false;
     }
 
-    private boolean dfs(long xid) {
-        // 递归边界
-        Integer stp = xidStamp.get(xid);
-
-        // 当前事务的记录存在且等于当前记录，表示存在循环依赖
-        if(stp != null && stp == stamp) {
-            return true;
-        }
-
-        // 当前事务在之前的访问中记录过，不存在循环依赖
-        if(stp != null && stp < stamp) {
-            return false;
+    /**
+     * 释放 xid 对 uid 的持有，并从等待队列中选择可以获得资源的事务
+     * @param xid
+     * @param uid
+     */
+    private void release(long xid, long uid) {
+        Lock s = stripe(uid);
+        s.lock();
+        try {
+            Resource r = resources.get(uid);
+            if(r == null) return;
+            r.holders.remove(xid);
+            if(!r.queue.isEmpty()) {
+                graphLock.lock();
+                try {
+                    grant(r);
+                } finally {
+                    graphLock.unlock();
+                }
+            }
+            cleanIfUnused(uid, r);
+        } finally {
+            s.unlock();
         }
-
-
-        xidStamp.put(xid, stamp);   // 更新 xid 的访问记录
-
-        Long uid = waitU.get(xid);  // 获取当前事务等待资源ID
-
-        if(uid == null) return false; //没有其他事务等待，不存在循环依赖
-
-        Long x = u2x.get(uid);  // 获取资源的当前持有者
-
-        assert x != null;   // 断言资源持有者存在
-
-        return dfs(x);  // 递归检查资源持有者是否存在死锁
     }
 
     /**
-     * 从 uid0 的等待列表中移除 uid1
-     * @param listMap
-     * @param uid0
-     * @param uid1
+     * 按队列顺序唤醒可以获得资源的等待事务，遇到第一个无法获得资源的请求即停止
+     * 调用时需持有资源所在分段的锁以及 graphLock
+     * @param r
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
+    private void grant(Resource r) {
+        Iterator<Request> it = r.queue.iterator();
+        while(it.hasNext()) {
+            Request req = it.next();
+            if(!compatibleWithHolders(r, req.xid, req.mode)) {
                 break;
             }
-        }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+            it.remove();
+            r.holders.put(req.xid, req.mode);
+            hold(req.xid, req.uid, req.tableUid, req.mode);
+            waitU.remove(req.xid);
+            req.lock.unlock();      // 唤醒等待的事务
         }
     }
 
-    /**
-     * 将 uid0 的等待列表中加入 uid1
-     * @param listMap
-     * @param uid0
-     * @param uid1
-     */
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void cleanIfUnused(long uid, Resource r) {
+        if(r.holders.isEmpty() && r.queue.isEmpty()) {
+            resources.remove(uid);
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
     /**
-     * 判断 uid0 的等待队列中是否包含 uid1
-     * @param listMap   资源与其等待队列的映射
-     * @param uid0      被请求资源ID
-     * @param uid1      请求者ID
+     * 判断 xid 新增的等待边是否造成死锁，调用时需持有 graphLock
+     * 等待者指向与其请求冲突的持有者，以及队列中排在其前面且冲突的请求者
+     * @param xid
      * @return
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
+    private boolean hasDeadLock(long xid) {
+        Set<Long> visited = new HashSet<>();
+        List<Long> stack = new ArrayList<>();
+        stack.add(xid);
+        while(!stack.isEmpty()) {
+            long x = stack.remove(stack.size()-1);
+            if(!visited.add(x)) continue;
+            Request req = waitU.get(x);
+            if(req == null) continue;   // 没有等待的资源，不存在出边
+            Resource r = resources.get(req.uid);
+            if(r == null) continue;
+
+            for(Map.Entry<Long, Integer> h : r.holders.entrySet()) {
+                long owner = h.getKey();
+                if(owner == x || COMPATIBLE[h.getValue()][req.mode]) continue;
+                if(owner == xid) return true;
+                stack.add(owner);
+            }
+            for(Request ahead : r.queue) {
+                if(ahead == req) break;
+                if(COMPATIBLE[ahead.mode][req.mode]) continue;
+                if(ahead.xid == xid) return true;
+                stack.add(ahead.xid);
             }
         }
         return false;
     }
 
+    private boolean compatibleWithHolders(Resource r, long xid, int mode) {
+        for(Map.Entry<Long, Integer> h : r.holders.entrySet()) {
+            if(h.getKey() != xid && !COMPATIBLE[h.getValue()][mode]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 已持有的模式 held 是否包含请求的模式 mode
+    private static boolean covers(int held, int mode) {
+        return JOIN[held][mode] == held;
+    }
+
+    private static int join(int held, int mode) {
+        return JOIN[held][mode];
+    }
+
+    /**
+     * 记录事务对资源的持有关系，行锁同时计入所属表
+     */
+    private void hold(long xid, long uid, long tableUid, int mode) {
+        holding(xid).add(uid);
+        if(tableUid == 0) return;
+        TableRows tr = x2t.computeIfAbsent(xid, k -> new ConcurrentHashMap<>()).computeIfAbsent(tableUid, k -> {
+            TableRows n = new TableRows();
+            n.threshold = escalationThreshold;
+            return n;
+        });
+        tr.rows.add(uid);
+        if(mode == EXCLUSIVE) tr.exclusive = true;
+    }
+
+    private Set<Long> holding(long xid) {
+        return x2u.computeIfAbsent(xid, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    private Lock stripe(long uid) {
+        long h = uid ^ (uid >>> 32);
+        h ^= (h >>> 16);
+        return stripes[(int)(h & (STRIPES - 1))];
+    }
+
 }
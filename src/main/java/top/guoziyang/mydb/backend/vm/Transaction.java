@@ -1,7 +1,9 @@
 package top.guoziyang.mydb.backend.vm;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 
@@ -17,8 +19,13 @@ public class Transaction {
     public long xid; // 事务 id
     public int level; // 事务的隔离级别 0：读已提交 1：可重复读
     public Map<Long, Boolean> snapshot; // 快照映射，存储活跃的事务ID，可重复读隔离级别下，事务需要知道在其快照时间点之后有哪些事务是有效的
+    public long snapshotMin;    // 快照中（含自身）最小的事务ID，小于它的事务在当前事务开始前都已结束
+    public Set<Integer> insertedPages;  // 插入过版本的页，事务结束时更新可见性映射
     public Exception err;   // 保存事务执行过程中的错误信息
     public boolean autoAborted; // 标记事务是否被自动中止
+    public boolean optimistic;  // 是否为乐观事务，执行期间不加锁，提交时校验
+    public Map<Long, Long> writeSet;    // 乐观事务缓存的删除 uid -> tableUid，提交时才写入 xmax
+    public Map<Long, Long> lockSet;     // 乐观事务 for update / for share 读到的记录，提交时校验未被修改
 
     /**
      *  创建一个事务对象
@@ -32,6 +39,8 @@ public class Transaction {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.insertedPages = new HashSet<>();
+        t.snapshotMin = xid;
         // 为了实现可重复读的隔离级别，使用快照记录事务创建时的活跃事务快照
         // 事务不能看到当前事务创建时活跃的事务的内容以及其后面事务修改的内容
         if(level != 0) {
@@ -40,6 +49,9 @@ public class Transaction {
             // 初始化活跃事务的列表
             for(Long x : active.keySet()) {
                 t.snapshot.put(x, true);
+                if(x != TransactionManagerImpl.SUPER_XID) {
+                    t.snapshotMin = Math.min(t.snapshotMin, x);
+                }
             }
         }
         return t;
@@ -57,4 +69,22 @@ public class Transaction {
         }
         return snapshot.containsKey(xid);
     }
+
+    /**
+     * 开启乐观模式，初始化写集合
+     */
+    public void setOptimistic() {
+        optimistic = true;
+        writeSet = new HashMap<>();
+        lockSet = new HashMap<>();
+    }
+
+    /**
+     * 判断数据项是否已被当前乐观事务删除（尚未提交）
+     * @param uid
+     * @return
+     */
+    public boolean isDeletedBySelf(long uid) {
+        return optimistic && writeSet.containsKey(uid);
+    }
 }
@@ -1,14 +1,28 @@
 package top.guoziyang.mydb.backend.vm;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.ItemVisitor;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    boolean read(long xid, long uid, ItemVisitor visitor) throws Exception;
+    byte[] readAnyVersion(long uid) throws Exception;
+    boolean isGarbage(long uid) throws Exception;
+    void updateInPlace(long uid, int offset, byte[] data) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long insert(long xid, long tableUid, byte[] data) throws Exception;
+    long[] insert(long xid, long tableUid, byte[][] data) throws Exception;
+    long[] insertPages(long xid, long tableUid, byte[][] data) throws Exception;
+    int[] getPages(long tableUid);
+    void scanPage(int pgno, ItemVisitor visitor) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    boolean delete(long xid, long tableUid, long uid) throws Exception;
+    boolean lock(long xid, long tableUid, long uid, boolean exclusive) throws Exception;
+    boolean isAllVisible(long xid, long uid) throws Exception;
 
     long begin(int level);
+    long begin(int level, boolean optimistic);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
@@ -7,6 +7,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.ItemVisitor;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -19,6 +20,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    VisibilityMap vmap;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
@@ -28,6 +30,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.vmap = new VisibilityMap(dm.getPageNumber());
     }
 
     /**
@@ -62,7 +65,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
         try {
             // 数据对当前事务是否可见
-            if(Visibility.isVisible(tm, t, entry)) {
+            if(Visibility.isVisible(tm, t, entry) && !t.isDeletedBySelf(uid)) {
                 return entry.data();
             } else {
                 return null;
@@ -72,6 +75,153 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 读信息，不复制数据：版本可见时在数据项的读锁下用 visitor 访问数据部分
+     * @param xid   事务ID
+     * @param uid   Entry ID
+     * @param visitor
+     * @return  版本是否可见
+     * @throws Exception
+     */
+    @Override
+    public boolean read(long xid, long uid, ItemVisitor visitor) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(!Visibility.isVisible(tm, t, entry) || t.isDeletedBySelf(uid)) {
+                return false;
+            }
+            entry.visit(visitor);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 根据可见性映射判断 uid 所在页中的版本是否都对事务可见，不读取版本本身
+     * 返回 false 只表示无法确定，需要通过 read 读取
+     * @param xid   事务ID
+     * @param uid   Entry ID
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean isAllVisible(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        return vmap.isAllVisible(t, uid) && !t.isDeletedBySelf(uid);
+    }
+
+    /**
+     * 不做可见性判断，读取任意版本的数据，用于构建索引等需要看到所有版本的场景
+     * @param uid   Entry ID
+     * @return  数据项内容，不存在时返回 null
+     * @throws Exception
+     */
+    @Override
+    public byte[] readAnyVersion(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 判断一个版本是否已对所有事务不可见：插入它的事务已回滚，
+     * 或删除它的事务已提交且没有活跃的可重复读事务还能看到它。
+     * 这样的版本不会再被任何事务读到，可以从索引中清除
+     * @param uid   Entry ID
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean isGarbage(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(tm.isAborted(entry.getXmin())) {
+                return true;
+            }
+            long xmax = entry.getXmax();
+            if(xmax == 0 || !tm.isCommitted(xmax)) {
+                return false;
+            }
+            lock.lock();
+            try {
+                for(Transaction t : activeTransaction.values()) {
+                    // 与 Visibility.readRepeatable 相同：删除者晚于 t 开始或在 t 的快照中时，t 仍能看到该版本
+                    if(t.level != 0 && (xmax > t.xid || t.isInSnapshot(xmax))) {
+                        return false;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 原地修改数据项，不经过多版本控制，仅用于表、字段等元数据
+     * @param uid   Entry ID
+     * @param offset    数据部分内的偏移
+     * @param data  新的内容
+     * @throws Exception
+     */
+    @Override
+    public void updateInPlace(long uid, int offset, byte[] data) throws Exception {
+        vmap.modified(uid);
+        Entry entry = super.get(uid);
+        try {
+            entry.updateData(offset, data);
+        } finally {
+            entry.release();
+        }
+    }
+
     /**
      * 事务 xid 插入数据，返回dm中数据项uid
      * @param xid   事务ID
@@ -81,6 +231,19 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, 0, data);
+    }
+
+    /**
+     * 插入表 tableUid 的一条记录，记录只放入该表的页
+     * @param xid
+     * @param tableUid  0 表示不属于任何表
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long insert(long xid, long tableUid, byte[] data) throws Exception {
         lock.lock();
         // 获取 事务对象
         Transaction t = activeTransaction.get(xid);
@@ -94,7 +257,72 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         byte[] raw = Entry.wrapEntryRaw(xid, data);
 
         // 使用dm插入 Entry raw 并返回数据项 uid
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, tableUid, raw);
+        vmap.inserted(t, uid);
+        return uid;
+    }
+
+    /**
+     * 批量插入表 tableUid 的记录，dm 中插入日志只刷盘一次
+     * @param xid
+     * @param tableUid
+     * @param data
+     * @return  与 data 一一对应的 uid
+     * @throws Exception
+     */
+    @Override
+    public long[] insert(long xid, long tableUid, byte[][] data) throws Exception {
+        return insert(xid, tableUid, data, false);
+    }
+
+    /**
+     * 批量插入表 tableUid 的记录，记录装满新建的页，每页只记一条页镜像日志
+     * @param xid
+     * @param tableUid
+     * @param data
+     * @return  与 data 一一对应的 uid
+     * @throws Exception
+     */
+    @Override
+    public long[] insertPages(long xid, long tableUid, byte[][] data) throws Exception {
+        return insert(xid, tableUid, data, true);
+    }
+
+    private long[] insert(long xid, long tableUid, byte[][] data, boolean newPages) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        byte[][] raws = new byte[data.length][];
+        for(int i = 0; i < data.length; i ++) {
+            raws[i] = Entry.wrapEntryRaw(xid, data[i]);
+        }
+        long[] uids = newPages ? dm.insertPages(xid, tableUid, raws) : dm.insert(xid, tableUid, raws);
+        for(long uid : uids) {
+            vmap.inserted(t, uid);
+        }
+        return uids;
+    }
+
+    @Override
+    public int[] getPages(long tableUid) {
+        return dm.getPages(tableUid);
+    }
+
+    /**
+     * 按物理顺序访问页中所有版本的记录数据，不判断可见性
+     * 记录的数据部分写入后不再改变，可以在页面上直接求值，可见性由之后的 read 判断
+     * @param pgno
+     * @param visitor   收到的范围不含版本头
+     * @throws Exception
+     */
+    @Override
+    public void scanPage(int pgno, ItemVisitor visitor) throws Exception {
+        dm.scanPage(pgno, (uid, raw, start, end) -> visitor.visit(uid, raw, start+Entry.OF_DATA, end));
     }
 
     /**
@@ -106,6 +334,19 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
+        return delete(xid, 0, uid);
+    }
+
+    /**
+     * 删除表 tableUid 中的 Entry 数据项，行锁计入该表，超过阈值时升级为表锁
+     * @param xid   事务ID
+     * @param tableUid  数据项所属的表，为0时只加行锁
+     * @param uid   数据项ID
+     * @return      数据项是否被删除
+     * @throws Exception
+     */
+    @Override
+    public boolean delete(long xid, long tableUid, long uid) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -125,26 +366,18 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         }
         try {
-            // 缓存是否对当前事务可见
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
-            }
-            Lock l = null;
-            try {
-                // 试对数据项（由 uid 指定）加锁，同时与事务（由 xid 指定）建立持有关系。
-                l = lt.add(xid, uid);
-            } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                // 自动中断事务
-                internAbort(xid, true);
-                // 标记事务被自动中断
-                t.autoAborted = true;
-                throw t.err;
+            // 乐观事务只记录删除，提交时校验后再写入 xmax
+            if(t.optimistic) {
+                if(!Visibility.isVisible(tm, t, entry) || t.isDeletedBySelf(uid)) {
+                    return false;
+                }
+                t.writeSet.put(uid, tableUid);
+                return true;
             }
-            // 释放该锁
-            if(l != null) {
-                l.lock();
-                l.unlock();
+
+            // 获取排他锁，并确认数据项仍可被当前事务删除
+            if(!lockEntry(t, entry, tableUid, LockTable.EXCLUSIVE)) {
+                return false;
             }
 
             // 判断数据项是否被当前事务删除
@@ -152,14 +385,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 return false;
             }
 
-            // 发生版本跳跃时，当前事务回滚
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
-
+            vmap.modified(uid);
             entry.setXmax(xid);
             return true;
 
@@ -168,12 +394,136 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 对数据项加行锁，用于 SELECT ... FOR UPDATE / FOR SHARE 以及读-改-写
+     * 冲突的事务在锁上排队等待，而不是在之后的删除中因版本跳跃被中止
+     * @param xid   事务ID
+     * @param tableUid  数据项所属的表
+     * @param uid   数据项ID
+     * @param exclusive 是否加排他锁
+     * @return  加锁后数据项对当前事务是否仍然可见
+     * @throws Exception
+     */
+    @Override
+    public boolean lock(long xid, long tableUid, long uid, boolean exclusive) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            // 乐观事务不加锁，记录下来在提交时校验
+            if(t.optimistic) {
+                if(!Visibility.isVisible(tm, t, entry) || t.isDeletedBySelf(uid)) {
+                    return false;
+                }
+                t.lockSet.put(uid, tableUid);
+                return true;
+            }
+            if(!lockEntry(t, entry, tableUid, exclusive ? LockTable.EXCLUSIVE : LockTable.SHARED)) {
+                return false;
+            }
+            return entry.getXmax() != xid;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 以指定模式锁住数据项，必要时等待
+     * @return  加锁后数据项对事务是否可见
+     * @throws Exception 死锁或发生版本跳跃时自动中止事务并抛出异常
+     */
+    private boolean lockEntry(Transaction t, Entry entry, long tableUid, int mode) throws Exception {
+        long xid = t.xid;
+        // 缓存是否对当前事务可见
+        if(!Visibility.isVisible(tm, t, entry)) {
+            return false;
+        }
+
+        // 已持有足够强的表锁（如锁升级之后）时不再加行锁
+        if(tableUid == 0 || !lt.holds(xid, tableUid, mode)) {
+            if(tableUid != 0) {
+                // 先在表上加意向锁
+                acquire(t, tableUid, LockTable.intentionOf(mode), 0);
+            }
+            acquire(t, entry.getUid(), mode, tableUid);
+            if(tableUid != 0) {
+                lt.escalate(xid, tableUid);
+            }
+        }
+
+        // 发生版本跳跃时，当前事务回滚
+        if(Visibility.isVersionSkip(tm, t, entry)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+
+        // 读已提交下，等待期间数据项可能已被其他事务删除并提交
+        if(entry.getXmax() != xid && !Visibility.isVisible(tm, t, entry)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获取锁，必要时等待持有者释放
+     * @throws Exception 会造成死锁时自动中止事务并抛出异常
+     */
+    private void acquire(Transaction t, long uid, int mode, long tableUid) throws Exception {
+        Lock l = null;
+        try {
+            // 试对资源（由 uid 指定）加锁，同时与事务（由 xid 指定）建立持有关系。
+            l = lt.add(t.xid, uid, mode, tableUid);
+        } catch(Exception e) {
+            t.err = Error.ConcurrentUpdateException;
+            // 自动中断事务
+            internAbort(t.xid, true);
+            // 标记事务被自动中断
+            t.autoAborted = true;
+            throw t.err;
+        }
+        // 等待持有者释放该资源
+        if(l != null) {
+            l.lock();
+            l.unlock();
+        }
+    }
+
     @Override
     public long begin(int level) {
+        return begin(level, false);
+    }
+
+    /**
+     * 开启事务
+     * @param level 隔离级别
+     * @param optimistic    是否使用乐观并发控制：执行期间不加锁，删除缓存在写集合中，提交时统一校验
+     * @return  事务ID
+     */
+    @Override
+    public long begin(int level, boolean optimistic) {
         lock.lock();
         try {
             long xid = tm.begin(); // 开启事务，返回新事务ID
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction); // 创建事务对象
+            if(optimistic) {
+                t.setOptimistic();
+            }
             activeTransaction.put(xid, t); // 向活跃事务Map中添加该事务
             return xid;
         } finally {
@@ -197,6 +547,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
+        if(t.optimistic) {
+            validate(t);
+        }
+
         lock.lock();
         // 从活跃事务中释放该事务
         activeTransaction.remove(xid);
@@ -207,6 +561,64 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         // 提交事务
         tm.commit(xid);
+        vmap.finished(t, true);
+    }
+
+    /**
+     * 乐观事务提交前的校验：不等待地锁住读写集合中的记录，
+     * 确认这些记录没有被其他未中止的事务删除后，再写入缓存的删除
+     * @throws Exception 校验失败时自动中止事务并抛出异常
+     */
+    private void validate(Transaction t) throws Exception {
+        long xid = t.xid;
+        boolean ok = lockAll(xid, t.writeSet, LockTable.EXCLUSIVE)
+            && lockAll(xid, t.lockSet, LockTable.SHARED)
+            && unmodified(xid, t.writeSet.keySet())
+            && unmodified(xid, t.lockSet.keySet());
+        if(!ok) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        // 持有排他锁，其他事务无法再修改这些记录
+        for(long uid : t.writeSet.keySet()) {
+            vmap.modified(uid);
+            Entry entry = super.get(uid);
+            try {
+                entry.setXmax(xid);
+            } finally {
+                entry.release();
+            }
+        }
+    }
+
+    private boolean lockAll(long xid, Map<Long, Long> rows, int mode) {
+        for(Map.Entry<Long, Long> row : rows.entrySet()) {
+            long tableUid = row.getValue();
+            if(tableUid != 0 && !lt.tryAdd(xid, tableUid, LockTable.intentionOf(mode))) {
+                return false;
+            }
+            if(!lt.tryAdd(xid, row.getKey(), mode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean unmodified(long xid, Iterable<Long> uids) throws Exception {
+        for(long uid : uids) {
+            Entry entry = super.get(uid);
+            try {
+                long xmax = entry.getXmax();
+                if(xmax != 0 && xmax != xid && !tm.isAborted(xmax)) {
+                    return false;
+                }
+            } finally {
+                entry.release();
+            }
+        }
+        return true;
     }
 
     /**
@@ -238,6 +650,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lt.remove(xid);
         // 终止事务
         tm.abort(xid);
+        vmap.finished(t, false);
     }
 
     public void releaseEntry(Entry entry) {
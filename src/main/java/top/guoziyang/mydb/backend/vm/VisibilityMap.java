@@ -0,0 +1,113 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+
+/**
+ * 可见性映射，为每个数据页维护一个全部可见的提示
+ * 页中的版本都由已提交的事务插入、且都没有被删除时，页对在这些事务之后开始的事务全部可见，
+ * 这时可以不读取版本本身就确定其可见性，用于只读索引的查询。
+ *
+ * 提示只保存在内存中，并且是保守的：
+ * 1. 只跟踪本次启动后新建的页，之前的页可能含有回滚或删除留下的版本
+ * 2. 页中有版本被删除、被原地修改，或插入它的事务回滚后，该页不再是全部可见的
+ */
+public class VisibilityMap {
+
+    /**
+     * 一个页的状态
+     */
+    static class PageState {
+        int pending;    // 在该页插入过版本、尚未结束的事务数
+        long maxXid;    // 在该页插入过版本的已提交事务中最大的事务ID
+        boolean dirty;  // 页中可能有不可见的版本
+    }
+
+    private int bootPages;  // 启动时已有的页数
+    private Map<Integer, PageState> pages = new ConcurrentHashMap<>();
+
+    VisibilityMap(int bootPages) {
+        this.bootPages = bootPages;
+    }
+
+    private static int pgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    /**
+     * 事务 t 在 uid 处插入了一个版本
+     * @param t
+     * @param uid
+     */
+    void inserted(Transaction t, long uid) {
+        int pgno = pgno(uid);
+        PageState ps = pages.computeIfAbsent(pgno, k -> {
+            PageState s = new PageState();
+            s.dirty = pgno <= bootPages;
+            return s;
+        });
+        if(t.xid == TransactionManagerImpl.SUPER_XID) {
+            return;
+        }
+        if(t.insertedPages.add(pgno)) {
+            synchronized(ps) {
+                ps.pending ++;
+            }
+        }
+    }
+
+    /**
+     * uid 所在页中的版本被删除或修改
+     * @param uid
+     */
+    void modified(long uid) {
+        PageState ps = pages.get(pgno(uid));
+        if(ps != null) {
+            synchronized(ps) {
+                ps.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * 事务结束，在事务管理器中提交或回滚之后调用
+     * @param t
+     * @param committed
+     */
+    void finished(Transaction t, boolean committed) {
+        for(int pgno : t.insertedPages) {
+            PageState ps = pages.get(pgno);
+            synchronized(ps) {
+                ps.pending --;
+                if(committed) {
+                    ps.maxXid = Math.max(ps.maxXid, t.xid);
+                } else {
+                    ps.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 判断 uid 所在页中的版本是否都对事务 t 可见
+     * 读已提交下只要求插入者都已提交；可重复读下还要求插入者都早于 t 的快照，
+     * 即都在 t 开始之前结束
+     * @param t
+     * @param uid
+     * @return
+     */
+    boolean isAllVisible(Transaction t, long uid) {
+        PageState ps = pages.get(pgno(uid));
+        if(ps == null) {
+            return false;
+        }
+        synchronized(ps) {
+            if(ps.dirty || ps.pending > 0) {
+                return false;
+            }
+            return t.level == 0 || ps.maxXid < t.snapshotMin;
+        }
+    }
+}
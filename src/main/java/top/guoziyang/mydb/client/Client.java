@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.client;
 
+import java.util.function.Consumer;
+
 import top.guoziyang.mydb.transport.Package;
 import top.guoziyang.mydb.transport.Packager;
 
@@ -20,8 +22,34 @@ public class Client {
      * @throws Exception
      */
     public byte[] execute(byte[] stat) throws Exception {
+        return execute(stat, null);
+    }
+
+    /**
+     * 执行语句，较大的查询结果分段到达时依次交给 part
+     * @param stat
+     * @param part
+     * @return  结果的最后一段
+     * @throws Exception
+     */
+    public byte[] execute(byte[] stat, Consumer<byte[]> part) throws Exception {
         Package pkg = new Package(stat, null);
-        Package resPkg = rt.roundTrip(pkg);
+        Package resPkg = rt.roundTrip(pkg, part);
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        return resPkg.getData();
+    }
+
+    /**
+     * 执行本连接上 prepare 过的语句，只发送语句名和参数
+     * @param name
+     * @param args  依次对应 $1、$2 ...
+     * @return
+     * @throws Exception
+     */
+    public byte[] executePrepared(String name, String... args) throws Exception {
+        Package resPkg = rt.roundTrip(new Package(name, args));
         if(resPkg.getErr() != null) {
             throw resPkg.getErr();
         }
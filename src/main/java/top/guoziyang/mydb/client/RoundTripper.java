@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.client;
 
+import java.io.ByteArrayOutputStream;
+import java.util.function.Consumer;
+
 import top.guoziyang.mydb.transport.Package;
 import top.guoziyang.mydb.transport.Packager;
 
@@ -20,8 +23,37 @@ public class RoundTripper {
      * @throws Exception
      */
     public Package roundTrip(Package pkg) throws Exception {
+        return roundTrip(pkg, null);
+    }
+
+    /**
+     * 发送一个 pkg，阻塞接收响应 pkg，结果分段返回时依次把中间的段交给 part
+     * @param pkg
+     * @param part  为 null 时把各段拼接到最后的结果包中
+     * @return  最后的结果包或错误包
+     * @throws Exception
+     */
+    public Package roundTrip(Package pkg, Consumer<byte[]> part) throws Exception {
         packager.send(pkg);
-        return packager.receive();
+        ByteArrayOutputStream buf = null;
+        while(true) {
+            Package res = packager.receive();
+            if(!res.isPartial()) {
+                if(buf == null || res.getErr() != null) {
+                    return res;
+                }
+                buf.write(res.getData());
+                return new Package(buf.toByteArray(), null);
+            }
+            if(part != null) {
+                part.accept(res.getData());
+            } else {
+                if(buf == null) {
+                    buf = new ByteArrayOutputStream();
+                }
+                buf.write(res.getData());
+            }
+        }
     }
 
     public void close() throws Exception {
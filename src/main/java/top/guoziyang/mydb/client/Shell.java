@@ -28,8 +28,8 @@ public class Shell {
                     break;
                 }
                 try {
-                    // 执行 sql
-                    byte[] res = client.execute(statStr.getBytes());
+                    // 执行 sql，较大的查询结果边接收边输出
+                    byte[] res = client.execute(statStr.getBytes(), part -> System.out.print(new String(part)));
                     // 输出执行结果
                     System.out.println(new String(res));
                 } catch(Exception e) {
@@ -21,14 +21,25 @@ public class Error {
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
+    // im
+    public static final Exception UnsortedBulkLoadException = new RuntimeException("Bulk load input is not sorted!");
+    public static final Exception KeyTooLongException = new RuntimeException("Index key is too long!");
+    public static final Exception HashRangeScanException = new RuntimeException("Hash index only supports equality!");
+
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
     public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("Field already indexed!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception InvalidAggregateException = new RuntimeException("Invalid aggregate!");
+    public static final Exception InvalidJoinException = new RuntimeException("Invalid join!");
+    public static final Exception AmbiguousFieldException = new RuntimeException("Ambiguous field!");
+    public static final Exception CopyPathException = new RuntimeException("Copy path outside of copy directory!");
+    public static final Exception CsvNewlineException = new RuntimeException("CSV value contains a newline, use text format!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -40,6 +51,8 @@ public class Error {
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception PreparedNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception DuplicatedPreparedException = new RuntimeException("Duplicated prepared statement!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
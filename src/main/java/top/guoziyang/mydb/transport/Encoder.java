@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.transport;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
@@ -9,18 +11,36 @@ import top.guoziyang.mydb.common.Error;
 public class Encoder {
 
     /**
-     * 将pkg编码为字节数组，通过首字节判断是err还是data
+     * 将pkg编码为字节数组，通过首字节判断是err、data、执行预编译语句的请求还是结果的中间一段
+     * 执行预编译语句：[2][名字长度 short][名字][参数个数 short]，每个参数为 [长度 int][参数]
+     * 结果的中间一段：[3][data]，之后的 data 包或 err 包表示结果结束
      * @param pkg
      * @return
      */
     public byte[] encode(Package pkg) {
-        if(pkg.getErr() != null) {
+        if(pkg.getName() != null) {
+            byte[] name = pkg.getName().getBytes(StandardCharsets.UTF_8);
+            byte[][] args = new byte[pkg.getArgs().length][];
+            int size = 1 + 2 + name.length + 2;
+            for(int i = 0; i < args.length; i ++) {
+                args[i] = pkg.getArgs()[i].getBytes(StandardCharsets.UTF_8);
+                size += 4 + args[i].length;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.put((byte)2).putShort((short)name.length).put(name).putShort((short)args.length);
+            for(byte[] arg : args) {
+                buf.putInt(arg.length).put(arg);
+            }
+            return buf.array();
+        } else if(pkg.getErr() != null) {
             Exception err = pkg.getErr();
             String msg = "Intern server error!";
             if(err.getMessage() != null) {
                 msg = err.getMessage();
             }
             return Bytes.concat(new byte[]{1}, msg.getBytes());
+        } else if(pkg.isPartial()) {
+            return Bytes.concat(new byte[]{3}, pkg.getData());
         } else {
             return Bytes.concat(new byte[]{0}, pkg.getData());
         }
@@ -40,9 +60,29 @@ public class Encoder {
             return new Package(Arrays.copyOfRange(data, 1, data.length), null);
         } else if(data[0] == 1) {
             return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+        } else if(data[0] == 2) {
+            return decodeExecute(data);
+        } else if(data[0] == 3) {
+            return new Package(Arrays.copyOfRange(data, 1, data.length), null, true);
         } else {
             throw Error.InvalidPkgDataException;
         }
     }
 
+    private Package decodeExecute(byte[] data) throws Exception {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data, 1, data.length-1);
+            byte[] name = new byte[buf.getShort()];
+            buf.get(name);
+            String[] args = new String[buf.getShort()];
+            for(int i = 0; i < args.length; i ++) {
+                byte[] arg = new byte[buf.getInt()];
+                buf.get(arg);
+                args[i] = new String(arg, StandardCharsets.UTF_8);
+            }
+            return new Package(new String(name, StandardCharsets.UTF_8), args);
+        } catch(RuntimeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
 }
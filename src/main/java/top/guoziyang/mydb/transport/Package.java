@@ -6,12 +6,35 @@ package top.guoziyang.mydb.transport;
 public class Package {
     byte[] data;
     Exception err;
+    String name;        // 执行预编译语句的请求中的语句名，其他包为 null
+    String[] args;
+    boolean partial;    // 查询结果的中间一段，之后还有包，最后一个结果包或错误包表示结果结束
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    /**
+     * @param data
+     * @param err
+     * @param partial   是否为查询结果的中间一段
+     */
+    public Package(byte[] data, Exception err, boolean partial) {
+        this(data, err);
+        this.partial = partial;
+    }
+
+    /**
+     * 执行预编译语句的请求，只携带语句名和参数
+     * @param name
+     * @param args
+     */
+    public Package(String name, String[] args) {
+        this.name = name;
+        this.args = args;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -19,4 +42,16 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
 }
@@ -158,4 +158,123 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testInsertPagesRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestInsertPages");
+        DataManager dm0 = DataManager.create("/tmp/TestInsertPages", PageCache.PAGE_SIZE*30, tm0);
+        byte[][] data = new byte[300][];
+        for(int i = 0; i < data.length; i ++) {
+            data[i] = RandomUtil.randomBytes(100);
+        }
+        long committed = tm0.begin();
+        long[] uids0 = dm0.insertPages(committed, 1, data);
+        tm0.commit(committed);
+        long active = tm0.begin();
+        long[] uids1 = dm0.insertPages(active, 1, data);
+        // 多页，每页只有一条页镜像日志
+        assert dm0.getPages(1).length > 2;
+
+        // 不关闭直接重新打开，按日志恢复：已提交的页重做，未提交的页中每个数据项都被撤销
+        DataManager dm1 = DataManager.open("/tmp/TestInsertPages", PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < data.length; i ++) {
+            DataItem di = dm1.read(uids0[i]);
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data[i]);
+            di.release();
+            assert dm1.read(uids1[i]) == null;
+        }
+        dm1.close();
+
+        new File("/tmp/TestInsertPages.db").delete();
+        new File("/tmp/TestInsertPages.log").delete();
+        new File("/tmp/TestInsertPages.xid").delete();
+    }
+
+    @Test
+    public void testPartialUpdateRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestPartialUpdate");
+        DataManager dm0 = DataManager.create("/tmp/TestPartialUpdate", PageCache.PAGE_SIZE*10, tm0);
+        byte[] data = RandomUtil.randomBytes(100);
+        long xid = tm0.begin();
+        long uid = dm0.insert(xid, data);
+        tm0.commit(xid);
+
+        // 已提交和未提交的事务各修改一段，日志只记录修改的 8 字节
+        byte[] patch = RandomUtil.randomBytes(8);
+        long committed = tm0.begin();
+        DataItem di = dm0.read(uid);
+        di.before();
+        System.arraycopy(patch, 0, di.data().raw, di.data().start+10, 8);
+        di.after(committed, 10, 8);
+        di.release();
+        tm0.commit(committed);
+        long active = tm0.begin();
+        di = dm0.read(uid);
+        di.before();
+        System.arraycopy(RandomUtil.randomBytes(8), 0, di.data().raw, di.data().start+50, 8);
+        di.after(active, 50, 8);
+        di.release();
+
+        // 不关闭直接重新打开，已提交的修改重做，未提交的撤销
+        System.arraycopy(patch, 0, data, 10, 8);
+        DataManager dm1 = DataManager.open("/tmp/TestPartialUpdate", PageCache.PAGE_SIZE*10, tm0);
+        di = dm1.read(uid);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data);
+        di.release();
+        dm1.close();
+
+        new File("/tmp/TestPartialUpdate.db").delete();
+        new File("/tmp/TestPartialUpdate.log").delete();
+        new File("/tmp/TestPartialUpdate.xid").delete();
+    }
+
+    @Test
+    public void testChangesRecovery() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestChanges");
+        DataManager dm0 = DataManager.create("/tmp/TestChanges", PageCache.PAGE_SIZE*10, tm0);
+        byte[] data = RandomUtil.randomBytes(1000);
+        long xid = tm0.begin();
+        long uid = dm0.insert(xid, data);
+        tm0.commit(xid);
+
+        // 修改分散在三处，一条日志只记录变化的几段
+        long committed = tm0.begin();
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        for(int off : new int[]{0, 3, 500, 999}) {
+            sa.raw[sa.start+off] ^= 1;
+            data[off] ^= 1;
+        }
+        di.afterChanged(committed);
+        di.release();
+        tm0.commit(committed);
+        long active = tm0.begin();
+        di = dm0.read(uid);
+        di.before();
+        sa = di.data();
+        sa.raw[sa.start+10] ^= 1;
+        sa.raw[sa.start+900] ^= 1;
+        di.afterChanged(active);
+        di.release();
+        // 没有变化时不写日志
+        di = dm0.read(uid);
+        di.before();
+        di.afterChanged(active);
+        di.release();
+
+        DataManager dm1 = DataManager.open("/tmp/TestChanges", PageCache.PAGE_SIZE*10, tm0);
+        di = dm1.read(uid);
+        sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data);
+        di.release();
+        dm1.close();
+
+        new File("/tmp/TestChanges.db").delete();
+        new File("/tmp/TestChanges.log").delete();
+        new File("/tmp/TestChanges.xid").delete();
+    }
 }
@@ -51,6 +51,38 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public long[] insert(long xid, long owner, byte[][] data) throws Exception {
+        long[] uids = new long[data.length];
+        for(int i = 0; i < data.length; i ++) {
+            uids[i] = insert(xid, data[i]);
+        }
+        return uids;
+    }
+
+    @Override
+    public long[] insertPages(long xid, long owner, byte[][] data) throws Exception {
+        return insert(xid, owner, data);
+    }
+
+    @Override
+    public int getPageNumber() {
+        return 0;
+    }
+
+    @Override
+    public int[] getPages(long owner) {
+        return new int[0];
+    }
+
+    @Override
+    public void scanPage(int pgno, ItemVisitor visitor) throws Exception {}
+
     @Override
     public void close() {}
     
@@ -48,6 +48,16 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void after(long xid, int offset, int length) {
+        wLock.unlock();
+    }
+
+    @Override
+    public void afterChanged(long xid) {
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
@@ -71,6 +81,16 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -45,4 +46,26 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testBatchLog() {
+        Logger lg = Logger.create("/tmp/logger_batch_test");
+        lg.log("aaa".getBytes());
+        lg.log(Arrays.asList("bbb".getBytes(), "ccc".getBytes(), "ddd".getBytes()));
+        lg.log("eee".getBytes());
+        lg.close();
+
+        // 重新打开时校验全局 checksum，批量写入的日志与逐条写入的一样能依次读出
+        lg = Logger.open("/tmp/logger_batch_test");
+        lg.rewind();
+        for (String s : new String[]{"aaa", "bbb", "ccc", "ddd", "eee"}) {
+            byte[] log = lg.next();
+            assert log != null;
+            assert s.equals(new String(log));
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_batch_test.log").delete();
+    }
 }
@@ -23,4 +23,15 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testSelectLastInterval() {
+        PageIndex pIndex = new PageIndex();
+        // 最后一个区间中的页不一定放得下
+        pIndex.add(1, PageCache.PAGE_SIZE - 30);
+        assert pIndex.select(PageCache.PAGE_SIZE - 2) == null;
+        pIndex.add(2, PageCache.PAGE_SIZE - 2);
+        assert pIndex.select(PageCache.PAGE_SIZE - 2).pgno == 2;
+        assert pIndex.select(PageCache.PAGE_SIZE - 30).pgno == 1;
+    }
 }
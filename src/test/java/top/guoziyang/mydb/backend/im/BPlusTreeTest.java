@@ -1,7 +1,12 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -9,6 +14,8 @@ import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
 
 public class BPlusTreeTest {
     @Test
@@ -33,4 +40,585 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testRangeCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestRangeCursor", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+
+        RangeCursor cursor = tree.scan(100, 2500);
+        long expect = 100;
+        int batches = 0;
+        while(cursor.next()) {
+            batches ++;
+            assert cursor.size() <= Node.CAPACITY;
+            for(int i = 0; i < cursor.size(); i ++) {
+                assert cursor.batch()[i] == expect ++;
+            }
+        }
+        assert expect == 2501;
+        assert batches > 1;
+        assert !tree.scan(lim, Long.MAX_VALUE).next();
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestRangeCursor.db").delete();
+        assert new File("/tmp/TestRangeCursor.log").delete();
+    }
+
+    @Test
+    public void testReverseCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestReverseCursor", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 乱序插入，每个 key 重复两次
+        int lim = 6000;
+        List<Integer> order = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+        for(int i : order) {
+            tree.insert(i/2, i);
+        }
+        assertReverse(tree, null, true, null, true, lim-1, 0);
+        assertReverse(tree, Parser.long2Key(100), true, Parser.long2Key(2000), false, 3999, 200);
+        assertReverse(tree, Parser.long2Key(100), false, Parser.long2Key(2000), true, 4001, 202);
+
+        // 删除后叶子被合并，左指针随之更新
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 > 1) {
+                assert tree.delete(i/2, i);
+            }
+        }
+        assert !tree.retired.isEmpty();
+        RangeCursor cursor = tree.scanReverse(null, true, null, true);
+        List<Long> uids = new ArrayList<>();
+        while(cursor.next()) {
+            for(int i = 0; i < cursor.size(); i ++) {
+                long uid = cursor.batch()[i];
+                assert uid % 10 < 2 && (uids.isEmpty() || uid/2 <= uids.get(uids.size()-1)/2);
+                uids.add(uid);
+            }
+        }
+        assert uids.size() == lim/5 && uids.stream().distinct().count() == lim/5;
+
+        // 批量构建的树同样有左指针
+        BulkLoader loader = new BulkLoader(dm, 0.5);
+        for(int i = 0; i < lim; i ++) {
+            loader.add(i/2, i);
+        }
+        BPlusTree bulk = BPlusTree.load(loader.finish(), dm);
+        assertReverse(bulk, null, true, Parser.long2Key(1000), true, 2001, 0);
+
+        tree.close();
+        bulk.close();
+        dm.close();
+        assert new File("/tmp/TestReverseCursor.db").delete();
+        assert new File("/tmp/TestReverseCursor.log").delete();
+    }
+
+    /**
+     * 倒序读取 key 为 uid/2 的树，结果的 key 应从 from/2 递减到 to/2，且每个 uid 恰好出现一次
+     */
+    private void assertReverse(BPlusTree tree, byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive, long from, long to) throws Exception {
+        RangeCursor cursor = tree.scanReverse(low, lowInclusive, high, highInclusive).withKeys();
+        boolean[] seen = new boolean[(int)from+1];
+        long last = Long.MAX_VALUE;
+        int count = 0;
+        while(cursor.next()) {
+            for(int i = 0; i < cursor.size(); i ++) {
+                long uid = cursor.batch()[i];
+                assert uid >= to && uid <= from && !seen[(int)uid];
+                assert Parser.key2Long(cursor.keys()[i]) == uid/2 && uid/2 <= last;
+                seen[(int)uid] = true;
+                last = uid/2;
+                count ++;
+            }
+        }
+        assert count == from-to+1;
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+
+        // 每个 key 重复三次，重复的 key 会跨越叶子边界
+        int lim = 60000;
+        BulkLoader loader = new BulkLoader(dm, 0.1);
+        for(int i = 0; i < lim; i ++) {
+            loader.add(i/3, i);
+        }
+        long boot = loader.finish();
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        assert tree.root.level == 2;
+
+        for(int k = 0; k < lim/3; k ++) {
+            List<Long> uids = tree.search(k);
+            assert uids.size() == 3;
+            assert uids.get(0) == k*3;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE-1).size() == lim;
+
+        // 批量构建的树可以继续正常插入
+        for(int i = 0; i < 2000; i ++) {
+            tree.insert(lim + i, lim*3 + i);
+            tree.insert(i, lim*4 + i);
+        }
+        assert tree.search(lim + 1999).get(0) == lim*3 + 1999;
+        assert tree.search(1).size() == 4;
+        assert tree.searchRange(0, Long.MAX_VALUE-1).size() == lim + 4000;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestBulkLoad.db").delete();
+        assert new File("/tmp/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int workers = 8, lim = 2000;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        Exception[] err = new Exception[1];
+        for(int w = 0; w < workers; w ++) {
+            final int no = w;
+            new Thread(() -> {
+                try {
+                    // 交错插入，让各线程在同一批节点上竞争分裂
+                    for(int i = 0; i < lim; i ++) {
+                        long key = (long)i*workers + no;
+                        tree.insert(key, key);
+                        assert tree.search(key).size() == 1;
+                    }
+                } catch(Exception e) {
+                    err[0] = e;
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert err[0] == null;
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE-1);
+        assert uids.size() == workers*lim;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i;
+        }
+
+        // 重新加载后树高和内容保持一致
+        tree.close();
+        BPlusTree reloaded = BPlusTree.load(root, dm);
+        assert reloaded.root.level == tree.root.level;
+        assert reloaded.search(workers*lim-1).size() == 1;
+        reloaded.close();
+
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 重复两次
+        int lim = 8000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i/2, i);
+        }
+        int leaves = countLeaves(tree);
+
+        // 只留下每 10 个中的一个
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i/2, i);
+            }
+        }
+        assert !tree.delete(1, 1);
+        assert !tree.delete(lim, lim);
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE-1);
+        assert uids.size() == lim/10;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i*10;
+        }
+        assert tree.search(5).size() == 1;
+        assert tree.search(6).isEmpty();
+        // 节点被合并，叶子数量随数据减少
+        assert countLeaves(tree) < leaves/2;
+        assert !tree.retired.isEmpty();
+
+        // 死节点记在空闲列表中，重新加载后仍可复用
+        tree.close();
+        tree = BPlusTree.load(root, dm);
+        assert !tree.retired.isEmpty();
+
+        // 再次插入时复用被合并掉的节点
+        int retired = tree.retired.size();
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                tree.insert(i/2, i);
+            }
+        }
+        assert tree.retired.size() < retired;
+        assert tree.searchRange(0, Long.MAX_VALUE-1).size() == lim;
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.search(i/2).size() == 2;
+        }
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        assert new File("/tmp/TestTreeDelete.log").delete();
+    }
+
+    @Test
+    public void testRedistribute() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeRedistribute", PageCache.PAGE_SIZE*10, tm);
+
+        BulkLoader loader = new BulkLoader(dm, 0.8);
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            loader.add(i, i);
+        }
+        long root = loader.finish();
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 删空第一个叶子的大部分，它与右兄弟合并后放得下一个节点但超过 MERGE_LIMIT，重新均分
+        Node first = Node.loadNode(tree, firstLeaf(tree));
+        int n = first.getKeys().length;
+        first.release();
+        for(int i = 0; i < n-20; i ++) {
+            assert tree.delete(i, i);
+        }
+        first = Node.loadNode(tree, firstLeaf(tree));
+        assert first.getKeys().length > 20;
+        assert Node.usedSpace(first.raw) >= Node.UNDERFLOW_SPACE;
+        first.release();
+        assert !tree.retired.isEmpty();
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE-1);
+        assert uids.size() == lim-(n-20);
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == n-20+i;
+        }
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeRedistribute.db").delete();
+        assert new File("/tmp/TestTreeRedistribute.log").delete();
+    }
+
+    @Test
+    public void testCollapseRoot() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeCollapse", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 长 key 使扇出很小，几千个 key 就有三层
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(longKey(i), i);
+        }
+        int height = tree.root.level;
+        assert height >= 2;
+
+        // 删到只剩一个 key，根节点逐层收缩
+        for(int i = 1; i < lim; i ++) {
+            assert tree.delete(longKey(i), i);
+        }
+        assert tree.root.level < height;
+        assert tree.search(longKey(0)).equals(Collections.singletonList(0L));
+
+        // 重新加载后树高一致，之后仍能正常长高
+        int level = tree.root.level;
+        tree.close();
+        tree = BPlusTree.load(root, dm);
+        assert tree.root.level == level;
+        for(int i = 1; i < lim; i ++) {
+            tree.insert(longKey(i), i);
+        }
+        assert tree.root.level >= 2;
+        for(int i = 0; i < lim; i += 7) {
+            assert tree.search(longKey(i)).equals(Collections.singletonList((long)i));
+        }
+        assert tree.searchRange(longKey(0), longKey(lim)).size() == lim;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeCollapse.db").delete();
+        assert new File("/tmp/TestTreeCollapse.log").delete();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeRecovery", PageCache.PAGE_SIZE*10, tm);
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 顺序插入时每次只改动节点头部和末尾的一个槽，日志远小于整个节点
+        int lim = 20000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        assert new File("/tmp/TestTreeRecovery.log").length() < lim * 256L;
+        // 删除引起合并，被删的 key 分散在节点各处
+        for(int i = 0; i < lim; i ++) {
+            if(i % 7 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+
+        // 不关闭直接重新打开，从日志恢复
+        DataManager dm1 = DataManager.open("/tmp/TestTreeRecovery", PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree1 = BPlusTree.load(root, dm1);
+        List<Long> uids = tree1.searchRange(0, Long.MAX_VALUE-1);
+        assert uids.size() == (lim+6)/7;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i*7;
+        }
+        tree1.close();
+        dm1.close();
+        assert new File("/tmp/TestTreeRecovery.db").delete();
+        assert new File("/tmp/TestTreeRecovery.log").delete();
+    }
+
+    @Test
+    public void testDeleteConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDeleteConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int workers = 4, lim = 2000;
+        for(long key = 0; key < workers*lim; key ++) {
+            tree.insert(key, key);
+        }
+
+        // 一半线程删除偶数 key 并插入新的奇数 key，另一半线程同时做范围扫描
+        CountDownLatch cdl = new CountDownLatch(workers*2);
+        Exception[] err = new Exception[1];
+        for(int w = 0; w < workers; w ++) {
+            final int no = w;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < lim; i ++) {
+                        long key = (long)i*workers + no;
+                        if(key % 2 == 0) {
+                            assert tree.delete(key, key);
+                        } else {
+                            tree.insert(workers*lim + key, key);
+                        }
+                    }
+                } catch(Exception e) {
+                    err[0] = e;
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < 20; i ++) {
+                        // 奇数 key 不会被删除，扫描总能完整、有序地读到它们
+                        List<Long> uids = tree.searchRange(0, workers*lim-1);
+                        long odd = 1;
+                        for(long uid : uids) {
+                            if(uid % 2 == 1) {
+                                assert uid == odd;
+                                odd += 2;
+                            }
+                        }
+                        assert odd == workers*lim+1;
+                    }
+                } catch(Exception e) {
+                    err[0] = e;
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert err[0] == null;
+
+        List<Long> uids = tree.searchRange(0, workers*lim-1);
+        assert uids.size() == workers*lim/2;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i*2+1;
+        }
+        assert tree.searchRange(workers*lim, Long.MAX_VALUE-1).size() == workers*lim/2;
+        assert tree.active.isEmpty();
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeDeleteConcurrent.db").delete();
+        assert new File("/tmp/TestTreeDeleteConcurrent.log").delete();
+    }
+
+    @Test
+    public void testStringKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeStringKeys", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 共享长前缀、长度不一的 key，超出 Inline 的部分落在变长区
+        String prefix = "https://example.com/users/";
+        int lim = 3000;
+        List<Integer> order = new ArrayList<>();
+        for(int i = 0; i < lim; i ++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+        for(int i : order) {
+            tree.insert(Parser.str2Key(prefix + key(i)), i);
+        }
+
+        for(int i = 0; i < lim; i += 7) {
+            List<Long> uids = tree.search(Parser.str2Key(prefix + key(i)));
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        assert tree.search(Parser.str2Key(prefix)).isEmpty();
+
+        // 按字节序升序返回，开区间不含端点
+        RangeCursor cursor = tree.scan(Parser.str2Key(prefix + key(100)), false, Parser.str2Key(prefix + key(900)), false);
+        long expect = 101;
+        while(cursor.next()) {
+            for(int i = 0; i < cursor.size(); i ++) {
+                assert cursor.batch()[i] == expect ++;
+            }
+        }
+        assert expect == 900;
+        // 前缀 "x/1" 之后、"x/2" 之前的所有 key
+        assert tree.searchRange(Parser.str2Key(prefix + "1"), Parser.str2Key(prefix + "2")).size() == 1000;
+        assert tree.scan(Parser.str2Key("b"), Parser.str2Key("a")).next() == false;
+
+        // 前缀压缩后一个叶子装入的 key 远多于不压缩时
+        int leaves = countLeaves(tree);
+        int raw = (prefix.length() + 12 + Node.SLOT_SIZE) * lim;
+        assert leaves < raw / Node.NODE_SIZE;
+
+        try {
+            tree.insert(new byte[BPlusTree.MAX_KEY_SIZE+1], 0);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.KeyTooLongException;
+        }
+        assert tree.active.isEmpty();
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeStringKeys.db").delete();
+        assert new File("/tmp/TestTreeStringKeys.log").delete();
+    }
+
+    @Test
+    public void testAdaptiveHashIndex() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeAdaptiveHash", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+
+        byte[] hot = Parser.long2Key(2500);
+        for(int i = 0; i < AdaptiveHashIndex.HOT_PROBES; i ++) {
+            assert tree.search(2500).equals(Collections.singletonList(2500L));
+        }
+        assert tree.ahi.get(hot) != 0;
+        assert tree.ahi.get(Parser.long2Key(2501)) == 0;
+        assert tree.search(2500).equals(Collections.singletonList(2500L));
+
+        // 重复的 key 使所在叶子分裂，索引中的项被清除，查询结果不受影响
+        for(int i = 0; i < 1000; i ++) {
+            tree.insert(2500, lim + i);
+        }
+        assert tree.ahi.get(hot) == 0;
+        for(int i = 0; i < AdaptiveHashIndex.HOT_PROBES; i ++) {
+            assert tree.search(2500).size() == 1001;
+        }
+        assert tree.ahi.get(hot) != 0;
+
+        // 删除使叶子合并后仍能找到剩下的 key
+        for(int i = 0; i < 1000; i ++) {
+            assert tree.delete(2500, lim + i);
+        }
+        for(int i = 2000; i < 3000; i ++) {
+            if(i != 2500) assert tree.delete(i, i);
+        }
+        for(int i = 0; i < AdaptiveHashIndex.HOT_PROBES + 1; i ++) {
+            assert tree.search(2500).equals(Collections.singletonList(2500L));
+            assert tree.search(2499).isEmpty();
+        }
+        assert tree.searchRange(1999, 3000).equals(Arrays.asList(1999L, 2500L, 3000L));
+
+        dm.close();
+        assert new File("/tmp/TestTreeAdaptiveHash.db").delete();
+        assert new File("/tmp/TestTreeAdaptiveHash.log").delete();
+    }
+
+    private String key(int i) {
+        return String.format("%04d", i) + "-profile-" + i;
+    }
+
+    private byte[] longKey(int i) {
+        return Parser.str2Key(String.format("%04d", i) + String.join("", Collections.nCopies(40, "-padding")));
+    }
+
+    private long firstLeaf(BPlusTree tree) throws Exception {
+        long uid = tree.root.uid;
+        while(true) {
+            Node node = Node.loadNode(tree, uid);
+            boolean leaf = node.isLeaf();
+            long next = leaf ? 0 : node.searchNext(null, true).uid;
+            node.release();
+            if(leaf) return uid;
+            uid = next;
+        }
+    }
+
+    private int countLeaves(BPlusTree tree) throws Exception {
+        long uid = firstLeaf(tree);
+        int count = 1;
+        while(true) {
+            Node node = Node.loadNode(tree, uid);
+            long sibling = node.getSibling();
+            node.release();
+            if(sibling == 0) return count;
+            count ++;
+            uid = sibling;
+        }
+    }
 }
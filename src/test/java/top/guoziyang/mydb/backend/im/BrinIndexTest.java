@@ -0,0 +1,74 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+public class BrinIndexTest {
+    @Test
+    public void testBrinIndex() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBrinIndex", PageCache.PAGE_SIZE*10, tm);
+
+        long boot = BrinIndex.create(dm);
+        BrinIndex bi = BrinIndex.load(boot, dm);
+
+        // 第 pgno 页的 key 在 [pgno*10, pgno*10+9] 中递增，页数跨越多个目录段
+        int lim = BrinIndex.PAGES_PER_RANGE * BrinIndex.SEGMENT_SLOTS * 2;
+        int[] pages = new int[lim];
+        for(int pgno = 0; pgno < lim; pgno ++) {
+            pages[pgno] = pgno;
+            bi.add(pgno, Parser.long2Key(pgno*10L));
+            bi.add(pgno, Parser.long2Key(pgno*10L + 9));
+        }
+        // 乱序到达的 key 扩大所在段的范围
+        bi.add(3, Parser.long2Key(100000));
+
+        int[] res = bi.prune(pages, Parser.long2Key(50), true, Parser.long2Key(55), true);
+        assert Arrays.equals(res, new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+        res = bi.prune(pages, Parser.long2Key(79), false, Parser.long2Key(80), false);
+        assert Arrays.equals(res, new int[]{0, 1, 2, 3});
+        res = bi.prune(pages, Parser.long2Key(99999), true, null, false);
+        assert Arrays.equals(res, new int[]{0, 1, 2, 3});
+        res = bi.prune(pages, null, false, Parser.long2Key(0), true);
+        assert Arrays.equals(res, new int[]{0, 1, 2, 3});
+        bi.close();
+
+        // 重新加载后范围保持不变，没有记录的页被跳过
+        bi = BrinIndex.load(boot, dm);
+        res = bi.prune(new int[]{lim, lim+1}, null, false, null, false);
+        assert res.length == 0;
+        res = bi.prune(pages, Parser.long2Key(lim*10L-1), true, null, false);
+        assert res.length == 8 && res[7] == lim-1;
+
+        // 超长的 key 被截断后仍不会跳过含有它的段
+        byte[] low = Parser.str2Key("a".repeat(100));
+        byte[] high = Parser.str2Key("b".repeat(100));
+        bi.add(lim, low);
+        bi.add(lim, high);
+        res = bi.prune(new int[]{lim}, high, true, high, true);
+        assert res.length == 1;
+        res = bi.prune(new int[]{lim}, low, true, low, true);
+        assert res.length == 1;
+        res = bi.prune(new int[]{lim}, Parser.str2Key("c"), true, null, false);
+        assert res.length == 0;
+
+        // 目录覆盖不到的页不做摘要，总是保留
+        int far = BrinIndex.MAX_RANGES * BrinIndex.PAGES_PER_RANGE;
+        bi.add(far, Parser.long2Key(1));
+        res = bi.prune(new int[]{lim+1, far, far+1}, Parser.long2Key(5), true, Parser.long2Key(6), true);
+        assert Arrays.equals(res, new int[]{far, far+1});
+        bi.close();
+        dm.close();
+
+        assert new File("/tmp/TestBrinIndex.db").delete();
+        assert new File("/tmp/TestBrinIndex.log").delete();
+    }
+}
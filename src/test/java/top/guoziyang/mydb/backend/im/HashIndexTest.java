@@ -0,0 +1,144 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+public class HashIndexTest {
+    @Test
+    public void testHashIndex() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashIndex", PageCache.PAGE_SIZE*10, tm);
+
+        long boot = HashIndex.create(dm);
+        HashIndex hi = HashIndex.load(boot, dm);
+
+        // 足够多的键使桶分裂、目录翻倍
+        int lim = 20000;
+        for(int i = 0; i < lim; i ++) {
+            hi.insert(i, i);
+        }
+        // 重复键
+        hi.insert(7, lim);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = hi.search(i);
+            if(i == 7) {
+                assert uids.size() == 2;
+            } else {
+                assert uids.size() == 1;
+                assert uids.get(0) == i;
+            }
+        }
+        assert hi.search(lim).isEmpty();
+
+        assert hi.delete(7, lim);
+        assert !hi.delete(7, lim);
+        assert hi.search(7).size() == 1;
+
+        IndexCursor cursor = hi.scan(Parser.long2Key(100));
+        int count = 0;
+        while(cursor.next()) {
+            for(int i = 0; i < cursor.size(); i ++) {
+                assert cursor.batch()[i] == 100;
+                count ++;
+            }
+        }
+        assert count == 1;
+
+        cursor = hi.scanAll();
+        count = 0;
+        while(cursor.next()) {
+            count += cursor.size();
+        }
+        assert count == lim;
+        hi.close();
+
+        // 重新加载后目录保持不变
+        hi = HashIndex.load(boot, dm);
+        for(int i = 0; i < lim; i += 97) {
+            assert hi.search(i).get(0) == i;
+        }
+        hi.close();
+        dm.close();
+
+        assert new File("/tmp/TestHashIndex.db").delete();
+        assert new File("/tmp/TestHashIndex.log").delete();
+    }
+
+    @Test
+    public void testSplitCrash() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashSplit", PageCache.PAGE_SIZE*10, tm);
+        long boot = HashIndex.create(dm);
+        HashIndex hi = HashIndex.load(boot, dm);
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            hi.insert(i, i);
+        }
+
+        // 手动执行分裂的前两步：写入新桶链、切换目录，在重写旧桶链之前崩溃
+        long head = hi.bucketOf(HashIndex.hash(Parser.long2Key(0)));
+        List<HashIndex.Item> items = new ArrayList<>();
+        for(long bucket = head; bucket != 0; ) {
+            bucket = hi.readBucket(bucket, items);
+        }
+        int l = hi.localDepth(head);
+        if(l == hi.globalDepth) {
+            hi.doubleDirectory();
+        }
+        List<HashIndex.Item> move = new ArrayList<>();
+        for(HashIndex.Item it : items) {
+            if((it.hash >>> l & 1) == 1) {
+                move.add(it);
+            }
+        }
+        assert !move.isEmpty();
+        int pattern = (int)(items.get(0).hash & ((1L << l) - 1));
+        hi.setSlots(pattern | (1 << l), 1 << (l+1), hi.writeChain(move, l+1));
+
+        // 不关闭直接重新打开，从日志恢复
+        DataManager dm1 = DataManager.open("/tmp/TestHashSplit", PageCache.PAGE_SIZE*10, tm);
+        HashIndex h1 = HashIndex.load(boot, dm1);
+        checkAll(h1, lim);
+        // 继续插入，旧桶链再次分裂时补完中断的分裂
+        for(int i = lim; i < lim*3; i ++) {
+            h1.insert(i, i);
+        }
+        checkAll(h1, lim*3);
+        assert h1.localDepth(head) > l;
+        h1.close();
+        dm1.close();
+
+        assert new File("/tmp/TestHashSplit.db").delete();
+        assert new File("/tmp/TestHashSplit.log").delete();
+    }
+
+    /**
+     * 每个 key 都能找到且只有一个，全表扫描没有重复
+     */
+    private void checkAll(HashIndex hi, int lim) throws Exception {
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = hi.search(i);
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+        Set<Long> seen = new HashSet<>();
+        IndexCursor cursor = hi.scanAll();
+        while(cursor.next()) {
+            for(int i = 0; i < cursor.size(); i ++) {
+                assert seen.add(cursor.batch()[i]);
+            }
+        }
+        assert seen.size() == lim;
+    }
+}
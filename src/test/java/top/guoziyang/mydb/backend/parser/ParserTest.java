@@ -7,9 +7,13 @@ import com.google.gson.Gson;
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.parser.statement.Begin;
+import top.guoziyang.mydb.backend.parser.statement.Copy;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Create;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Execute;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Prepare;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.Update;
@@ -29,6 +33,46 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateComposite() throws Exception {
+        String stat = "create table event tenant int64, ts int64, name string (index name (tenant, ts) (id))";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(create.index, new String[]{"name", "id"});
+        assert create.compositeIndex.length == 1;
+        assert Arrays.equals(create.compositeIndex[0], new String[]{"tenant", "ts"});
+    }
+
+    @Test
+    public void testCreateInclude() throws Exception {
+        String stat = "create table event tenant int64, ts int64, name string (index (tenant, ts) include (name) (ts) include (tenant) name)";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(create.index, new String[]{"name"});
+        assert create.compositeIndex.length == 2;
+        assert Arrays.equals(create.compositeIndex[0], new String[]{"tenant", "ts"});
+        assert Arrays.equals(create.compositeInclude[0], new String[]{"name"});
+        assert Arrays.equals(create.compositeIndex[1], new String[]{"ts"});
+        assert Arrays.equals(create.compositeInclude[1], new String[]{"tenant"});
+    }
+
+    @Test
+    public void testCreateUsingHash() throws Exception {
+        String stat = "create table kv k int64, v string, w int32 (index k using hash (v, w) w using btree)";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(create.index, new String[]{"k", "w"});
+        assert Arrays.equals(create.indexType, new String[]{"hash", "btree"});
+        assert create.compositeIndex.length == 1;
+
+        stat = "create index on kv(v) using hash";
+        CreateIndex createIndex = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert createIndex.indexType.equals("hash");
+        stat = "create index on kv(v)";
+        createIndex = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert createIndex.indexType.equals("btree");
+        stat = "create index on kv(w) using brin";
+        createIndex = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert createIndex.indexType.equals("brin");
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -45,6 +89,25 @@ public class ParserTest {
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
+
+        stat = "begin optimistic";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isOptimistic && begin.isRepeatableRead;
+
+        stat = "begin optimistic isolation level read committed";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isOptimistic && !begin.isRepeatableRead;
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        String stat = "create index on student(name)";
+        Object res = Parser.Parse(stat.getBytes());
+        CreateIndex createIndex = (CreateIndex)res;
+        assert "student".equals(createIndex.tableName);
+        assert "name".equals(createIndex.fieldName);
     }
 
     @Test
@@ -71,6 +134,74 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testMultiRowInsert() throws Exception {
+        String stat = "insert into student values (5, \"Guo Ziyang\", 22), (6, Li, 23)";
+        Insert insert = (Insert)Parser.Parse(stat.getBytes());
+        assert insert.values.length == 2;
+        assert Arrays.equals(insert.values[0], new String[]{"5", "Guo Ziyang", "22"});
+        assert Arrays.equals(insert.values[1], new String[]{"6", "Li", "23"});
+
+        insert = (Insert)Parser.Parse("insert into student values 5 Guo 22".getBytes());
+        assert insert.values.length == 1 && insert.values[0].length == 3;
+
+        for (String bad : new String[]{"insert into student values (5, 6", "insert into student values (5 6)",
+                "insert into student values (5), ", "insert into student values ()"}) {
+            try {
+                Parser.Parse(bad.getBytes());
+                assert false;
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        Copy copy = (Copy)Parser.Parse("copy student from '/tmp/a b.csv' csv".getBytes());
+        assert copy.tableName.equals("student") && copy.from && copy.csv;
+        assert copy.path.equals("/tmp/a b.csv");
+        copy = (Copy)Parser.Parse("copy student to \"/tmp/out.txt\"".getBytes());
+        assert !copy.from && !copy.csv && copy.path.equals("/tmp/out.txt");
+        try {
+            Parser.Parse("copy student into '/tmp/a.csv'".getBytes());
+            assert false;
+        } catch (Exception e) {
+        }
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        Prepare prepare = (Prepare)Parser.Parse("prepare q as select name from student where id > $1 and id < $2".getBytes());
+        assert prepare.name.equals("q") && prepare.params == 2;
+        Select read = (Select)Parser.Bind(prepare.statement, new String[]{"3", "'a b'"});
+        assert read.where.singleExp1.value.equals("3") && read.where.singleExp2.value.equals("'a b'");
+        assert ((Select)prepare.statement).where.singleExp1.value.equals("$1");
+
+        prepare = (Prepare)Parser.Parse("prepare ins as insert into student values ($1, $2), ($2, 1)".getBytes());
+        Insert insert = (Insert)Parser.Bind(prepare.statement, new String[]{"x", "y"});
+        assert Arrays.deepEquals(insert.values, new String[][]{{"x", "y"}, {"y", "1"}});
+        prepare = (Prepare)Parser.Parse("prepare upd as update student set age = $1 where id = $2".getBytes());
+        Update update = (Update)Parser.Bind(prepare.statement, new String[]{"20", "5"});
+        assert update.value.equals("20") && update.where.singleExp1.value.equals("5");
+
+        Execute execute = (Execute)Parser.Parse("execute q(1, 'x y')".getBytes());
+        assert execute.name.equals("q") && Arrays.equals(execute.args, new String[]{"1", "x y"});
+        execute = (Execute)Parser.Parse("execute q".getBytes());
+        assert execute.args.length == 0;
+
+        // 参数只能出现在值的位置
+        for(String bad : new String[]{"prepare q as select * from $1", "prepare q as select $1 from student",
+                "prepare q as select * from student where id = $0", "prepare q as begin",
+                "prepare q as select * from student where id = '$1'",
+                "prepare q as select * from student where id > $2"}) {
+            try {
+                Parser.Parse(bad.getBytes());
+                assert false;
+            } catch (Exception e) {
+            }
+        }
+    }
+
     @Test
     public void testDelete() throws Exception {
         String stat = "delete from student where name = \"Guo Ziyang\"";
@@ -103,4 +234,63 @@ public class ParserTest {
         System.out.println(gson.toJson(update));
         System.out.println("======================");
     }
+
+    @Test
+    public void testReadForUpdate() throws Exception {
+        String stat = "select * from student where id = 1 for update";
+        Select select = (Select)Parser.Parse(stat.getBytes());
+        assert select.forUpdate && !select.forShare;
+        assert "".equals(select.where.logicOp);
+
+        stat = "select * from student where id > 1 and id < 4 for share";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert select.forShare && !select.forUpdate;
+        assert "and".equals(select.where.logicOp);
+
+        stat = "select * from student for update";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert select.forUpdate && select.where == null;
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        String stat = "select dept, count(*), sum(amount) from sale where amount > 1 group by dept";
+        Select select = (Select)Parser.Parse(stat.getBytes());
+        assert select.funcs[0] == null && "count".equals(select.funcs[1]) && "sum".equals(select.funcs[2]);
+        assert "*".equals(select.fields[1]) && "amount".equals(select.fields[2]);
+        assert select.where != null && select.groupBy.length == 1 && "dept".equals(select.groupBy[0]);
+
+        stat = "select max(id) from student";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert "max".equals(select.funcs[0]) && select.groupBy == null;
+    }
+
+    @Test
+    public void testOrderByLimit() throws Exception {
+        String stat = "select * from event where ts > 1 order by ts desc limit 50 offset 10";
+        Select select = (Select)Parser.Parse(stat.getBytes());
+        assert "ts".equals(select.orderBy) && select.desc;
+        assert select.limit == 50 && select.offset == 10 && select.where != null;
+
+        stat = "select id from student order by name";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert "name".equals(select.orderBy) && !select.desc && select.limit == -1;
+
+        stat = "select id from student limit 5 for update";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert select.orderBy == null && select.limit == 5 && select.forUpdate;
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        String stat = "select emp.name, dept.dname from emp left join dept on emp.did = dept.id where emp.sal > 10";
+        Select select = (Select)Parser.Parse(stat.getBytes());
+        assert "emp".equals(select.tableName) && "dept".equals(select.join.tableName) && select.join.left;
+        assert "emp.did".equals(select.join.leftField) && "dept.id".equals(select.join.rightField);
+        assert "emp.name".equals(select.fields[0]) && "emp.sal".equals(select.where.singleExp1.field);
+
+        stat = "select * from a inner join b on x = y";
+        select = (Select)Parser.Parse(stat.getBytes());
+        assert !select.join.left && select.where == null;
+    }
 }
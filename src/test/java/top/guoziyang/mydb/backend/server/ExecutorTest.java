@@ -75,4 +75,727 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testCreateIndexOnline() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table idx_table id int32, v int64 (index id)".getBytes());
+        int lim = 3000;
+        for (int i = 0; i < lim; i++) {
+            exe.execute(("insert into idx_table values " + i + " " + (i % 100)).getBytes());
+        }
+        // 构建索引的同时另一个线程继续插入
+        Executor other = new Executor(exe.tbm);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = lim; i < lim + 500; i++) {
+                    other.execute(("insert into idx_table values " + i + " " + (i % 100)).getBytes());
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        exe.execute("create index on idx_table(v)".getBytes());
+        writer.join();
+
+        String res = new String(exe.execute("select * from idx_table where v = 7".getBytes()));
+        assert res.split("\n").length == 35;
+        assert res.contains("[3407, 7]");
+
+        try {
+            exe.execute("create index on idx_table(v)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e.getMessage().equals("Field already indexed!");
+        }
+
+        // 只有组合索引的表也能建索引：直接扫描数据页
+        exe.execute("create table c a int32, b int32 (index (a, b))".getBytes());
+        exe.execute("insert into c values 1 10".getBytes());
+        exe.execute("insert into c values 2 20".getBytes());
+        exe.execute("insert into c values 3 20".getBytes());
+        exe.execute("create index on c (b)".getBytes());
+        res = new String(exe.execute("select a from c where b = 20".getBytes()));
+        assert res.equals("[2]\n[3]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testStringIndexRange() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table str_table name string, id int32 (index name id)".getBytes());
+        String[] names = {"alice", "bob", "bobby", "carol", "dave", "eve"};
+        for (int i = 0; i < names.length; i++) {
+            exe.execute(("insert into str_table values " + names[i] + " " + i).getBytes());
+        }
+
+        String res = new String(exe.execute("select * from str_table where name > bob and name < dave".getBytes()));
+        assert res.equals("[bobby, 2]\n[carol, 3]\n");
+        res = new String(exe.execute("select * from str_table where name = bob".getBytes()));
+        assert res.equals("[bob, 1]\n");
+        res = new String(exe.execute("select * from str_table where id > 1 and id < 4".getBytes()));
+        assert res.equals("[bobby, 2]\n[carol, 3]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table event tenant string, ts int64, v int32 (index v (tenant, ts))".getBytes());
+        String[] tenants = {"a", "ab", "b"};
+        for (int i = 0; i < 60; i++) {
+            exe.execute(("insert into event values " + tenants[i % 3] + " " + (i / 3) + " " + i).getBytes());
+        }
+
+        // 首列等值加第二列范围，只扫描该租户的一段
+        String res = new String(exe.execute("select * from event where tenant = a and ts > 16".getBytes()));
+        assert res.equals("[a, 17, 51]\n[a, 18, 54]\n[a, 19, 57]\n");
+        res = new String(exe.execute("select * from event where ts < 2 and tenant = ab".getBytes()));
+        assert res.equals("[ab, 0, 1]\n[ab, 1, 4]\n");
+        res = new String(exe.execute("select * from event where tenant = ab and ts = 5".getBytes()));
+        assert res.equals("[ab, 5, 16]\n");
+        // 只有首列条件时按前缀扫描，"a" 不会匹配到 "ab"
+        res = new String(exe.execute("select * from event where tenant = a".getBytes()));
+        assert res.split("\n").length == 20 && !res.contains("ab");
+
+        // 更新和删除同样经过组合索引
+        exe.execute("update event set ts = 100 where tenant = b and ts = 0".getBytes());
+        res = new String(exe.execute("select * from event where tenant = b and ts > 19".getBytes()));
+        assert res.equals("[b, 100, 2]\n");
+        exe.execute("delete from event where tenant = b and ts > 19".getBytes());
+        res = new String(exe.execute("select * from event where tenant = b".getBytes()));
+        assert res.split("\n").length == 19;
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCoveringIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table metric host string, ts int64, v int32, note string (index ts (host, ts) include (v))".getBytes());
+        for (int i = 0; i < 30; i++) {
+            exe.execute(("insert into metric values h" + (i % 2) + " " + i + " " + (i * 10) + " n" + i).getBytes());
+        }
+
+        // 查询的字段都在索引中，直接从索引读取
+        String res = new String(exe.execute("select ts, v from metric where host = h1 and ts > 24".getBytes()));
+        assert res.equals("[25, 250]\n[27, 270]\n[29, 290]\n");
+        res = new String(exe.execute("select v, host from metric where host = h0 and ts < 3".getBytes()));
+        assert res.equals("[0, h0]\n[20, h0]\n");
+        // 未被覆盖的字段仍读取记录
+        res = new String(exe.execute("select note from metric where host = h0 and ts < 3".getBytes()));
+        assert res.equals("[n0]\n[n2]\n");
+
+        // 更新和删除后旧版本不再从索引中返回
+        exe.execute("update metric set v = 7 where host = h1 and ts = 29".getBytes());
+        exe.execute("delete from metric where host = h1 and ts = 27".getBytes());
+        res = new String(exe.execute("select ts, v from metric where host = h1 and ts > 24".getBytes()));
+        assert res.equals("[25, 250]\n[29, 7]\n");
+
+        // 未提交的插入对其他事务不可见
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into metric values h1 40 400 n40".getBytes());
+        res = new String(exe.execute("select ts, v from metric where host = h1 and ts > 28".getBytes()));
+        assert res.equals("[29, 7]\n");
+        other.execute("abort".getBytes());
+        res = new String(exe.execute("select ts, v from metric where host = h1 and ts > 28".getBytes()));
+        assert res.equals("[29, 7]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+    @Test
+    public void testHashIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table kv k int64, v string, w int32 (index k using hash w)".getBytes());
+        int lim = 2000;
+        for (int i = 0; i < lim; i++) {
+            exe.execute(("insert into kv values " + i + " v" + i + " " + (i % 10)).getBytes());
+        }
+
+        String res = new String(exe.execute("select * from kv where k = 1234".getBytes()));
+        assert res.equals("[1234, v1234, 4]\n");
+        exe.execute("update kv set v = x where k = 1234".getBytes());
+        exe.execute("delete from kv where k = 1235".getBytes());
+        res = new String(exe.execute("select v from kv where k = 1234".getBytes()));
+        assert res.equals("[x]\n");
+        res = new String(exe.execute("select v from kv where k = 1235".getBytes()));
+        assert res.equals("");
+
+        // 哈希索引不支持范围查询，改为顺序扫描
+        res = new String(exe.execute("select v from kv where k > 1996".getBytes()));
+        assert res.equals("[v1997]\n[v1998]\n[v1999]\n");
+
+        // 在线构建哈希索引
+        exe.execute("create index on kv(v) using hash".getBytes());
+        res = new String(exe.execute("select k from kv where v = v77".getBytes()));
+        assert res.equals("[77]\n");
+        res = new String(exe.execute("select k from kv where v = x".getBytes()));
+        assert res.equals("[1234]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+    @Test
+    public void testHeapScan() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table emp id int32, name string, age int32 (index id)".getBytes());
+        exe.execute("create table other id int32, age int32 (index id)".getBytes());
+        for (int i = 0; i < 500; i++) {
+            exe.execute(("insert into emp values " + i + " n" + i + " " + (20 + i % 30)).getBytes());
+            // 另一张表的记录不会出现在 emp 的页中
+            exe.execute(("insert into other values " + i + " 30").getBytes());
+        }
+
+        // 条件列没有索引，顺序扫描
+        String res = new String(exe.execute("select id from emp where age = 30".getBytes()));
+        assert res.split("\n").length == 17;
+        assert res.startsWith("[10]\n[40]\n");
+        res = new String(exe.execute("select id from emp where name = n7 or age = 49".getBytes()));
+        assert res.startsWith("[7]\n[29]\n[59]\n");
+        // and 的一侧走索引，另一侧在记录上过滤
+        res = new String(exe.execute("select name from emp where age > 47 and id < 100".getBytes()));
+        assert res.equals("[n28]\n[n29]\n[n58]\n[n59]\n[n88]\n[n89]\n");
+
+        exe.execute("update emp set age = 99 where name = n5".getBytes());
+        res = new String(exe.execute("select id, age from emp where age > 90".getBytes()));
+        assert res.equals("[5, 99]\n");
+        exe.execute("delete from emp where age = 20".getBytes());
+        res = new String(exe.execute("select * from emp".getBytes()));
+        assert res.split("\n").length == 483;
+
+        // 未提交的插入对其他事务不可见
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into emp values 1000 x 99".getBytes());
+        res = new String(exe.execute("select id from emp where age = 99".getBytes()));
+        assert res.equals("[5]\n");
+        other.execute("commit".getBytes());
+        res = new String(exe.execute("select id from emp where age = 99".getBytes()));
+        assert res.equals("[5]\n[1000]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testBrinIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table log ts int64, msg string, lvl int32 (index ts using brin)".getBytes());
+        for (int i = 0; i < 2000; i++) {
+            exe.execute(("insert into log values " + (1000 + i) + " m" + i + " " + (i % 5)).getBytes());
+        }
+
+        String res = new String(exe.execute("select msg from log where ts > 2996".getBytes()));
+        assert res.equals("[m1997]\n[m1998]\n[m1999]\n");
+        res = new String(exe.execute("select msg from log where ts > 1499 and ts < 1503".getBytes()));
+        assert res.equals("[m500]\n[m501]\n[m502]\n");
+        res = new String(exe.execute("select msg from log where ts = 1003 or ts = 2998".getBytes()));
+        assert res.equals("[m3]\n[m1998]\n");
+        res = new String(exe.execute("select msg from log where ts < 1002 and lvl = 1".getBytes()));
+        assert res.equals("[m1]\n");
+        res = new String(exe.execute("select ts from log where ts > 5000".getBytes()));
+        assert res.equals("");
+
+        // 更新后的新版本写入其他页，所在段的范围随之扩大
+        exe.execute("update log set ts = 1 where msg = m1999".getBytes());
+        res = new String(exe.execute("select msg from log where ts < 1001".getBytes()));
+        assert res.equals("[m0]\n[m1999]\n");
+        exe.execute("delete from log where ts < 1010".getBytes());
+        res = new String(exe.execute("select msg from log where ts < 1011".getBytes()));
+        assert res.equals("[m10]\n");
+
+        // 在已有数据上创建块范围索引
+        exe.execute("create index on log(lvl) using brin".getBytes());
+        res = new String(exe.execute("select * from log where lvl > 3 and ts < 1020".getBytes()));
+        assert res.equals("[1014, m14, 4]\n[1019, m19, 4]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRowCodec() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table wide a string, b int32, c string, d int64, e int32 (index b)".getBytes());
+        for (int i = 0; i < 100; i++) {
+            exe.execute(("insert into wide values s" + i + " " + i + " zz" + i + " " + ((1L << 40) + i) + " " + (i * 2)).getBytes());
+        }
+        // 只取 string 之后的定长字段，以及位于中间的 string 字段
+        String res = new String(exe.execute("select e, c from wide where b = 7".getBytes()));
+        assert res.equals("[14, zz7]\n");
+        res = new String(exe.execute("select d from wide where c = zz42".getBytes()));
+        assert res.equals("[1099511627818]\n");
+        res = new String(exe.execute("select * from wide where e > 195".getBytes()));
+        assert res.equals("[s98, 98, zz98, 1099511627874, 196]\n[s99, 99, zz99, 1099511627875, 198]\n");
+
+        exe.execute("update wide set c = x where b = 3".getBytes());
+        res = new String(exe.execute("select a, c, d from wide where b = 3".getBytes()));
+        assert res.equals("[s3, x, 1099511627779]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table sale dept string, amount int32, qty int64 (index amount)".getBytes());
+        for (int i = 0; i < 100; i++) {
+            exe.execute(("insert into sale values d" + (i % 3) + " " + i + " " + (i * 2)).getBytes());
+        }
+        String res = new String(exe.execute("select count(*), sum(qty), avg(amount) from sale".getBytes()));
+        assert res.equals("[100, 9900, 49.5]\n");
+        // 只读取 amount 索引的叶子
+        res = new String(exe.execute("select min(amount), max(amount), count(*) from sale".getBytes()));
+        assert res.equals("[0, 99, 100]\n");
+        res = new String(exe.execute("select max(amount), min(amount) from sale where amount > 10 and amount < 43".getBytes()));
+        assert res.equals("[42, 11]\n");
+        res = new String(exe.execute("select count(*) from sale where amount > 200".getBytes()));
+        assert res.equals("[0]\n");
+        res = new String(exe.execute("select max(amount) from sale where amount > 200".getBytes()));
+        assert res.equals("[null]\n");
+
+        res = new String(exe.execute("select dept, count(*), min(qty) from sale where amount < 6 group by dept".getBytes()));
+        assert res.contains("[d0, 2, 0]\n") && res.contains("[d1, 2, 2]\n") && res.contains("[d2, 2, 4]\n");
+
+        // 删除的记录和其他事务未提交的记录都不可见
+        exe.execute("delete from sale where amount > 97".getBytes());
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into sale values d9 1000 0".getBytes());
+        res = new String(exe.execute("select max(amount), count(*) from sale".getBytes()));
+        assert res.equals("[97, 98]\n");
+        res = new String(other.execute("select max(amount) from sale".getBytes()));
+        assert res.equals("[1000]\n");
+        other.execute("abort".getBytes());
+
+        try {
+            exe.execute("select dept, count(*) from sale".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.InvalidAggregateException;
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testOrderByLimit() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table ev ts int64, host string, cost int32 (index ts)".getBytes());
+        for (int i = 0; i < 300; i++) {
+            exe.execute(("insert into ev values " + i + " h" + (i % 4) + " " + ((i * 37) % 300)).getBytes());
+        }
+        // 沿 ts 索引倒序读取，读够即停
+        String res = new String(exe.execute("select ts from ev order by ts desc limit 3".getBytes()));
+        assert res.equals("[299]\n[298]\n[297]\n");
+        res = new String(exe.execute("select ts, host from ev where ts < 100 order by ts desc limit 2 offset 1".getBytes()));
+        assert res.equals("[98, h2]\n[97, h1]\n");
+        res = new String(exe.execute("select ts from ev where ts > 10 and ts < 14 order by ts".getBytes()));
+        assert res.equals("[11]\n[12]\n[13]\n");
+
+        // cost 没有索引：前 k 条用堆，全部排序时逐条有序
+        res = new String(exe.execute("select cost, ts from ev order by cost desc limit 2".getBytes()));
+        assert res.equals("[299, 227]\n[298, 154]\n");
+        res = new String(exe.execute("select cost from ev where ts < 50 order by cost".getBytes()));
+        String[] lines = res.split("\n");
+        assert lines.length == 50;
+        for (int i = 1; i < lines.length; i++) {
+            assert Integer.parseInt(lines[i - 1].substring(1, lines[i - 1].length() - 1))
+                <= Integer.parseInt(lines[i].substring(1, lines[i].length() - 1));
+        }
+
+        res = new String(exe.execute("select host, count(*) from ev group by host order by host desc limit 2".getBytes()));
+        assert res.equals("[h3, 75]\n[h2, 75]\n");
+        res = new String(exe.execute("select host from ev limit 2".getBytes()));
+        assert res.split("\n").length == 2;
+
+        // 删除的记录和其他事务未提交的记录不计入 limit
+        exe.execute("delete from ev where ts > 297".getBytes());
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into ev values 1000 h9 0".getBytes());
+        res = new String(exe.execute("select ts from ev order by ts desc limit 2".getBytes()));
+        assert res.equals("[297]\n[296]\n");
+        other.execute("abort".getBytes());
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table dept id int32, dname string (index id)".getBytes());
+        exe.execute("create table emp name string, did int32, sal int32 (index sal)".getBytes());
+        exe.execute("insert into dept values 1 eng".getBytes());
+        exe.execute("insert into dept values 2 ops".getBytes());
+        exe.execute("insert into dept values 3 hr".getBytes());
+        for (int i = 0; i < 6; i++) {
+            exe.execute(("insert into emp values e" + i + " " + (i % 2 + 1) + " " + (i * 100)).getBytes());
+        }
+        // dept.id 有索引：索引嵌套循环连接，where 下推到外表 emp
+        String res = new String(exe.execute("select emp.name, dname from emp join dept on emp.did = dept.id where sal > 250 order by name".getBytes()));
+        assert res.equals("[e3, ops]\n[e4, eng]\n[e5, ops]\n");
+        // emp.did 没有索引：哈希连接；hr 没有员工，left join 时右表的列为 null
+        res = new String(exe.execute("select dname, name from dept left join emp on id = did order by name limit 3".getBytes()));
+        assert res.equals("[hr, null]\n[eng, e0]\n[ops, e1]\n");
+        // 条件涉及内表时在连接之后过滤
+        res = new String(exe.execute("select name from dept join emp on id = did where dname = ops order by name desc".getBytes()));
+        assert res.equals("[e5]\n[e3]\n[e1]\n");
+
+        try {
+            exe.execute("select name from dept join emp on dname = did".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.InvalidJoinException;
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testMultiRowInsert() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table kv k int32, v string, w int32 (index w (k, v))".getBytes());
+        // 600 行跨越多个批次，key 倒序到达
+        StringBuilder sb = new StringBuilder("insert into kv values ");
+        for (int i = 599; i >= 0; i--) {
+            sb.append("(").append(i).append(", \"v ").append(i).append("\", ").append(i % 7).append(")");
+            if (i > 0) {
+                sb.append(", ");
+            }
+        }
+        exe.execute(sb.toString().getBytes());
+        String res = new String(exe.execute("select count(*) from kv".getBytes()));
+        assert res.equals("[600]\n");
+        res = new String(exe.execute("select k, v from kv where k > 296 and k < 300".getBytes()));
+        assert res.equals("[297, v 297]\n[298, v 298]\n[299, v 299]\n");
+        res = new String(exe.execute("select count(*) from kv where w = 3".getBytes()));
+        assert res.equals("[86]\n");
+
+        // 多行插入随事务回滚
+        exe.execute("begin".getBytes());
+        exe.execute("insert into kv values (1000, a, 1), (1001, b, 1)".getBytes());
+        exe.execute("abort".getBytes());
+        res = new String(exe.execute("select count(*) from kv where k > 999".getBytes()));
+        assert res.equals("[0]\n");
+
+        // 任一行不合法时整条语句不写入
+        try {
+            exe.execute("insert into kv values (2000, a, 1), (2001, b)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.InvalidValuesException;
+        }
+        res = new String(exe.execute("select count(*) from kv where k > 999".getBytes()));
+        assert res.equals("[0]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testStreamResult() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table big id int32, pad string (index id)".getBytes());
+        String pad = "0123456789012345678901234567890123456789";
+        for (int from = 0; from < 5000; from += 500) {
+            StringBuilder sb = new StringBuilder("insert into big values ");
+            for (int i = from; i < from + 500; i++) {
+                sb.append(i > from ? ", (" : "(").append(i).append(", ").append(pad).append(")");
+            }
+            exe.execute(sb.toString().getBytes());
+        }
+        String all = new String(exe.execute("select id, pad from big".getBytes()));
+
+        // 设置 sink 后结果分段交出，execute 只返回最后一段
+        java.util.List<byte[]> parts = new java.util.ArrayList<>();
+        exe.setSink(parts::add);
+        byte[] tail = exe.execute("select id, pad from big".getBytes());
+        assert parts.size() > 1;
+        StringBuilder sb = new StringBuilder();
+        for (byte[] part : parts) {
+            assert part.length >= 1 << 16 && part[part.length - 1] == '\n';
+            sb.append(new String(part));
+        }
+        assert tail.length < 1 << 16;
+        assert sb.append(new String(tail)).toString().equals(all);
+        // 小结果仍然只有一段
+        parts.clear();
+        String res = new String(exe.execute("select pad from big where id = 7".getBytes()));
+        assert parts.isEmpty() && res.equals("[" + pad + "]\n");
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        Executor exe = testCreate();
+        exe.tbm.setCopyDir("/tmp");
+        exe.execute("create table log id int64, host string, cost int32 (index id cost host using hash (host, id))".getBytes());
+        // 超过一块，由多个线程分块解析
+        File csv = new File("/tmp/mydb_copy.csv");
+        try (java.io.PrintWriter out = new java.io.PrintWriter(csv, "UTF-8")) {
+            for (int i = 0; i < 40000; i++) {
+                String host = i % 10 == 0 ? "\"h, \"\"" + (i % 3) + "\"\"\"" : "h" + (i % 3);
+                out.print(i + "," + host + "," + (i % 1000) + (i % 2 == 0 ? "\r\n" : "\n"));
+            }
+        }
+        // 空表：直接写新页，索引在最后批量构建
+        String res = new String(exe.execute("copy log from '/tmp/mydb_copy.csv' csv".getBytes()));
+        assert res.equals("copy 40000");
+        res = new String(exe.execute("select count(*) from log".getBytes()));
+        assert res.equals("[40000]\n");
+        res = new String(exe.execute("select id, host from log where id > 29998 and id < 30002".getBytes()));
+        assert res.equals("[29999, h2]\n[30000, h, \"0\"]\n[30001, h1]\n");
+        res = new String(exe.execute("select count(*) from log where cost = 7".getBytes()));
+        assert res.equals("[40]\n");
+        res = new String(exe.execute("select count(*) from log where host = h1".getBytes()));
+        assert res.equals("[12000]\n");
+
+        // 导出后导入新表，文本格式往返
+        res = new String(exe.execute("copy log to '/tmp/mydb_copy.txt'".getBytes()));
+        assert res.equals("copy 40000");
+        exe.execute("create table t2 id int64, host string, cost int32 (index id)".getBytes());
+        exe.execute("begin".getBytes());
+        exe.execute("copy t2 from '/tmp/mydb_copy.txt'".getBytes());
+        // 提交之前对其他事务不可见
+        Executor other = new Executor(exe.tbm);
+        res = new String(other.execute("select count(*) from t2".getBytes()));
+        assert res.equals("[0]\n");
+        exe.execute("commit".getBytes());
+        res = new String(other.execute("select host, cost from t2 where id = 30010".getBytes()));
+        assert res.equals("[h, \"1\", 10]\n");
+
+        // 已有数据的表：逐批插入，值中的制表符转义
+        File txt = new File("/tmp/mydb_copy_small.txt");
+        try (java.io.PrintWriter out = new java.io.PrintWriter(txt, "UTF-8")) {
+            for (int i = 100000; i < 100500; i++) {
+                out.print(i + "\th\\tx\t5\n");
+            }
+        }
+        res = new String(exe.execute("copy log from '/tmp/mydb_copy_small.txt'".getBytes()));
+        assert res.equals("copy 500");
+        res = new String(exe.execute("select host from log where id = 100007".getBytes()));
+        assert res.equals("[h\tx]\n");
+        res = new String(exe.execute("select count(*) from log where cost = 5".getBytes()));
+        assert res.equals("[540]\n");
+        res = new String(exe.execute("select count(*) from log where host = h1".getBytes()));
+        assert res.equals("[12000]\n");
+
+        // 随事务回滚
+        exe.execute("begin".getBytes());
+        exe.execute("copy t2 from '/tmp/mydb_copy_small.txt'".getBytes());
+        exe.execute("abort".getBytes());
+        res = new String(exe.execute("select count(*) from t2 where id > 99999".getBytes()));
+        assert res.equals("[0]\n");
+
+        try {
+            exe.execute("copy t2 from '/tmp/mydb_copy_missing.txt'".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.FileNotExistsException;
+        }
+
+        // 相对路径按 COPY 目录解析，解析后不能离开 COPY 目录
+        res = new String(exe.execute("copy t2 to 'mydb_copy_t2.txt'".getBytes()));
+        assert res.equals("copy 40000");
+        assert new File("/tmp/mydb_copy_t2.txt").delete();
+        for (String path : new String[]{"/etc/passwd", "../etc/passwd", "/tmp/../etc/passwd"}) {
+            try {
+                exe.execute(("copy t2 from '" + path + "'").getBytes());
+                assert false;
+            } catch (Exception e) {
+                assert e == top.guoziyang.mydb.common.Error.CopyPathException;
+            }
+        }
+
+        // csv 导入不支持引号中的换行，导出时报错
+        exe.execute("create table t3 id int64, note string (index id)".getBytes());
+        try (java.io.PrintWriter out = new java.io.PrintWriter(txt, "UTF-8")) {
+            out.print("1\ta\\nb\n");
+        }
+        exe.execute("copy t3 from '/tmp/mydb_copy_small.txt'".getBytes());
+        try {
+            exe.execute("copy t3 to '/tmp/mydb_copy_t3.csv' csv".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.CsvNewlineException;
+        }
+        new File("/tmp/mydb_copy_t3.csv").delete();
+
+        txt.delete();
+        csv.delete();
+        new File("/tmp/mydb_copy.txt").delete();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table t id int32, name string, age int32 (index id)".getBytes());
+        String res = new String(exe.execute("prepare ins as insert into t values ($1, $2, $3)".getBytes()));
+        assert res.equals("prepare ins");
+        exe.execute("prepare sel as select name, age from t where id > $1 and id < $2".getBytes());
+        exe.execute("prepare upd as update t set age = $2 where id = $1".getBytes());
+        exe.execute("prepare del as delete from t where id = $1".getBytes());
+        for(int i = 0; i < 10; i ++) {
+            exe.executePrepared("ins", new String[]{String.valueOf(i), "n" + i, "1"});
+        }
+        exe.execute("execute ins(10, 'a b', 2)".getBytes());
+        res = new String(exe.execute("execute sel(7, 11)".getBytes()));
+        assert res.equals("[n8, 1]\n[n9, 1]\n[a b, 2]\n");
+        exe.executePrepared("upd", new String[]{"8", "30"});
+        exe.executePrepared("del", new String[]{"9"});
+        res = new String(exe.executePrepared("sel", new String[]{"7", "11"}));
+        assert res.equals("[n8, 30]\n[a b, 2]\n");
+
+        // 参数个数不对、语句不存在、重名
+        try {
+            exe.executePrepared("sel", new String[]{"1"});
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.InvalidValuesException;
+        }
+        try {
+            exe.execute("prepare sel as select * from t".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.DuplicatedPreparedException;
+        }
+        exe.execute("deallocate sel".getBytes());
+        try {
+            exe.execute("execute sel(1, 2)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.PreparedNotFoundException;
+        }
+
+        // 预编译的语句只属于本连接
+        Executor other = new Executor(exe.tbm);
+        try {
+            other.executePrepared("ins", new String[]{"1", "x", "1"});
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.PreparedNotFoundException;
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testOptimistic() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table acct id int32, bal int32 (index id)".getBytes());
+        exe.execute("insert into acct values 1 100".getBytes());
+        exe.execute("insert into acct values 2 200".getBytes());
+        Executor a = new Executor(tbm), b = new Executor(tbm);
+
+        // 两个乐观事务修改同一条记录，先提交的成功，后提交的在校验时中止
+        a.execute("begin optimistic".getBytes());
+        b.execute("begin optimistic".getBytes());
+        a.execute("update acct set bal = 101 where id = 1".getBytes());
+        b.execute("update acct set bal = 102 where id = 1".getBytes());
+        a.execute("commit".getBytes());
+        try {
+            b.execute("commit".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.ConcurrentUpdateException;
+        }
+        b.execute("abort".getBytes());
+        String res = new String(exe.execute("select bal from acct where id = 1".getBytes()));
+        assert res.equals("[101]\n");
+
+        // 悲观事务持有记录的排他锁时，乐观事务提交时加不上锁，直接中止而不等待
+        a.execute("begin optimistic".getBytes());
+        a.execute("update acct set bal = 201 where id = 2".getBytes());
+        b.execute("begin".getBytes());
+        b.execute("update acct set bal = 202 where id = 2".getBytes());
+        try {
+            a.execute("commit".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == top.guoziyang.mydb.common.Error.ConcurrentUpdateException;
+        }
+        a.execute("abort".getBytes());
+        b.execute("commit".getBytes());
+        res = new String(exe.execute("select bal from acct where id = 2".getBytes()));
+        assert res.equals("[202]\n");
+
+        // 没有冲突时提交写入 xmax：提交前其他事务看到旧值，提交后只剩新版本，重启后仍然如此
+        a.execute("begin optimistic".getBytes());
+        a.execute("update acct set bal = 300 where id = 2".getBytes());
+        res = new String(a.execute("select bal from acct where id = 2".getBytes()));
+        assert res.equals("[300]\n");
+        res = new String(exe.execute("select bal from acct where id = 2".getBytes()));
+        assert res.equals("[202]\n");
+        a.execute("commit".getBytes());
+        res = new String(exe.execute("select bal from acct where id = 2".getBytes()));
+        assert res.equals("[300]\n");
+        tm.close();
+        dm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        exe = new Executor(TableManager.open(path, vm, dm));
+        res = new String(exe.execute("select id, bal from acct".getBytes()));
+        assert res.equals("[1, 101]\n[2, 300]\n");
+        tm.close();
+        dm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
 }
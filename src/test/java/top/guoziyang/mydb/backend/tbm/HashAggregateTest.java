@@ -0,0 +1,70 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashAggregateTest {
+
+    /**
+     * 按顺序产出 (i % groups, i) 的下层算子
+     */
+    private static Operator source(int total, int groups) {
+        List<Field> columns = Arrays.asList(new Field(null, "g", "string", 0), new Field(null, "v", "int64", 0));
+        return new RowSource(columns, total, i -> new Object[]{"g" + (i % groups), (long)i});
+    }
+
+    private static Map<String, Object[]> run(int total, int groups, int maxGroups) throws Exception {
+        HashAggregate.Call[] calls = new HashAggregate.Call[] {
+            new HashAggregate.Call("count", -1),
+            new HashAggregate.Call("sum", 1),
+            new HashAggregate.Call("min", 1),
+            new HashAggregate.Call("max", 1),
+            new HashAggregate.Call("avg", 1),
+        };
+        List<Field> columns = new ArrayList<>();
+        for(int i = 0; i < 6; i ++) {
+            columns.add(new Field(null, "c" + i, "int64", 0));
+        }
+        HashAggregate agg = new HashAggregate(source(total, groups), new int[]{0}, calls, new int[]{0, -1, -2, -3, -4, -5}, columns, maxGroups);
+        Map<String, Object[]> res = new HashMap<>();
+        agg.open();
+        try {
+            RowBatch batch;
+            while((batch = agg.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    assert res.put((String)batch.rows[i][0], batch.rows[i].clone()) == null;
+                }
+            }
+        } finally {
+            agg.close();
+        }
+        return res;
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        Map<String, Object[]> res = run(1000, 10, HashAggregate.MAX_GROUPS);
+        assert res.size() == 10;
+        Object[] row = res.get("g3");
+        assert row[1].equals(100L) && row[2].equals(49800L) && row[3].equals(3L) && row[4].equals(993L);
+        assert row[5].equals(498.0);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        // 内存中最多 8 组，其余按分区写到磁盘后逐个分区合并
+        Map<String, Object[]> res = run(5000, 500, 8);
+        assert res.size() == 500;
+        for(int g = 0; g < 500; g ++) {
+            Object[] row = res.get("g" + g);
+            assert row[1].equals(10L);
+            assert row[2].equals(10L * g + 500L * 45);
+            assert row[3].equals((long)g) && row[4].equals(g + 4500L);
+        }
+    }
+}
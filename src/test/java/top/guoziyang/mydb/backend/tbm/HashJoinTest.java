@@ -0,0 +1,56 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashJoinTest {
+
+    /**
+     * 产出 (i % keys, i) 的下层算子
+     */
+    private static Operator source(int total, int keys) {
+        List<Field> columns = Arrays.asList(new Field(null, "k", "int64", 0), new Field(null, "v", "int64", 0));
+        return new RowSource(columns, total, i -> new Object[]{(long)(i % keys), (long)i});
+    }
+
+    private static List<Object[]> run(boolean left, int maxRows) throws Exception {
+        // 外表 key 为 0..299，内表 key 为 0..199，每个内表 key 有 10 条
+        Operator outer = source(300, 300), inner = source(2000, 200);
+        List<Field> columns = new ArrayList<>(outer.columns());
+        columns.addAll(inner.columns());
+        HashJoin join = new HashJoin(outer, 0, inner, 0, left, columns, maxRows);
+        List<Object[]> res = new ArrayList<>();
+        join.open();
+        try {
+            RowBatch batch;
+            while((batch = join.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    Object[] row = batch.rows[i];
+                    assert row[3] == null || (row[0].equals(row[2]) && (long)row[3] % 200 == (long)row[0]);
+                    res.add(row.clone());
+                }
+            }
+        } finally {
+            join.close();
+        }
+        return res;
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        assert run(false, HashJoin.MAX_ROWS).size() == 2000;
+        assert run(true, HashJoin.MAX_ROWS).size() == 2100;
+    }
+
+    @Test
+    public void testGrace() throws Exception {
+        // 内表超过 100 条后内外表都分区写入临时文件
+        assert run(false, 100).size() == 2000;
+        List<Object[]> res = run(true, 100);
+        assert res.size() == 2100;
+        assert res.stream().filter(r -> r[2] == null).count() == 100;
+    }
+}
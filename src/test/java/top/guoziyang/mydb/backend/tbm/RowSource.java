@@ -0,0 +1,39 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * 测试用的下层算子，按顺序产出 row.apply(0) .. row.apply(total-1)，每批 64 条
+ */
+class RowSource implements Operator {
+    private List<Field> columns;
+    private int total, next;
+    private IntFunction<Object[]> row;
+    private RowBatch batch;
+
+    RowSource(List<Field> columns, int total, IntFunction<Object[]> row) {
+        this.columns = columns;
+        this.total = total;
+        this.row = row;
+        this.batch = new RowBatch(columns.size());
+    }
+
+    public List<Field> columns() {
+        return columns;
+    }
+
+    public void open() {}
+
+    public RowBatch next() {
+        batch.clear();
+        while(next < total && batch.size < 64) {
+            Object[] values = row.apply(next);
+            System.arraycopy(values, 0, batch.add(), 0, values.length);
+            next ++;
+        }
+        return batch.size > 0 ? batch : null;
+    }
+
+    public void close() {}
+}
@@ -0,0 +1,62 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortTest {
+
+    /**
+     * 按给定顺序产出 (v, "s" + v) 的下层算子
+     */
+    private static Operator source(List<Integer> values) {
+        List<Field> columns = Arrays.asList(new Field(null, "v", "int32", 0), new Field(null, "s", "string", 0));
+        return new RowSource(columns, values.size(), i -> new Object[]{values.get(i), "s" + values.get(i)});
+    }
+
+    private static List<Integer> shuffled(int n) {
+        List<Integer> values = new ArrayList<>();
+        for(int i = 0; i < n; i ++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(n));
+        return values;
+    }
+
+    private static List<Integer> run(Operator op) throws Exception {
+        List<Integer> res = new ArrayList<>();
+        op.open();
+        try {
+            RowBatch batch;
+            while((batch = op.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    assert batch.rows[i][1].equals("s" + batch.rows[i][0]);
+                    res.add((Integer)batch.rows[i][0]);
+                }
+            }
+        } finally {
+            op.close();
+        }
+        return res;
+    }
+
+    @Test
+    public void testTopK() throws Exception {
+        List<Integer> res = run(new Limit(new Sort(source(shuffled(5000)), 0, true, 15, Sort.MAX_ROWS), 10, 5));
+        assert res.equals(Arrays.asList(4989, 4988, 4987, 4986, 4985));
+    }
+
+    @Test
+    public void testExternalSort() throws Exception {
+        // 每 100 条写成一个顺串，再多路归并
+        List<Integer> res = run(new Sort(source(shuffled(5000)), 0, false, -1, 100));
+        assert res.size() == 5000;
+        for(int i = 0; i < res.size(); i ++) {
+            assert res.get(i) == i;
+        }
+    }
+}
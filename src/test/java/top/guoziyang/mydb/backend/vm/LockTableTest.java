@@ -45,7 +45,7 @@ public class LockTableTest {
                         o.lock();
                         o.unlock();
                     };
-                    new Thread(r).run();
+                    new Thread(r).start();
                 }
             } catch (Exception e) {
                 Panic.panic(e);
@@ -60,7 +60,7 @@ public class LockTableTest {
                         o.lock();
                         o.unlock();
                     };
-                    new Thread(r).run();
+                    new Thread(r).start();
                 }
             } catch (Exception e) {
                 Panic.panic(e);
@@ -76,4 +76,91 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testLockWaitAndHandOver() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1) == null;
+        Lock o = lt.add(2, 1);
+        assert o != null;
+
+        Thread waiter = new Thread(() -> {
+            o.lock();
+            o.unlock();
+        });
+        waiter.start();
+        waiter.join(100);
+        assert waiter.isAlive();
+
+        lt.remove(1);
+        waiter.join(1000);
+        assert !waiter.isAlive();
+
+        // 资源已移交给事务 2，再次获取无需等待
+        assert lt.add(2, 1) == null;
+        assertThrows(RuntimeException.class, () -> {
+            lt.add(3, 3);
+            lt.add(2, 3);
+            lt.add(3, 1);
+        });
+    }
+
+    @Test
+    public void testSharedAndUpgrade() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1, LockTable.SHARED) == null;
+        assert lt.add(2, 1, LockTable.SHARED) == null;
+
+        // 事务 1 升级时需要等待事务 2 释放共享锁
+        Lock o = lt.add(1, 1, LockTable.EXCLUSIVE);
+        assert o != null;
+        // 事务 2 也申请升级，两者互相等待
+        assertThrows(RuntimeException.class, () -> lt.add(2, 1, LockTable.EXCLUSIVE));
+
+        Thread waiter = new Thread(() -> {
+            o.lock();
+            o.unlock();
+        });
+        waiter.start();
+        lt.remove(2);
+        waiter.join(1000);
+        assert !waiter.isAlive();
+        assert lt.add(1, 1, LockTable.SHARED) == null;
+        assert lt.add(3, 1, LockTable.SHARED) != null;
+    }
+
+    @Test
+    public void testEscalation() throws Exception {
+        LockTable lt = new LockTable(10);
+        long table = 1000;
+        assert lt.add(1, table, LockTable.INTENTION_EXCLUSIVE) == null;
+        for(long uid = 1; uid <= 11; uid ++) {
+            assert lt.add(1, uid, LockTable.EXCLUSIVE, table) == null;
+        }
+        assert !lt.holds(1, table, LockTable.EXCLUSIVE);
+        assert lt.escalate(1, table);
+        assert lt.holds(1, table, LockTable.EXCLUSIVE);
+        // 行锁已释放，其他事务需要先在表上等待意向锁
+        assert !lt.holds(1, 5, LockTable.EXCLUSIVE);
+        assert lt.add(2, table, LockTable.INTENTION_SHARED) != null;
+    }
+
+    @Test
+    public void testEscalationBlockedByOthers() throws Exception {
+        LockTable lt = new LockTable(2);
+        long table = 1000;
+        assert lt.add(1, table, LockTable.INTENTION_EXCLUSIVE) == null;
+        assert lt.add(2, table, LockTable.INTENTION_SHARED) == null;
+        assert lt.add(2, 100, LockTable.SHARED, table) == null;
+        for(long uid = 1; uid <= 3; uid ++) {
+            assert lt.add(1, uid, LockTable.EXCLUSIVE, table) == null;
+        }
+        // 事务 2 持有意向共享锁，升级失败，继续使用行锁
+        assert !lt.escalate(1, table);
+        assert lt.holds(1, 3, LockTable.EXCLUSIVE);
+        lt.remove(2);
+        assert lt.add(1, 4, LockTable.EXCLUSIVE, table) == null;
+        assert lt.add(1, 5, LockTable.EXCLUSIVE, table) == null;
+        assert lt.escalate(1, table);
+    }
 }
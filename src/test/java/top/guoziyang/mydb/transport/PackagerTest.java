@@ -39,4 +39,17 @@ public class PackagerTest {
         Package three = p.receive();
         assert "pkg3 test".equals(new String(three.getData()));
     }
+
+    @Test
+    public void testEncodeExecute() throws Exception {
+        Encoder e = new Encoder();
+        Package pkg = e.decode(e.encode(new Package("q", new String[]{"1", "a b", ""})));
+        assert "q".equals(pkg.getName());
+        assert java.util.Arrays.equals(new String[]{"1", "a b", ""}, pkg.getArgs());
+        pkg = e.decode(e.encode(new Package("res".getBytes(), null)));
+        assert pkg.getName() == null && "res".equals(new String(pkg.getData()));
+        pkg = e.decode(e.encode(new Package("part".getBytes(), null, true)));
+        assert pkg.isPartial() && "part".equals(new String(pkg.getData()));
+        assert !e.decode(e.encode(new Package("end".getBytes(), null))).isPartial();
+    }
 }